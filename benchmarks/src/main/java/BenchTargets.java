@@ -0,0 +1,349 @@
+/**
+ * Bench Targets
+ *
+ * Implements the benchmark interfaces of kvbench.Targets with the server classes, which live in
+ * the default package like this class. Servers are assembled from the same parts TCPServer and
+ * UDPServer use, but on daemon threads, so a benchmark fork can exit when it is done and the gc
+ * profiler sees the allocation of both the server and the client.
+ */
+
+import kvbench.Targets;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class BenchTargets implements Targets {
+
+  // Threads of the threaded TCP engine's request pool and of the UDP server
+  private static final int SERVER_THREADS = Runtime.getRuntime().availableProcessors();
+
+  // Address the benchmark clients use
+  private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+  // Creates the server threads as daemons
+  private static final ThreadFactory DAEMON = runnable -> {
+    Thread thread = new Thread(runnable);
+    thread.setDaemon(true);
+    return thread;
+  };
+
+  @Override
+  public Store store(String engine, int capacity) {
+    KeyValueStore store;
+    if (engine.equals("heap")) {
+      store = new ConcurrentKeyValueStore();
+    } else if (engine.equals("offheap")) {
+      store = new OffHeapKeyValueStore(capacity);
+    } else if (engine.equals("cache")) {
+      store = new CacheKeyValueStore(capacity / 2, Long.MAX_VALUE, "tinylfu");
+    } else {
+      throw new IllegalArgumentException("Unknown engine: " + engine);
+    }
+    return new Store() {
+      @Override
+      public Object get(byte[] key) {
+        return store.get(ByteString.wrap(key));
+      }
+
+      @Override
+      public Object put(byte[] key, byte[] value) {
+        return store.put(ByteString.wrap(key), ByteString.wrap(value));
+      }
+
+      @Override
+      public Object remove(byte[] key) {
+        return store.remove(ByteString.wrap(key));
+      }
+    };
+  }
+
+  @Override
+  public Codec codec(String key, String value) {
+    Log.configure(new ServerConfig(new String[] {"0", "--log-level=OFF"}));
+    KeyValueStore store = new ConcurrentKeyValueStore();
+    ByteString keyBytes = ByteString.of(key);
+    store.put(keyBytes, ByteString.of(value));
+    CommandProcessor processor = new CommandProcessor(store);
+    Request request = new Request(Protocol.OP_GET, 1, keyBytes, ByteString.EMPTY);
+    Request leanRequest = new Request((byte) (Protocol.OP_GET | Protocol.FLAG_LEAN), 1, keyBytes, ByteString.EMPTY);
+
+    return new Codec() {
+      @Override
+      public int encodeRequest(ByteBuffer dst) {
+        try {
+          Protocol.encodeRequest(request, dst);
+        } catch (ProtocolException e) {
+          throw new IllegalStateException(e);
+        }
+        return dst.position();
+      }
+
+      @Override
+      public Object decodeRequest(ByteBuffer src) {
+        try {
+          return Protocol.decodeRequest(src);
+        } catch (ProtocolException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+
+      @Override
+      public int encodeResponse(ByteBuffer dst) {
+        Response response = processor.execute(request, LOOPBACK, 0);
+        Protocol.encodeResponse(response, dst);
+        return dst.position();
+      }
+
+      @Override
+      public Object decodeResponse(ByteBuffer src) {
+        try {
+          return Protocol.decodeResponse(src);
+        } catch (ProtocolException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+
+      @Override
+      public int encodeLeanResponse(ByteBuffer dst) {
+        return processor.executeLean(leanRequest, LOOPBACK, 0, dst);
+      }
+
+      @Override
+      public int encodeTextResponse(ByteBuffer dst) {
+        try {
+          ModifiedUtf8.encode(processor.get(key, LOOPBACK, 0), dst);
+        } catch (UTFDataFormatException e) {
+          throw new IllegalStateException(e);
+        }
+        return dst.position();
+      }
+    };
+  }
+
+  @Override
+  public int startServer(String transport, String store) throws IOException {
+    ServerConfig config = new ServerConfig(new String[] {"0", "--log-level=OFF", "--store=" + store});
+    Log.configure(config);
+    CommandProcessor processor = new CommandProcessor(StoreFactory.create(config));
+
+    if (transport.equals("tcp-threaded")) {
+      // Same as TCPServer's threaded engine: a handler thread per connection
+      ServerSocket serverSocket = new ServerSocket(0);
+      ExecutorService requestPool = Executors.newFixedThreadPool(SERVER_THREADS, DAEMON);
+      DAEMON.newThread(() -> {
+        while (true) {
+          try {
+            Socket socket = serverSocket.accept();
+            DAEMON.newThread(new TCPClientHandler(socket, processor, requestPool)).start();
+          } catch (IOException e) {
+            return;
+          }
+        }
+      }).start();
+      return serverSocket.getLocalPort();
+    } else if (transport.equals("tcp-nio")) {
+      int port = freePort();
+      // start() accepts forever; threads it creates inherit the daemon flag. The store is in
+      // memory only, so writes run on the event loops as in TCPServer without --data-dir
+      DAEMON.newThread(() -> {
+        try {
+          new TCPSelectorServer(port, SERVER_THREADS, processor, null).start();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }).start();
+      awaitListening(port);
+      return port;
+    } else if (transport.equals("udp")) {
+      DatagramChannel channel = DatagramChannel.open();
+      channel.bind(new InetSocketAddress(LOOPBACK, 0));
+      // Writes are remembered for resends, as by UDPServer's default
+      ReplyCache replies = new ReplyCache(65536);
+      for (int i = 0; i < SERVER_THREADS; i++) {
+        DAEMON.newThread(new UDPWorker(channel, processor, replies)).start();
+      }
+      return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+    throw new IllegalArgumentException("Unknown transport: " + transport);
+  }
+
+  @Override
+  public Client client(String transport, String mode, int port) throws IOException {
+    if (transport.equals("udp")) {
+      if (mode.equals("text")) {
+        throw new IllegalArgumentException("UDP only speaks the binary protocol");
+      }
+      return new UdpClient(port, mode.equals("lean"));
+    } else if (mode.equals("text")) {
+      return new TextClient(port);
+    }
+    return new BinaryTcpClient(port, mode.equals("lean"));
+  }
+
+  /**
+   * Function to find a free TCP port
+   */
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /**
+   * Function to wait until a server accepts connections on a port
+   */
+  private static void awaitListening(int port) throws IOException {
+    for (int attempt = 0; ; attempt++) {
+      try (Socket socket = new Socket(LOOPBACK, port)) {
+        // A QUIT lets the server close its side right away
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeUTF("QUIT");
+        return;
+      } catch (ConnectException e) {
+        if (attempt == 100) throw e;
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException interrupted) {
+          throw new InterruptedIOException();
+        }
+      }
+    }
+  }
+
+  /**
+   * Client of the original writeUTF text protocol, like TCPClient.
+   */
+  private static final class TextClient implements Client {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    TextClient(int port) throws IOException {
+      socket = new Socket(LOOPBACK, port);
+      socket.setTcpNoDelay(true);
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    @Override
+    public Object get(byte[] key) throws IOException {
+      out.writeUTF("GET");
+      out.writeUTF(new String(key, StandardCharsets.UTF_8));
+      out.flush();
+      return in.readUTF();
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws IOException {
+      out.writeUTF("PUT");
+      out.writeUTF(new String(key, StandardCharsets.UTF_8));
+      out.writeUTF(new String(value, StandardCharsets.UTF_8));
+      out.flush();
+      in.readUTF();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.writeUTF("QUIT");
+      out.flush();
+      socket.close();
+    }
+  }
+
+  /**
+   * Client of the pipelined binary protocol, with full or lean responses.
+   */
+  private static final class BinaryTcpClient implements Client {
+    private final PipelinedTCPClient client;
+    private final boolean lean;
+
+    BinaryTcpClient(int port, boolean lean) throws IOException {
+      this.client = new PipelinedTCPClient(LOOPBACK.getHostAddress(), port, 5000);
+      this.lean = lean;
+    }
+
+    @Override
+    public Object get(byte[] key) throws IOException {
+      ByteString bytes = ByteString.wrap(key);
+      return await(lean ? client.getLean(bytes) : client.get(bytes)).value;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws IOException {
+      byte opcode = lean ? (byte) (Protocol.OP_PUT | Protocol.FLAG_LEAN) : Protocol.OP_PUT;
+      await(client.send(opcode, ByteString.wrap(key), ByteString.wrap(value)));
+    }
+
+    @Override
+    public void close() throws IOException {
+      client.close();
+    }
+
+    private static Response await(CompletableFuture<Response> future) throws IOException {
+      try {
+        return future.get();
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  /**
+   * UDP client with full or lean responses, reusing its buffers like UDPWorker.
+   */
+  private static final class UdpClient implements Client {
+    private final DatagramChannel channel;
+    private final boolean lean;
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(Protocol.MAX_DATAGRAM_SIZE);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(Protocol.MAX_DATAGRAM_SIZE);
+    private int nextRequestId;
+
+    UdpClient(int port, boolean lean) throws IOException {
+      channel = DatagramChannel.open();
+      channel.connect(new InetSocketAddress(LOOPBACK, port));
+      this.lean = lean;
+    }
+
+    @Override
+    public Object get(byte[] key) throws IOException {
+      return call(Protocol.OP_GET, ByteString.wrap(key), ByteString.EMPTY).value;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws IOException {
+      call(Protocol.OP_PUT, ByteString.wrap(key), ByteString.wrap(value));
+    }
+
+    private Response call(byte opcode, ByteString key, ByteString value) throws IOException {
+      Request request = new Request(lean ? (byte) (opcode | Protocol.FLAG_LEAN) : opcode,
+              nextRequestId++, key, value);
+      sendBuffer.clear();
+      Protocol.encodeRequest(request, sendBuffer);
+      sendBuffer.flip();
+      channel.write(sendBuffer);
+      // Loopback doesn't drop datagrams under this load, so there is no retry
+      while (true) {
+        receiveBuffer.clear();
+        channel.read(receiveBuffer);
+        receiveBuffer.flip();
+        Response response = Protocol.decodeResponse(receiveBuffer);
+        if (response.requestId == request.requestId) return response;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
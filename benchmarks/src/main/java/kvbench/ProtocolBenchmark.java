@@ -0,0 +1,80 @@
+package kvbench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Protocol Benchmark
+ *
+ * The per-request protocol work of the servers and clients, without any I/O: encoding and
+ * decoding a GET request, and answering it in each response format. The response benchmarks
+ * include the store lookup and building the reply, which is what differs between the formats.
+ *
+ *   java -jar benchmarks/target/benchmarks.jar ProtocolBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+
+  @Param({"16", "1024"})
+  public int valueSize;
+
+  Targets.Codec codec;
+  ByteBuffer buffer;
+  ByteBuffer requestBytes;
+  ByteBuffer responseBytes;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    codec = Targets.load().codec("user:1234", "v".repeat(valueSize));
+    buffer = ByteBuffer.allocateDirect(64 * 1024);
+    requestBytes = ByteBuffer.allocate(64 * 1024);
+    codec.encodeRequest(requestBytes);
+    requestBytes.flip();
+    responseBytes = ByteBuffer.allocate(64 * 1024);
+    codec.encodeResponse(responseBytes);
+    responseBytes.flip();
+  }
+
+  @Benchmark
+  public int encodeRequest() {
+    buffer.clear();
+    return codec.encodeRequest(buffer);
+  }
+
+  @Benchmark
+  public Object decodeRequest() {
+    requestBytes.rewind();
+    return codec.decodeRequest(requestBytes);
+  }
+
+  @Benchmark
+  public int binaryResponse() {
+    buffer.clear();
+    return codec.encodeResponse(buffer);
+  }
+
+  @Benchmark
+  public int leanResponse() {
+    buffer.clear();
+    return codec.encodeLeanResponse(buffer);
+  }
+
+  @Benchmark
+  public int textResponse() {
+    buffer.clear();
+    return codec.encodeTextResponse(buffer);
+  }
+
+  @Benchmark
+  public Object decodeResponse() {
+    responseBytes.rewind();
+    return codec.decodeResponse(responseBytes);
+  }
+}
@@ -0,0 +1,95 @@
+package kvbench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Store Benchmark
+ *
+ * Key-value store operations under contention: every thread works on the same store with
+ * uniformly random keys. The "mixed" group runs three readers against one writer.
+ *
+ *   java -jar benchmarks/target/benchmarks.jar StoreBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreBenchmark {
+
+  // heap, offheap, or cache (W-TinyLFU with room for half the keys, so it keeps evicting)
+  @Param({"heap", "offheap", "cache"})
+  public String engine;
+
+  @Param({"100000"})
+  public int keyCount;
+
+  @Param({"100"})
+  public int valueSize;
+
+  Targets.Store store;
+  byte[][] keys;
+  byte[] value;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    store = Targets.load().store(engine, keyCount);
+    keys = new byte[keyCount][];
+    value = "v".repeat(valueSize).getBytes(StandardCharsets.UTF_8);
+    for (int i = 0; i < keyCount; i++) {
+      keys[i] = ("key:" + i).getBytes(StandardCharsets.UTF_8);
+      store.put(keys[i], value);
+    }
+  }
+
+  /**
+   * Per-thread key picker, so threads don't contend on a shared random generator.
+   */
+  @State(Scope.Thread)
+  public static class Picker {
+    private final SplittableRandom random = new SplittableRandom();
+
+    byte[] next(StoreBenchmark benchmark) {
+      return benchmark.keys[random.nextInt(benchmark.keys.length)];
+    }
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object get(Picker picker) {
+    return store.get(picker.next(this));
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object put(Picker picker) {
+    return store.put(picker.next(this), value);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object putRemove(Picker picker) {
+    byte[] key = picker.next(this);
+    store.remove(key);
+    return store.put(key, value);
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(3)
+  public Object mixedGet(Picker picker) {
+    return store.get(picker.next(this));
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public Object mixedPut(Picker picker) {
+    return store.put(picker.next(this), value);
+  }
+}
@@ -0,0 +1,111 @@
+package kvbench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Targets
+ *
+ * What the benchmarks measure. The server classes live in the default package, which JMH
+ * benchmarks cannot import, so the benchmarks call them through these interfaces. They are
+ * implemented by the default-package class BenchTargets, loaded by name. Every call is a
+ * monomorphic interface call that the JIT inlines, so the bridge adds nothing measurable.
+ */
+public interface Targets {
+
+  /**
+   * Function to load the implementation
+   * @return The targets
+   */
+  static Targets load() {
+    try {
+      return (Targets) Class.forName("BenchTargets").getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("BenchTargets is not on the class path", e);
+    }
+  }
+
+  /**
+   * Function to create an empty store
+   *
+   * @param engine   heap, offheap or cache
+   * @param capacity The number of keys the benchmark uses. A cache gets room for half of them,
+   *                 so it keeps evicting
+   * @return The store
+   */
+  Store store(String engine, int capacity);
+
+  /**
+   * Function to create a codec working on one GET request and its response
+   *
+   * @param key   The key of the request
+   * @param value The value of the response
+   * @return The codec
+   */
+  Codec codec(String key, String value);
+
+  /**
+   * Function to start a server in this JVM on daemon threads, with logging off
+   *
+   * @param transport tcp-threaded, tcp-nio or udp
+   * @param store     The --store option, heap or offheap
+   * @return The port the server listens on
+   */
+  int startServer(String transport, String store) throws IOException;
+
+  /**
+   * Function to connect a client
+   *
+   * @param transport tcp-threaded, tcp-nio or udp
+   * @param mode      text (TCP only), binary or lean
+   * @param port      The server port
+   * @return The client
+   */
+  Client client(String transport, String mode, int port) throws IOException;
+
+  /**
+   * A KeyValueStore. Keys and values are the UTF-8 bytes the server would hold, encoded once
+   * during setup, and results are returned as objects for JMH to consume.
+   */
+  interface Store {
+    Object get(byte[] key);
+
+    Object put(byte[] key, byte[] value);
+
+    Object remove(byte[] key);
+  }
+
+  /**
+   * The protocol work the servers do for one request and its response. Every method returns a
+   * result so JMH can consume it.
+   */
+  interface Codec {
+    /** Function to encode the request as a client does */
+    int encodeRequest(ByteBuffer dst);
+
+    /** Function to decode the request as a server does */
+    Object decodeRequest(ByteBuffer src);
+
+    /** Function to build the binary response to the GET and encode it */
+    int encodeResponse(ByteBuffer dst);
+
+    /** Function to decode the binary response as a client does */
+    Object decodeResponse(ByteBuffer src);
+
+    /** Function to answer the GET with a lean response written straight into dst */
+    int encodeLeanResponse(ByteBuffer dst);
+
+    /** Function to build the text protocol reply to the GET and encode it for writeUTF */
+    int encodeTextResponse(ByteBuffer dst);
+  }
+
+  /**
+   * A client waiting for each response before sending the next request.
+   */
+  interface Client extends Closeable {
+    Object get(byte[] key) throws IOException;
+
+    void put(byte[] key, byte[] value) throws IOException;
+  }
+}
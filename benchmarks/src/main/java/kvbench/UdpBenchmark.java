@@ -0,0 +1,94 @@
+package kvbench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UDP Benchmark
+ *
+ * GET and PUT round trips over loopback UDP against a server running in the benchmark JVM. Each
+ * thread is one channel that waits for every response, so SampleTime gives the request
+ * latency percentiles and Throughput the rate four such clients reach. Allocation of the server
+ * and the client both show up in -prof gc.
+ *
+ *   java -jar benchmarks/target/benchmarks.jar UdpBenchmark -p mode=lean -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UdpBenchmark {
+
+  // UDP only speaks the binary protocol, with full or lean responses
+  @Param({"binary", "lean"})
+  public String mode;
+
+  @Param({"heap"})
+  public String store;
+
+  @Param({"10000"})
+  public int keyCount;
+
+  @Param({"100"})
+  public int valueSize;
+
+  Targets targets;
+  int port;
+  byte[][] keys;
+  byte[] value;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    targets = Targets.load();
+    port = targets.startServer("udp", store);
+    keys = new byte[keyCount][];
+    value = "v".repeat(valueSize).getBytes(StandardCharsets.UTF_8);
+    try (Targets.Client client = targets.client("udp", "binary", port)) {
+      for (int i = 0; i < keyCount; i++) {
+        keys[i] = ("key:" + i).getBytes(StandardCharsets.UTF_8);
+        client.put(keys[i], value);
+      }
+    }
+  }
+
+  /**
+   * One channel per benchmark thread.
+   */
+  @State(Scope.Thread)
+  public static class Connection {
+    Targets.Client client;
+    final SplittableRandom random = new SplittableRandom();
+
+    @Setup(Level.Trial)
+    public void connect(UdpBenchmark benchmark) throws IOException {
+      client = benchmark.targets.client("udp", benchmark.mode, benchmark.port);
+    }
+
+    @TearDown(Level.Trial)
+    public void disconnect() throws IOException {
+      client.close();
+    }
+
+    byte[] nextKey(UdpBenchmark benchmark) {
+      return benchmark.keys[random.nextInt(benchmark.keys.length)];
+    }
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object get(Connection connection) throws IOException {
+    return connection.client.get(connection.nextKey(this));
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void put(Connection connection) throws IOException {
+    connection.client.put(connection.nextKey(this), value);
+  }
+}
@@ -0,0 +1,477 @@
+/**
+ * Async UDP Client
+ *
+ * Client library for the binary UDP protocol that, like PipelinedTCPClient, keeps any number of
+ * requests in flight: send returns immediately with a future, and a reader thread completes each
+ * future when the datagram answering its request id arrives.
+ *
+ * A request whose response doesn't arrive within the retransmission timeout is sent again with
+ * the same request id, waiting twice as long after each resend. The timeout adapts to the
+ * measured round-trip times (see RttEstimator), and the server answers a resent write from its
+ * ReplyCache instead of executing it again. A request still unanswered after the overall timeout
+ * fails with a TimeoutException; a response arriving after that is ignored.
+ *
+ * Values too large for a datagram are moved in chunks with putStream and getStream, each chunk a
+ * request of its own, so lost chunks are resent like any request and the server puts them back
+ * in order.
+ *
+ * Keys and values are bytes (ByteString). Every method also takes strings, which it sends as
+ * UTF-8.
+ *
+ * The client is safe to use from several threads at once.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncUDPClient implements Closeable {
+
+  // Channel connected to the server, so it only receives the server's datagrams
+  private final DatagramChannel channel;
+
+  // Requests waiting for their response, keyed by request id
+  private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+
+  // Id of the next request. Starts at a random value so a restarted client doesn't reuse the ids
+  // the server remembers
+  private final AtomicInteger nextRequestId = new AtomicInteger(new Random().nextInt());
+
+  // How long a request waits for its response, resends included, in milliseconds
+  private final int timeoutMs;
+
+  // Retransmission timeout from the measured round trips
+  private final RttEstimator rtt = new RttEstimator();
+
+  // Thread resending requests whose retransmission timeout has passed
+  private final ScheduledExecutorService retransmitter;
+
+  // Encodes requests for the sending threads; each thread gets its own buffer
+  private final ThreadLocal<ByteBuffer> sendBuffers =
+          ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Protocol.MAX_DATAGRAM_SIZE));
+
+  // Thread reading responses and completing their futures
+  private final Thread reader;
+
+  private volatile boolean closed;
+
+  /**
+   * Creates a client sending to one server.
+   *
+   * @param host      The server IP address or host name
+   * @param port      The server port
+   * @param timeoutMs How long a request waits for its response, resends included, in milliseconds
+   * @throws IOException If the channel cannot be opened
+   */
+  public AsyncUDPClient(String host, int port, int timeoutMs) throws IOException {
+    channel = DatagramChannel.open();
+    channel.connect(new InetSocketAddress(host, port));
+    this.timeoutMs = timeoutMs;
+
+    retransmitter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "udp-client-retransmit");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    reader = new Thread(this::readResponses, "udp-client-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Function to send a request without waiting for its response
+   *
+   * @param opcode The command, one of the Protocol.OP_* constants
+   * @param key    The key, or ByteString.EMPTY
+   * @param value  The value, or ByteString.EMPTY
+   * @return A future completed with the response, or exceptionally if it times out
+   */
+  public CompletableFuture<Response> send(byte opcode, ByteString key, ByteString value) {
+    return submit(new Request(opcode, nextRequestId.getAndIncrement(), key, value));
+  }
+
+  /**
+   * Function to send a request without waiting for its response
+   *
+   * @param opcode The command, one of the Protocol.OP_* constants
+   * @param key    The key, or an empty string
+   * @param value  The value, or an empty string
+   * @return A future completed with the response, or exceptionally if it times out
+   */
+  public CompletableFuture<Response> send(byte opcode, String key, String value) {
+    return send(opcode, ByteString.of(key), ByteString.of(value));
+  }
+
+  /**
+   * Function to send a batch command without waiting for its response
+   *
+   * @param opcode Protocol.OP_MGET, OP_MPUT or OP_MDELETE
+   * @param keys   The keys the command works on
+   * @param values The values for an MPUT, one per key, or null for other commands
+   * @return A future completed with the batch response
+   */
+  public CompletableFuture<Response> sendBatch(byte opcode, ByteString[] keys, ByteString[] values) {
+    return submit(new Request(opcode, nextRequestId.getAndIncrement(), keys, values));
+  }
+
+  /**
+   * Function to send a batch command without waiting for its response
+   *
+   * @param opcode Protocol.OP_MGET, OP_MPUT or OP_MDELETE
+   * @param keys   The keys the command works on
+   * @param values The values for an MPUT, one per key, or null for other commands
+   * @return A future completed with the batch response
+   */
+  public CompletableFuture<Response> sendBatch(byte opcode, String[] keys, String[] values) {
+    return sendBatch(opcode, ByteString.of(keys), ByteString.of(values));
+  }
+
+  /**
+   * Function to send one chunk of a streamed value without waiting for its response. Most
+   * callers use putStream and getStream instead
+   *
+   * @param opcode     Protocol.OP_PUT_CHUNK or OP_GET_CHUNK
+   * @param key        The key
+   * @param streamId   The id of the transfer the chunk belongs to
+   * @param chunkIndex The index of the chunk in the value
+   * @param chunk      The chunk for a PUT_CHUNK, or ByteString.EMPTY
+   * @param last       True on the last chunk of a PUT_CHUNK
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> sendChunk(byte opcode, ByteString key, int streamId, int chunkIndex,
+                                               ByteString chunk, boolean last) {
+    return submit(new Request(opcode, nextRequestId.getAndIncrement(), key, chunk, streamId, chunkIndex, last));
+  }
+
+  /**
+   * Function to ask for one page of a SCAN or RANGE without waiting for its response. Most
+   * callers use scan and range of KeyValueClient instead, which follow the pages
+   *
+   * @param opcode Protocol.OP_SCAN or OP_RANGE
+   * @param key    The prefix of a SCAN, or the first key of a RANGE
+   * @param value  Where a SCAN page starts (empty for the first page), or the key a RANGE stops
+   *               before (empty for no end)
+   * @param limit  The most key-value pairs the page may hold
+   * @return A future completed with the page, or an error response
+   */
+  public CompletableFuture<Response> sendScan(byte opcode, ByteString key, ByteString value, int limit) {
+    return submit(new Request(opcode, nextRequestId.getAndIncrement(), limit, key, value));
+  }
+
+  /**
+   * Function to register a request as in flight and send its datagram
+   *
+   * @param request The request to send
+   * @return A future completed with the response
+   */
+  private CompletableFuture<Response> submit(Request request) {
+    CompletableFuture<Response> future = new CompletableFuture<Response>();
+    if (closed) {
+      future.completeExceptionally(new IOException("Client is closed"));
+      return future;
+    }
+    Pending entry = new Pending(request, future);
+    pending.put(request.requestId, entry);
+    // Forget the request once it is answered or has timed out
+    future.orTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+            .whenComplete((response, error) -> pending.remove(request.requestId, entry));
+    transmit(entry);
+    return future;
+  }
+
+  /**
+   * Function to send a request's datagram and schedule its resend
+   * @param entry The request in flight
+   */
+  private void transmit(Pending entry) {
+    try {
+      ByteBuffer buffer = sendBuffers.get();
+      buffer.clear();
+      Protocol.encodeRequest(entry.request, buffer);
+      buffer.flip();
+      long delay = rtt.getRtoNanos(entry.sends);
+      entry.sentNanos = System.nanoTime();
+      entry.sends++;
+      channel.write(buffer);
+      retransmitter.schedule(() -> retransmit(entry), delay, TimeUnit.NANOSECONDS);
+    } catch (IOException | RuntimeException e) {
+      // Also covers a scheduler shut down by close
+      entry.future.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Function run by the retransmit thread when a request's retransmission timeout has passed
+   * @param entry The request in flight
+   */
+  private void retransmit(Pending entry) {
+    if (!entry.future.isDone() && !closed) {
+      transmit(entry);
+    }
+  }
+
+  /**
+   * Function to send a GET request
+   *
+   * @param key The key to read
+   * @return A future completed with the response; its value is the value read
+   */
+  public CompletableFuture<Response> get(ByteString key) {
+    return send(Protocol.OP_GET, key, ByteString.EMPTY);
+  }
+
+  /**
+   * Function to send a GET request
+   *
+   * @param key The key to read
+   * @return A future completed with the response; its value is the value read
+   */
+  public CompletableFuture<Response> get(String key) {
+    return get(ByteString.of(key));
+  }
+
+  /**
+   * Function to send a PUT request
+   *
+   * @param key   The key to store
+   * @param value The value associated with the key
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> put(ByteString key, ByteString value) {
+    return send(Protocol.OP_PUT, key, value);
+  }
+
+  /**
+   * Function to send a PUT request
+   *
+   * @param key   The key to store
+   * @param value The value associated with the key
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> put(String key, String value) {
+    return put(ByteString.of(key), ByteString.of(value));
+  }
+
+  /**
+   * Function to send a DELETE request
+   *
+   * @param key The key to remove
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> delete(ByteString key) {
+    return send(Protocol.OP_DELETE, key, ByteString.EMPTY);
+  }
+
+  /**
+   * Function to send a DELETE request
+   *
+   * @param key The key to remove
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> delete(String key) {
+    return delete(ByteString.of(key));
+  }
+
+  /**
+   * Function to send an INCR request, adding to a counter in one atomic step
+   *
+   * @param key   The key of the counter
+   * @param delta The amount to add, negative to decrement
+   * @return A future completed with the response; its value is the new counter, in decimal
+   */
+  public CompletableFuture<Response> incr(ByteString key, long delta) {
+    return submit(new Request(Protocol.OP_INCR, nextRequestId.getAndIncrement(), key, delta));
+  }
+
+  /**
+   * Function to send an INCR request, adding to a counter in one atomic step
+   *
+   * @param key   The key of the counter
+   * @param delta The amount to add, negative to decrement
+   * @return A future completed with the response; its value is the new counter, in decimal
+   */
+  public CompletableFuture<Response> incr(String key, long delta) {
+    return incr(ByteString.of(key), delta);
+  }
+
+  /**
+   * Function to send a CAS request, replacing a value only if the key still holds the expected one
+   *
+   * @param key      The key to update
+   * @param expected The value the key must hold, or null if it must not exist
+   * @param value    The new value
+   * @return A future completed with the response, whose status is Protocol.STATUS_MISMATCH,
+   *         with the value found, if nothing was replaced
+   */
+  public CompletableFuture<Response> cas(ByteString key, ByteString expected, ByteString value) {
+    return submit(new Request(Protocol.OP_CAS, nextRequestId.getAndIncrement(), key, expected, value));
+  }
+
+  /**
+   * Function to send a CAS request, replacing a value only if the key still holds the expected one
+   *
+   * @param key      The key to update
+   * @param expected The value the key must hold, or null if it must not exist
+   * @param value    The new value
+   * @return A future completed with the response, whose status is Protocol.STATUS_MISMATCH,
+   *         with the value found, if nothing was replaced
+   */
+  public CompletableFuture<Response> cas(String key, String expected, String value) {
+    return cas(ByteString.of(key), expected == null ? null : ByteString.of(expected), ByteString.of(value));
+  }
+
+  /**
+   * Function to send an APPEND request, adding to the end of a value in one atomic step
+   *
+   * @param key   The key to update
+   * @param value The bytes to append
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> append(ByteString key, ByteString value) {
+    return send(Protocol.OP_APPEND, key, value);
+  }
+
+  /**
+   * Function to send an APPEND request, adding to the end of a value in one atomic step
+   *
+   * @param key   The key to update
+   * @param value The bytes to append
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> append(String key, String value) {
+    return append(ByteString.of(key), ByteString.of(value));
+  }
+
+  /**
+   * Function to store a value of up to Protocol.MAX_VALUE_SIZE bytes, read from a stream and sent
+   * in chunks, each in its own datagram. Blocks until the value is stored
+   *
+   * @param key   The key to store
+   * @param value The value, read until its end
+   * @throws IOException If the value can't be read, or the server fails or rejects the value
+   */
+  public void putStream(ByteString key, InputStream value) throws IOException {
+    ChunkedTransfer.upload(this::sendChunk, key, value);
+  }
+
+  /**
+   * Function to store a value of up to Protocol.MAX_VALUE_SIZE bytes, read from a stream and sent
+   * in chunks, each in its own datagram. Blocks until the value is stored
+   *
+   * @param key   The key to store
+   * @param value The value, read until its end
+   * @throws IOException If the value can't be read, or the server fails or rejects the value
+   */
+  public void putStream(String key, InputStream value) throws IOException {
+    putStream(ByteString.of(key), value);
+  }
+
+  /**
+   * Function to read a value of any size in chunks, writing it to a stream as they arrive.
+   * Blocks until the whole value is written
+   *
+   * @param key The key to read
+   * @param out Receives the value
+   * @return True if the value was written, false if the server answered with an error, such as
+   *         a missing key
+   * @throws IOException If the value can't be written, or the server fails
+   */
+  public boolean getStream(ByteString key, OutputStream out) throws IOException {
+    return ChunkedTransfer.download(this::sendChunk, key, out);
+  }
+
+  /**
+   * Function to read a value of any size in chunks, writing it to a stream as they arrive.
+   * Blocks until the whole value is written
+   *
+   * @param key The key to read
+   * @param out Receives the value
+   * @return True if the value was written, false if the server answered with an error, such as
+   *         a missing key
+   * @throws IOException If the value can't be written, or the server fails
+   */
+  public boolean getStream(String key, OutputStream out) throws IOException {
+    return getStream(ByteString.of(key), out);
+  }
+
+  /**
+   * Function to get the number of requests still waiting for a response
+   * @return The number of requests in flight
+   */
+  public int inFlight() {
+    return pending.size();
+  }
+
+  /**
+   * Closes the channel. Requests still in flight fail.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    retransmitter.shutdownNow();
+    channel.close();
+    for (Pending entry : pending.values()) {
+      entry.future.completeExceptionally(new IOException("Client is closed"));
+    }
+  }
+
+  /**
+   * Function run by the reader thread to complete futures as responses arrive
+   */
+  private void readResponses() {
+    ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(Protocol.MAX_DATAGRAM_SIZE);
+    while (!closed) {
+      try {
+        receiveBuffer.clear();
+        channel.read(receiveBuffer);
+        receiveBuffer.flip();
+        Response response = Protocol.decodeResponse(receiveBuffer);
+        Pending entry = pending.remove(response.requestId);
+        if (entry != null) {
+          // A response to a resent request may answer any of its sends, so it isn't measured
+          if (entry.sends == 1) rtt.sample(System.nanoTime() - entry.sentNanos);
+          entry.future.complete(response);
+        }
+      } catch (ProtocolException e) {
+        // A malformed datagram answers nothing; its request will time out
+      } catch (PortUnreachableException e) {
+        // Nothing listens on the server port yet; the requests will time out
+      } catch (IOException e) {
+        // The channel failed or was closed: nothing more can be answered
+        closed = true;
+        retransmitter.shutdownNow();
+        for (Pending entry : pending.values()) {
+          entry.future.completeExceptionally(e);
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * A request waiting for its response
+   */
+  private static final class Pending {
+    final Request request;
+    final CompletableFuture<Response> future;
+
+    // When the request was last sent, and how many times it has been sent
+    volatile long sentNanos;
+    volatile int sends;
+
+    Pending(Request request, CompletableFuture<Response> future) {
+      this.request = request;
+      this.future = future;
+    }
+  }
+}
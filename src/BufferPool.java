@@ -0,0 +1,65 @@
+/**
+ * Buffer Pool
+ *
+ * A small pool of equally sized direct ByteBuffers. Each selector event loop owns one pool, so
+ * acquire and release are never called concurrently and need no locking. Idle connections hand
+ * their buffers back, which keeps memory proportional to the busy connections rather than to
+ * every open socket.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+public class BufferPool {
+
+  // Size of every buffer handed out by this pool
+  private final int bufferSize;
+
+  // Upper bound on the number of idle buffers kept for reuse
+  private final int maxPooled;
+
+  // Idle buffers ready to be handed out
+  private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+  /**
+   * Creates an empty pool.
+   *
+   * @param bufferSize Size in bytes of each buffer
+   * @param maxPooled  Maximum number of idle buffers to keep
+   */
+  public BufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+  }
+
+  /**
+   * Function to take a cleared buffer from the pool, allocating one if the pool is empty
+   * @return A buffer in write mode
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = free.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    return buffer;
+  }
+
+  /**
+   * Function to return a buffer to the pool. Buffers of another size are simply dropped
+   * @param buffer The buffer to give back. It must not be used by the caller afterwards
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer.capacity() == bufferSize && free.size() < maxPooled) {
+      buffer.clear();
+      free.push(buffer);
+    }
+  }
+
+  /**
+   * Function to get the size of the buffers in this pool
+   * @return The buffer size in bytes
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+}
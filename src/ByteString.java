@@ -0,0 +1,338 @@
+/**
+ * Byte String
+ *
+ * Immutable sequence of bytes: the type of every key and value, from the wire through the store
+ * to the disk and back. The server treats keys and values as opaque bytes, so it never converts
+ * them to or from characters, and any binary data can be stored. Strings are only a convenience
+ * of the clients and of logging, encoded as UTF-8 with of and decoded with toString.
+ *
+ * The hash code is computed once and cached, like String's. Byte strings compare byte by byte as
+ * unsigned values, which orders UTF-8 text the same way as its code points.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public final class ByteString implements Comparable<ByteString> {
+
+  // The byte string of length 0
+  public static final ByteString EMPTY = new ByteString(new byte[0]);
+
+  private final byte[] bytes;
+
+  // Cached hash code, 0 until computed
+  private int hash;
+
+  private ByteString(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * Function to make a byte string of an array without copying it. The caller must not change
+   * the array afterwards
+   *
+   * @param bytes The bytes
+   * @return The byte string
+   */
+  public static ByteString wrap(byte[] bytes) {
+    return bytes.length == 0 ? EMPTY : new ByteString(bytes);
+  }
+
+  /**
+   * Function to make a byte string of a copy of an array
+   *
+   * @param bytes The bytes
+   * @return The byte string
+   */
+  public static ByteString copyOf(byte[] bytes) {
+    return wrap(bytes.clone());
+  }
+
+  /**
+   * Function to make a byte string of a copy of part of an array
+   *
+   * @param bytes  The array
+   * @param offset Where the bytes start
+   * @param length The number of bytes
+   * @return The byte string
+   */
+  public static ByteString copyOf(byte[] bytes, int offset, int length) {
+    return wrap(Arrays.copyOfRange(bytes, offset, offset + length));
+  }
+
+  /**
+   * Function to copy bytes out of a buffer, without moving its position
+   *
+   * @param src    The buffer
+   * @param index  Where the bytes start
+   * @param length The number of bytes
+   * @return The byte string
+   */
+  public static ByteString copyOf(ByteBuffer src, int index, int length) {
+    byte[] bytes = new byte[length];
+    src.get(index, bytes);
+    return wrap(bytes);
+  }
+
+  /**
+   * Function to read bytes from a buffer, advancing its position
+   *
+   * @param src    The buffer
+   * @param length The number of bytes
+   * @return The byte string
+   * @throws java.nio.BufferUnderflowException If fewer bytes remain
+   */
+  public static ByteString read(ByteBuffer src, int length) {
+    byte[] bytes = new byte[length];
+    src.get(bytes);
+    return wrap(bytes);
+  }
+
+  /**
+   * Function to encode a string as UTF-8
+   *
+   * @param str The string
+   * @return Its UTF-8 bytes
+   */
+  public static ByteString of(String str) {
+    return wrap(str.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Function to encode strings as UTF-8
+   *
+   * @param strs The strings, or null
+   * @return Their UTF-8 bytes, in the same order, or null
+   */
+  public static ByteString[] of(String[] strs) {
+    if (strs == null) return null;
+    ByteString[] bytes = new ByteString[strs.length];
+    for (int i = 0; i < strs.length; i++) {
+      bytes[i] = of(strs[i]);
+    }
+    return bytes;
+  }
+
+  /**
+   * Function to write a number in decimal, as Long.toString would, without making a String of it
+   *
+   * @param number The number
+   * @return Its ASCII digits, after a '-' if it is negative
+   */
+  public static ByteString of(long number) {
+    byte[] digits = new byte[20];
+    int start = digits.length;
+    // Kept negative, since Long.MIN_VALUE has no positive counterpart
+    long rest = number < 0 ? number : -number;
+    do {
+      digits[--start] = (byte) ('0' - rest % 10);
+      rest /= 10;
+    } while (rest != 0);
+    if (number < 0) digits[--start] = '-';
+    return new ByteString(Arrays.copyOfRange(digits, start, digits.length));
+  }
+
+  /**
+   * Function to get the number of bytes
+   * @return The length in bytes
+   */
+  public int length() {
+    return bytes.length;
+  }
+
+  /**
+   * Function to check whether there are no bytes
+   * @return True for the empty byte string
+   */
+  public boolean isEmpty() {
+    return bytes.length == 0;
+  }
+
+  /**
+   * Function to get one byte
+   *
+   * @param index The index of the byte
+   * @return The byte
+   */
+  public byte byteAt(int index) {
+    return bytes[index];
+  }
+
+  /**
+   * Function to get part of the bytes
+   *
+   * @param start The index of the first byte
+   * @param end   The index after the last byte
+   * @return The bytes from start to end
+   */
+  public ByteString substring(int start, int end) {
+    if (start == 0 && end == bytes.length) return this;
+    return wrap(Arrays.copyOfRange(bytes, start, end));
+  }
+
+  /**
+   * Function to check whether the bytes start with a prefix
+   *
+   * @param prefix The prefix
+   * @return True if the first prefix.length() bytes are the prefix
+   */
+  public boolean startsWith(ByteString prefix) {
+    return prefix.bytes.length <= bytes.length
+            && Arrays.equals(bytes, 0, prefix.bytes.length, prefix.bytes, 0, prefix.bytes.length);
+  }
+
+  /**
+   * Function to get the first byte string after every byte string starting with these bytes,
+   * which bounds a prefix scan: the last byte that is not 0xFF is incremented and the bytes
+   * after it are dropped
+   *
+   * @return The bound, or null if there is none because every byte is 0xFF
+   */
+  public ByteString prefixEnd() {
+    for (int i = bytes.length - 1; i >= 0; i--) {
+      if (bytes[i] != (byte) 0xFF) {
+        byte[] end = Arrays.copyOf(bytes, i + 1);
+        end[i]++;
+        return new ByteString(end);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Function to join two byte strings
+   *
+   * @param suffix The bytes to put after these
+   * @return These bytes followed by the suffix
+   */
+  public ByteString concat(ByteString suffix) {
+    if (suffix.bytes.length == 0) return this;
+    if (bytes.length == 0) return suffix;
+    byte[] joined = Arrays.copyOf(bytes, bytes.length + suffix.bytes.length);
+    suffix.copyTo(joined, bytes.length);
+    return new ByteString(joined);
+  }
+
+  /**
+   * Function to read the bytes as a decimal number, as Long.parseLong would, without making a
+   * String of them
+   *
+   * @return The number
+   * @throws NumberFormatException If the bytes are not ASCII digits after an optional '+' or '-',
+   *                               or the number does not fit a long
+   */
+  public long parseLong() {
+    boolean negative = bytes.length > 0 && bytes[0] == '-';
+    int i = bytes.length > 0 && (negative || bytes[0] == '+') ? 1 : 0;
+    if (i == bytes.length) {
+      throw new NumberFormatException("Not a number: \"" + this + "\"");
+    }
+    // Summed negatively, since Long.MIN_VALUE has no positive counterpart
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long number = 0;
+    for (; i < bytes.length; i++) {
+      int digit = bytes[i] - '0';
+      if (digit < 0 || digit > 9 || number < limit / 10 || number * 10 < limit + digit) {
+        throw new NumberFormatException("Not a number: \"" + this + "\"");
+      }
+      number = number * 10 - digit;
+    }
+    return negative ? number : -number;
+  }
+
+  /**
+   * Function to get a copy of the bytes
+   * @return A new array holding the bytes
+   */
+  public byte[] toByteArray() {
+    return bytes.clone();
+  }
+
+  /**
+   * Function to copy the bytes into an array
+   *
+   * @param dst    The array
+   * @param offset Where the bytes go
+   */
+  public void copyTo(byte[] dst, int offset) {
+    System.arraycopy(bytes, 0, dst, offset, bytes.length);
+  }
+
+  /**
+   * Function to write the bytes into a buffer at its position, advancing it
+   *
+   * @param dst The buffer
+   * @throws java.nio.BufferOverflowException If the bytes don't fit
+   */
+  public void writeTo(ByteBuffer dst) {
+    dst.put(bytes);
+  }
+
+  /**
+   * Function to write the bytes into a buffer at an index, without moving its position
+   *
+   * @param dst   The buffer
+   * @param index Where the bytes go
+   */
+  public void writeTo(ByteBuffer dst, int index) {
+    dst.put(index, bytes);
+  }
+
+  /**
+   * Function to write the bytes to a stream
+   *
+   * @param out The stream
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(bytes);
+  }
+
+  /**
+   * Function to check whether a buffer holds the same bytes at an index
+   *
+   * @param src   The buffer
+   * @param index Where its bytes start
+   * @return True if the next length() bytes of the buffer are these bytes
+   */
+  public boolean contentEquals(ByteBuffer src, int index) {
+    for (int i = 0; i < bytes.length; i++) {
+      if (src.get(index + i) != bytes[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Function to decode the bytes as UTF-8, replacing malformed input
+   * @return The decoded string
+   */
+  @Override
+  public String toString() {
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) return true;
+    if (!(other instanceof ByteString)) return false;
+    ByteString str = (ByteString) other;
+    return hashCode() == str.hashCode() && Arrays.equals(bytes, str.bytes);
+  }
+
+  @Override
+  public int hashCode() {
+    int h = hash;
+    if (h == 0) {
+      h = Arrays.hashCode(bytes);
+      hash = h;
+    }
+    return h;
+  }
+
+  @Override
+  public int compareTo(ByteString other) {
+    return Arrays.compareUnsigned(bytes, other.bytes);
+  }
+}
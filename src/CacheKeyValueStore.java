@@ -0,0 +1,419 @@
+/**
+ * Cache Key-Value Store
+ *
+ * Heap KeyValueStore with a budget on the number of entries and/or their estimated memory use,
+ * and optional per-key TTLs. When the budget is exceeded an EvictionPolicy picks the entries to
+ * drop; expired entries are dropped both lazily, when a read finds them, and by a TimerWheel
+ * swept incrementally in the background.
+ *
+ * Request threads never wait for the policy. The data lives in a ConcurrentHashMap; reads only
+ * note the entry they touched in a small lossy buffer, and writes queue what changed. A
+ * maintenance thread replays both into the policy and the wheel under one lock and evicts, so
+ * every step is O(1) per entry. If the maintenance thread falls far behind, writers help drain
+ * the queue, which keeps the budget from being overshot by more than a bounded amount.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+public class CacheKeyValueStore implements KeyValueStore {
+
+  // Estimated heap used by an entry besides its bytes: map node, cache node, two byte strings
+  private static final int ENTRY_OVERHEAD = 160;
+
+  // Expired entries are dropped at most this long after their deadline by the background sweep
+  private static final long TICK_NANOS = 100_000_000L;
+
+  // Queued writes after which writers drain the queue themselves
+  private static final int WRITE_BUFFER_LIMIT = 4096;
+
+  // Read buffers: one per stripe of threads, each holding READ_BUFFER_SIZE accesses
+  private static final int READ_BUFFER_STRIPES = 16;
+  private static final int READ_BUFFER_SIZE = 64;
+
+  // Largest sketch the policy starts with; it grows with the number of entries
+  private static final int MAX_INITIAL_KEYS = 1 << 20;
+
+  private final ConcurrentHashMap<ByteString, CacheNode> map = new ConcurrentHashMap<ByteString, CacheNode>();
+
+  // Budgets, Long.MAX_VALUE when not limited. Weights are estimated bytes if maxWeight is set,
+  // otherwise every entry weighs 1
+  private final long maxEntries;
+  private final long maxWeight;
+  private final boolean weighByMemory;
+
+  // Guards the policy, the wheel and the totals below
+  private final ReentrantLock evictionLock = new ReentrantLock();
+  private final EvictionPolicy policy;
+  private final TimerWheel timers;
+  private long entries;
+  private long totalWeight;
+
+  // Changes waiting to be applied to the policy, in the order they happened to each key
+  private final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<Runnable>();
+  private final AtomicInteger pendingWrites = new AtomicInteger();
+
+  private final ReadBuffer[] readBuffers = new ReadBuffer[READ_BUFFER_STRIPES];
+
+  // Set when there is work for the maintenance thread, so it is only woken once per batch
+  private final AtomicBoolean drainRequested = new AtomicBoolean();
+  private final Thread maintainer;
+
+  /**
+   * Creates an empty cache and starts its maintenance thread.
+   *
+   * @param maxEntries The maximum number of entries, or Long.MAX_VALUE for no limit
+   * @param maxWeight  The maximum estimated memory in bytes, or Long.MAX_VALUE for no limit
+   * @param policyName lru, lfu or tinylfu
+   * @throws IllegalArgumentException If the policy is unknown or no budget is given
+   */
+  public CacheKeyValueStore(long maxEntries, long maxWeight, String policyName) {
+    if (maxEntries == Long.MAX_VALUE && maxWeight == Long.MAX_VALUE) {
+      throw new IllegalArgumentException("A cache needs an entry or memory budget");
+    }
+    this.maxEntries = maxEntries;
+    this.maxWeight = maxWeight;
+    this.weighByMemory = maxWeight != Long.MAX_VALUE;
+    long expectedKeys = Math.min(maxEntries, weighByMemory ? maxWeight / ENTRY_OVERHEAD : Long.MAX_VALUE);
+    this.policy = EvictionPolicy.create(policyName, weighByMemory ? maxWeight : maxEntries,
+            (int) Math.min(expectedKeys, MAX_INITIAL_KEYS));
+    this.timers = new TimerWheel(TICK_NANOS, System.nanoTime());
+    for (int i = 0; i < READ_BUFFER_STRIPES; i++) {
+      readBuffers[i] = new ReadBuffer();
+    }
+
+    maintainer = new Thread(this::runMaintenance, "cache-maintenance");
+    maintainer.setDaemon(true);
+    maintainer.start();
+  }
+
+  @Override
+  public ByteString get(ByteString key) {
+    CacheNode node = map.get(key);
+    if (node == null) return null;
+    if (node.expiresAt != CacheNode.NEVER) {
+      long now = System.nanoTime();
+      if (node.isExpired(now)) {
+        expire(node, now);
+        afterWrite();
+        return null;
+      }
+    }
+    afterRead(node);
+    return node.value;
+  }
+
+  @Override
+  public ByteString put(ByteString key, ByteString value) {
+    return update(key, (k, old) -> value, true, CacheNode.NEVER, true);
+  }
+
+  /**
+   * Function to store a value that expires after a while, replacing any existing one
+   *
+   * @param key       The key to store
+   * @param value     The value associated with the key
+   * @param ttlMillis How long the key lives, in milliseconds
+   * @return The previous value, or null if the key did not exist
+   * @throws IllegalArgumentException If the TTL is not positive
+   */
+  @Override
+  public ByteString put(ByteString key, ByteString value, long ttlMillis) {
+    if (ttlMillis <= 0) {
+      throw new IllegalArgumentException("TTL must be positive: " + ttlMillis);
+    }
+    long expiresAt = System.nanoTime() + Math.min(ttlMillis, Long.MAX_VALUE / 2_000_000L) * 1_000_000L;
+    return update(key, (k, old) -> value, true, expiresAt, true);
+  }
+
+  @Override
+  public ByteString putIfAbsent(ByteString key, ByteString value) {
+    ByteString[] existing = new ByteString[1];
+    update(key, (k, old) -> {
+      existing[0] = old;
+      return old != null ? old : value;
+    }, false, 0, false);
+    return existing[0];
+  }
+
+  @Override
+  public ByteString remove(ByteString key) {
+    return update(key, (k, old) -> null, false, 0, true);
+  }
+
+  /**
+   * Function to atomically replace the value of a key. An existing key keeps its TTL
+   */
+  @Override
+  public ByteString compute(ByteString key, BiFunction<ByteString, ByteString, ByteString> function) {
+    return update(key, function, false, 0, false);
+  }
+
+  @Override
+  public void forEach(BiConsumer<ByteString, ByteString> action) {
+    long now = System.nanoTime();
+    map.forEach((key, node) -> {
+      if (!node.isExpired(now)) action.accept(key, node.value);
+    });
+  }
+
+  /**
+   * Function to get the number of keys, including expired keys that were not dropped yet
+   */
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  /**
+   * Function to atomically replace the value of a key and queue the change for the policy
+   *
+   * @param function       Computes the new value from the old one, null to remove the key
+   * @param setExpiry      Whether to set the expiry; otherwise an existing key keeps its own
+   * @param expiresAt      The new expiry, if setExpiry
+   * @param returnPrevious Whether to return the previous value instead of the new one
+   */
+  private ByteString update(ByteString key, BiFunction<ByteString, ByteString, ByteString> function, boolean setExpiry,
+                        long expiresAt, boolean returnPrevious) {
+    long now = System.nanoTime();
+    ByteString[] result = new ByteString[2];
+    map.compute(key, (k, node) -> {
+      if (node != null && node.isExpired(now)) {
+        retire(node);
+        node = null;
+      }
+      ByteString old = node == null ? null : node.value;
+      ByteString updated = function.apply(k, old);
+      result[0] = old;
+      result[1] = updated;
+
+      if (updated == null) {
+        if (node != null) retire(node);
+        return null;
+      }
+      if (node == null) {
+        CacheNode created = new CacheNode(k, updated, setExpiry ? expiresAt : CacheNode.NEVER, weigh(k, updated));
+        enqueue(() -> onAdd(created));
+        return created;
+      }
+      if (updated == old && !setExpiry) {
+        return node;
+      }
+      node.value = updated;
+      if (setExpiry) node.expiresAt = expiresAt;
+      int weight = weigh(k, updated);
+      CacheNode changed = node;
+      enqueue(() -> onUpdate(changed, weight));
+      return node;
+    });
+    afterWrite();
+    return returnPrevious ? result[0] : result[1];
+  }
+
+  /**
+   * Function to drop an entry if it is still in the map and still expired. Its expiry may have
+   * been refreshed since the caller looked at it
+   */
+  private void expire(CacheNode node, long now) {
+    map.computeIfPresent(node.key, (k, current) -> {
+      if (current != node || !node.isExpired(now)) return current;
+      retire(node);
+      return null;
+    });
+  }
+
+  /**
+   * Function to mark a node as removed from the map and queue its removal from the policy. Must
+   * run inside the map's compute for the key, so it is queued after the key's earlier changes
+   */
+  private void retire(CacheNode node) {
+    node.dead = true;
+    enqueue(() -> onRemove(node));
+  }
+
+  private void enqueue(Runnable task) {
+    writeBuffer.add(task);
+    pendingWrites.incrementAndGet();
+  }
+
+  /**
+   * Function to get the queued changes applied, by the maintenance thread unless it is too far
+   * behind. Never called inside a map compute, since maintenance removes keys from the map
+   */
+  private void afterWrite() {
+    if (pendingWrites.get() < WRITE_BUFFER_LIMIT) {
+      requestDrain();
+      return;
+    }
+    evictionLock.lock();
+    try {
+      maintenance();
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  private void afterRead(CacheNode node) {
+    ReadBuffer buffer = readBuffers[(int) Thread.currentThread().getId() & (READ_BUFFER_STRIPES - 1)];
+    if (buffer.offer(node)) {
+      requestDrain();
+    }
+  }
+
+  private void requestDrain() {
+    if (!drainRequested.get() && drainRequested.compareAndSet(false, true)) {
+      LockSupport.unpark(maintainer);
+    }
+  }
+
+  /**
+   * Function run by the maintenance thread: applies the buffers when woken, and at least once
+   * per tick so the timer wheel keeps turning
+   */
+  private void runMaintenance() {
+    while (true) {
+      LockSupport.parkNanos(this, TICK_NANOS);
+      drainRequested.set(false);
+      evictionLock.lock();
+      try {
+        maintenance();
+      } catch (RuntimeException e) {
+        Log.log(Log.ERROR, "Cache maintenance failed: " + e);
+      } finally {
+        evictionLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Function to bring the policy up to date and enforce the budget. Caller holds the eviction lock
+   */
+  private void maintenance() {
+    for (ReadBuffer buffer : readBuffers) {
+      buffer.drain(this);
+    }
+    drainWriteBuffer();
+
+    long now = System.nanoTime();
+    timers.advance(now, node -> expire(node, now));
+    // Apply the removals of the expired entries
+    drainWriteBuffer();
+
+    evict();
+    policy.ensureCapacity((int) Math.min(entries, Integer.MAX_VALUE));
+  }
+
+  private void drainWriteBuffer() {
+    Runnable task;
+    while ((task = writeBuffer.poll()) != null) {
+      pendingWrites.decrementAndGet();
+      task.run();
+    }
+  }
+
+  /**
+   * Function to evict entries until the cache is within its budget
+   */
+  private void evict() {
+    while (entries > maxEntries || totalWeight > maxWeight) {
+      CacheNode victim = policy.evict();
+      if (victim == null) break;
+      forget(victim);
+      // If the key was removed or replaced meanwhile, its queued removal finds it already unlinked
+      if (map.remove(victim.key, victim)) {
+        victim.dead = true;
+      }
+    }
+  }
+
+  private void onAdd(CacheNode node) {
+    node.linked = true;
+    policy.add(node);
+    timers.schedule(node);
+    entries++;
+    totalWeight += node.weight;
+  }
+
+  private void onUpdate(CacheNode node, int weight) {
+    if (!node.linked) return;
+    totalWeight += weight - node.weight;
+    policy.updateWeight(node, weight);
+    policy.access(node);
+    timers.reschedule(node);
+  }
+
+  private void onRemove(CacheNode node) {
+    if (!node.linked) return;
+    policy.remove(node);
+    forget(node);
+  }
+
+  private void onRead(CacheNode node) {
+    if (node.linked) policy.access(node);
+  }
+
+  /**
+   * Function to stop accounting for a node the policy no longer tracks
+   */
+  private void forget(CacheNode node) {
+    node.linked = false;
+    timers.cancel(node);
+    entries--;
+    totalWeight -= node.weight;
+  }
+
+  private int weigh(ByteString key, ByteString value) {
+    if (!weighByMemory) return 1;
+    return (int) Math.min(Integer.MAX_VALUE, ENTRY_OVERHEAD + (long) key.length() + value.length());
+  }
+
+  /**
+   * Ring of recently read nodes, filled by any thread and drained under the eviction lock.
+   * Accesses are dropped when the ring is full or contended; the policy only needs a sample.
+   */
+  private static final class ReadBuffer {
+    private final AtomicReferenceArray<CacheNode> slots = new AtomicReferenceArray<CacheNode>(READ_BUFFER_SIZE);
+    private final AtomicLong writeCounter = new AtomicLong();
+
+    // Written under the eviction lock, read by producers to see how full the ring is
+    private volatile long readCounter;
+
+    /**
+     * Function to record an access
+     *
+     * @return Whether the ring is filling up and should be drained
+     */
+    boolean offer(CacheNode node) {
+      long head = readCounter;
+      long tail = writeCounter.get();
+      long size = tail - head;
+      if (size >= READ_BUFFER_SIZE) return true;
+      if (writeCounter.compareAndSet(tail, tail + 1)) {
+        slots.lazySet((int) (tail & (READ_BUFFER_SIZE - 1)), node);
+      }
+      return size >= READ_BUFFER_SIZE / 2;
+    }
+
+    void drain(CacheKeyValueStore cache) {
+      long head = readCounter;
+      long tail = writeCounter.get();
+      for (; head < tail; head++) {
+        int index = (int) (head & (READ_BUFFER_SIZE - 1));
+        CacheNode node = slots.get(index);
+        // Claimed but not stored yet; pick it up next time
+        if (node == null) break;
+        slots.lazySet(index, null);
+        cache.onRead(node);
+      }
+      readCounter = head;
+    }
+  }
+}
@@ -0,0 +1,55 @@
+/**
+ * Cache Node
+ *
+ * One entry of the CacheKeyValueStore. The key, value and expiry are read by request threads;
+ * every other field belongs to the eviction policy and the timer wheel and is only touched while
+ * holding the cache's eviction lock.
+ */
+
+public class CacheNode {
+
+  // Expiry of entries without a TTL
+  public static final long NEVER = Long.MAX_VALUE;
+
+  final ByteString key;
+  final int hash;
+  volatile ByteString value;
+
+  // System.nanoTime() deadline, or NEVER
+  volatile long expiresAt;
+
+  // Set once the node has left the map, by whoever removed it
+  volatile boolean dead;
+
+  // Weight counted against the budget while the node is linked into the policy
+  int weight;
+  boolean linked;
+
+  // Eviction policy list links and the policy region the node is in
+  CacheNode prev;
+  CacheNode next;
+  int region;
+
+  // Timer wheel list links and bucket, -1 when not scheduled
+  CacheNode timerPrev;
+  CacheNode timerNext;
+  int timerBucket = -1;
+
+  CacheNode(ByteString key, ByteString value, long expiresAt, int weight) {
+    this.key = key;
+    this.hash = key.hashCode();
+    this.value = value;
+    this.expiresAt = expiresAt;
+    this.weight = weight;
+  }
+
+  /**
+   * Function to check whether the entry has expired
+   *
+   * @param now The current System.nanoTime()
+   */
+  boolean isExpired(long now) {
+    long deadline = expiresAt;
+    return deadline != NEVER && now - deadline >= 0;
+  }
+}
@@ -0,0 +1,392 @@
+/**
+ * Chunk Streams
+ *
+ * Server side of values moved in chunks (PUT_CHUNK and GET_CHUNK, see Protocol). Streams are
+ * identified by the client's address and port, which over TCP identify its connection, and the
+ * stream id the client chose, so the same state serves every transport.
+ *
+ * An upload appends each chunk to the value being assembled as it arrives. Chunks may arrive out
+ * of order over UDP, or over TCP when the request pool runs them on different threads, so chunks
+ * a little ahead of the next one are held until the gap is filled, and chunks already appended
+ * are acknowledged again without being appended twice. Only the value itself is buffered, never
+ * the messages it came in, and all unfinished uploads together are limited to MAX_PENDING_BYTES.
+ * A value may be at most Protocol.MAX_VALUE_SIZE bytes, so the store can log and replicate it.
+ *
+ * The client streams the value without knowing its length, so an upload keeps the chunks as they
+ * came instead of a growing buffer, and copies them once, into a value of exactly their length,
+ * when the last one is in.
+ *
+ * A download keeps the value its first chunk request read, so every chunk comes from the same
+ * value even if it is replaced meanwhile. Values are immutable, so that costs no copy. Once every
+ * chunk has been served the download is dropped, so the value isn't kept alive for nothing; a
+ * chunk asked for again after that starts a new download.
+ *
+ * A finished upload is kept a little longer, as a marker without its chunks, to acknowledge the
+ * chunks a UDP client resends. Only streams in progress count against MAX_STREAMS. Streams a
+ * client abandons are dropped once they have been idle for IDLE_NANOS, finished uploads after
+ * FINISHED_NANOS.
+ */
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+public class ChunkStreams {
+
+  // Time after which an idle stream is dropped
+  private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  // Time a finished upload is kept to acknowledge resent chunks
+  private static final long FINISHED_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  // Most streams in progress at once
+  private static final int MAX_STREAMS = 4096;
+
+  // How far ahead of the next chunk an upload accepts chunks
+  private static final int MAX_AHEAD = 64;
+
+  // Most bytes all unfinished uploads may hold together
+  private static final long MAX_PENDING_BYTES = 256L * 1024 * 1024;
+
+  private final ConcurrentHashMap<Key, Stream> streams = new ConcurrentHashMap<Key, Stream>();
+
+  // Streams in progress, so without the finished uploads
+  private final AtomicInteger active = new AtomicInteger();
+
+  // Bytes held by unfinished uploads
+  private final AtomicLong pendingBytes = new AtomicLong();
+
+  // System.nanoTime() of the last sweep for idle streams
+  private volatile long lastSweep = System.nanoTime();
+
+  /**
+   * Function to add a chunk to an upload
+   *
+   * @param ip      The IP address of the client
+   * @param port    The port number of the client
+   * @param request The PUT_CHUNK request
+   * @return The whole value if this chunk completed it, so it can be stored, or null otherwise
+   * @throws IllegalStateException If the chunk doesn't fit the upload, with the reason
+   */
+  public ByteString append(InetAddress ip, int port, Request request) {
+    if (request.value.length() > Protocol.CHUNK_BYTES || request.chunkIndex < 0) {
+      throw new IllegalStateException("Invalid chunk " + request.chunkIndex);
+    }
+    Key streamKey = new Key(ip, port, request.streamId);
+    Stream stream = open(streamKey, request.key, true);
+    if (!(stream instanceof Upload)) {
+      throw new IllegalStateException("Stream " + request.streamId + " is not an upload");
+    }
+    Upload upload = (Upload) stream;
+    synchronized (upload) {
+      upload.touched = System.nanoTime();
+      if (upload.dropped != null) {
+        throw new IllegalStateException("Upload " + request.streamId + " " + upload.dropped);
+      }
+      if (upload.chunks == null || request.chunkIndex < upload.next) {
+        // Already appended; the client resent it
+        return null;
+      }
+      if (request.chunkIndex - upload.next > MAX_AHEAD) {
+        throw new IllegalStateException("Chunk " + request.chunkIndex + " is too far ahead of chunk " + upload.next);
+      }
+      if (upload.length + request.value.length() > Protocol.MAX_VALUE_SIZE) {
+        // Given up at once, so its chunks don't wait for the sweep to be freed
+        upload.release("exceeds " + Protocol.MAX_VALUE_SIZE + " bytes");
+        throw new IllegalStateException("Upload " + request.streamId + " " + upload.dropped);
+      }
+      reserve(request.value.length());
+      upload.length += request.value.length();
+      if (request.lastChunk) {
+        upload.last = request.chunkIndex;
+      }
+      if (request.chunkIndex > upload.next) {
+        ByteString resent = upload.early.put(request.chunkIndex, request.value);
+        if (resent != null) {
+          pendingBytes.addAndGet(-resent.length());
+          upload.length -= resent.length();
+        }
+        return null;
+      }
+      upload.add(request.value);
+      ByteString early;
+      while ((early = upload.early.remove(upload.next)) != null) {
+        upload.add(early);
+      }
+      if (upload.last < 0 || upload.next <= upload.last) {
+        return null;
+      }
+      // Complete. The upload is kept, without its chunks, to acknowledge resent chunks
+      ByteString value = upload.assemble();
+      upload.chunks = null;
+      upload.finished = true;
+      active.decrementAndGet();
+      pendingBytes.addAndGet(-value.length());
+      return value;
+    }
+  }
+
+  /**
+   * Function to get the value a download reads its chunks from
+   *
+   * @param ip      The IP address of the client
+   * @param port    The port number of the client
+   * @param request The GET_CHUNK request
+   * @param read    Reads the value from the store, for the first chunk request of the stream
+   * @return The value, or null if the key does not exist
+   * @throws IllegalStateException If the stream is not a download of the key
+   */
+  public ByteString download(InetAddress ip, int port, Request request, Supplier<ByteString> read) {
+    Key streamKey = new Key(ip, port, request.streamId);
+    Stream stream = open(streamKey, request.key, false);
+    if (!(stream instanceof Download)) {
+      throw new IllegalStateException("Stream " + request.streamId + " is not a download");
+    }
+    Download download = (Download) stream;
+    synchronized (download) {
+      download.touched = System.nanoTime();
+      if (!download.read) {
+        download.value = read.get();
+        download.read = true;
+      }
+      if (download.value == null || download.serve(request.chunkIndex)) {
+        // Every chunk served, or nothing to serve
+        download.finished = true;
+        if (streams.remove(streamKey, download)) {
+          active.decrementAndGet();
+        }
+      }
+      return download.value;
+    }
+  }
+
+  /**
+   * Function to cut one chunk out of a value. Chunk i covers the bytes from i * CHUNK_BYTES on
+   *
+   * @param value The value
+   * @param index The index of the chunk
+   * @return The chunk, empty past the end of the value
+   */
+  public static ByteString chunk(ByteString value, int index) {
+    int start = (int) Math.min(value.length(), (long) index * Protocol.CHUNK_BYTES);
+    int end = (int) Math.min(value.length(), ((long) index + 1) * Protocol.CHUNK_BYTES);
+    return value.substring(start, end);
+  }
+
+  /**
+   * Function to get the number of chunks a value is moved in
+   *
+   * @param length The length of the value in bytes
+   * @return The number of chunks, at least 1
+   */
+  public static int chunkCount(long length) {
+    return (int) Math.max(1, (length + Protocol.CHUNK_BYTES - 1) / Protocol.CHUNK_BYTES);
+  }
+
+  /**
+   * Function to find a stream, or start it
+   *
+   * @param streamKey The stream
+   * @param key       The key it moves
+   * @param upload    True for an upload, false for a download
+   * @return The stream, of either kind if it already existed
+   * @throws IllegalStateException If the stream moves another key, or there are too many streams
+   */
+  private Stream open(Key streamKey, ByteString key, boolean upload) {
+    Stream stream = streams.get(streamKey);
+    if (stream == null) {
+      sweep();
+      if (active.get() >= MAX_STREAMS) {
+        throw new IllegalStateException("Too many streams in progress");
+      }
+      stream = streams.computeIfAbsent(streamKey, k -> {
+        active.incrementAndGet();
+        return upload ? new Upload(key) : new Download(key);
+      });
+    }
+    if (!stream.key.equals(key)) {
+      throw new IllegalStateException("Stream " + streamKey.streamId + " is moving another key");
+    }
+    return stream;
+  }
+
+  /**
+   * Function to drop the streams that have been idle too long, and the finished uploads kept long
+   * enough. Runs at most once a second
+   */
+  private void sweep() {
+    long now = System.nanoTime();
+    if (now - lastSweep < TimeUnit.SECONDS.toNanos(1)) return;
+    lastSweep = now;
+    Iterator<Map.Entry<Key, Stream>> iterator = streams.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Key, Stream> entry = iterator.next();
+      Stream stream = entry.getValue();
+      synchronized (stream) {
+        if (now - stream.touched < (stream.finished ? FINISHED_NANOS : IDLE_NANOS)) continue;
+        // Only if it is still there: a download that just finished removed itself
+        if (!streams.remove(entry.getKey(), stream) || stream.finished) continue;
+        active.decrementAndGet();
+        if (stream instanceof Upload) {
+          ((Upload) stream).release("expired");
+        }
+      }
+    }
+  }
+
+  /**
+   * Function to account for bytes an upload is about to hold
+   * @throws IllegalStateException If the uploads in progress already hold too much
+   */
+  private void reserve(int bytes) {
+    if (pendingBytes.addAndGet(bytes) > MAX_PENDING_BYTES) {
+      pendingBytes.addAndGet(-bytes);
+      throw new IllegalStateException("Too much data in unfinished uploads");
+    }
+  }
+
+  /**
+   * Client address and port and stream id of a stream
+   */
+  private static final class Key {
+    final InetAddress ip;
+    final int port;
+    final int streamId;
+
+    Key(InetAddress ip, int port, int streamId) {
+      this.ip = ip;
+      this.port = port;
+      this.streamId = streamId;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) return false;
+      Key key = (Key) other;
+      return streamId == key.streamId && port == key.port && ip.equals(key.ip);
+    }
+
+    @Override
+    public int hashCode() {
+      return (ip.hashCode() * 31 + port) * 31 + streamId;
+    }
+  }
+
+  /**
+   * A stream in progress
+   */
+  private abstract static class Stream {
+    // The key the stream moves
+    final ByteString key;
+
+    // System.nanoTime() of its last chunk
+    long touched = System.nanoTime();
+
+    // Set once it no longer counts as in progress
+    boolean finished;
+
+    Stream(ByteString key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * An upload, assembling a value
+   */
+  private final class Upload extends Stream {
+    // The chunks appended so far, in order, or null once the value is complete
+    ArrayList<ByteString> chunks = new ArrayList<ByteString>();
+
+    // Bytes of the chunks it holds, appended or early
+    int length;
+
+    // Index of the next chunk to append, and of the last chunk once it is known
+    int next;
+    int last = -1;
+
+    // Chunks that arrived ahead of the next one, by index
+    final TreeMap<Integer, ByteString> early = new TreeMap<Integer, ByteString>();
+
+    // Why the upload was dropped, or null while it is going on
+    String dropped;
+
+    Upload(ByteString key) {
+      super(key);
+    }
+
+    /**
+     * Function to append the next chunk
+     */
+    void add(ByteString chunk) {
+      chunks.add(chunk);
+      next++;
+    }
+
+    /**
+     * Function to join the chunks into the value, once all of them are appended. A value of one
+     * chunk is that chunk, without a copy
+     */
+    ByteString assemble() {
+      if (chunks.size() == 1) return chunks.get(0);
+      byte[] value = new byte[length];
+      int offset = 0;
+      for (ByteString chunk : chunks) {
+        chunk.copyTo(value, offset);
+        offset += chunk.length();
+      }
+      return ByteString.wrap(value);
+    }
+
+    /**
+     * Function to give back the bytes an upload holds when it is given up
+     *
+     * @param reason Why, for the clients that send it more chunks
+     */
+    void release(String reason) {
+      if (chunks != null) {
+        pendingBytes.addAndGet(-length);
+      }
+      chunks = null;
+      early.clear();
+      dropped = reason;
+    }
+  }
+
+  /**
+   * A download, reading every chunk from the same value
+   */
+  private static final class Download extends Stream {
+    // Whether the value has been read, and the value, null if the key does not exist
+    boolean read;
+    ByteString value;
+
+    // Chunks served so far, by index
+    final BitSet served = new BitSet();
+
+    Download(ByteString key) {
+      super(key);
+    }
+
+    /**
+     * Function to note that a chunk of the value was served
+     *
+     * @param index The index of the chunk
+     * @return True once every chunk of the value has been served
+     */
+    boolean serve(int index) {
+      int count = chunkCount(value.length());
+      if (index >= 0 && index < count) {
+        served.set(index);
+      }
+      return served.cardinality() == count;
+    }
+  }
+}
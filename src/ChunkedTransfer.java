@@ -0,0 +1,156 @@
+/**
+ * Chunked Transfer
+ *
+ * Client side of values moved in chunks (PUT_CHUNK and GET_CHUNK, see Protocol), shared by the
+ * TCP and UDP client libraries. A value is read from an InputStream, or written to an
+ * OutputStream, one chunk at a time, so the client never holds more than the chunks in flight,
+ * however large the value.
+ *
+ * At most WINDOW chunks are in flight at once: the next chunk is only sent once the oldest one
+ * has been answered. The server's answers thereby pace the client, which keeps it from flooding
+ * the server with a value faster than it is stored, while still keeping the connection busy.
+ * The last chunk of an upload is only sent once every other chunk has been acknowledged, so its
+ * response tells whether the value was stored.
+ */
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+public class ChunkedTransfer {
+
+  // Most chunks in flight at once
+  public static final int WINDOW = 16;
+
+  private ChunkedTransfer() {
+  }
+
+  /**
+   * Sends one chunk request, such as PipelinedTCPClient.sendChunk
+   */
+  public interface Sender {
+    /**
+     * Function to send one chunk request without waiting for its response
+     *
+     * @param opcode     Protocol.OP_PUT_CHUNK or OP_GET_CHUNK
+     * @param key        The key
+     * @param streamId   The id of the transfer
+     * @param chunkIndex The index of the chunk
+     * @param chunk      The chunk for a PUT_CHUNK, or ByteString.EMPTY
+     * @param last       True on the last chunk of a PUT_CHUNK
+     * @return A future completed with the response, or exceptionally if it fails or times out
+     */
+    CompletableFuture<Response> sendChunk(byte opcode, ByteString key, int streamId, int chunkIndex, ByteString chunk,
+                                          boolean last);
+  }
+
+  /**
+   * Function to store a value read from a stream
+   *
+   * @param sender Sends the chunks
+   * @param key    The key to store
+   * @param value  The value, read until its end
+   * @return The response to the last chunk, telling that the value was stored
+   * @throws IOException If the value can't be read, or the server fails or rejects a chunk
+   */
+  public static Response upload(Sender sender, ByteString key, InputStream value) throws IOException {
+    int streamId = ThreadLocalRandom.current().nextInt();
+    ArrayDeque<CompletableFuture<Response>> inFlight = new ArrayDeque<CompletableFuture<Response>>();
+    ByteString chunk = readChunk(value);
+    int index = 0;
+    while (true) {
+      // A short chunk means the value ended; a full one may be followed by nothing
+      ByteString next = chunk.length() < Protocol.CHUNK_BYTES ? ByteString.EMPTY : readChunk(value);
+      boolean last = next.isEmpty();
+      while (inFlight.size() >= WINDOW || (last && !inFlight.isEmpty())) {
+        await(inFlight.poll());
+      }
+      CompletableFuture<Response> sent = sender.sendChunk(Protocol.OP_PUT_CHUNK, key, streamId, index++, chunk, last);
+      if (last) {
+        return await(sent);
+      }
+      inFlight.add(sent);
+      chunk = next;
+    }
+  }
+
+  /**
+   * Function to read a value into a stream
+   *
+   * @param sender Sends the chunk requests
+   * @param key    The key to read
+   * @param out    Receives the value
+   * @return True if the value was written, false if the server answered with an error, such as
+   *         a missing key, and nothing was written
+   * @throws IOException If the value can't be written, or the server fails
+   */
+  public static boolean download(Sender sender, ByteString key, OutputStream out) throws IOException {
+    int streamId = ThreadLocalRandom.current().nextInt();
+    Response first = response(sender.sendChunk(Protocol.OP_GET_CHUNK, key, streamId, 0, ByteString.EMPTY, false));
+    if (!first.isOk()) {
+      return false;
+    }
+    int count;
+    try {
+      count = ChunkStreams.chunkCount(Long.parseLong(first.message));
+    } catch (NumberFormatException e) {
+      throw new ProtocolException("Invalid value length: " + first.message);
+    }
+    first.value.writeTo(out);
+
+    ArrayDeque<CompletableFuture<Response>> inFlight = new ArrayDeque<CompletableFuture<Response>>();
+    int next = 1;
+    while (next < count || !inFlight.isEmpty()) {
+      while (next < count && inFlight.size() < WINDOW) {
+        inFlight.add(sender.sendChunk(Protocol.OP_GET_CHUNK, key, streamId, next++, ByteString.EMPTY, false));
+      }
+      await(inFlight.poll()).value.writeTo(out);
+    }
+    return true;
+  }
+
+  /**
+   * Function to read the next chunk of a value
+   *
+   * @return The chunk, CHUNK_BYTES long unless the value ends first, and empty at its end
+   */
+  private static ByteString readChunk(InputStream in) throws IOException {
+    return ByteString.wrap(in.readNBytes(Protocol.CHUNK_BYTES));
+  }
+
+  /**
+   * Function to wait for a chunk's response, failing if the server rejected the chunk
+   */
+  private static Response await(CompletableFuture<Response> future) throws IOException {
+    Response response = response(future);
+    if (!response.isOk()) {
+      throw new IOException(response.message);
+    }
+    return response;
+  }
+
+  /**
+   * Function to wait for a chunk's response
+   */
+  private static Response response(CompletableFuture<Response> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the server");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof TimeoutException) {
+        throw new SocketTimeoutException("Server did not answer in time");
+      }
+      throw new IOException(cause);
+    }
+  }
+}
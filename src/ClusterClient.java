@@ -0,0 +1,604 @@
+/**
+ * Cluster Client
+ *
+ * Client library for a cluster of servers that share the keys through a consistent-hash ring
+ * (see HashRing). Every request goes straight to the node owning its key, over one pipelined
+ * connection per node, so the cluster's memory and throughput grow with its nodes and no proxy
+ * sits in the way. Batch commands are split by node, sent to all of them at once and put back
+ * together in the order of the keys. A SCAN or RANGE asks every node for the same page and
+ * merges their pages in key order.
+ *
+ * The servers don't know about the ring: every client of the cluster must use the same nodes
+ * and number of virtual nodes. Adding a node with addNode gives it about 1/N of the keys, and
+ * removeNode hands a node's keys to the others. Either way the keys are moved with them: each is
+ * copied to its new owner unless the owner already has it, then deleted where it was, so no stale
+ * copy is left to come back when the ring changes again. Listing the keys takes a SCAN, so the
+ * servers need --index=ordered. While a key waits to be moved it reads as missing, and a key
+ * deleted in that time comes back when it is moved.
+ *
+ * A connection that fails is opened again by the next request to its node. The client is safe
+ * to use from several threads at once.
+ */
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+public class ClusterClient implements Closeable {
+
+  // Most key-value pairs read in one page while moving keys
+  private static final int MOVE_PAGE_SIZE = 256;
+
+  // Ring assigning the keys to the nodes, replaced when nodes are added or removed
+  private volatile HashRing ring;
+
+  // Pipelined connection to each node, opened on first use
+  private final ConcurrentHashMap<String, PipelinedTCPClient> connections =
+          new ConcurrentHashMap<String, PipelinedTCPClient>();
+
+  // How long a request waits for its response, and for a connection, in milliseconds
+  private final int timeoutMs;
+
+  private volatile boolean closed;
+
+  /**
+   * Creates a client for a cluster. Connections are opened when first needed.
+   *
+   * @param nodes        The nodes of the cluster, as "host:port"
+   * @param virtualNodes The number of points each node is placed at on the ring
+   * @param timeoutMs    How long a request waits for its response, in milliseconds
+   * @throws IllegalArgumentException If a node is not "host:port" or there are no nodes
+   */
+  public ClusterClient(Collection<String> nodes, int virtualNodes, int timeoutMs) {
+    for (String node : nodes) {
+      HashRing.parseNode(node);
+    }
+    this.ring = new HashRing(nodes, virtualNodes);
+    this.timeoutMs = timeoutMs;
+  }
+
+  /**
+   * Creates a client for a cluster with HashRing.DEFAULT_VIRTUAL_NODES points per node.
+   *
+   * @param nodes     The nodes of the cluster, as "host:port"
+   * @param timeoutMs How long a request waits for its response, in milliseconds
+   */
+  public ClusterClient(Collection<String> nodes, int timeoutMs) {
+    this(nodes, HashRing.DEFAULT_VIRTUAL_NODES, timeoutMs);
+  }
+
+  /**
+   * Function to send a single-key request to the node owning the key
+   *
+   * @param opcode The command, one of the Protocol.OP_* constants, possibly with FLAG_LEAN
+   * @param key    The key
+   * @param value  The value, or ByteString.EMPTY
+   * @return A future completed with the response, or exceptionally if the node can't be reached
+   *         or doesn't answer in time
+   */
+  public CompletableFuture<Response> send(byte opcode, ByteString key, ByteString value) {
+    return route(ring.nodeFor(key), client -> client.send(opcode, key, value));
+  }
+
+  /**
+   * Function to send a single-key request to the node owning the key
+   *
+   * @param opcode The command, one of the Protocol.OP_* constants, possibly with FLAG_LEAN
+   * @param key    The key, sent as UTF-8
+   * @param value  The value, sent as UTF-8, or an empty string
+   * @return A future completed with the response, or exceptionally if the node can't be reached
+   *         or doesn't answer in time
+   */
+  public CompletableFuture<Response> send(byte opcode, String key, String value) {
+    return send(opcode, ByteString.of(key), ByteString.of(value));
+  }
+
+  /**
+   * Function to send a batch command, split into one request per node owning some of the keys
+   *
+   * @param opcode Protocol.OP_MGET, OP_MPUT or OP_MDELETE
+   * @param keys   The keys the command works on
+   * @param values The values for an MPUT, one per key, or null for other commands
+   * @return A future completed with the batch response, its results in the order of the keys.
+   *         If a node answers with an error, the future completes with that error response
+   */
+  public CompletableFuture<Response> sendBatch(byte opcode, ByteString[] keys, ByteString[] values) {
+    // Positions of the keys each node owns
+    HashRing current = ring;
+    Map<String, List<Integer>> positions = new HashMap<String, List<Integer>>();
+    for (int i = 0; i < keys.length; i++) {
+      positions.computeIfAbsent(current.nodeFor(keys[i]), node -> new ArrayList<Integer>()).add(i);
+    }
+    if (positions.size() == 1) {
+      String node = positions.keySet().iterator().next();
+      return route(node, client -> client.sendBatch(opcode, keys, values));
+    }
+
+    List<List<Integer>> parts = new ArrayList<List<Integer>>();
+    List<CompletableFuture<Response>> futures = new ArrayList<CompletableFuture<Response>>();
+    for (Map.Entry<String, List<Integer>> entry : positions.entrySet()) {
+      List<Integer> part = entry.getValue();
+      ByteString[] partKeys = new ByteString[part.size()];
+      ByteString[] partValues = values == null ? null : new ByteString[part.size()];
+      for (int i = 0; i < partKeys.length; i++) {
+        partKeys[i] = keys[part.get(i)];
+        if (values != null) partValues[i] = values[part.get(i)];
+      }
+      parts.add(part);
+      futures.add(route(entry.getKey(), client -> client.sendBatch(opcode, partKeys, partValues)));
+    }
+
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+      byte[] statuses = new byte[keys.length];
+      ByteString[] merged = opcode == Protocol.OP_MGET ? new ByteString[keys.length] : null;
+      for (int p = 0; p < parts.size(); p++) {
+        Response response = futures.get(p).join();
+        if (!response.isBatch()) return response;
+        List<Integer> part = parts.get(p);
+        for (int i = 0; i < part.size(); i++) {
+          statuses[part.get(i)] = response.statuses[i];
+          if (merged != null && response.values != null) merged[part.get(i)] = response.values[i];
+        }
+      }
+      return new Response(0, statuses, merged);
+    });
+  }
+
+  /**
+   * Function to send a batch command, split into one request per node owning some of the keys
+   *
+   * @param opcode Protocol.OP_MGET, OP_MPUT or OP_MDELETE
+   * @param keys   The keys the command works on, sent as UTF-8
+   * @param values The values for an MPUT, sent as UTF-8, or null for other commands
+   * @return A future completed with the batch response, its results in the order of the keys
+   */
+  public CompletableFuture<Response> sendBatch(byte opcode, String[] keys, String[] values) {
+    return sendBatch(opcode, ByteString.of(keys), ByteString.of(values));
+  }
+
+  /**
+   * Function to send one chunk of a streamed value to the node owning the key, so all the chunks
+   * of a value go to the same node (see ChunkedTransfer)
+   *
+   * @param opcode     Protocol.OP_PUT_CHUNK or OP_GET_CHUNK
+   * @param key        The key
+   * @param streamId   The id of the transfer the chunk belongs to
+   * @param chunkIndex The index of the chunk in the value
+   * @param chunk      The chunk for a PUT_CHUNK, or ByteString.EMPTY
+   * @param last       True on the last chunk of a PUT_CHUNK
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> sendChunk(byte opcode, ByteString key, int streamId, int chunkIndex,
+                                               ByteString chunk, boolean last) {
+    return route(ring.nodeFor(key), client -> client.sendChunk(opcode, key, streamId, chunkIndex, chunk, last));
+  }
+
+  /**
+   * Function to read one page of a SCAN or RANGE from the whole cluster. Every node is asked for
+   * the same page; the merged page stops before the first key any node left for its next page,
+   * since the keys after it may not all have been read yet, and then holds at most limit pairs
+   * and about Protocol.MAX_PAGE_BYTES. Copies a node still holds of keys it no longer owns are
+   * left out
+   *
+   * @param opcode Protocol.OP_SCAN or OP_RANGE
+   * @param key    The prefix of a SCAN, or the first key of a RANGE
+   * @param value  Where a SCAN page starts (empty for the first page), or the key a RANGE stops
+   *               before (empty for no end)
+   * @param limit  The most key-value pairs the page may hold
+   * @return A future completed with the merged page. If a node answers with an error, the future
+   *         completes with that error response
+   */
+  public CompletableFuture<Response> scan(byte opcode, ByteString key, ByteString value, int limit) {
+    HashRing current = ring;
+    List<String> nodes = current.getNodes();
+    List<CompletableFuture<Response>> futures = new ArrayList<CompletableFuture<Response>>();
+    for (String node : nodes) {
+      futures.add(route(node, client -> client.sendScan(opcode, key, value, limit)));
+    }
+
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+      // The key the next page starts at: the first one any node left out
+      ByteString next = null;
+      for (CompletableFuture<Response> future : futures) {
+        Response response = future.join();
+        if (!response.isPage()) return response;
+        if (response.value != null && (next == null || response.value.compareTo(next) < 0)) {
+          next = response.value;
+        }
+      }
+      TreeMap<ByteString, ByteString> merged = new TreeMap<ByteString, ByteString>();
+      for (int n = 0; n < nodes.size(); n++) {
+        Response response = futures.get(n).join();
+        for (int i = 0; i < response.keys.length; i++) {
+          ByteString pageKey = response.keys[i];
+          if ((next == null || pageKey.compareTo(next) < 0) && current.nodeFor(pageKey).equals(nodes.get(n))) {
+            merged.put(pageKey, response.values[i]);
+          }
+        }
+      }
+      List<ByteString> keys = new ArrayList<ByteString>();
+      List<ByteString> values = new ArrayList<ByteString>();
+      int bytes = 0;
+      for (Map.Entry<ByteString, ByteString> pair : merged.entrySet()) {
+        int size = 2 + pair.getKey().length() + 4 + pair.getValue().length();
+        if (keys.size() == limit || (!keys.isEmpty() && bytes + size > Protocol.MAX_PAGE_BYTES)) {
+          next = pair.getKey();
+          break;
+        }
+        keys.add(pair.getKey());
+        values.add(pair.getValue());
+        bytes += size;
+      }
+      return new Response(0, keys.toArray(new ByteString[0]), values.toArray(new ByteString[0]), next);
+    });
+  }
+
+  /**
+   * Function to send a GET request
+   *
+   * @param key The key to read
+   * @return A future completed with the response; its value is the value read
+   */
+  public CompletableFuture<Response> get(String key) {
+    return send(Protocol.OP_GET, key, "");
+  }
+
+  /**
+   * Function to send a PUT request
+   *
+   * @param key   The key to store
+   * @param value The value associated with the key
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> put(String key, String value) {
+    return send(Protocol.OP_PUT, key, value);
+  }
+
+  /**
+   * Function to send a PUTEX request, storing a value that expires
+   *
+   * @param key       The key to store
+   * @param value     The value associated with the key
+   * @param ttlMillis How long the key lives, in milliseconds
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> put(ByteString key, ByteString value, long ttlMillis) {
+    return route(ring.nodeFor(key), client -> client.put(key, value, ttlMillis));
+  }
+
+  /**
+   * Function to send a PUTEX request, storing a value that expires
+   *
+   * @param key       The key to store, as UTF-8
+   * @param value     The value associated with the key, as UTF-8
+   * @param ttlMillis How long the key lives, in milliseconds
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> put(String key, String value, long ttlMillis) {
+    return put(ByteString.of(key), ByteString.of(value), ttlMillis);
+  }
+
+  /**
+   * Function to send an INCR request to the node owning the counter
+   *
+   * @param key   The key of the counter
+   * @param delta The amount to add, negative to decrement
+   * @return A future completed with the response; its value is the new counter, in decimal
+   */
+  public CompletableFuture<Response> incr(ByteString key, long delta) {
+    return route(ring.nodeFor(key), client -> client.incr(key, delta));
+  }
+
+  /**
+   * Function to send a CAS request to the node owning the key
+   *
+   * @param key      The key to update
+   * @param expected The value the key must hold, or null if it must not exist
+   * @param value    The new value
+   * @return A future completed with the response, whose status is Protocol.STATUS_MISMATCH if
+   *         nothing was replaced
+   */
+  public CompletableFuture<Response> cas(ByteString key, ByteString expected, ByteString value) {
+    return route(ring.nodeFor(key), client -> client.cas(key, expected, value));
+  }
+
+  /**
+   * Function to send a DELETE request
+   *
+   * @param key The key to remove
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> delete(String key) {
+    return send(Protocol.OP_DELETE, key, "");
+  }
+
+  /**
+   * Function to read many keys, from all the nodes owning them at once
+   *
+   * @param keys The keys to read
+   * @return A future completed with the batch response; its values are the values read
+   */
+  public CompletableFuture<Response> mget(String[] keys) {
+    return sendBatch(Protocol.OP_MGET, keys, null);
+  }
+
+  /**
+   * Function to store many key-value pairs on the nodes owning them
+   *
+   * @param keys   The keys to store
+   * @param values The value for each key
+   * @return A future completed with the batch response
+   */
+  public CompletableFuture<Response> mput(String[] keys, String[] values) {
+    return sendBatch(Protocol.OP_MPUT, keys, values);
+  }
+
+  /**
+   * Function to remove many keys from the nodes owning them
+   *
+   * @param keys The keys to remove
+   * @return A future completed with the batch response
+   */
+  public CompletableFuture<Response> mdelete(String[] keys) {
+    return sendBatch(Protocol.OP_MDELETE, keys, null);
+  }
+
+  /**
+   * Function to read the metrics of every node
+   * @return A future completed with a "node:host:port" line followed by that node's metrics for
+   *         each node, or an "error:" line for a node that couldn't be reached
+   */
+  public CompletableFuture<String> stats() {
+    List<String> nodes = ring.getNodes();
+    List<CompletableFuture<Response>> futures = new ArrayList<CompletableFuture<Response>>();
+    for (String node : nodes) {
+      futures.add(route(node, PipelinedTCPClient::stats));
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> {
+      StringBuilder text = new StringBuilder();
+      for (int i = 0; i < nodes.size(); i++) {
+        text.append("node:").append(nodes.get(i)).append('\n');
+        CompletableFuture<Response> future = futures.get(i);
+        if (future.isCompletedExceptionally()) {
+          text.append("error:").append(cause(future)).append('\n');
+        } else {
+          text.append(future.join().value);
+        }
+      }
+      return text.toString();
+    });
+  }
+
+  /**
+   * Function to add a node to the cluster. About 1/N of the keys are owned by it from now on,
+   * and they are moved to it from the nodes holding them
+   *
+   * @param node The node to add, as "host:port"
+   * @return The number of keys moved
+   * @throws IllegalArgumentException If the node is not "host:port"
+   * @throws IOException              If a node can't be reached or can't list its keys, in which
+   *                                  case the ring is left as it was, or if the move fails part
+   *                                  way, in which case the node is added and rebalance finishes
+   *                                  the move
+   */
+  public synchronized long addNode(String node) throws IOException {
+    HashRing.parseNode(node);
+    HashRing before = ring;
+    HashRing after = before.withNode(node);
+    if (after == before) return 0;
+    for (String member : after.getNodes()) {
+      checkListable(member);
+    }
+    ring = after;
+    long moved = 0;
+    for (String source : before.getNodes()) {
+      moved += moveKeys(source, after);
+    }
+    return moved;
+  }
+
+  /**
+   * Function to remove a node from the cluster. Its keys are owned by the remaining nodes from
+   * now on and are moved to them, then its connection is closed
+   *
+   * @param node The node to remove, as "host:port"
+   * @return The number of keys moved
+   * @throws IllegalArgumentException If it is the last node
+   * @throws IOException              If its keys could not all be moved, for example because it
+   *                                  is down. The node is removed all the same, and the keys
+   *                                  left on it are lost
+   */
+  public synchronized long removeNode(String node) throws IOException {
+    HashRing after = ring.withoutNode(node);
+    if (after == ring) return 0;
+    ring = after;
+    try {
+      return moveKeys(node, after);
+    } finally {
+      PipelinedTCPClient client = connections.remove(node);
+      if (client != null) {
+        try {
+          client.close();
+        } catch (IOException e) {
+          // The node is no longer used either way
+        }
+      }
+    }
+  }
+
+  /**
+   * Function to move every key a node holds but doesn't own to its owner, finishing a move that
+   * failed part way
+   *
+   * @return The number of keys moved
+   * @throws IOException If a node can't be reached or can't list its keys
+   */
+  public synchronized long rebalance() throws IOException {
+    HashRing current = ring;
+    long moved = 0;
+    for (String node : current.getNodes()) {
+      moved += moveKeys(node, current);
+    }
+    return moved;
+  }
+
+  /**
+   * Function to get the ring the keys are currently routed with
+   * @return The ring
+   */
+  public HashRing getRing() {
+    return ring;
+  }
+
+  /**
+   * Closes the connections to every node. Requests still in flight fail.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    for (PipelinedTCPClient client : connections.values()) {
+      client.close();
+    }
+    connections.clear();
+  }
+
+  /**
+   * Function to check that a node can list its keys, so keys can be moved off it
+   *
+   * @param node The node, as "host:port"
+   * @throws IOException If it can't be reached or answers a SCAN with an error
+   */
+  private void checkListable(String node) throws IOException {
+    Response page = await(route(node, client -> client.sendScan(Protocol.OP_SCAN, ByteString.EMPTY, ByteString.EMPTY, 1)));
+    if (!page.isPage()) {
+      throw new IOException("Cannot move keys to or from " + node + ", which cannot list them: " + page.message);
+    }
+  }
+
+  /**
+   * Function to move the keys a node holds but doesn't own on a ring to their owners. Each key is
+   * copied only if its owner doesn't have it, so a value written through the ring is never
+   * replaced by an older one, and is then deleted from the node. Moved keys lose their expiry
+   * time
+   *
+   * @param source The node to move keys off, as "host:port"
+   * @param target The ring deciding who owns each key
+   * @return The number of keys moved
+   * @throws IOException If a node can't be reached, the source can't list its keys or an owner
+   *                     refuses a key
+   */
+  private long moveKeys(String source, HashRing target) throws IOException {
+    long moved = 0;
+    ByteString start = ByteString.EMPTY;
+    while (start != null) {
+      ByteString from = start;
+      Response page = await(route(source, client -> client.sendScan(Protocol.OP_SCAN, ByteString.EMPTY, from, MOVE_PAGE_SIZE)));
+      if (!page.isPage()) {
+        throw new IOException("Cannot list the keys of " + source + ": " + page.message);
+      }
+      // Every move of the page is in flight at once; a key is deleted only once it is copied
+      List<CompletableFuture<Response>> moves = new ArrayList<CompletableFuture<Response>>();
+      for (int i = 0; i < page.keys.length; i++) {
+        ByteString key = page.keys[i];
+        ByteString value = page.values[i];
+        String owner = target.nodeFor(key);
+        if (owner.equals(source)) continue;
+        moves.add(route(owner, client -> client.cas(key, null, value)).thenCompose(copy -> {
+          if (!copy.isOk() && !copy.isMismatch()) return CompletableFuture.completedFuture(copy);
+          return route(source, client -> client.send(Protocol.OP_DELETE, key, ByteString.EMPTY)).thenApply(ignored -> copy);
+        }));
+      }
+      for (CompletableFuture<Response> move : moves) {
+        Response copy = await(move);
+        if (!copy.isOk() && !copy.isMismatch()) {
+          throw new IOException("Cannot move a key off " + source + ": " + copy.message);
+        }
+        moved++;
+      }
+      start = page.value;
+    }
+    return moved;
+  }
+
+  /**
+   * Function to wait for a response, turning a failure into an IOException
+   */
+  private static Response await(CompletableFuture<Response> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the cluster");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof TimeoutException) {
+        throw new SocketTimeoutException("Node did not answer in time");
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Function to send a request to a node, opening its connection if needed
+   *
+   * @param node The node, as "host:port"
+   * @param call Sends the request on the node's connection
+   * @return A future completed with the response, or exceptionally if the node can't be reached
+   *         or doesn't answer within the timeout
+   */
+  private CompletableFuture<Response> route(String node, Function<PipelinedTCPClient, CompletableFuture<Response>> call) {
+    try {
+      return call.apply(connection(node)).orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Function to get the connection to a node, opening it if it isn't open
+   *
+   * @param node The node, as "host:port"
+   * @return The open connection
+   * @throws IOException If the client is closed or the node can't be reached
+   */
+  private PipelinedTCPClient connection(String node) throws IOException {
+    PipelinedTCPClient client = connections.get(node);
+    if (client != null && client.isOpen()) return client;
+    if (closed) throw new IOException("Client is closed");
+    // Only one thread connects to a node; the others wait for its connection
+    synchronized (connections) {
+      client = connections.get(node);
+      if (client == null || !client.isOpen()) {
+        String[] hostPort = HashRing.parseNode(node);
+        try {
+          client = new PipelinedTCPClient(hostPort[0], Integer.parseInt(hostPort[1]), timeoutMs);
+        } catch (IOException e) {
+          throw new IOException("Cannot connect to " + node + ": " + e.getMessage(), e);
+        }
+        connections.put(node, client);
+      }
+      return client;
+    }
+  }
+
+  /**
+   * Function to describe why a future failed
+   */
+  private static String cause(CompletableFuture<?> future) {
+    try {
+      future.join();
+      return "";
+    } catch (RuntimeException e) {
+      Throwable cause = e.getCause() != null ? e.getCause() : e;
+      return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+    }
+  }
+}
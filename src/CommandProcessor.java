@@ -0,0 +1,671 @@
+/**
+ * Command Processor
+ *
+ * Executes GET, PUT, PUTEX and DELETE commands, and their MGET, MPUT and MDELETE batch forms, against
+ * the key-value store and builds the response sent back to the client. It is shared by both TCP
+ * serving engines and the UDP workers, so every server answers with exactly the same messages,
+ * whether the client speaks the original text protocol or the binary protocol.
+ *
+ * Keys and values are opaque bytes (ByteString) all the way from the request to the store. The
+ * messages describing each outcome are fixed text naming neither the key nor the value, so no
+ * request converts either to or from characters; only the log lines do, when they are enabled.
+ * Requests asking for a lean response don't even get the message.
+ *
+ * Every command's execution time, GET hits and misses and failures are recorded in the server's
+ * Metrics, which the STATS command returns.
+ *
+ * Values too large for one message are moved in chunks with PUT_CHUNK and GET_CHUNK; the streams
+ * in progress are kept in ChunkStreams, so every transport supports them.
+ *
+ * SCAN and RANGE read the keys of a store with an ordered index one page at a time, so a scan
+ * of any size holds at most one page in memory and never blocks writers.
+ *
+ * INCR, CAS and APPEND each run as one compute on the store, which holds only the key's own
+ * lock while the new value is derived from the old one. Concurrent updates of a hot key are
+ * thereby applied one after the other, none is lost, and updates of other keys go on in
+ * parallel. An update that changes nothing returns the old value to compute, so nothing is
+ * logged or replicated for it.
+ *
+ * The processor of a read replica is read-only: it rejects every write, since the replica's data
+ * only changes by replication from its primary.
+ */
+
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class CommandProcessor {
+
+  // Key-value store shared by all client connections
+  private final KeyValueStore keyValStore;
+
+  // Metrics of the server, also recorded into by the serving engines
+  private final Metrics metrics;
+
+  // True on a read replica, which rejects writes
+  private final boolean readOnly;
+
+  // Chunked uploads and downloads in progress
+  private final ChunkStreams chunkStreams = new ChunkStreams();
+
+  // Messages of the common outcomes. They name neither the key nor the value, so answering a
+  // request never decodes either; the log lines, when enabled, still show both
+  private static final String SAVED = "Saved successfully";
+  private static final String REMOVED = "Successfully removed the key";
+  private static final String READ = "Successfully read the key";
+  private static final String NOT_FOUND = "[Err] The key does not exist in the store";
+  private static final String CHANGED = "[Err] The value has changed, so it was not replaced";
+  private static final String TEXT_TOO_LARGE = "[Err] Value too large for the text protocol, use GET_CHUNK";
+  private static final String VALUE_TOO_LARGE = "[Err] Values are limited to " + Protocol.MAX_VALUE_SIZE + " bytes";
+
+  /**
+   * Creates a processor working on the given store.
+   *
+   * @param keyValStore The shared key-value store
+   */
+  public CommandProcessor(KeyValueStore keyValStore) {
+    this(keyValStore, false);
+  }
+
+  /**
+   * Creates a processor working on the given store.
+   *
+   * @param keyValStore The shared key-value store
+   * @param readOnly    True to reject writes, on a read replica
+   */
+  public CommandProcessor(KeyValueStore keyValStore, boolean readOnly) {
+    this.keyValStore = keyValStore;
+    this.readOnly = readOnly;
+    this.metrics = new Metrics(keyValStore::size);
+  }
+
+  /**
+   * Function to get the metrics of the server
+   * @return The metrics
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Function to execute a binary protocol request. QUIT is handled by the caller, since only it
+   * knows how to close the connection.
+   *
+   * @param request The request to execute
+   * @param ip      The IP address of the client
+   * @param port    The port number of the client
+   * @return The response, carrying the request's id
+   */
+  public Response execute(Request request, InetAddress ip, int port) {
+    long start = System.nanoTime();
+    try {
+      return dispatch(request, ip, port);
+    } catch (UncheckedIOException e) {
+      // The write-ahead log could not record the change, so it must not be acknowledged
+      Log.error(ip, port, "[Err] Write Not Persisted: ", e.getMessage());
+      metrics.recordError();
+      return new Response(Protocol.STATUS_ERROR, request.requestId, null, "[Err] Write could not be persisted");
+    } finally {
+      metrics.recordCommand(Protocol.baseOpcode(request.opcode), System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Function to execute a single-key request that asked for a lean response, writing the response
+   * into a buffer. A GET copies the value straight from the store into the buffer, logged or not,
+   * so a hit creates no objects at all unless a log message is written for it.
+   *
+   * Writes answer with LEAN_HEADER_SIZE bytes, so if dst has at least that much room the result
+   * is never negative for them, and only reads ever need to be retried.
+   *
+   * @param request The request to execute
+   * @param ip      The IP address of the client
+   * @param port    The port number of the client
+   * @param dst     The buffer to write the response into, at its position
+   * @return The response length, or minus the length needed if the response did not fit, in
+   *         which case dst is unchanged
+   */
+  public int executeLean(Request request, InetAddress ip, int port, ByteBuffer dst) {
+    int start = dst.position();
+    if (dst.remaining() < Protocol.LEAN_HEADER_SIZE) {
+      return -Protocol.LEAN_HEADER_SIZE;
+    }
+    if (Protocol.baseOpcode(request.opcode) == Protocol.OP_GET) {
+      long startNanos = System.nanoTime();
+      dst.position(start + Protocol.LEAN_HEADER_SIZE);
+      int room = dst.remaining();
+      int length = keyValStore.readValue(request.key, dst);
+      if (length > room) {
+        // Neither logged nor recorded: the caller retries with a bigger buffer
+        dst.position(start);
+        return -(Protocol.LEAN_HEADER_SIZE + length);
+      }
+      Protocol.putLeanHeader(dst, start, length >= 0, request.requestId, length);
+      metrics.recordLookups(length >= 0 ? 1 : 0, length >= 0 ? 0 : 1);
+      if (Log.sampled(Log.WARN)) {
+        logLeanGet(request.key, dst, start + Protocol.LEAN_HEADER_SIZE, length, ip, port);
+      }
+      metrics.recordCommand(Protocol.OP_GET, System.nanoTime() - startNanos);
+      return dst.position() - start;
+    }
+    Response response = execute(request, ip, port);
+    int length = Protocol.leanResponseLength(response);
+    if (length > dst.remaining()) {
+      return -length;
+    }
+    Protocol.encodeLeanResponse(response, dst);
+    return length;
+  }
+
+  /**
+   * Function to run a request through the handler for its opcode
+   */
+  private Response dispatch(Request request, InetAddress ip, int port) {
+    byte opcode = Protocol.baseOpcode(request.opcode);
+    boolean lean = Protocol.isLean(request.opcode);
+    if (readOnly && Protocol.isWrite(opcode)) {
+      Log.error(ip, port, "[Err] Write rejected by read replica: ", request.opcode);
+      metrics.recordError();
+      return new Response(Protocol.STATUS_ERROR, request.requestId, null, "[Err] Read-only replica: send writes to the primary");
+    }
+    if (Protocol.isWrite(opcode) && hasOversizedValue(request)) {
+      Log.error(ip, port, "[Err] Value too large for ", request.key);
+      metrics.recordError();
+      return new Response(Protocol.STATUS_ERROR, request.requestId, null, VALUE_TOO_LARGE);
+    }
+    if (opcode == Protocol.OP_GET) {
+      return handleGet(request.requestId, request.key, lean, Log.sampled(Log.WARN), ip, port);
+    } else if (opcode == Protocol.OP_PUT) {
+      return handlePut(request.requestId, request.key, request.value, lean, ip, port);
+    } else if (opcode == Protocol.OP_PUTEX) {
+      return handlePutWithTtl(request.requestId, request.key, request.value, request.ttlMillis, lean, ip, port);
+    } else if (opcode == Protocol.OP_DELETE) {
+      return handleDelete(request.requestId, request.key, lean, ip, port);
+    } else if (opcode == Protocol.OP_MGET) {
+      return handleMultiGet(request.requestId, request.keys, ip, port);
+    } else if (opcode == Protocol.OP_MPUT) {
+      return handleMultiPut(request.requestId, request.keys, request.values, ip, port);
+    } else if (opcode == Protocol.OP_MDELETE) {
+      return handleMultiDelete(request.requestId, request.keys, ip, port);
+    } else if (opcode == Protocol.OP_STATS) {
+      return new Response(Protocol.STATUS_OK, request.requestId, ByteString.of(metrics.toText()), "Server statistics");
+    } else if (opcode == Protocol.OP_PUT_CHUNK) {
+      return handlePutChunk(request, ip, port);
+    } else if (opcode == Protocol.OP_GET_CHUNK) {
+      return handleGetChunk(request, ip, port);
+    } else if (Protocol.isScan(opcode)) {
+      return handleScan(request, ip, port);
+    } else if (opcode == Protocol.OP_INCR) {
+      return handleIncrement(request.requestId, request.key, request.delta, ip, port);
+    } else if (opcode == Protocol.OP_CAS) {
+      return handleCompareAndSet(request.requestId, request.key, request.expected, request.value, ip, port);
+    } else if (opcode == Protocol.OP_APPEND) {
+      return handleAppend(request.requestId, request.key, request.value, ip, port);
+    }
+    Log.error(ip, port, "Invalid Command: ", request.opcode);
+    metrics.recordError();
+    return new Response(Protocol.STATUS_ERROR, request.requestId, null, "Invalid Command");
+  }
+
+  /**
+   * Function to handle PUT requests of the text protocol
+   *
+   * @param key  The key to store
+   * @param val  The value associated with the key
+   * @param ip   The IP address of the client
+   * @param port The port number of the client
+   * @return The response message, starting with "1" on success
+   */
+  public String put(String key, String val, InetAddress ip, int port) {
+    return toText(execute(new Request(Protocol.OP_PUT, 0, ByteString.of(key), ByteString.of(val)), ip, port));
+  }
+
+  /**
+   * Function to handle DELETE requests of the text protocol
+   *
+   * @param key  The key to remove
+   * @param ip   The IP address of the client
+   * @param port The port number of the client
+   * @return The response message, starting with "1" on success and "-1" on error
+   */
+  public String delete(String key, InetAddress ip, int port) {
+    return toText(execute(new Request(Protocol.OP_DELETE, 0, ByteString.of(key), ByteString.EMPTY), ip, port));
+  }
+
+  /**
+   * Function to handle GET requests of the text protocol
+   *
+   * @param key  The key to read
+   * @param ip   The IP address of the client
+   * @param port The port number of the client
+   * @return The response message, starting with "1" on success and "-1" on error
+   */
+  public String get(String key, InetAddress ip, int port) {
+    return toText(execute(new Request(Protocol.OP_GET, 0, ByteString.of(key), ByteString.EMPTY), ip, port));
+  }
+
+  /**
+   * Function to handle STATS requests of the text protocol
+   *
+   * @param ip   The IP address of the client
+   * @param port The port number of the client
+   * @return "1:" followed by the metrics, one "name:value" line each
+   */
+  public String stats(InetAddress ip, int port) {
+    return "1:" + execute(new Request(Protocol.OP_STATS, 0, ByteString.EMPTY, ByteString.EMPTY), ip, port).value;
+  }
+
+  /**
+   * Function to handle unknown commands of the text protocol
+   *
+   * @param cmd  The command received from the client
+   * @param ip   The IP address of the client
+   * @param port The port number of the client
+   * @return The error message for the client
+   */
+  public String invalidCommand(String cmd, InetAddress ip, int port) {
+    Log.error(ip, port, "Invalid Command: ", cmd);
+    metrics.recordError();
+    return "-1:Invalid Command";
+  }
+
+  /**
+   * Function to answer a request whose execution failed unexpectedly, so the client gets an
+   * error instead of waiting for an answer that never comes
+   *
+   * @param request The request that failed
+   * @param error   What it failed with
+   * @param ip      The IP address of the client
+   * @param port    The port number of the client
+   * @return The error response
+   */
+  public Response failed(Request request, RuntimeException error, InetAddress ip, int port) {
+    Log.error(ip, port, "Request failed: ", String.valueOf(error));
+    metrics.recordError();
+    return new Response(Protocol.STATUS_ERROR, request.requestId, null, "[Err] Request failed: " + error);
+  }
+
+  /**
+   * Function to store a key-value pair
+   *
+   * @param lean Whether the response is lean, so it needs no message
+   */
+  private Response handlePut(int requestId, ByteString key, ByteString val, boolean lean, InetAddress ip, int port) {
+    boolean logged = Log.sampled(Log.INFO);
+    if (logged) Log.info(ip, port, "Received PUT Request to PUT key \"", key, "\" with value \"", val, "\"");
+
+    // Store the key-value pair in the key-value store
+    keyValStore.put(key, val);
+    if (logged) Log.info(ip, port, key, " with value \"", val, "\" saved successfully");
+    return new Response(Protocol.STATUS_OK, requestId, null, lean ? "" : SAVED);
+  }
+
+  /**
+   * Function to store a key-value pair that expires after ttlMillis
+   */
+  private Response handlePutWithTtl(int requestId, ByteString key, ByteString val, long ttlMillis, boolean lean,
+                                    InetAddress ip, int port) {
+    boolean logged = Log.sampled(Log.INFO);
+    if (logged) Log.info(ip, port, "Received PUTEX Request to PUT key \"", key, "\" with value \"", val, "\" for " + ttlMillis + " ms");
+
+    try {
+      keyValStore.put(key, val, ttlMillis);
+    } catch (UnsupportedOperationException | IllegalArgumentException e) {
+      // TTLs need the cache store, and a positive TTL
+      Log.error(ip, port, "[Err] PUTEX rejected: ", e.getMessage());
+      metrics.recordError();
+      return new Response(Protocol.STATUS_ERROR, requestId, null, "[Err] " + e.getMessage());
+    }
+    if (logged) Log.info(ip, port, key, " with value \"", val, "\" saved successfully");
+    return new Response(Protocol.STATUS_OK, requestId, null, lean ? "" : SAVED);
+  }
+
+  /**
+   * Function to remove a key
+   */
+  private Response handleDelete(int requestId, ByteString key, boolean lean, InetAddress ip, int port) {
+    // Sampled at WARN so misses are still logged when INFO is off; the INFO lines filter themselves
+    boolean logged = Log.sampled(Log.WARN);
+    if (logged) Log.info(ip, port, "Received DELETE Request to Remove key \"", key, "\"");
+    // Remove the key in a single lookup; null means the key does not exist
+    if (keyValStore.remove(key) != null) {
+      if (logged) Log.info(ip, port, "Successfully removed key \"", key, "\" ");
+      return new Response(Protocol.STATUS_OK, requestId, null, lean ? "" : REMOVED);
+    }
+    // Key not found. Send error message to client
+    if (logged) Log.warn(ip, port, "[Err] The key \"", key, "\" does not exists in the store");
+    return notFound(requestId, lean);
+  }
+
+  /**
+   * Function to read the value of a key
+   *
+   * @param lean   Whether the response is lean, so it needs no message
+   * @param logged Whether this request was sampled for logging, at WARN so misses are still
+   *               logged when INFO is off; the INFO lines filter themselves
+   */
+  private Response handleGet(int requestId, ByteString key, boolean lean, boolean logged, InetAddress ip, int port) {
+    if (logged) Log.info(ip, port, "Received GET Request to read key \"", key, "\"");
+    // Read the value in a single lookup; null means the key does not exist
+    ByteString val = keyValStore.get(key);
+    metrics.recordLookups(val != null ? 1 : 0, val != null ? 0 : 1);
+    if (val != null) {
+      if (logged) Log.info(ip, port, "Successfully read key \"", key, "\" with val \"", val, "\"");
+      return new Response(Protocol.STATUS_OK, requestId, val, lean ? "" : READ);
+    }
+    // Key not found. Send error message
+    if (logged) Log.warn(ip, port, "[Err] The key \"", key, "\" does not exists in the store");
+    return notFound(requestId, lean);
+  }
+
+  /**
+   * Function to log a lean GET with the same messages as handleGet, from the length the read
+   * returned and the value it copied into the response
+   */
+  private static void logLeanGet(ByteString key, ByteBuffer dst, int index, int length, InetAddress ip, int port) {
+    Log.info(ip, port, "Received GET Request to read key \"", key, "\"");
+    if (length < 0) {
+      Log.warn(ip, port, "[Err] The key \"", key, "\" does not exists in the store");
+    } else if (Log.isEnabled(Log.INFO)) {
+      Log.info(ip, port, "Successfully read key \"", key, "\" with val \"", ByteString.copyOf(dst, index, length), "\"");
+    }
+  }
+
+  /**
+   * Function to check whether a write carries a value larger than the server stores. Only a
+   * pipelined frame can hold one
+   */
+  private static boolean hasOversizedValue(Request request) {
+    if (request.value != null && request.value.length() > Protocol.MAX_VALUE_SIZE) return true;
+    if (request.values == null) return false;
+    for (ByteString value : request.values) {
+      if (value.length() > Protocol.MAX_VALUE_SIZE) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Function to answer a request for a key that does not exist. A lean answer has no message,
+   * which tells the client the key is missing rather than that the request failed
+   */
+  private static Response notFound(int requestId, boolean lean) {
+    return new Response(Protocol.STATUS_ERROR, requestId, null, lean ? "" : NOT_FOUND);
+  }
+
+  /**
+   * Function to add to a counter, stored as a decimal integer and 0 if the key does not exist
+   */
+  private Response handleIncrement(int requestId, ByteString key, long delta, InetAddress ip, int port) {
+    boolean logged = Log.sampled(Log.INFO);
+    if (logged) Log.info(ip, port, "Received INCR Request to add " + delta + " to key \"", key, "\"");
+    long[] counter = new long[1];
+    String[] failure = new String[1];
+    ByteString updated = keyValStore.compute(key, (k, old) -> {
+      long current = 0;
+      if (old != null) {
+        try {
+          current = old.parseLong();
+        } catch (NumberFormatException e) {
+          failure[0] = "[Err] The value of \"" + k + "\" is not an integer";
+          return old;
+        }
+      }
+      try {
+        counter[0] = Math.addExact(current, delta);
+      } catch (ArithmeticException e) {
+        failure[0] = "[Err] Adding " + delta + " to \"" + k + "\" overflows";
+        return old;
+      }
+      failure[0] = null;
+      return ByteString.of(counter[0]);
+    });
+    if (failure[0] != null) {
+      Log.error(ip, port, failure[0]);
+      metrics.recordError();
+      return new Response(Protocol.STATUS_ERROR, requestId, null, failure[0]);
+    }
+    if (logged) Log.info(ip, port, "Counter \"", key, "\" is now " + counter[0]);
+    return new Response(Protocol.STATUS_OK, requestId, updated, "Counter updated");
+  }
+
+  /**
+   * Function to replace the value of a key only if it holds the expected value
+   *
+   * @param expected The value the key must hold, or null if it must not exist
+   */
+  private Response handleCompareAndSet(int requestId, ByteString key, ByteString expected, ByteString val,
+                                       InetAddress ip, int port) {
+    // Sampled at WARN so mismatches are still logged when INFO is off; the INFO lines filter themselves
+    boolean logged = Log.sampled(Log.WARN);
+    if (logged) Log.info(ip, port, "Received CAS Request to replace key \"", key, "\" with value \"", val, "\"");
+    ByteString[] found = new ByteString[1];
+    keyValStore.compute(key, (k, old) -> {
+      found[0] = old;
+      boolean matches = expected == null ? old == null : expected.equals(old);
+      return matches ? val : old;
+    });
+    boolean matched = expected == null ? found[0] == null : expected.equals(found[0]);
+    if (!matched) {
+      if (logged) Log.warn(ip, port, "[Err] The value of \"", key, "\" has changed, so it was not replaced");
+      return new Response(Protocol.STATUS_MISMATCH, requestId, found[0], CHANGED);
+    }
+    if (logged) Log.info(ip, port, key, " with value \"", val, "\" saved successfully");
+    return new Response(Protocol.STATUS_OK, requestId, null, SAVED);
+  }
+
+  /**
+   * Function to add bytes to the end of a value, storing them if the key does not exist
+   */
+  private Response handleAppend(int requestId, ByteString key, ByteString val, InetAddress ip, int port) {
+    boolean logged = Log.sampled(Log.INFO);
+    if (logged) Log.info(ip, port, "Received APPEND Request to add \"", val, "\" to key \"", key, "\"");
+    boolean[] tooLarge = new boolean[1];
+    ByteString updated = keyValStore.compute(key, (k, old) -> {
+      // Checked before storing: the write-ahead log and replication can't carry a longer value
+      tooLarge[0] = old != null && (long) old.length() + val.length() > Protocol.MAX_VALUE_SIZE;
+      if (tooLarge[0]) return old;
+      return old == null ? val : old.concat(val);
+    });
+    if (tooLarge[0]) {
+      Log.error(ip, port, "[Err] APPEND would make the value of \"", key, "\" too large");
+      metrics.recordError();
+      return new Response(Protocol.STATUS_ERROR, requestId, null, VALUE_TOO_LARGE);
+    }
+    if (logged) Log.info(ip, port, key, " now has a value of " + updated.length() + " bytes");
+    return new Response(Protocol.STATUS_OK, requestId, null, "The value now has " + updated.length() + " bytes");
+  }
+
+  /**
+   * Function to add a chunk to a streamed value, storing the value once it is complete
+   */
+  private Response handlePutChunk(Request request, InetAddress ip, int port) {
+    ByteString value;
+    try {
+      value = chunkStreams.append(ip, port, request);
+    } catch (IllegalStateException e) {
+      Log.error(ip, port, "[Err] PUT_CHUNK rejected: ", e.getMessage());
+      metrics.recordError();
+      return new Response(Protocol.STATUS_ERROR, request.requestId, null, "[Err] " + e.getMessage());
+    }
+    if (value == null) {
+      return new Response(Protocol.STATUS_OK, request.requestId, null, "Chunk " + request.chunkIndex + " received");
+    }
+    keyValStore.put(request.key, value);
+    if (Log.sampled(Log.INFO)) Log.info(ip, port, request.key, " with a streamed value of " + value.length() + " bytes saved successfully");
+    return new Response(Protocol.STATUS_OK, request.requestId, null,
+            "A value of " + value.length() + " bytes saved successfully");
+  }
+
+  /**
+   * Function to read one chunk of a streamed value. The message carries the value's length
+   */
+  private Response handleGetChunk(Request request, InetAddress ip, int port) {
+    ByteString value;
+    try {
+      value = chunkStreams.download(ip, port, request, () -> {
+        ByteString read = keyValStore.get(request.key);
+        metrics.recordLookups(read != null ? 1 : 0, read != null ? 0 : 1);
+        return read;
+      });
+    } catch (IllegalStateException e) {
+      Log.error(ip, port, "[Err] GET_CHUNK rejected: ", e.getMessage());
+      metrics.recordError();
+      return new Response(Protocol.STATUS_ERROR, request.requestId, null, "[Err] " + e.getMessage());
+    }
+    if (value == null) {
+      if (Log.sampled(Log.WARN)) Log.warn(ip, port, "[Err] The key \"", request.key, "\" does not exists in the store");
+      return notFound(request.requestId, false);
+    }
+    return new Response(Protocol.STATUS_OK, request.requestId, ChunkStreams.chunk(value, request.chunkIndex),
+            Integer.toString(value.length()));
+  }
+
+  /**
+   * Function to read one page of a SCAN or RANGE: the pairs from its start on, in key order,
+   * until the page holds request.limit pairs or about MAX_PAGE_BYTES
+   */
+  private Response handleScan(Request request, InetAddress ip, int port) {
+    boolean prefix = Protocol.baseOpcode(request.opcode) == Protocol.OP_SCAN;
+    ByteString from = request.key;
+    ByteString to = request.value.isEmpty() ? null : request.value;
+    if (prefix) {
+      // The key is the prefix and the value where the page starts, which is never before it
+      from = request.value.compareTo(request.key) > 0 ? request.value : request.key;
+      to = request.key.prefixEnd();
+    }
+    boolean logged = Log.sampled(Log.INFO);
+    if (logged) Log.info(ip, port, prefix ? "Received SCAN Request to read keys from \"" : "Received RANGE Request to read keys from \"",
+            from, "\"");
+    if (request.limit < 1) {
+      Log.error(ip, port, "[Err] Invalid page size: ", request.limit);
+      metrics.recordError();
+      return new Response(Protocol.STATUS_ERROR, request.requestId, null, "[Err] Page size must be at least 1");
+    }
+    Page page = new Page(request.limit);
+    try {
+      keyValStore.scan(from, to, page::add);
+    } catch (UnsupportedOperationException e) {
+      Log.error(ip, port, "[Err] Scan rejected: ", e.getMessage());
+      metrics.recordError();
+      return new Response(Protocol.STATUS_ERROR, request.requestId, null, "[Err] " + e.getMessage());
+    }
+    if (logged) Log.info(ip, port, "Read a page of ", page.keys.size(), " keys");
+    return new Response(request.requestId, page.keys.toArray(new ByteString[0]), page.values.toArray(new ByteString[0]),
+            page.next);
+  }
+
+  /**
+   * Function to read many keys in one pass
+   */
+  private Response handleMultiGet(int requestId, ByteString[] keys, InetAddress ip, int port) {
+    boolean logged = Log.sampled(Log.INFO);
+    if (logged) Log.info(ip, port, "Received MGET Request to read ", keys.length, " keys");
+    ByteString[] values = keyValStore.getAll(keys);
+    byte[] statuses = new byte[keys.length];
+    int found = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (values[i] != null) {
+        statuses[i] = Protocol.STATUS_OK;
+        found++;
+      } else {
+        statuses[i] = Protocol.STATUS_ERROR;
+      }
+    }
+    metrics.recordLookups(found, keys.length - found);
+    if (logged) Log.info(ip, port, "Successfully read ", found, " of ", keys.length, " keys");
+    return new Response(requestId, statuses, values);
+  }
+
+  /**
+   * Function to store many key-value pairs in one pass
+   */
+  private Response handleMultiPut(int requestId, ByteString[] keys, ByteString[] values, InetAddress ip, int port) {
+    boolean logged = Log.sampled(Log.INFO);
+    if (logged) Log.info(ip, port, "Received MPUT Request to PUT ", keys.length, " keys");
+    keyValStore.putAll(keys, values);
+    byte[] statuses = new byte[keys.length];
+    Arrays.fill(statuses, Protocol.STATUS_OK);
+    if (logged) Log.info(ip, port, keys.length, " keys saved successfully");
+    return new Response(requestId, statuses, null);
+  }
+
+  /**
+   * Function to remove many keys in one pass
+   */
+  private Response handleMultiDelete(int requestId, ByteString[] keys, InetAddress ip, int port) {
+    boolean logged = Log.sampled(Log.INFO);
+    if (logged) Log.info(ip, port, "Received MDELETE Request to Remove ", keys.length, " keys");
+    ByteString[] removed = keyValStore.removeAll(keys);
+    byte[] statuses = new byte[keys.length];
+    int count = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (removed[i] != null) {
+        statuses[i] = Protocol.STATUS_OK;
+        count++;
+      } else {
+        statuses[i] = Protocol.STATUS_ERROR;
+      }
+    }
+    if (logged) Log.info(ip, port, "Successfully removed ", count, " of ", keys.length, " keys");
+    return new Response(requestId, statuses, null);
+  }
+
+  /**
+   * One page of a scan being filled, in key order
+   */
+  private static final class Page {
+    final ArrayList<ByteString> keys = new ArrayList<ByteString>();
+    final ArrayList<ByteString> values = new ArrayList<ByteString>();
+
+    // Most pairs, the bytes of the pairs so far, and the key the next page starts at, once the
+    // page is full
+    final int limit;
+    int bytes;
+    ByteString next;
+
+    Page(int limit) {
+      this.limit = limit;
+    }
+
+    /**
+     * Function to add the next pair, unless the page is full
+     * @return False once the page is full, with the pair left for the next page
+     */
+    boolean add(ByteString key, ByteString value) {
+      int size = 2 + key.length() + 4 + value.length();
+      if (keys.size() == limit || (!keys.isEmpty() && bytes + size > Protocol.MAX_PAGE_BYTES)) {
+        next = key;
+        return false;
+      }
+      keys.add(key);
+      values.add(value);
+      bytes += size;
+      return true;
+    }
+  }
+
+  /**
+   * Function to format a response for the text protocol: "1:" followed by the value (if any)
+   * and the message on success, "-1:" followed by the message on error
+   *
+   * @param response The response to format
+   * @return The text protocol message
+   */
+  static String toText(Response response) {
+    if (!response.isOk()) {
+      return "-1:" + response.message;
+    }
+    if (response.value != null) {
+      String text = "1:" + response.value + ":" + response.message;
+      // writeUTF can't send it, and would drop the connection trying
+      if (text.length() > ModifiedUtf8.MAX_ENCODED_LENGTH / 3
+              && ModifiedUtf8.encodedLength(text) > ModifiedUtf8.MAX_ENCODED_LENGTH) {
+        return "-1:" + TEXT_TOO_LARGE;
+      }
+      return text;
+    }
+    return "1:" + response.message;
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Concurrent Key-Value Store
+ *
+ * In-memory KeyValueStore backed by a ConcurrentHashMap. Reads take no lock at all and writes
+ * only lock the single hash bin they touch, so contention is spread across the whole table
+ * rather than a fixed number of stripes and throughput grows with the number of cores.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+public class ConcurrentKeyValueStore implements KeyValueStore {
+
+  // Default number of keys the table is sized for before it first has to grow
+  private static final int DEFAULT_INITIAL_CAPACITY = 1 << 16;
+
+  // Key-value pairs
+  private final ConcurrentHashMap<ByteString, ByteString> map;
+
+  /**
+   * Creates an empty store sized for the default number of keys.
+   */
+  public ConcurrentKeyValueStore() {
+    this(DEFAULT_INITIAL_CAPACITY);
+  }
+
+  /**
+   * Creates an empty store.
+   *
+   * @param initialCapacity The number of keys to size the table for. Sizing it up front avoids
+   *                        resizing while the store is loaded
+   */
+  public ConcurrentKeyValueStore(int initialCapacity) {
+    map = new ConcurrentHashMap<ByteString, ByteString>(initialCapacity);
+  }
+
+  @Override
+  public ByteString get(ByteString key) {
+    return map.get(key);
+  }
+
+  @Override
+  public ByteString put(ByteString key, ByteString value) {
+    return map.put(key, value);
+  }
+
+  @Override
+  public ByteString putIfAbsent(ByteString key, ByteString value) {
+    return map.putIfAbsent(key, value);
+  }
+
+  @Override
+  public ByteString remove(ByteString key) {
+    return map.remove(key);
+  }
+
+  @Override
+  public ByteString compute(ByteString key, BiFunction<ByteString, ByteString, ByteString> function) {
+    return map.compute(key, function);
+  }
+
+  @Override
+  public void forEach(BiConsumer<ByteString, ByteString> action) {
+    map.forEach(action);
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+}
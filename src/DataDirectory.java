@@ -0,0 +1,123 @@
+/**
+ * Data Directory
+ *
+ * The directory a durable store keeps its files in: write-ahead log segments named
+ * "wal-N.log" and snapshots named "snapshot-N.snap", where N is the id of the first log segment
+ * that is not covered by the snapshot. Ids only ever grow, so sorting by id gives the order the
+ * files were written in.
+ */
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class DataDirectory {
+
+  private static final String WAL_PREFIX = "wal-";
+  private static final String WAL_SUFFIX = ".log";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String SNAPSHOT_SUFFIX = ".snap";
+
+  private final Path dir;
+
+  /**
+   * Opens a data directory, creating it if it does not exist.
+   *
+   * @param dir The directory
+   * @throws IOException If the directory cannot be created
+   */
+  public DataDirectory(Path dir) throws IOException {
+    this.dir = Files.createDirectories(dir);
+  }
+
+  /**
+   * Function to get the path of a write-ahead log segment
+   */
+  public Path walSegment(long id) {
+    return dir.resolve(WAL_PREFIX + id + WAL_SUFFIX);
+  }
+
+  /**
+   * Function to get the path of a snapshot
+   */
+  public Path snapshot(long id) {
+    return dir.resolve(SNAPSHOT_PREFIX + id + SNAPSHOT_SUFFIX);
+  }
+
+  /**
+   * Function to get the path a snapshot is written to before it is complete
+   */
+  public Path snapshotTemp(long id) {
+    return dir.resolve(SNAPSHOT_PREFIX + id + SNAPSHOT_SUFFIX + ".tmp");
+  }
+
+  /**
+   * Function to list the ids of the write-ahead log segments
+   * @return The ids in ascending order
+   */
+  public List<Long> walSegments() throws IOException {
+    return list(WAL_PREFIX, WAL_SUFFIX);
+  }
+
+  /**
+   * Function to list the ids of the complete snapshots
+   * @return The ids in ascending order
+   */
+  public List<Long> snapshots() throws IOException {
+    return list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+  }
+
+  /**
+   * Function to delete the log segments and snapshots older than a snapshot, along with any
+   * snapshot that was never finished
+   *
+   * @param snapshotId The id of the newest complete snapshot
+   */
+  public void deleteBefore(long snapshotId) throws IOException {
+    for (long id : walSegments()) {
+      if (id < snapshotId) Files.deleteIfExists(walSegment(id));
+    }
+    for (long id : snapshots()) {
+      if (id < snapshotId) Files.deleteIfExists(snapshot(id));
+    }
+    try (DirectoryStream<Path> temps = Files.newDirectoryStream(dir, SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX + ".tmp")) {
+      for (Path temp : temps) {
+        Files.deleteIfExists(temp);
+      }
+    }
+  }
+
+  /**
+   * Function to fsync the directory itself, so newly created and renamed files survive a crash.
+   * Not every platform allows opening a directory, in which case this does nothing.
+   */
+  public void sync() {
+    try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // Directory sync is not supported here
+    }
+  }
+
+  /**
+   * Function to list the ids of the files with the given prefix and suffix
+   */
+  private List<Long> list(String prefix, String suffix) throws IOException {
+    List<Long> ids = new ArrayList<Long>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          ids.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+        } catch (NumberFormatException e) {
+          // Not one of ours
+        }
+      }
+    }
+    Collections.sort(ids);
+    return ids;
+  }
+}
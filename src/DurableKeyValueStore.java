@@ -0,0 +1,263 @@
+/**
+ * Durable Key-Value Store
+ *
+ * KeyValueStore decorator that records every change in a WriteAheadLog before acknowledging it.
+ * The record is appended inside the store's atomic compute, so records for the same key reach
+ * the log in the same order the changes were applied. Waiting for the log happens after the key
+ * is unlocked, which lets concurrent writers share one group commit. Reads go straight to the
+ * underlying store.
+ *
+ * Snapshots keep restarts fast: the log is switched to a new segment, the store is copied while
+ * requests keep being served, and the segments the snapshot covers are deleted. On startup the
+ * newest snapshot is loaded and only the segments written after it are replayed.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+
+public class DurableKeyValueStore implements KeyValueStore, Closeable {
+
+  // Store holding the data
+  private final KeyValueStore delegate;
+
+  // Directory holding the log segments and snapshots
+  private final DataDirectory dir;
+
+  // Log every change is recorded in
+  private final WriteAheadLog wal;
+
+  // Held shared by every change from its log append until it is applied, and exclusively while
+  // the log switches segments, so no change can straddle a snapshot's starting point
+  private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+
+  // Log position when the last snapshot started, to skip snapshots when nothing changed
+  private long lastSnapshotPosition = -1;
+
+  private DurableKeyValueStore(KeyValueStore delegate, DataDirectory dir, WriteAheadLog wal) {
+    this.delegate = delegate;
+    this.dir = dir;
+    this.wal = wal;
+  }
+
+  /**
+   * Function to open a durable store: loads the newest snapshot into an empty store, replays the
+   * log written after it and opens the log for new changes
+   *
+   * @param delegate       The empty store to hold the data
+   * @param dir            The data directory
+   * @param policy         When log records are forced to disk
+   * @param syncIntervalMs How often the INTERVAL policy fsyncs, in milliseconds
+   * @return The durable store
+   * @throws IOException If the snapshot or log cannot be read
+   */
+  public static DurableKeyValueStore open(KeyValueStore delegate, DataDirectory dir,
+                                          WriteAheadLog.SyncPolicy policy, int syncIntervalMs) throws IOException {
+    long firstSegment = Snapshot.loadLatest(dir, delegate);
+    WriteAheadLog wal = WriteAheadLog.open(dir, firstSegment, policy, syncIntervalMs, delegate);
+    return new DurableKeyValueStore(delegate, dir, wal);
+  }
+
+  /**
+   * Function to write a snapshot of the store and delete the log segments it covers. Requests
+   * are served as usual while it runs; only changes wait, and only for the instant it takes to
+   * switch the log to a new segment.
+   *
+   * @return The number of keys written, or -1 if nothing changed since the last snapshot
+   * @throws IOException If the snapshot cannot be written. The log is kept in that case
+   */
+  public synchronized long snapshot() throws IOException {
+    long segment;
+    gate.writeLock().lock();
+    try {
+      long position = wal.position();
+      if (position == lastSnapshotPosition) {
+        return -1;
+      }
+      lastSnapshotPosition = position;
+      segment = wal.rotate();
+    } finally {
+      gate.writeLock().unlock();
+    }
+
+    long start = System.nanoTime();
+    long count;
+    try {
+      count = Snapshot.write(dir, segment, delegate);
+    } catch (IOException e) {
+      // Try again next time even if nothing changes in between
+      lastSnapshotPosition = -1;
+      throw e;
+    }
+    wal.awaitRotation();
+    dir.deleteBefore(segment);
+    Log.log(Log.INFO, "Wrote snapshot of " + count + " keys in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    return count;
+  }
+
+  @Override
+  public ByteString get(ByteString key) {
+    return delegate.get(key);
+  }
+
+  @Override
+  public int readValue(ByteString key, ByteBuffer dst) {
+    return delegate.readValue(key, dst);
+  }
+
+  @Override
+  public ByteString put(ByteString key, ByteString value) {
+    ByteString[] previous = new ByteString[1];
+    long position = logPut(key, value, previous);
+    wal.await(position);
+    return previous[0];
+  }
+
+  @Override
+  public ByteString putIfAbsent(ByteString key, ByteString value) {
+    ByteString[] existing = new ByteString[1];
+    long[] position = new long[1];
+    apply(key, (k, old) -> {
+      if (old != null) {
+        existing[0] = old;
+        return old;
+      }
+      position[0] = wal.append(WriteAheadLog.OP_PUT, k, value);
+      return value;
+    });
+    wal.await(position[0]);
+    return existing[0];
+  }
+
+  @Override
+  public ByteString remove(ByteString key) {
+    ByteString[] removed = new ByteString[1];
+    long position = logRemove(key, removed);
+    wal.await(position);
+    return removed[0];
+  }
+
+  @Override
+  public ByteString compute(ByteString key, BiFunction<ByteString, ByteString, ByteString> function) {
+    long[] position = new long[1];
+    ByteString result = apply(key, (k, old) -> {
+      ByteString updated = function.apply(k, old);
+      if (updated != null && !updated.equals(old)) {
+        position[0] = wal.append(WriteAheadLog.OP_PUT, k, updated);
+      } else if (updated == null && old != null) {
+        position[0] = wal.append(WriteAheadLog.OP_DELETE, k, null);
+      }
+      return updated;
+    });
+    wal.await(position[0]);
+    return result;
+  }
+
+  @Override
+  public ByteString[] getAll(ByteString[] keys) {
+    return delegate.getAll(keys);
+  }
+
+  /**
+   * Function to store many key-value pairs, waiting for the log only once for the whole batch
+   */
+  @Override
+  public void putAll(ByteString[] keys, ByteString[] values) {
+    ByteString[] previous = new ByteString[1];
+    long position = 0;
+    for (int i = 0; i < keys.length; i++) {
+      position = Math.max(position, logPut(keys[i], values[i], previous));
+    }
+    wal.await(position);
+  }
+
+  /**
+   * Function to remove many keys, waiting for the log only once for the whole batch
+   */
+  @Override
+  public ByteString[] removeAll(ByteString[] keys) {
+    ByteString[] removed = new ByteString[keys.length];
+    ByteString[] current = new ByteString[1];
+    long position = 0;
+    for (int i = 0; i < keys.length; i++) {
+      position = Math.max(position, logRemove(keys[i], current));
+      removed[i] = current[0];
+    }
+    wal.await(position);
+    return removed;
+  }
+
+  @Override
+  public void forEach(BiConsumer<ByteString, ByteString> action) {
+    delegate.forEach(action);
+  }
+
+  @Override
+  public void scan(ByteString from, ByteString to, BiPredicate<ByteString, ByteString> visitor) {
+    delegate.scan(from, to, visitor);
+  }
+
+  @Override
+  public int size() {
+    return delegate.size();
+  }
+
+  /**
+   * Function to write everything logged so far to disk and close the log
+   */
+  @Override
+  public void close() throws IOException {
+    wal.close();
+  }
+
+  /**
+   * Function to run an atomic update of the underlying store, which may append a log record,
+   * inside the snapshot gate
+   */
+  private ByteString apply(ByteString key, BiFunction<ByteString, ByteString, ByteString> function) {
+    gate.readLock().lock();
+    try {
+      return delegate.compute(key, function);
+    } finally {
+      gate.readLock().unlock();
+    }
+  }
+
+  /**
+   * Function to store a value and append its record, without waiting for the log
+   *
+   * @param previous Receives the previous value in its first slot
+   * @return The log position to wait for
+   */
+  private long logPut(ByteString key, ByteString value, ByteString[] previous) {
+    long[] position = new long[1];
+    apply(key, (k, old) -> {
+      previous[0] = old;
+      position[0] = wal.append(WriteAheadLog.OP_PUT, k, value);
+      return value;
+    });
+    return position[0];
+  }
+
+  /**
+   * Function to remove a key and append its record if it existed, without waiting for the log
+   *
+   * @param removed Receives the removed value, or null, in its first slot
+   * @return The log position to wait for, or 0 if nothing was logged
+   */
+  private long logRemove(ByteString key, ByteString[] removed) {
+    long[] position = new long[1];
+    removed[0] = null;
+    apply(key, (k, old) -> {
+      removed[0] = old;
+      if (old != null) {
+        position[0] = wal.append(WriteAheadLog.OP_DELETE, k, null);
+      }
+      return null;
+    });
+    return position[0];
+  }
+}
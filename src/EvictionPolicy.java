@@ -0,0 +1,312 @@
+/**
+ * Eviction Policy
+ *
+ * Decides which entry a bounded CacheKeyValueStore evicts when it is over budget. Every method
+ * runs in constant time and is only called while holding the cache's eviction lock, so the
+ * policies need no synchronization of their own. Three policies are available:
+ *
+ *  lru     - evicts the least recently used entry
+ *  lfu     - approximate LFU: looks at the few least recently used entries and evicts the one
+ *            seen least often according to a FrequencySketch
+ *  tinylfu - W-TinyLFU: new entries wait in a small LRU window, then must be seen more often
+ *            than the main region's eviction victim to be admitted into it. The main region is a
+ *            segmented LRU, so entries read again move to a protected segment
+ */
+
+public abstract class EvictionPolicy {
+
+  // Regions of the W-TinyLFU policy
+  private static final int WINDOW = 0;
+  private static final int PROBATION = 1;
+  private static final int PROTECTED = 2;
+
+  /**
+   * Function to create a policy by name
+   *
+   * @param name         lru, lfu or tinylfu
+   * @param maximum      The budget, in the same unit as the entry weights
+   * @param expectedKeys The number of entries expected to fit in the budget
+   * @return The policy
+   * @throws IllegalArgumentException If the name is not a known policy
+   */
+  public static EvictionPolicy create(String name, long maximum, int expectedKeys) {
+    if (name.equals("lru")) {
+      return new Lru();
+    } else if (name.equals("lfu")) {
+      return new SampledLfu(expectedKeys);
+    } else if (name.equals("tinylfu")) {
+      return new WindowTinyLfu(maximum, expectedKeys);
+    }
+    throw new IllegalArgumentException("Unknown eviction policy: " + name + " (expected lru, lfu or tinylfu)");
+  }
+
+  /**
+   * Function to start tracking a new entry. Its weight is already set
+   */
+  abstract void add(CacheNode node);
+
+  /**
+   * Function to record a read of an entry
+   */
+  abstract void access(CacheNode node);
+
+  /**
+   * Function to stop tracking an entry
+   */
+  abstract void remove(CacheNode node);
+
+  /**
+   * Function to pick the entry to evict and stop tracking it
+   *
+   * @return The entry to evict, or null if nothing is tracked
+   */
+  abstract CacheNode evict();
+
+  /**
+   * Function to change the weight of a tracked entry
+   */
+  void updateWeight(CacheNode node, int weight) {
+    node.weight = weight;
+  }
+
+  /**
+   * Function to tell the policy how many entries the cache holds, so it can size its structures
+   */
+  void ensureCapacity(int entries) {
+  }
+
+  /**
+   * Intrusive doubly linked list of nodes, most recent at the head.
+   */
+  static final class NodeList {
+    CacheNode head;
+    CacheNode tail;
+
+    void addFirst(CacheNode node) {
+      node.prev = null;
+      node.next = head;
+      if (head != null) {
+        head.prev = node;
+      } else {
+        tail = node;
+      }
+      head = node;
+    }
+
+    void unlink(CacheNode node) {
+      if (node.prev != null) {
+        node.prev.next = node.next;
+      } else {
+        head = node.next;
+      }
+      if (node.next != null) {
+        node.next.prev = node.prev;
+      } else {
+        tail = node.prev;
+      }
+      node.prev = null;
+      node.next = null;
+    }
+
+    void moveToFront(CacheNode node) {
+      if (head != node) {
+        unlink(node);
+        addFirst(node);
+      }
+    }
+  }
+
+  /**
+   * Least recently used.
+   */
+  private static final class Lru extends EvictionPolicy {
+    private final NodeList list = new NodeList();
+
+    @Override
+    void add(CacheNode node) {
+      list.addFirst(node);
+    }
+
+    @Override
+    void access(CacheNode node) {
+      list.moveToFront(node);
+    }
+
+    @Override
+    void remove(CacheNode node) {
+      list.unlink(node);
+    }
+
+    @Override
+    CacheNode evict() {
+      CacheNode victim = list.tail;
+      if (victim != null) list.unlink(victim);
+      return victim;
+    }
+  }
+
+  /**
+   * Approximate LFU: the least frequently used of the SAMPLES least recently used entries.
+   */
+  private static final class SampledLfu extends EvictionPolicy {
+    // Entries compared on each eviction
+    private static final int SAMPLES = 5;
+
+    private final NodeList list = new NodeList();
+    private final FrequencySketch sketch;
+
+    SampledLfu(int expectedKeys) {
+      sketch = new FrequencySketch(expectedKeys);
+    }
+
+    @Override
+    void add(CacheNode node) {
+      sketch.increment(node.hash);
+      list.addFirst(node);
+    }
+
+    @Override
+    void access(CacheNode node) {
+      sketch.increment(node.hash);
+      list.moveToFront(node);
+    }
+
+    @Override
+    void remove(CacheNode node) {
+      list.unlink(node);
+    }
+
+    @Override
+    CacheNode evict() {
+      CacheNode victim = list.tail;
+      if (victim == null) return null;
+      int lowest = sketch.frequency(victim.hash);
+      CacheNode node = victim.prev;
+      for (int i = 1; i < SAMPLES && node != null; i++, node = node.prev) {
+        int frequency = sketch.frequency(node.hash);
+        if (frequency < lowest) {
+          lowest = frequency;
+          victim = node;
+        }
+      }
+      list.unlink(victim);
+      return victim;
+    }
+
+    @Override
+    void ensureCapacity(int entries) {
+      if (entries > sketch.capacity()) sketch.ensureCapacity(entries);
+    }
+  }
+
+  /**
+   * W-TinyLFU: a 1% LRU window in front of a segmented LRU main region (20% probation, 80%
+   * protected), with admission into the main region decided by a FrequencySketch.
+   */
+  private static final class WindowTinyLfu extends EvictionPolicy {
+    private final FrequencySketch sketch;
+    private final NodeList window = new NodeList();
+    private final NodeList probation = new NodeList();
+    private final NodeList protectedList = new NodeList();
+
+    // Weight in the window and protected segment, and their limits
+    private long windowWeight;
+    private long protectedWeight;
+    private final long windowMax;
+    private final long protectedMax;
+
+    WindowTinyLfu(long maximum, int expectedKeys) {
+      sketch = new FrequencySketch(expectedKeys);
+      windowMax = Math.max(1, maximum / 100);
+      protectedMax = (maximum - windowMax) * 8 / 10;
+    }
+
+    @Override
+    void add(CacheNode node) {
+      sketch.increment(node.hash);
+      node.region = WINDOW;
+      window.addFirst(node);
+      windowWeight += node.weight;
+    }
+
+    @Override
+    void access(CacheNode node) {
+      sketch.increment(node.hash);
+      if (node.region == WINDOW) {
+        window.moveToFront(node);
+      } else if (node.region == PROTECTED) {
+        protectedList.moveToFront(node);
+      } else {
+        // A second hit in probation earns a place in the protected segment
+        probation.unlink(node);
+        node.region = PROTECTED;
+        protectedList.addFirst(node);
+        protectedWeight += node.weight;
+        while (protectedWeight > protectedMax && protectedList.tail != node) {
+          CacheNode demoted = protectedList.tail;
+          protectedList.unlink(demoted);
+          protectedWeight -= demoted.weight;
+          demoted.region = PROBATION;
+          probation.addFirst(demoted);
+        }
+      }
+    }
+
+    @Override
+    void remove(CacheNode node) {
+      listOf(node).unlink(node);
+      if (node.region == WINDOW) {
+        windowWeight -= node.weight;
+      } else if (node.region == PROTECTED) {
+        protectedWeight -= node.weight;
+      }
+    }
+
+    @Override
+    CacheNode evict() {
+      // Entries pushed out of the window move to probation, the newest of them as the candidate
+      CacheNode candidate = null;
+      while (windowWeight > windowMax && window.tail != null) {
+        CacheNode node = window.tail;
+        window.unlink(node);
+        windowWeight -= node.weight;
+        node.region = PROBATION;
+        probation.addFirst(node);
+        candidate = node;
+      }
+
+      CacheNode victim = probation.tail;
+      if (victim == null) victim = protectedList.tail;
+      if (victim == null) victim = window.tail;
+      if (victim == null) return null;
+
+      // The candidate is only admitted if it is used more often than the victim
+      CacheNode evicted = victim;
+      if (candidate != null && candidate != victim &&
+              sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+        evicted = candidate;
+      }
+      remove(evicted);
+      return evicted;
+    }
+
+    @Override
+    void updateWeight(CacheNode node, int weight) {
+      if (node.region == WINDOW) {
+        windowWeight += weight - node.weight;
+      } else if (node.region == PROTECTED) {
+        protectedWeight += weight - node.weight;
+      }
+      node.weight = weight;
+    }
+
+    @Override
+    void ensureCapacity(int entries) {
+      if (entries > sketch.capacity()) sketch.ensureCapacity(entries);
+    }
+
+    private NodeList listOf(CacheNode node) {
+      return node.region == WINDOW ? window : node.region == PROTECTED ? protectedList : probation;
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/**
+ * Frequency Sketch
+ *
+ * Count-min sketch estimating how often each key was seen recently, in a fixed amount of memory.
+ * Every key maps to one 4-bit counter in each of four rows; its estimate is the smallest of the
+ * four, which is never lower than the true count (up to the maximum of 15). The sixteen counters
+ * of a row segment share one long, so an update touches at most four words.
+ *
+ * Once the number of increments reaches ten times the width, every counter is halved. Old
+ * popularity fades this way, so keys that used to be hot don't stay "frequent" forever.
+ *
+ * Not thread-safe: callers serialize access.
+ */
+
+public class FrequencySketch {
+
+  // Seeds for the four row hashes
+  private static final long[] SEEDS = {
+          0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+  // Clears the top bit of every counter after the shift that halves them
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  // 16 counters of 4 bits per long
+  private long[] table;
+  private int tableMask;
+
+  // Increments since the last halving, and how many trigger the next one
+  private int additions;
+  private int sampleSize;
+
+  /**
+   * Creates a sketch.
+   *
+   * @param expectedKeys The number of distinct keys expected to be tracked at once
+   */
+  public FrequencySketch(int expectedKeys) {
+    ensureCapacity(expectedKeys);
+  }
+
+  /**
+   * Function to make room for more keys. Growing starts the sketch over, so call it rarely
+   *
+   * @param expectedKeys The number of distinct keys expected to be tracked at once
+   */
+  public void ensureCapacity(int expectedKeys) {
+    int size = Integer.highestOneBit(Math.max(16, Math.min(expectedKeys, 1 << 30)) * 2 - 1);
+    if (table != null && table.length >= size) return;
+    table = new long[size];
+    tableMask = size - 1;
+    sampleSize = 10 * size;
+    additions = 0;
+  }
+
+  /**
+   * Function to get the number of keys the sketch is sized for
+   */
+  public int capacity() {
+    return table.length;
+  }
+
+  /**
+   * Function to estimate how often a key was seen
+   *
+   * @param hash The key's hash code
+   * @return The estimated count, from 0 to 15
+   */
+  public int frequency(int hash) {
+    int frequency = 15;
+    for (int row = 0; row < 4; row++) {
+      long h = rowHash(hash, row);
+      frequency = Math.min(frequency, (int) ((table[index(h)] >>> shift(h, row)) & 0xF));
+    }
+    return frequency;
+  }
+
+  /**
+   * Function to record one occurrence of a key
+   *
+   * @param hash The key's hash code
+   */
+  public void increment(int hash) {
+    boolean added = false;
+    for (int row = 0; row < 4; row++) {
+      long h = rowHash(hash, row);
+      int index = index(h);
+      int shift = shift(h, row);
+      if (((table[index] >>> shift) & 0xF) != 0xF) {
+        table[index] += 1L << shift;
+        added = true;
+      }
+    }
+    if (added && ++additions >= sampleSize) {
+      halve();
+    }
+  }
+
+  /**
+   * Function to halve every counter
+   */
+  private void halve() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    additions /= 2;
+  }
+
+  private static long rowHash(int hash, int row) {
+    long h = (hash + SEEDS[row]) * SEEDS[row];
+    return h ^ (h >>> 32);
+  }
+
+  private int index(long h) {
+    return (int) (h >>> 8) & tableMask;
+  }
+
+  /**
+   * Function to pick which of the long's 16 counters a row uses. Each row gets its own quarter,
+   * so the rows of one key never share a counter
+   */
+  private static int shift(long h, int row) {
+    return (((int) h & 3) + (row << 2)) << 2;
+  }
+}
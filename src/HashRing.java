@@ -0,0 +1,243 @@
+/**
+ * Hash Ring
+ *
+ * Consistent-hash ring assigning every key to one node of a cluster. Each node is placed on a
+ * ring of 64-bit hashes at many points (virtual nodes), and a key belongs to the node of the
+ * first point at or after the key's hash. Adding or removing a node only moves the keys between
+ * its points and the ones before them, about 1/N of all keys, and the many points spread the
+ * keys evenly over the nodes.
+ *
+ * Nodes are named "host:port". Every client building a ring from the same nodes and number of
+ * virtual nodes assigns every key to the same node, whatever order the nodes are listed in. A
+ * ring never changes; withNode and withoutNode return a new one.
+ *
+ * Run it to see how keys spread over a set of nodes and how many move when a node is added:
+ *
+ *   java HashRing localhost:5001 localhost:5002 localhost:5003 --add=localhost:5004
+ */
+
+import java.util.*;
+
+public class HashRing {
+
+  // Points each node is placed at unless configured otherwise
+  public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+  // FNV-1a parameters, used to hash keys and points
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  // Nodes on the ring, sorted by name
+  private final List<String> nodes;
+
+  private final int virtualNodes;
+
+  // Points on the ring in ascending order, and the node each one belongs to
+  private final long[] points;
+  private final String[] owners;
+
+  /**
+   * Creates a ring.
+   *
+   * @param nodes        The nodes, as "host:port"
+   * @param virtualNodes The number of points each node is placed at
+   * @throws IllegalArgumentException If there are no nodes or virtualNodes is not positive
+   */
+  public HashRing(Collection<String> nodes, int virtualNodes) {
+    if (nodes.isEmpty()) {
+      throw new IllegalArgumentException("A ring needs at least one node");
+    }
+    if (virtualNodes < 1) {
+      throw new IllegalArgumentException("Invalid number of virtual nodes: " + virtualNodes);
+    }
+    TreeSet<String> sorted = new TreeSet<String>(nodes);
+    this.nodes = Collections.unmodifiableList(new ArrayList<String>(sorted));
+    this.virtualNodes = virtualNodes;
+
+    // Sort the points by hash; equal hashes are ordered by node name, so all rings agree
+    long[][] placed = new long[sorted.size() * virtualNodes][];
+    int count = 0;
+    for (int n = 0; n < this.nodes.size(); n++) {
+      for (int v = 0; v < virtualNodes; v++) {
+        placed[count++] = new long[] {hash(ByteString.of(this.nodes.get(n) + "#" + v)), n};
+      }
+    }
+    Arrays.sort(placed, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+    points = new long[count];
+    owners = new String[count];
+    for (int i = 0; i < count; i++) {
+      points[i] = placed[i][0];
+      owners[i] = this.nodes.get((int) placed[i][1]);
+    }
+  }
+
+  /**
+   * Creates a ring with DEFAULT_VIRTUAL_NODES points per node.
+   * @param nodes The nodes, as "host:port"
+   */
+  public HashRing(Collection<String> nodes) {
+    this(nodes, DEFAULT_VIRTUAL_NODES);
+  }
+
+  /**
+   * Function to find the node a key belongs to
+   *
+   * @param key The key
+   * @return The node, as "host:port"
+   */
+  public String nodeFor(ByteString key) {
+    long hash = hash(key);
+    // First point at or after the hash, wrapping around to the first point of the ring
+    int low = 0;
+    int high = points.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (points[mid] < hash) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return owners[low == points.length ? 0 : low];
+  }
+
+  /**
+   * Function to find the node a key belongs to
+   *
+   * @param key The key, hashed as UTF-8
+   * @return The node, as "host:port"
+   */
+  public String nodeFor(String key) {
+    return nodeFor(ByteString.of(key));
+  }
+
+  /**
+   * Function to get the nodes on the ring
+   * @return The nodes, sorted by name
+   */
+  public List<String> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * Function to get a ring with one more node
+   *
+   * @param node The node to add, as "host:port"
+   * @return The new ring, or this one if the node is already on it
+   */
+  public HashRing withNode(String node) {
+    if (nodes.contains(node)) return this;
+    List<String> changed = new ArrayList<String>(nodes);
+    changed.add(node);
+    return new HashRing(changed, virtualNodes);
+  }
+
+  /**
+   * Function to get a ring without one node
+   *
+   * @param node The node to remove, as "host:port"
+   * @return The new ring, or this one if the node is not on it
+   * @throws IllegalArgumentException If it is the last node
+   */
+  public HashRing withoutNode(String node) {
+    if (!nodes.contains(node)) return this;
+    List<String> changed = new ArrayList<String>(nodes);
+    changed.remove(node);
+    return new HashRing(changed, virtualNodes);
+  }
+
+  /**
+   * Function to hash bytes onto the ring: FNV-1a over the bytes, then the MurmurHash3 finalizer
+   * so that similar keys land far apart. ASCII keys hash as they did when keys were strings
+   *
+   * @param bytes The key or point name
+   * @return The position on the ring
+   */
+  static long hash(ByteString bytes) {
+    long hash = FNV_OFFSET;
+    for (int i = 0; i < bytes.length(); i++) {
+      hash = (hash ^ (bytes.byteAt(i) & 0xff)) * FNV_PRIME;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /**
+   * Function to split "host:port" into its parts
+   *
+   * @param node The node name
+   * @return The host and the port
+   * @throws IllegalArgumentException If the name is not "host:port"
+   */
+  public static String[] parseNode(String node) {
+    int colon = node.lastIndexOf(':');
+    if (colon <= 0 || colon == node.length() - 1) {
+      throw new IllegalArgumentException("Invalid node (expected host:port): " + node);
+    }
+    try {
+      Integer.parseInt(node.substring(colon + 1));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid node port: " + node);
+    }
+    return new String[] {node.substring(0, colon), node.substring(colon + 1)};
+  }
+
+  /**
+   * Prints how keys spread over the given nodes and, with --add or --remove, how many of them
+   * move to another node when the ring changes.
+   * CMD LINE ARGUMENTS:
+   *  String NODE...     The nodes, as host:port
+   *  --virtual-nodes=N  (optional) Points per node. Default 160
+   *  --keys=N           (optional) Number of keys to place. Default 100000
+   *  --add=NODE         (optional) Node to add to the ring
+   *  --remove=NODE      (optional) Node to remove from the ring
+   */
+  public static void main(String[] args) {
+    List<String> nodes = new ArrayList<String>();
+    Map<String, String> options = new HashMap<String, String>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (arg.startsWith("--") && eq > 2) {
+        options.put(arg.substring(2, eq), arg.substring(eq + 1));
+      } else {
+        nodes.add(arg);
+      }
+    }
+    HashRing ring;
+    int keys;
+    try {
+      for (String node : nodes) parseNode(node);
+      ring = new HashRing(nodes, Integer.parseInt(options.getOrDefault("virtual-nodes", "" + DEFAULT_VIRTUAL_NODES)));
+      keys = Integer.parseInt(options.getOrDefault("keys", "100000"));
+    } catch (IllegalArgumentException e) {
+      System.err.println("Provide Correct Arguments (host:port... [--virtual-nodes=N] [--keys=N] " +
+              "[--add=host:port] [--remove=host:port]): " + e.getMessage());
+      System.exit(-1);
+      return;
+    }
+
+    HashRing changed = ring;
+    if (options.containsKey("add")) changed = changed.withNode(options.get("add"));
+    if (options.containsKey("remove")) changed = changed.withoutNode(options.get("remove"));
+
+    Map<String, Integer> counts = new TreeMap<String, Integer>();
+    int moved = 0;
+    for (int i = 0; i < keys; i++) {
+      String key = "key" + i;
+      String owner = changed.nodeFor(key);
+      counts.merge(owner, 1, Integer::sum);
+      if (!owner.equals(ring.nodeFor(key))) moved++;
+    }
+    for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+      System.out.printf(Locale.ROOT, "%-24s %8d keys (%.1f%%)%n", entry.getKey(), entry.getValue(),
+              100.0 * entry.getValue() / keys);
+    }
+    if (changed != ring) {
+      System.out.printf(Locale.ROOT, "%d of %d keys moved (%.1f%%)%n", moved, keys, 100.0 * moved / keys);
+    }
+  }
+}
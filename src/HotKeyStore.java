@@ -0,0 +1,365 @@
+/**
+ * Hot Key Store
+ *
+ * KeyValueStore decorator finding the keys read most often (see HotKeys) and caching their
+ * values, so the reads of a few very popular keys don't pile up on the store's shared structures:
+ * the segment lock an off-heap key lives under, or the entry every core reads a heap key through.
+ * The hottest keys and the cache's hits are reported by the STATS command.
+ *
+ * The cache is replicated: it holds one small map per stripe of threads, and a thread only reads
+ * the stripe its thread id maps to, so the threads serving a hot key each read their own copy.
+ * Only the hottest keys are cached, so each stripe holds at most a few dozen entries.
+ *
+ * A cached value never outlives a write, and neither reads nor fills take a lock. Every key maps to
+ * a stamp, which each write of the key bumps once it is applied and before it is acknowledged. A
+ * fill reads the stamp before it reads the value with a plain get, and caches the value with that
+ * stamp; a cached value is only used while its stamp is still the key's. A fill racing a write
+ * thereby either reads the stamp after the bump, and so the new value, or caches a value that no
+ * read takes once the write is acknowledged. Writes also remove their key from the cache, to free
+ * it. Stripes are filled first to last and emptied last to first, so the key missing from the
+ * first stripe means it is missing from all of them, and writes of keys that aren't cached only
+ * cost that one lookup besides the bump.
+ *
+ * The read path only counts and looks up: a background thread ages the counts once a second and
+ * uncaches the keys that stop being hot. Reads that push a key out of the hottest ones only queue
+ * it for that thread.
+ *
+ * A store that drops entries by itself, the bounded cache, only gets detection: its expiry and
+ * evictions would not empty the read cache.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+
+public class HotKeyStore implements KeyValueStore, Metrics.Source {
+
+  // Stripes of the read cache: the next power of two at or above the CPU count, at most 64
+  private static final int STRIPES =
+          Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+  // Stamps keys map to, each alone on its cache line, so a write only disturbs the readers of
+  // the keys sharing its stamp
+  private static final int STAMPS = 1024;
+  private static final int STAMP_SPACING = 8;
+
+  // Store holding the data
+  private final KeyValueStore delegate;
+
+  // Finds the hottest keys
+  private final HotKeys hotKeys;
+
+  // Values of the hottest keys, one copy per stripe, or null without a read cache
+  private final Stripe[] stripes;
+
+  // Bumped by every write of the keys mapping to each, or null without a read cache
+  private final AtomicLongArray stamps;
+
+  // Reads answered from the read cache, and values cached
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder fills = new LongAdder();
+
+  // Keys no longer hot, waiting for the maintenance thread to uncache them
+  private final ConcurrentLinkedQueue<ByteString> demoted = new ConcurrentLinkedQueue<ByteString>();
+
+  // Set when keys were queued, so the maintenance thread is only woken once per batch
+  private final AtomicBoolean drainRequested = new AtomicBoolean();
+  private final Thread maintainer;
+
+  /**
+   * Creates a store tracking its hottest keys and starts its maintenance thread.
+   *
+   * @param delegate  The store holding the data
+   * @param capacity  The number of hottest keys to track and cache, at least 1
+   * @param readCache True to cache the values of the hottest keys, false to only find them
+   */
+  public HotKeyStore(KeyValueStore delegate, int capacity, boolean readCache) {
+    this.delegate = delegate;
+    this.hotKeys = new HotKeys(capacity, readCache ? this::demote : key -> { });
+    if (readCache) {
+      stripes = new Stripe[STRIPES];
+      for (int i = 0; i < STRIPES; i++) {
+        stripes[i] = new Stripe();
+      }
+      stamps = new AtomicLongArray(STAMPS * STAMP_SPACING);
+    } else {
+      stripes = null;
+      stamps = null;
+    }
+
+    maintainer = new Thread(this::runMaintenance, "hot-keys");
+    maintainer.setDaemon(true);
+    maintainer.start();
+  }
+
+  @Override
+  public ByteString get(ByteString key) {
+    hotKeys.record(key);
+    if (stripes == null) return delegate.get(key);
+    ByteString value = cached(key);
+    if (value != null) {
+      hits.increment();
+      return value;
+    }
+    return hotKeys.isHot(key) ? fill(key) : delegate.get(key);
+  }
+
+  @Override
+  public int readValue(ByteString key, ByteBuffer dst) {
+    hotKeys.record(key);
+    if (stripes == null) return delegate.readValue(key, dst);
+    ByteString value = cached(key);
+    if (value != null) {
+      hits.increment();
+    } else if (hotKeys.isHot(key)) {
+      value = fill(key);
+      if (value == null) return -1;
+    } else {
+      return delegate.readValue(key, dst);
+    }
+    int length = value.length();
+    if (length <= dst.remaining()) {
+      value.writeTo(dst);
+    }
+    return length;
+  }
+
+  @Override
+  public ByteString put(ByteString key, ByteString value) {
+    ByteString previous = delegate.put(key, value);
+    invalidate(key);
+    return previous;
+  }
+
+  @Override
+  public ByteString put(ByteString key, ByteString value, long ttlMillis) {
+    ByteString previous = delegate.put(key, value, ttlMillis);
+    invalidate(key);
+    return previous;
+  }
+
+  @Override
+  public ByteString putIfAbsent(ByteString key, ByteString value) {
+    ByteString existing = delegate.putIfAbsent(key, value);
+    if (existing == null) invalidate(key);
+    return existing;
+  }
+
+  @Override
+  public ByteString remove(ByteString key) {
+    ByteString removed = delegate.remove(key);
+    invalidate(key);
+    return removed;
+  }
+
+  @Override
+  public ByteString compute(ByteString key, BiFunction<ByteString, ByteString, ByteString> function) {
+    ByteString updated = delegate.compute(key, function);
+    invalidate(key);
+    return updated;
+  }
+
+  @Override
+  public ByteString[] getAll(ByteString[] keys) {
+    ByteString[] values = new ByteString[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      values[i] = get(keys[i]);
+    }
+    return values;
+  }
+
+  @Override
+  public void putAll(ByteString[] keys, ByteString[] values) {
+    delegate.putAll(keys, values);
+    for (ByteString key : keys) {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public ByteString[] removeAll(ByteString[] keys) {
+    ByteString[] removed = delegate.removeAll(keys);
+    for (ByteString key : keys) {
+      invalidate(key);
+    }
+    return removed;
+  }
+
+  @Override
+  public void forEach(BiConsumer<ByteString, ByteString> action) {
+    delegate.forEach(action);
+  }
+
+  @Override
+  public void scan(ByteString from, ByteString to, BiPredicate<ByteString, ByteString> visitor) {
+    delegate.scan(from, to, visitor);
+  }
+
+  @Override
+  public int size() {
+    return delegate.size();
+  }
+
+  @Override
+  public void appendText(StringBuilder text) {
+    if (stripes != null) {
+      text.append("hot_cache_hits:").append(hits.sum()).append('\n');
+      text.append("hot_cache_fills:").append(fills.sum()).append('\n');
+    }
+    int rank = 1;
+    for (Map.Entry<ByteString, Long> entry : hotKeys.snapshot()) {
+      // The key goes last, so the commas and colons it may hold don't get in the way
+      text.append("hot_key_").append(rank++).append(":reads_per_sec=").append(entry.getValue())
+              .append(",key=").append(printable(entry.getKey())).append('\n');
+    }
+  }
+
+  @Override
+  public void appendPrometheus(StringBuilder text) {
+    // The keys themselves are left out: as labels, every key that was ever hot would become a series
+    if (stripes == null) return;
+    Metrics.counter(text, "kvstore_hot_cache_hits_total", "Reads answered from the hot-key read cache.", hits.sum());
+    Metrics.counter(text, "kvstore_hot_cache_fills_total", "Values copied into the hot-key read cache.", fills.sum());
+  }
+
+  /**
+   * Function to look a key up in the calling thread's stripe
+   *
+   * @param key The key
+   * @return The cached value, or null if it is not cached or a write has come after it
+   */
+  private ByteString cached(ByteString key) {
+    Cached cached = stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].values.get(key);
+    if (cached == null || cached.stamp != stamps.get(stampIndex(key))) return null;
+    return cached.value;
+  }
+
+  /**
+   * Function to read a hot key from the store and cache its value in every stripe
+   *
+   * @param key The key
+   * @return The value, or null if the key does not exist
+   */
+  private ByteString fill(ByteString key) {
+    // Read before the value, so a write the value misses has bumped it after
+    long stamp = stamps.get(stampIndex(key));
+    ByteString value = delegate.get(key);
+    if (value == null) return null;
+    Cached cached = new Cached(value, stamp);
+    for (Stripe stripe : stripes) {
+      stripe.values.put(key, cached);
+    }
+    fills.increment();
+    // Demoted meanwhile, and maybe uncached before it was filled
+    if (!hotKeys.isHot(key)) uncache(key);
+    return value;
+  }
+
+  /**
+   * Function to retire the cached value of a key after a write
+   *
+   * @param key The key written
+   */
+  private void invalidate(ByteString key) {
+    if (stripes == null) return;
+    stamps.incrementAndGet(stampIndex(key));
+    uncache(key);
+  }
+
+  /**
+   * Function to queue a key that is no longer hot to be uncached, waking the maintenance thread
+   *
+   * @param key The key
+   */
+  private void demote(ByteString key) {
+    demoted.add(key);
+    if (drainRequested.compareAndSet(false, true)) {
+      LockSupport.unpark(maintainer);
+    }
+  }
+
+  /**
+   * Function run by the maintenance thread: ages the counts every HotKeys.AGE_NANOS, and
+   * uncaches the keys queued meanwhile as soon as they are queued
+   */
+  private void runMaintenance() {
+    long nextAge = System.nanoTime() + HotKeys.AGE_NANOS;
+    while (true) {
+      LockSupport.parkNanos(this, nextAge - System.nanoTime());
+      drainRequested.set(false);
+      try {
+        if (System.nanoTime() - nextAge >= 0) {
+          hotKeys.age();
+          nextAge = System.nanoTime() + HotKeys.AGE_NANOS;
+        }
+        ByteString key;
+        while ((key = demoted.poll()) != null) {
+          uncache(key);
+        }
+      } catch (RuntimeException e) {
+        Log.log(Log.ERROR, "Hot key maintenance failed: " + e);
+      }
+    }
+  }
+
+  /**
+   * Function to drop a key from the read cache
+   *
+   * @param key The key
+   */
+  private void uncache(ByteString key) {
+    if (!stripes[0].values.containsKey(key)) return;
+    for (int i = STRIPES - 1; i >= 0; i--) {
+      stripes[i].values.remove(key);
+    }
+  }
+
+  private static int stampIndex(ByteString key) {
+    int hash = key.hashCode();
+    return ((hash ^ (hash >>> 16)) & (STAMPS - 1)) * STAMP_SPACING;
+  }
+
+  /**
+   * The read cache of one stripe of threads
+   */
+  private static final class Stripe {
+    final ConcurrentHashMap<ByteString, Cached> values = new ConcurrentHashMap<ByteString, Cached>();
+  }
+
+  /**
+   * A cached value and the stamp of its key when it was read
+   */
+  private static final class Cached {
+    final ByteString value;
+    final long stamp;
+
+    Cached(ByteString value, long stamp) {
+      this.value = value;
+      this.stamp = stamp;
+    }
+  }
+
+  /**
+   * Function to show a key in STATS: printable ASCII as it is, other bytes as \xNN
+   */
+  private static String printable(ByteString key) {
+    StringBuilder text = new StringBuilder(key.length());
+    for (int i = 0; i < key.length(); i++) {
+      int b = key.byteAt(i) & 0xFF;
+      if (b >= 0x20 && b < 0x7F && b != '\\') {
+        text.append((char) b);
+      } else {
+        text.append(String.format("\\x%02x", b));
+      }
+    }
+    return text.toString();
+  }
+}
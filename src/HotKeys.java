@@ -0,0 +1,185 @@
+/**
+ * Hot Keys
+ *
+ * Finds the keys read most often right now, for the STATS command and for HotKeyStore, which
+ * caches their values. Reads are counted in a count-min sketch: every key maps to one counter in
+ * each of four rows, and its estimate is the smallest of the four, which is never lower than its
+ * true count. Every counter is halved once a second, so the estimates follow the current traffic
+ * and a key that stops being read soon stops being hot. The halving is left to the owner, which
+ * calls age from a background thread, so no read ever pays for it.
+ *
+ * Every thread counts into the same sketch, so counting must not turn into the contention it is
+ * meant to find: only one read in SAMPLE, picked at random, is counted, with atomic adds and no
+ * lock. Unlike FrequencySketch, which sizes the cache's admission decisions, the counters are
+ * full ints, so the estimates of very hot keys don't saturate.
+ *
+ * The capacity keys with the highest estimates are kept in a small map. A counted key only takes
+ * the lock guarding its membership once its estimate beats the lowest one in the map, which only
+ * happens while the hot set is changing; the estimates of keys already in it are updated in place.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+
+public class HotKeys {
+
+  // One read in SAMPLE is counted
+  static final int SAMPLE = 8;
+
+  // Counters per row of the sketch
+  private static final int WIDTH = 4096;
+
+  // Seeds for the four row hashes
+  private static final long[] SEEDS = {
+          0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+  // Time between two halvings of the counters
+  static final long AGE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  // The four rows of the sketch, one after the other
+  private final AtomicIntegerArray counters = new AtomicIntegerArray(SEEDS.length * WIDTH);
+
+  // System.nanoTime() of the last halving
+  private volatile long lastAged = System.nanoTime();
+
+  // The hottest keys and their estimates, at most capacity of them
+  private final ConcurrentHashMap<ByteString, AtomicInteger> top = new ConcurrentHashMap<ByteString, AtomicInteger>();
+  private final int capacity;
+
+  // Lowest estimate in top once it is full, 0 before. Only a key beating it can join
+  private volatile int floor;
+
+  // Told about every key leaving top
+  private final Consumer<ByteString> demoted;
+
+  /**
+   * Creates a detector.
+   *
+   * @param capacity The number of hottest keys to track, at least 1
+   * @param demoted  Receives every key that stops being one of the hottest, on the thread that
+   *                 counted a read or aged the counters, so it should only take note of it
+   */
+  public HotKeys(int capacity, Consumer<ByteString> demoted) {
+    this.capacity = capacity;
+    this.demoted = demoted;
+  }
+
+  /**
+   * Function to count a read of a key. Only one call in SAMPLE does any work
+   *
+   * @param key The key read
+   */
+  public void record(ByteString key) {
+    if (ThreadLocalRandom.current().nextInt(SAMPLE) != 0) return;
+    int estimate = Integer.MAX_VALUE;
+    int hash = key.hashCode();
+    for (int row = 0; row < SEEDS.length; row++) {
+      estimate = Math.min(estimate, counters.incrementAndGet(index(hash, row)));
+    }
+    AtomicInteger current = top.get(key);
+    if (current != null) {
+      current.set(estimate);
+    } else if (estimate > floor) {
+      offer(key, estimate);
+    }
+  }
+
+  /**
+   * Function to check whether a key is one of the hottest
+   *
+   * @param key The key
+   * @return True if it is
+   */
+  public boolean isHot(ByteString key) {
+    return top.containsKey(key);
+  }
+
+  /**
+   * Function to get the hottest keys with their estimated rates, hottest first. Taken while
+   * reads are counted, so it is only a moment's view
+   *
+   * @return The keys, each with its estimated reads per second
+   */
+  public List<Map.Entry<ByteString, Long>> snapshot() {
+    // Right after a halving a steady rate has filled the counters for one second, and just
+    // before the next for two
+    double seconds = 1 + Math.min(1.0, (double) (System.nanoTime() - lastAged) / AGE_NANOS);
+    List<Map.Entry<ByteString, Long>> keys = new ArrayList<Map.Entry<ByteString, Long>>();
+    for (Map.Entry<ByteString, AtomicInteger> entry : top.entrySet()) {
+      keys.add(Map.entry(entry.getKey(), Math.round(entry.getValue().get() * SAMPLE / seconds)));
+    }
+    keys.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+    return keys;
+  }
+
+  /**
+   * Function to let a key into the hottest ones, pushing out the coolest if they are full
+   */
+  private void offer(ByteString key, int estimate) {
+    ByteString coolest;
+    synchronized (this) {
+      if (top.containsKey(key)) return;
+      if (top.size() < capacity) {
+        top.put(key, new AtomicInteger(estimate));
+        if (top.size() == capacity) floor = lowest().getValue().get();
+        return;
+      }
+      Map.Entry<ByteString, AtomicInteger> lowest = lowest();
+      if (estimate <= lowest.getValue().get()) {
+        // The floor was stale: the hottest keys have been read more since it was set
+        floor = lowest.getValue().get();
+        return;
+      }
+      coolest = lowest.getKey();
+      top.remove(coolest);
+      top.put(key, new AtomicInteger(estimate));
+      floor = lowest().getValue().get();
+    }
+    demoted.accept(coolest);
+  }
+
+  /**
+   * Function to halve every counter, and drop the hottest keys that are no longer read. To be
+   * called every AGE_NANOS, by one thread
+   */
+  public void age() {
+    for (int i = 0; i < counters.length(); i++) {
+      counters.getAndUpdate(i, count -> count >>> 1);
+    }
+    List<ByteString> cooled = new ArrayList<ByteString>();
+    synchronized (this) {
+      for (Map.Entry<ByteString, AtomicInteger> entry : top.entrySet()) {
+        int estimate = entry.getValue().get() >>> 1;
+        entry.getValue().set(estimate);
+        if (estimate == 0) cooled.add(entry.getKey());
+      }
+      top.keySet().removeAll(cooled);
+      floor = top.size() < capacity ? 0 : lowest().getValue().get();
+    }
+    lastAged = System.nanoTime();
+    cooled.forEach(demoted);
+  }
+
+  /**
+   * Function to find the hottest key with the lowest estimate. Top must not be empty
+   */
+  private Map.Entry<ByteString, AtomicInteger> lowest() {
+    Map.Entry<ByteString, AtomicInteger> lowest = null;
+    for (Map.Entry<ByteString, AtomicInteger> entry : top.entrySet()) {
+      if (lowest == null || entry.getValue().get() < lowest.getValue().get()) lowest = entry;
+    }
+    return lowest;
+  }
+
+  private static int index(int hash, int row) {
+    long h = (hash + SEEDS[row]) * SEEDS[row];
+    return row * WIDTH + ((int) (h ^ (h >>> 32)) & (WIDTH - 1));
+  }
+}
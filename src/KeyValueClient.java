@@ -0,0 +1,853 @@
+/**
+ * Key-Value Client
+ *
+ * Thread-safe client library for applications embedding access to a TCPServer. It keeps a pool
+ * of persistent pipelined connections (PipelinedTCPClient) that all the application's threads
+ * share: each request goes to the open connection with the fewest requests in flight, and a
+ * new connection is only opened, up to the pool size, while every open one is busy. So a call
+ * never pays for a TCP handshake once the pool is warm.
+ *
+ * Every operation comes in a synchronous form, which blocks until the response arrives or the
+ * request timeout passes, and an asynchronous form returning a CompletableFuture. A background
+ * health check sends STATS on every connection; a connection that fails it, or has failed on
+ * its own, is closed and replaced by the next request that needs one.
+ *
+ * Keys and values are bytes. The methods taking strings encode them as UTF-8 and decode values
+ * the same way, so an application may mix both forms. Reads and writes ask for lean responses,
+ * which carry no message, so the server never converts keys or values to text for them.
+ *
+ * INCR, CAS and APPEND are offered as incr, compareAndSet and append. Each runs as one atomic
+ * step on the server, so they take one round trip and concurrent clients never lose updates.
+ *
+ * Values of up to Protocol.MAX_VALUE_SIZE bytes can be moved with putStream and getStream, which
+ * send them in chunks and never hold the whole value (see ChunkedTransfer).
+ *
+ * A server started with --index=ordered can also be read in key order with scan, for the keys
+ * starting with a prefix, and range, for the keys between two bounds. Both fetch one page of
+ * at most PAGE_SIZE pairs at a time and hand each pair to a visitor, so a scan of any size
+ * holds only one page.
+ */
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+public class KeyValueClient implements Closeable {
+
+  // Default number of connections in the pool
+  public static final int DEFAULT_POOL_SIZE = 4;
+
+  // Default connect and request timeouts, in milliseconds
+  public static final int DEFAULT_CONNECT_TIMEOUT_MS = 1000;
+  public static final int DEFAULT_REQUEST_TIMEOUT_MS = 1000;
+
+  // Default time between health checks of the connections, in milliseconds
+  public static final int DEFAULT_HEALTH_CHECK_MS = 5000;
+
+  // Most key-value pairs asked for in one page of a scan or range
+  public static final int PAGE_SIZE = 256;
+
+  // Opcodes of the lean requests the key-value methods send
+  private static final byte LEAN_GET = (byte) (Protocol.OP_GET | Protocol.FLAG_LEAN);
+  private static final byte LEAN_PUT = (byte) (Protocol.OP_PUT | Protocol.FLAG_LEAN);
+  private static final byte LEAN_DELETE = (byte) (Protocol.OP_DELETE | Protocol.FLAG_LEAN);
+
+  private final String host;
+  private final int port;
+
+  // How long connecting may take, and how long a request waits for its response, in milliseconds
+  private final int connectTimeoutMs;
+  private final int requestTimeoutMs;
+
+  // The pooled connections; an empty slot, or one holding a failed connection, is opened when
+  // needed
+  private final AtomicReferenceArray<PipelinedTCPClient> connections;
+
+  // Locks of the slots, so only one thread opens each connection
+  private final Object[] slotLocks;
+
+  // Runs the health checks
+  private final ScheduledExecutorService healthChecker;
+
+  private volatile boolean closed;
+
+  /**
+   * Creates a client for a server. The first connection is opened right away, so an unreachable
+   * server is reported here; the others are opened when needed.
+   *
+   * @param host             The server IP address or host name
+   * @param port             The server port
+   * @param poolSize         The most connections kept open
+   * @param connectTimeoutMs How long connecting may take, in milliseconds
+   * @param requestTimeoutMs How long a request waits for its response, in milliseconds
+   * @param healthCheckMs    Time between health checks of the connections, in milliseconds, or 0
+   *                         for none
+   * @throws IllegalArgumentException If the pool size or a timeout is not positive
+   * @throws IOException              If the server can't be reached
+   */
+  public KeyValueClient(String host, int port, int poolSize, int connectTimeoutMs, int requestTimeoutMs,
+                        int healthCheckMs) throws IOException {
+    if (poolSize < 1 || connectTimeoutMs < 1 || requestTimeoutMs < 1 || healthCheckMs < 0) {
+      throw new IllegalArgumentException("Pool size and timeouts must be positive");
+    }
+    this.host = host;
+    this.port = port;
+    this.connectTimeoutMs = connectTimeoutMs;
+    this.requestTimeoutMs = requestTimeoutMs;
+    this.connections = new AtomicReferenceArray<PipelinedTCPClient>(poolSize);
+    this.slotLocks = new Object[poolSize];
+    for (int i = 0; i < poolSize; i++) {
+      slotLocks[i] = new Object();
+    }
+    open(0);
+
+    if (healthCheckMs > 0) {
+      healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "kv-client-health-check");
+        thread.setDaemon(true);
+        return thread;
+      });
+      healthChecker.scheduleWithFixedDelay(this::checkHealth, healthCheckMs, healthCheckMs, TimeUnit.MILLISECONDS);
+    } else {
+      healthChecker = null;
+    }
+  }
+
+  /**
+   * Creates a client for a server with the default pool size, timeouts and health checks.
+   *
+   * @param host The server IP address or host name
+   * @param port The server port
+   * @throws IOException If the server can't be reached
+   */
+  public KeyValueClient(String host, int port) throws IOException {
+    this(host, port, DEFAULT_POOL_SIZE, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_REQUEST_TIMEOUT_MS,
+            DEFAULT_HEALTH_CHECK_MS);
+  }
+
+  /**
+   * Function to read a key
+   *
+   * @param key The key to read
+   * @return The value, or null if the key does not exist
+   * @throws IOException If the server can't be reached, doesn't answer in time or fails the read
+   */
+  public byte[] get(byte[] key) throws IOException {
+    return await(getAsync(key));
+  }
+
+  /**
+   * Function to read a key
+   *
+   * @param key The key to read
+   * @return The value, or null if the key does not exist
+   * @throws IOException If the server can't be reached, doesn't answer in time or fails the read
+   */
+  public String get(String key) throws IOException {
+    return await(getAsync(key));
+  }
+
+  /**
+   * Function to store a key-value pair
+   *
+   * @param key   The key to store
+   * @param value The value associated with the key
+   * @throws IOException If the server can't be reached, doesn't answer in time or rejects the
+   *                     write
+   */
+  public void put(byte[] key, byte[] value) throws IOException {
+    await(putAsync(key, value));
+  }
+
+  /**
+   * Function to store a key-value pair
+   *
+   * @param key   The key to store
+   * @param value The value associated with the key
+   * @throws IOException If the server can't be reached, doesn't answer in time or rejects the
+   *                     write
+   */
+  public void put(String key, String value) throws IOException {
+    await(putAsync(key, value));
+  }
+
+  /**
+   * Function to remove a key
+   *
+   * @param key The key to remove
+   * @return True if the key existed
+   * @throws IOException If the server can't be reached, doesn't answer in time or fails the
+   *                     delete
+   */
+  public boolean delete(byte[] key) throws IOException {
+    return await(deleteAsync(key));
+  }
+
+  /**
+   * Function to remove a key
+   *
+   * @param key The key to remove
+   * @return True if the key existed
+   * @throws IOException If the server can't be reached, doesn't answer in time or fails the
+   *                     delete
+   */
+  public boolean delete(String key) throws IOException {
+    return await(deleteAsync(key));
+  }
+
+  /**
+   * Function to read a key without waiting for the response
+   *
+   * @param key The key to read
+   * @return A future completed with the value, or null if the key does not exist
+   */
+  public CompletableFuture<byte[]> getAsync(byte[] key) {
+    return read(ByteString.copyOf(key)).thenApply(value -> value == null ? null : value.toByteArray());
+  }
+
+  /**
+   * Function to read a key without waiting for the response
+   *
+   * @param key The key to read
+   * @return A future completed with the value, decoded from UTF-8, or null if the key does not
+   *         exist
+   */
+  public CompletableFuture<String> getAsync(String key) {
+    return read(ByteString.of(key)).thenApply(value -> value == null ? null : value.toString());
+  }
+
+  /**
+   * Function to store a key-value pair without waiting for the response
+   *
+   * @param key   The key to store
+   * @param value The value associated with the key
+   * @return A future completed when the server has stored the pair, or exceptionally with an
+   *         IOException if it rejected the write
+   */
+  public CompletableFuture<Void> putAsync(byte[] key, byte[] value) {
+    return write(ByteString.copyOf(key), ByteString.copyOf(value));
+  }
+
+  /**
+   * Function to store a key-value pair without waiting for the response
+   *
+   * @param key   The key to store
+   * @param value The value associated with the key, stored as UTF-8
+   * @return A future completed when the server has stored the pair, or exceptionally with an
+   *         IOException if it rejected the write
+   */
+  public CompletableFuture<Void> putAsync(String key, String value) {
+    return write(ByteString.of(key), ByteString.of(value));
+  }
+
+  /**
+   * Function to remove a key without waiting for the response
+   *
+   * @param key The key to remove
+   * @return A future completed with true if the key existed
+   */
+  public CompletableFuture<Boolean> deleteAsync(byte[] key) {
+    return remove(ByteString.copyOf(key));
+  }
+
+  /**
+   * Function to remove a key without waiting for the response
+   *
+   * @param key The key to remove
+   * @return A future completed with true if the key existed
+   */
+  public CompletableFuture<Boolean> deleteAsync(String key) {
+    return remove(ByteString.of(key));
+  }
+
+  /**
+   * Function to add to a counter in one atomic step on the server, so concurrent increments are
+   * never lost. The counter is stored as a decimal integer and starts at 0
+   *
+   * @param key   The key of the counter
+   * @param delta The amount to add, negative to decrement
+   * @return The new value of the counter
+   * @throws IOException If the server can't be reached, doesn't answer in time, or the value is
+   *                     not an integer or would overflow
+   */
+  public long incr(byte[] key, long delta) throws IOException {
+    return await(incrAsync(key, delta));
+  }
+
+  /**
+   * Function to add to a counter in one atomic step on the server, so concurrent increments are
+   * never lost. The counter is stored as a decimal integer and starts at 0
+   *
+   * @param key   The key of the counter
+   * @param delta The amount to add, negative to decrement
+   * @return The new value of the counter
+   * @throws IOException If the server can't be reached, doesn't answer in time, or the value is
+   *                     not an integer or would overflow
+   */
+  public long incr(String key, long delta) throws IOException {
+    return await(incrAsync(key, delta));
+  }
+
+  /**
+   * Function to replace a value only if the key still holds the expected one, in one atomic step
+   * on the server
+   *
+   * @param key      The key to update
+   * @param expected The value the key must hold, or null if it must not exist
+   * @param value    The new value
+   * @return True if the value was replaced, false if the key held another value
+   * @throws IOException If the server can't be reached, doesn't answer in time or rejects the
+   *                     write
+   */
+  public boolean compareAndSet(byte[] key, byte[] expected, byte[] value) throws IOException {
+    return await(compareAndSetAsync(key, expected, value));
+  }
+
+  /**
+   * Function to replace a value only if the key still holds the expected one, in one atomic step
+   * on the server
+   *
+   * @param key      The key to update
+   * @param expected The value the key must hold, or null if it must not exist
+   * @param value    The new value
+   * @return True if the value was replaced, false if the key held another value
+   * @throws IOException If the server can't be reached, doesn't answer in time or rejects the
+   *                     write
+   */
+  public boolean compareAndSet(String key, String expected, String value) throws IOException {
+    return await(compareAndSetAsync(key, expected, value));
+  }
+
+  /**
+   * Function to add bytes to the end of a value in one atomic step on the server, storing them
+   * if the key does not exist
+   *
+   * @param key   The key to update
+   * @param value The bytes to append
+   * @throws IOException If the server can't be reached, doesn't answer in time or rejects the
+   *                     write
+   */
+  public void append(byte[] key, byte[] value) throws IOException {
+    await(appendAsync(key, value));
+  }
+
+  /**
+   * Function to add text to the end of a value in one atomic step on the server, storing it if
+   * the key does not exist
+   *
+   * @param key   The key to update
+   * @param value The text to append
+   * @throws IOException If the server can't be reached, doesn't answer in time or rejects the
+   *                     write
+   */
+  public void append(String key, String value) throws IOException {
+    await(appendAsync(key, value));
+  }
+
+  /**
+   * Function to add to a counter without waiting for the response
+   *
+   * @param key   The key of the counter
+   * @param delta The amount to add, negative to decrement
+   * @return A future completed with the new value of the counter
+   */
+  public CompletableFuture<Long> incrAsync(byte[] key, long delta) {
+    return increment(ByteString.copyOf(key), delta);
+  }
+
+  /**
+   * Function to add to a counter without waiting for the response
+   *
+   * @param key   The key of the counter
+   * @param delta The amount to add, negative to decrement
+   * @return A future completed with the new value of the counter
+   */
+  public CompletableFuture<Long> incrAsync(String key, long delta) {
+    return increment(ByteString.of(key), delta);
+  }
+
+  /**
+   * Function to replace a value only if the key still holds the expected one, without waiting
+   * for the response
+   *
+   * @param key      The key to update
+   * @param expected The value the key must hold, or null if it must not exist
+   * @param value    The new value
+   * @return A future completed with true if the value was replaced
+   */
+  public CompletableFuture<Boolean> compareAndSetAsync(byte[] key, byte[] expected, byte[] value) {
+    return swap(ByteString.copyOf(key), expected == null ? null : ByteString.copyOf(expected), ByteString.copyOf(value));
+  }
+
+  /**
+   * Function to replace a value only if the key still holds the expected one, without waiting
+   * for the response
+   *
+   * @param key      The key to update
+   * @param expected The value the key must hold, or null if it must not exist
+   * @param value    The new value
+   * @return A future completed with true if the value was replaced
+   */
+  public CompletableFuture<Boolean> compareAndSetAsync(String key, String expected, String value) {
+    return swap(ByteString.of(key), expected == null ? null : ByteString.of(expected), ByteString.of(value));
+  }
+
+  /**
+   * Function to add bytes to the end of a value without waiting for the response
+   *
+   * @param key   The key to update
+   * @param value The bytes to append
+   * @return A future completed once the bytes are appended
+   */
+  public CompletableFuture<Void> appendAsync(byte[] key, byte[] value) {
+    return extend(ByteString.copyOf(key), ByteString.copyOf(value));
+  }
+
+  /**
+   * Function to add text to the end of a value without waiting for the response
+   *
+   * @param key   The key to update
+   * @param value The text to append
+   * @return A future completed once the text is appended
+   */
+  public CompletableFuture<Void> appendAsync(String key, String value) {
+    return extend(ByteString.of(key), ByteString.of(value));
+  }
+
+  /**
+   * Function to store a value of up to Protocol.MAX_VALUE_SIZE bytes, read from a stream and sent
+   * in chunks over one pooled connection. Blocks until the value is stored
+   *
+   * @param key   The key to store
+   * @param value The value, read until its end
+   * @throws IOException If the value can't be read, or the server fails or rejects the value
+   */
+  public void putStream(byte[] key, InputStream value) throws IOException {
+    ChunkedTransfer.upload(chunkSender(), ByteString.copyOf(key), value);
+  }
+
+  /**
+   * Function to store a value of up to Protocol.MAX_VALUE_SIZE bytes, read from a stream and sent
+   * in chunks over one pooled connection. Blocks until the value is stored
+   *
+   * @param key   The key to store
+   * @param value The value, read until its end
+   * @throws IOException If the value can't be read, or the server fails or rejects the value
+   */
+  public void putStream(String key, InputStream value) throws IOException {
+    ChunkedTransfer.upload(chunkSender(), ByteString.of(key), value);
+  }
+
+  /**
+   * Function to read a value of any size in chunks, writing it to a stream as they arrive.
+   * Blocks until the whole value is written
+   *
+   * @param key The key to read
+   * @param out Receives the value
+   * @return True if the value was written, false if the server answered with an error, such as
+   *         a missing key
+   * @throws IOException If the value can't be written, or the server fails
+   */
+  public boolean getStream(byte[] key, OutputStream out) throws IOException {
+    return ChunkedTransfer.download(chunkSender(), ByteString.copyOf(key), out);
+  }
+
+  /**
+   * Function to read a value of any size in chunks, writing it to a stream as they arrive.
+   * Blocks until the whole value is written
+   *
+   * @param key The key to read
+   * @param out Receives the value
+   * @return True if the value was written, false if the server answered with an error, such as
+   *         a missing key
+   * @throws IOException If the value can't be written, or the server fails
+   */
+  public boolean getStream(String key, OutputStream out) throws IOException {
+    return ChunkedTransfer.download(chunkSender(), ByteString.of(key), out);
+  }
+
+  /**
+   * Function to read every key starting with a prefix, in ascending byte order. Blocks until the
+   * last page has been visited. Needs a server started with --index=ordered
+   *
+   * @param prefix  The prefix, empty for every key
+   * @param visitor Called with each key and its value
+   * @throws IOException If the server can't be reached, doesn't answer in time or has no
+   *                     ordered index
+   */
+  public void scan(byte[] prefix, BiConsumer<byte[], byte[]> visitor) throws IOException {
+    pages(Protocol.OP_SCAN, ByteString.copyOf(prefix), ByteString.EMPTY,
+            (key, value) -> visitor.accept(key.toByteArray(), value.toByteArray()));
+  }
+
+  /**
+   * Function to read every key starting with a prefix, in ascending byte order. Blocks until the
+   * last page has been visited. Needs a server started with --index=ordered
+   *
+   * @param prefix  The prefix, empty for every key
+   * @param visitor Called with each key and its value
+   * @throws IOException If the server can't be reached, doesn't answer in time or has no
+   *                     ordered index
+   */
+  public void scan(String prefix, BiConsumer<String, String> visitor) throws IOException {
+    pages(Protocol.OP_SCAN, ByteString.of(prefix), ByteString.EMPTY,
+            (key, value) -> visitor.accept(key.toString(), value.toString()));
+  }
+
+  /**
+   * Function to read every key from one key up to another, in ascending byte order. Blocks
+   * until the last page has been visited. Needs a server started with --index=ordered
+   *
+   * @param from    The first key
+   * @param to      The key to stop before, or null for no end
+   * @param visitor Called with each key and its value
+   * @throws IOException If the server can't be reached, doesn't answer in time or has no
+   *                     ordered index
+   */
+  public void range(byte[] from, byte[] to, BiConsumer<byte[], byte[]> visitor) throws IOException {
+    pages(Protocol.OP_RANGE, ByteString.copyOf(from), to == null ? ByteString.EMPTY : ByteString.copyOf(to),
+            (key, value) -> visitor.accept(key.toByteArray(), value.toByteArray()));
+  }
+
+  /**
+   * Function to read every key from one key up to another, in ascending byte order. Blocks
+   * until the last page has been visited. Needs a server started with --index=ordered
+   *
+   * @param from    The first key
+   * @param to      The key to stop before, or null for no end
+   * @param visitor Called with each key and its value
+   * @throws IOException If the server can't be reached, doesn't answer in time or has no
+   *                     ordered index
+   */
+  public void range(String from, String to, BiConsumer<String, String> visitor) throws IOException {
+    pages(Protocol.OP_RANGE, ByteString.of(from), to == null ? ByteString.EMPTY : ByteString.of(to),
+            (key, value) -> visitor.accept(key.toString(), value.toString()));
+  }
+
+  /**
+   * Function to send any request on a pooled connection
+   *
+   * @param opcode The command, one of the Protocol.OP_* constants
+   * @param key    The key, or ByteString.EMPTY
+   * @param value  The value, or ByteString.EMPTY
+   * @return A future completed with the response, or exceptionally if the server can't be
+   *         reached or doesn't answer within the request timeout
+   */
+  public CompletableFuture<Response> send(byte opcode, ByteString key, ByteString value) {
+    return call(connection -> connection.send(opcode, key, value));
+  }
+
+  /**
+   * Function to send any request on a pooled connection
+   *
+   * @param opcode The command, one of the Protocol.OP_* constants
+   * @param key    The key, or an empty string
+   * @param value  The value, or an empty string
+   * @return A future completed with the response, or exceptionally if the server can't be
+   *         reached or doesn't answer within the request timeout
+   */
+  public CompletableFuture<Response> send(byte opcode, String key, String value) {
+    return send(opcode, ByteString.of(key), ByteString.of(value));
+  }
+
+  /**
+   * Function to get the number of connections currently open
+   * @return The number of open connections
+   */
+  public int openConnections() {
+    int open = 0;
+    for (int i = 0; i < connections.length(); i++) {
+      PipelinedTCPClient connection = connections.get(i);
+      if (connection != null && connection.isOpen()) open++;
+    }
+    return open;
+  }
+
+  /**
+   * Closes every connection and stops the health checks. Requests still in flight fail.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    if (healthChecker != null) {
+      healthChecker.shutdownNow();
+    }
+    for (int i = 0; i < connections.length(); i++) {
+      synchronized (slotLocks[i]) {
+        PipelinedTCPClient connection = connections.getAndSet(i, null);
+        if (connection != null) {
+          connection.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Function to pick the connection for a request: the open one with the fewest requests in
+   * flight, or a new one if all of them are busy and the pool has room
+   *
+   * @return An open connection
+   * @throws IOException If the client is closed or no connection can be opened
+   */
+  private PipelinedTCPClient acquire() throws IOException {
+    if (closed) throw new IOException("Client is closed");
+    PipelinedTCPClient best = null;
+    int bestInFlight = Integer.MAX_VALUE;
+    int free = -1;
+    for (int i = 0; i < connections.length(); i++) {
+      PipelinedTCPClient connection = connections.get(i);
+      if (connection == null || !connection.isOpen()) {
+        if (free < 0) free = i;
+        continue;
+      }
+      int inFlight = connection.inFlight();
+      if (inFlight < bestInFlight) {
+        best = connection;
+        bestInFlight = inFlight;
+      }
+    }
+    if (free >= 0 && bestInFlight > 0) {
+      try {
+        return open(free);
+      } catch (IOException e) {
+        // A busy connection still beats none
+        if (best == null) throw e;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Function to pick a connection for all the chunks of one transfer, since the server tells
+   * streams apart by connection
+   */
+  private ChunkedTransfer.Sender chunkSender() throws IOException {
+    PipelinedTCPClient connection = acquire();
+    return (opcode, key, streamId, chunkIndex, chunk, last) -> connection
+            .sendChunk(opcode, key, streamId, chunkIndex, chunk, last)
+            .orTimeout(requestTimeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Function to follow the pages of a SCAN or RANGE, asking for the next one once a page has
+   * been visited
+   *
+   * @param opcode  Protocol.OP_SCAN or OP_RANGE
+   * @param key     The prefix of a SCAN, or the first key of a RANGE
+   * @param value   Empty for a SCAN, or the key a RANGE stops before
+   * @param visitor Called with each key and its value
+   */
+  private void pages(byte opcode, ByteString key, ByteString value, BiConsumer<ByteString, ByteString> visitor)
+          throws IOException {
+    while (true) {
+      ByteString from = key;
+      ByteString to = value;
+      Response page = await(call(connection -> connection.sendScan(opcode, from, to, PAGE_SIZE)));
+      if (!page.isPage()) {
+        throw new IOException(page.message);
+      }
+      for (int i = 0; i < page.keys.length; i++) {
+        visitor.accept(page.keys[i], page.values[i]);
+      }
+      if (page.value == null) return;
+      // A SCAN keeps its prefix and starts at next; a RANGE starts at next and keeps its end
+      if (opcode == Protocol.OP_SCAN) {
+        value = page.value;
+      } else {
+        key = page.value;
+      }
+    }
+  }
+
+  /**
+   * Function to send a lean GET, whose response carries no message, so neither side converts
+   * anything to text
+   *
+   * @return A future completed with the value, or null if the key does not exist
+   */
+  private CompletableFuture<ByteString> read(ByteString key) {
+    return send(LEAN_GET, key, ByteString.EMPTY).thenApply(response -> {
+      if (!response.isOk()) {
+        failed(response);
+        return null;
+      }
+      return response.value;
+    });
+  }
+
+  /**
+   * Function to send a lean PUT
+   */
+  private CompletableFuture<Void> write(ByteString key, ByteString value) {
+    return send(LEAN_PUT, key, value).thenApply(response -> {
+      if (!response.isOk()) {
+        throw new CompletionException(new IOException(response.message));
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Function to send a lean DELETE
+   *
+   * @return A future completed with true if the key existed
+   */
+  private CompletableFuture<Boolean> remove(ByteString key) {
+    return send(LEAN_DELETE, key, ByteString.EMPTY).thenApply(response -> {
+      if (!response.isOk()) {
+        failed(response);
+        return false;
+      }
+      return true;
+    });
+  }
+
+  /**
+   * Function to send an INCR
+   *
+   * @return A future completed with the new value of the counter
+   */
+  private CompletableFuture<Long> increment(ByteString key, long delta) {
+    return call(connection -> connection.incr(key, delta)).thenApply(response -> {
+      if (!response.isOk()) {
+        throw new CompletionException(new IOException(response.message));
+      }
+      return Long.parseLong(response.value.toString());
+    });
+  }
+
+  /**
+   * Function to send a CAS
+   *
+   * @return A future completed with true if the value was replaced, false on a mismatch
+   */
+  private CompletableFuture<Boolean> swap(ByteString key, ByteString expected, ByteString value) {
+    return call(connection -> connection.cas(key, expected, value)).thenApply(response -> {
+      if (!response.isOk() && !response.isMismatch()) {
+        throw new CompletionException(new IOException(response.message));
+      }
+      return response.isOk();
+    });
+  }
+
+  /**
+   * Function to send an APPEND
+   */
+  private CompletableFuture<Void> extend(ByteString key, ByteString value) {
+    return send(Protocol.OP_APPEND, key, value).thenApply(response -> {
+      if (!response.isOk()) {
+        throw new CompletionException(new IOException(response.message));
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Function to send a request on a pooled connection, failing it once the request timeout
+   * passes
+   *
+   * @param request Sends the request on the connection
+   * @return A future completed with the response
+   */
+  private CompletableFuture<Response> call(Function<PipelinedTCPClient, CompletableFuture<Response>> request) {
+    try {
+      return request.apply(acquire()).orTimeout(requestTimeoutMs, TimeUnit.MILLISECONDS);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Function to fail a request whose lean error response has a message, since only a missing
+   * key is answered without one
+   */
+  private static void failed(Response response) {
+    if (!response.message.isEmpty()) {
+      throw new CompletionException(new IOException(response.message));
+    }
+  }
+
+  /**
+   * Function to open the connection of a slot, unless another thread just did
+   *
+   * @param slot The slot
+   * @return The slot's open connection
+   * @throws IOException If the server can't be reached
+   */
+  private PipelinedTCPClient open(int slot) throws IOException {
+    synchronized (slotLocks[slot]) {
+      PipelinedTCPClient connection = connections.get(slot);
+      if (connection == null || !connection.isOpen()) {
+        try {
+          connection = new PipelinedTCPClient(host, port, connectTimeoutMs);
+        } catch (IOException e) {
+          throw new IOException("Cannot connect to " + host + ":" + port + ": " + e.getMessage(), e);
+        }
+        connections.set(slot, connection);
+      }
+      return connection;
+    }
+  }
+
+  /**
+   * Function run by the health checker: closes every connection that doesn't answer STATS
+   * within the request timeout, so the next request opens a fresh one
+   */
+  private void checkHealth() {
+    for (int i = 0; i < connections.length(); i++) {
+      PipelinedTCPClient connection = connections.get(i);
+      if (connection == null) continue;
+      boolean healthy = connection.isOpen();
+      if (healthy) {
+        try {
+          healthy = connection.stats().get(requestTimeoutMs, TimeUnit.MILLISECONDS).isOk();
+        } catch (ExecutionException | TimeoutException e) {
+          healthy = false;
+        } catch (InterruptedException e) {
+          // Shut down by close
+          return;
+        }
+      }
+      if (!healthy) {
+        synchronized (slotLocks[i]) {
+          if (connections.compareAndSet(i, connection, null)) {
+            try {
+              connection.close();
+            } catch (IOException e) {
+              // The connection is dropped either way
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Function to wait for an asynchronous call, turning its failure into an IOException
+   */
+  private static <T> T await(CompletableFuture<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the server");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof TimeoutException) {
+        throw new SocketTimeoutException("Server did not answer in time");
+      }
+      throw new IOException(cause);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/**
+ * Key-Value Store
+ *
+ * Storage engine used by the TCP and UDP servers. Every operation is a single atomic lookup, so
+ * callers never need to check containsKey before a get or remove, and implementations must be
+ * safe to call from any number of threads at once.
+ *
+ * Keys and values are opaque byte strings; the store never looks inside them.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+
+public interface KeyValueStore {
+
+  /**
+   * Function to read the value of a key
+   *
+   * @param key The key to read
+   * @return The value, or null if the key does not exist
+   */
+  ByteString get(ByteString key);
+
+  /**
+   * Function to copy the value of a key into a buffer, without creating any objects
+   *
+   * @param key The key to read
+   * @param dst The buffer to write into, at its position. The value is only written, and the
+   *            position advanced, if it fits in the remaining space
+   * @return The length of the value in bytes, or -1 if the key does not exist
+   */
+  default int readValue(ByteString key, ByteBuffer dst) {
+    ByteString value = get(key);
+    if (value == null) return -1;
+    int length = value.length();
+    if (length <= dst.remaining()) {
+      value.writeTo(dst);
+    }
+    return length;
+  }
+
+  /**
+   * Function to store a value, replacing any existing one
+   *
+   * @param key   The key to store
+   * @param value The value associated with the key
+   * @return The previous value, or null if the key did not exist
+   */
+  ByteString put(ByteString key, ByteString value);
+
+  /**
+   * Function to store a value that expires after a while, replacing any existing one. Only
+   * stores that track expiry support it.
+   *
+   * @param key       The key to store
+   * @param value     The value associated with the key
+   * @param ttlMillis How long the key lives, in milliseconds
+   * @return The previous value, or null if the key did not exist
+   * @throws UnsupportedOperationException If the store does not support TTLs
+   * @throws IllegalArgumentException      If the TTL is not positive
+   */
+  default ByteString put(ByteString key, ByteString value, long ttlMillis) {
+    throw new UnsupportedOperationException("TTLs need a store started with --max-entries or --max-memory");
+  }
+
+  /**
+   * Function to store a value only if the key does not exist yet
+   *
+   * @param key   The key to store
+   * @param value The value associated with the key
+   * @return The existing value, or null if the value was stored
+   */
+  ByteString putIfAbsent(ByteString key, ByteString value);
+
+  /**
+   * Function to remove a key
+   *
+   * @param key The key to remove
+   * @return The removed value, or null if the key did not exist
+   */
+  ByteString remove(ByteString key);
+
+  /**
+   * Function to atomically replace the value of a key with a value computed from the old one.
+   * No other update to the same key can happen while the function runs, so it must be short.
+   *
+   * @param key      The key to update
+   * @param function Receives the key and the current value (null if absent) and returns the
+   *                 new value, or null to remove the key
+   * @return The new value, or null if the key is now absent
+   */
+  ByteString compute(ByteString key, BiFunction<ByteString, ByteString, ByteString> function);
+
+  /**
+   * Function to read many keys in one pass
+   *
+   * @param keys The keys to read
+   * @return The value of each key, in the same order, with null where a key does not exist
+   */
+  default ByteString[] getAll(ByteString[] keys) {
+    ByteString[] values = new ByteString[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      values[i] = get(keys[i]);
+    }
+    return values;
+  }
+
+  /**
+   * Function to store many key-value pairs in one pass. Each pair is stored atomically, but
+   * other clients may see some pairs of the batch before the rest.
+   *
+   * @param keys   The keys to store
+   * @param values The value for each key, in the same order
+   */
+  default void putAll(ByteString[] keys, ByteString[] values) {
+    for (int i = 0; i < keys.length; i++) {
+      put(keys[i], values[i]);
+    }
+  }
+
+  /**
+   * Function to remove many keys in one pass
+   *
+   * @param keys The keys to remove
+   * @return The removed value of each key, in the same order, with null where a key did not exist
+   */
+  default ByteString[] removeAll(ByteString[] keys) {
+    ByteString[] removed = new ByteString[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      removed[i] = remove(keys[i]);
+    }
+    return removed;
+  }
+
+  /**
+   * Function to visit every key-value pair without blocking writers. Changes made while the
+   * iteration runs may or may not be seen, but every pair that is not changed is seen exactly once.
+   *
+   * @param action Receives each key and its value
+   */
+  void forEach(BiConsumer<ByteString, ByteString> action);
+
+  /**
+   * Function to visit keys in ascending byte order, with their values, without blocking
+   * writers. Changes made while the scan runs may or may not be seen. Only stores with an
+   * ordered index support it.
+   *
+   * @param from    The first key to visit, if it exists
+   * @param to      The key to stop before, or null to go on to the last key
+   * @param visitor Receives each key and its value, and returns false to stop the scan
+   * @throws UnsupportedOperationException If the store has no ordered index
+   */
+  default void scan(ByteString from, ByteString to, BiPredicate<ByteString, ByteString> visitor) {
+    throw new UnsupportedOperationException("SCAN and RANGE need a store started with --index=ordered");
+  }
+
+  /**
+   * Function to get the number of keys in the store
+   * @return The number of keys
+   */
+  int size();
+}
@@ -0,0 +1,259 @@
+/**
+ * Latency Histogram
+ *
+ * Records latencies in nanoseconds with a fixed relative precision, in the layout of
+ * HdrHistogram: values are grouped into buckets covering powers of two, and each bucket is split
+ * into 128 linear sub-buckets, so every recorded value is kept to within 1/128 (under 1%) of its
+ * true value whatever its magnitude. Recording is a few shifts and an array increment, and the
+ * memory used is fixed (about 36KB for values up to an hour), so a histogram can take every
+ * sample of a long run instead of a sampled subset.
+ *
+ * A histogram is not thread-safe: give each thread its own and merge them with add, or record
+ * into a LatencyRecorder and take snapshots of it.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+
+  // Sub-buckets per bucket are 2^(SUB_BUCKET_HALF_COUNT_MAGNITUDE + 1)
+  private static final int SUB_BUCKET_HALF_COUNT_MAGNITUDE = 7;
+
+  private static final int SUB_BUCKET_COUNT = 1 << (SUB_BUCKET_HALF_COUNT_MAGNITUDE + 1);
+
+  private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+  private static final long SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+
+  // Largest value that can be recorded; larger values are recorded as this one
+  public static final long HIGHEST_TRACKABLE_VALUE = 3_600_000_000_000L;
+
+  // Shared by all histograms: every one covers the same range
+  static final int COUNTS_LENGTH = countsLength();
+
+  private final long[] counts = new long[COUNTS_LENGTH];
+
+  private long totalCount;
+
+  private long minValue = Long.MAX_VALUE;
+
+  private long maxValue;
+
+  // Sum of the recorded values, for the mean
+  private double total;
+
+  /**
+   * Function to record a value
+   *
+   * @param value The value in nanoseconds. Negative values are recorded as 0
+   */
+  public void record(long value) {
+    long clamped = clamp(value);
+    counts[countsIndex(clamped)]++;
+    totalCount++;
+    total += clamped;
+    minValue = Math.min(minValue, clamped);
+    maxValue = Math.max(maxValue, clamped);
+  }
+
+  /**
+   * Function to record a value measured by a client that waits for each response before sending
+   * the next request at a fixed interval, correcting for coordinated omission: while a request
+   * took longer than the interval, the requests that should have been sent in the meantime were
+   * not, and their latencies would otherwise be missing from the histogram. They are recorded
+   * as value - interval, value - 2 * interval and so on, which is what they would have seen.
+   *
+   * @param value    The measured value in nanoseconds
+   * @param interval The intended time between requests in nanoseconds, or 0 for no correction
+   */
+  public void recordWithExpectedInterval(long value, long interval) {
+    record(value);
+    if (interval <= 0) return;
+    for (long missing = value - interval; missing >= interval; missing -= interval) {
+      record(missing);
+    }
+  }
+
+  /**
+   * Function to add the values recorded by another histogram to this one
+   * @param other The histogram to add
+   */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < COUNTS_LENGTH; i++) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+    total += other.total;
+    minValue = Math.min(minValue, other.minValue);
+    maxValue = Math.max(maxValue, other.maxValue);
+  }
+
+  /**
+   * Function to add counts recorded elsewhere in the same layout, such as by a LatencyRecorder.
+   * The smallest and largest values are then only known to the histogram precision.
+   *
+   * @param source At least COUNTS_LENGTH counters, indexed like countsIndex
+   */
+  void addCounts(AtomicLongArray source) {
+    for (int i = 0; i < COUNTS_LENGTH; i++) {
+      long count = source.get(i);
+      if (count == 0) continue;
+      long value = valueFromIndex(i);
+      counts[i] += count;
+      totalCount += count;
+      total += (double) value * count;
+      minValue = Math.min(minValue, value);
+      maxValue = Math.max(maxValue, highestEquivalentValue(value));
+    }
+  }
+
+  /**
+   * Function to remove every recorded value
+   */
+  public void reset() {
+    Arrays.fill(counts, 0);
+    totalCount = 0;
+    total = 0;
+    minValue = Long.MAX_VALUE;
+    maxValue = 0;
+  }
+
+  /**
+   * Function to get the number of recorded values
+   * @return The number of values
+   */
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  /**
+   * Function to get the smallest recorded value
+   * @return The smallest value, or 0 if nothing was recorded
+   */
+  public long getMin() {
+    return totalCount == 0 ? 0 : minValue;
+  }
+
+  /**
+   * Function to get the largest recorded value
+   * @return The largest value, or 0 if nothing was recorded
+   */
+  public long getMax() {
+    return maxValue;
+  }
+
+  /**
+   * Function to get the mean of the recorded values
+   * @return The mean, or 0 if nothing was recorded
+   */
+  public double getMean() {
+    return totalCount == 0 ? 0 : total / totalCount;
+  }
+
+  /**
+   * Function to get the value at a percentile: the largest value that percentile of the recorded
+   * values are less than or equal to, within the histogram precision
+   *
+   * @param percentile The percentile, from 0 to 100
+   * @return The value, or 0 if nothing was recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (totalCount == 0) return 0;
+    if (percentile >= 100) return maxValue;
+    long countAtPercentile = Math.max(1, (long) (percentile / 100 * totalCount + 0.5));
+    long seen = 0;
+    for (int i = 0; i < COUNTS_LENGTH; i++) {
+      seen += counts[i];
+      if (seen >= countAtPercentile) {
+        // Report the top of the sub-bucket, but never above what was actually recorded
+        return Math.min(highestEquivalentValue(valueFromIndex(i)), maxValue);
+      }
+    }
+    return maxValue;
+  }
+
+  /**
+   * Function to count the recorded values less than or equal to a value, within the histogram
+   * precision (every value counted by the same counter as the limit is included)
+   *
+   * @param value The limit in nanoseconds
+   * @return The number of values
+   */
+  public long getCountAtOrBelow(long value) {
+    int last = countsIndex(clamp(value));
+    long count = 0;
+    for (int i = 0; i <= last; i++) {
+      count += counts[i];
+    }
+    return count;
+  }
+
+  /**
+   * Function to bring a value into the range the histogram covers
+   */
+  static long clamp(long value) {
+    return Math.max(0, Math.min(value, HIGHEST_TRACKABLE_VALUE));
+  }
+
+  /**
+   * Function to find the counter of a value
+   *
+   * @param value A value between 0 and HIGHEST_TRACKABLE_VALUE
+   * @return The index into counts
+   */
+  static int countsIndex(long value) {
+    int bucketIndex = bucketIndex(value);
+    int subBucketIndex = (int) (value >>> bucketIndex);
+    return ((bucketIndex + 1) << SUB_BUCKET_HALF_COUNT_MAGNITUDE) + (subBucketIndex - SUB_BUCKET_HALF_COUNT);
+  }
+
+  /**
+   * Function to find the power-of-two bucket of a value. Bucket 0 holds the values below
+   * SUB_BUCKET_COUNT at full resolution, every following bucket covers twice the range of the
+   * one before at half the resolution.
+   */
+  private static int bucketIndex(long value) {
+    return 64 - SUB_BUCKET_HALF_COUNT_MAGNITUDE - 1 - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK);
+  }
+
+  /**
+   * Function to get the lowest value a counter stands for
+   *
+   * @param index The index into counts
+   * @return The value
+   */
+  private static long valueFromIndex(int index) {
+    int bucketIndex = (index >> SUB_BUCKET_HALF_COUNT_MAGNITUDE) - 1;
+    int subBucketIndex = (index & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+    if (bucketIndex < 0) {
+      subBucketIndex -= SUB_BUCKET_HALF_COUNT;
+      bucketIndex = 0;
+    }
+    return (long) subBucketIndex << bucketIndex;
+  }
+
+  /**
+   * Function to get the highest value counted by the same counter as a value
+   *
+   * @param value The value
+   * @return The highest equivalent value
+   */
+  private static long highestEquivalentValue(long value) {
+    return value + (1L << bucketIndex(value)) - 1;
+  }
+
+  /**
+   * Function to compute the number of counters needed to cover values up to
+   * HIGHEST_TRACKABLE_VALUE
+   */
+  private static int countsLength() {
+    long smallestUntrackableValue = SUB_BUCKET_COUNT;
+    int bucketsNeeded = 1;
+    while (smallestUntrackableValue <= HIGHEST_TRACKABLE_VALUE) {
+      smallestUntrackableValue <<= 1;
+      bucketsNeeded++;
+    }
+    return (bucketsNeeded + 1) * SUB_BUCKET_HALF_COUNT;
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ * Latency Recorder
+ *
+ * Lock-free latency histogram that any number of threads record into at once, for the server
+ * metrics. It uses the layout of LatencyHistogram, striped like a LongAdder: each thread
+ * increments the counters of the stripe its thread id maps to, so request threads rarely write
+ * to the same cache lines, and recording is one atomic increment plus one atomic add for the
+ * sum. Stripes are only allocated once a thread maps to them. A snapshot adds the stripes up into
+ * an ordinary LatencyHistogram; it is taken while recording goes on, so it may miss values being
+ * recorded at that moment.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class LatencyRecorder {
+
+  // Stripes: the next power of two at or above the CPU count, at most 16
+  private static final int STRIPES =
+          Math.min(16, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+  // Slot after the counters holding the sum of the values recorded into a stripe
+  private static final int SUM = LatencyHistogram.COUNTS_LENGTH;
+
+  private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<AtomicLongArray>(STRIPES);
+
+  /**
+   * Function to record a value
+   *
+   * @param value The value in nanoseconds. Negative values are recorded as 0
+   */
+  public void record(long value) {
+    long clamped = LatencyHistogram.clamp(value);
+    AtomicLongArray stripe = stripe((int) Thread.currentThread().getId() & (STRIPES - 1));
+    stripe.getAndIncrement(LatencyHistogram.countsIndex(clamped));
+    stripe.getAndAdd(SUM, clamped);
+  }
+
+  /**
+   * Function to get the sum of the recorded values
+   * @return The sum in nanoseconds
+   */
+  public long getSum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      AtomicLongArray stripe = stripes.get(i);
+      if (stripe != null) sum += stripe.get(SUM);
+    }
+    return sum;
+  }
+
+  /**
+   * Function to copy the values recorded so far into a histogram
+   * @return A new histogram holding the recorded values
+   */
+  public LatencyHistogram snapshot() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < STRIPES; i++) {
+      AtomicLongArray stripe = stripes.get(i);
+      if (stripe != null) histogram.addCounts(stripe);
+    }
+    return histogram;
+  }
+
+  /**
+   * Function to get a stripe, allocating it on first use
+   *
+   * @param index The stripe index
+   * @return The stripe's counters and sum
+   */
+  private AtomicLongArray stripe(int index) {
+    AtomicLongArray stripe = stripes.get(index);
+    if (stripe == null) {
+      stripes.compareAndSet(index, null, new AtomicLongArray(SUM + 1));
+      stripe = stripes.get(index);
+    }
+    return stripe;
+  }
+}
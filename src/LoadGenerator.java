@@ -0,0 +1,653 @@
+/**
+ * Load Generator
+ *
+ * Drives a TCP or UDP server with generated GET and PUT traffic and measures the latency of every
+ * request. Each of --connections connections is served by its own thread, and the run can be:
+ *
+ *  closed loop (--mode=closed): every thread sends a request and waits for the response before
+ *   sending the next, as fast as the server answers or paced to --rate requests per second in
+ *   total. A paced closed loop stops sending while the server stalls, so the requests it should
+ *   have sent meanwhile are recorded with the latency they would have seen (the coordinated
+ *   omission correction of LatencyHistogram.recordWithExpectedInterval).
+ *  open loop (--mode=open): every thread sends on a fixed schedule adding up to --rate requests per
+ *   second, whether or not earlier responses have arrived, like independent users would. Latency
+ *   is measured from the time a request was scheduled to be sent, so time a request spends
+ *   queued behind a slow one counts against it.
+ *
+ * Both the corrected latency and the plain service time (from actually sending to the response)
+ * are reported. Keys are drawn uniformly or from a Zipfian distribution over --keys keys, in which
+ * key:0 is the hottest. Progress is printed to stderr every second, and the results are written as
+ * JSON to stdout or to --output.
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadGenerator {
+
+  // Percentiles reported for every histogram
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+  // Key-value pairs written per MPUT while preloading, at most
+  private static final int PRELOAD_BATCH = 100;
+
+  // MPUT requests in flight while preloading
+  private static final int PRELOAD_WINDOW = 64;
+
+  // Times a preload batch is sent before giving up
+  private static final int PRELOAD_ATTEMPTS = 5;
+
+  // Settings of the run
+  private final String host;
+  private final int port;
+  private final String transport;
+  private final boolean openLoop;
+  private final int connections;
+  private final long rate;
+  private final long durationNanos;
+  private final long warmupNanos;
+  private final KeyChooser keyChooser;
+  private final int readPercent;
+  private final ByteString value;
+  private final boolean lean;
+  private final boolean preload;
+  private final int timeoutMs;
+  private final int maxInFlight;
+  private final ServerConfig config;
+
+  // Time between two requests of one thread in nanoseconds, or 0 when not paced
+  private final long interval;
+
+  // Requests completed so far, warmup included, for the progress lines
+  private final LongAdder completed = new LongAdder();
+
+  // When sending starts, when measuring starts and when sending stops (System.nanoTime)
+  private long startTime;
+  private long measureStart;
+  private long endTime;
+
+  /**
+   * Main entry point of the load generator.
+   * CMD LINE ARGUMENTS:
+   *  String SERVER_IP_ADDRESS
+   *  String SERVER_PORT
+   *  --transport=T       (optional) tcp (pipelined binary protocol) or udp. Default tcp
+   *  --mode=M            (optional) closed or open. Default closed
+   *  --connections=N     (optional) Connections, each driven by its own thread. Default 16
+   *  --rate=N            (optional) Requests per second in total; required in open loop. Default:
+   *                      as fast as possible
+   *  --duration=S        (optional) Seconds measured. Default 30
+   *  --warmup=S          (optional) Seconds run before measuring. Default 5
+   *  --keys=N            (optional) Number of distinct keys. Default 100000
+   *  --distribution=D    (optional) uniform or zipfian. Default uniform
+   *  --zipf-exponent=X   (optional) Skew of the zipfian distribution, between 0 and 1. Default 0.99
+   *  --read-percent=N    (optional) Percentage of requests that are GETs; the rest are PUTs.
+   *                      Default 90
+   *  --value-size=N      (optional) Length of the values written. Default 100
+   *  --lean=B            (optional) true to ask for lean GET responses. Default false
+   *  --preload=B         (optional) false to skip writing every key before the run. Default true
+   *  --timeout-ms=N      (optional) A request without a response after N ms fails. Default 1000
+   *  --max-in-flight=N   (optional) Open loop: requests in flight per connection, at most.
+   *                      Default 1000
+   *  --output=FILE       (optional) Write the JSON results to FILE. Default: stdout
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    LoadGenerator generator = null;
+    try {
+      if (args.length < 2) {
+        throw new IllegalArgumentException("Server IP and port are required");
+      }
+      generator = new LoadGenerator(args[0], new ServerConfig(Arrays.copyOfRange(args, 1, args.length)));
+    } catch (IllegalArgumentException e) {
+      System.err.println("Provide Correct Arguments (IP Port [--transport=tcp|udp] [--mode=closed|open] " +
+              "[--connections=N] [--rate=N] [--duration=S] [--warmup=S] [--keys=N] " +
+              "[--distribution=uniform|zipfian] [--zipf-exponent=X] [--read-percent=N] [--value-size=N] " +
+              "[--lean=true|false] [--preload=true|false] [--timeout-ms=N] [--max-in-flight=N] " +
+              "[--output=FILE]): " + e.getMessage());
+      System.exit(-1);
+    }
+
+    String json = generator.run();
+    String output = generator.config.getString("output", null);
+    if (output == null) {
+      System.out.println(json);
+    } else {
+      Files.write(Paths.get(output), json.getBytes(StandardCharsets.UTF_8));
+      System.err.println("Results written to " + output);
+    }
+  }
+
+  /**
+   * Creates a load generator from its command-line options.
+   *
+   * @param host   The server IP address or host name
+   * @param config The server port followed by the options
+   * @throws IllegalArgumentException If an option has an invalid value
+   */
+  public LoadGenerator(String host, ServerConfig config) {
+    this.host = host;
+    this.port = config.getPort();
+    this.config = config;
+    transport = config.getString("transport", "tcp");
+    if (!transport.equals("tcp") && !transport.equals("udp")) {
+      throw new IllegalArgumentException("Unknown transport: " + transport + " (expected tcp or udp)");
+    }
+    String mode = config.getString("mode", "closed");
+    if (!mode.equals("closed") && !mode.equals("open")) {
+      throw new IllegalArgumentException("Unknown mode: " + mode + " (expected closed or open)");
+    }
+    openLoop = mode.equals("open");
+    connections = config.getInt("connections", 16);
+    rate = config.getLong("rate", 0);
+    int duration = config.getInt("duration", 30);
+    int warmup = config.getInt("warmup", 5);
+    long keys = config.getLong("keys", 100000);
+    double zipfExponent = config.getDouble("zipf-exponent", 0.99);
+    readPercent = config.getInt("read-percent", 90);
+    int valueSize = config.getInt("value-size", 100);
+    lean = Boolean.parseBoolean(config.getString("lean", "false"));
+    preload = Boolean.parseBoolean(config.getString("preload", "true"));
+    timeoutMs = config.getInt("timeout-ms", 1000);
+    maxInFlight = config.getInt("max-in-flight", 1000);
+
+    if (connections < 1 || duration < 1 || warmup < 0 || keys < 1 || valueSize < 0
+            || timeoutMs < 1 || maxInFlight < 1 || rate < 0) {
+      throw new IllegalArgumentException("Counts, sizes and times must not be negative");
+    }
+    if (readPercent < 0 || readPercent > 100) {
+      throw new IllegalArgumentException("Option --read-percent must be between 0 and 100");
+    }
+    if (openLoop && rate == 0) {
+      throw new IllegalArgumentException("Open loop needs --rate");
+    }
+    durationNanos = TimeUnit.SECONDS.toNanos(duration);
+    warmupNanos = TimeUnit.SECONDS.toNanos(warmup);
+    interval = rate == 0 ? 0 : Math.max(1, TimeUnit.SECONDS.toNanos(connections) / rate);
+    keyChooser = new KeyChooser(keys, config.getString("distribution", "uniform"), zipfExponent);
+    value = ByteString.of("x".repeat(valueSize));
+  }
+
+  /**
+   * Function to connect, optionally preload the keys, run the load and collect the results
+   *
+   * @return The results as JSON
+   * @throws IOException If the connections cannot be opened or preloading fails
+   */
+  public String run() throws IOException, InterruptedException {
+    List<Connection> clients = new ArrayList<Connection>();
+    for (int i = 0; i < connections; i++) {
+      clients.add(connect());
+    }
+    if (preload) {
+      preloadKeys(clients);
+    }
+
+    List<Worker> workers = new ArrayList<Worker>();
+    List<Thread> threads = new ArrayList<Thread>();
+    startTime = System.nanoTime();
+    measureStart = startTime + warmupNanos;
+    endTime = measureStart + durationNanos;
+    for (int i = 0; i < connections; i++) {
+      Worker worker = new Worker(clients.get(i), new SplittableRandom());
+      Thread thread = new Thread(worker, "load-" + i);
+      workers.add(worker);
+      threads.add(thread);
+      thread.start();
+    }
+    reportProgress();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (Connection client : clients) {
+      client.close();
+    }
+
+    Stats total = new Stats();
+    for (Worker worker : workers) {
+      synchronized (worker.stats) {
+        total.add(worker.stats);
+      }
+    }
+    printSummary(total);
+    return toJson(total);
+  }
+
+  /**
+   * Function to open one connection to the server
+   * @return The connection
+   */
+  private Connection connect() throws IOException {
+    if (transport.equals("udp")) {
+      AsyncUDPClient client = new AsyncUDPClient(host, port, timeoutMs);
+      return new Connection() {
+        public CompletableFuture<Response> send(byte opcode, ByteString key, ByteString value) {
+          return client.send(opcode, key, value);
+        }
+
+        public CompletableFuture<Response> sendBatch(byte opcode, ByteString[] keys, ByteString[] values) {
+          return client.sendBatch(opcode, keys, values);
+        }
+
+        public void close() throws IOException {
+          client.close();
+        }
+      };
+    }
+    PipelinedTCPClient client = new PipelinedTCPClient(host, port, timeoutMs);
+    return new Connection() {
+      public CompletableFuture<Response> send(byte opcode, ByteString key, ByteString value) {
+        return client.send(opcode, key, value).orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+      }
+
+      public CompletableFuture<Response> sendBatch(byte opcode, ByteString[] keys, ByteString[] values) {
+        return client.sendBatch(opcode, keys, values).orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+      }
+
+      public void close() throws IOException {
+        client.close();
+      }
+    };
+  }
+
+  /**
+   * Function to write every key once with MPUT requests, spread over the connections, so GETs
+   * find their keys. Batches that fail (a lost datagram) are sent again.
+   *
+   * @param clients The connections
+   * @throws IOException If a batch still fails after PRELOAD_ATTEMPTS attempts
+   */
+  private void preloadKeys(List<Connection> clients) throws IOException, InterruptedException {
+    // Over UDP, keep batches small and few in flight so the socket buffers don't overflow
+    boolean udp = transport.equals("udp");
+    int batch = Math.max(1, Math.min(PRELOAD_BATCH, (udp ? 16 * 1024 : 60000) / (value.length() + 32)));
+    Semaphore window = new Semaphore(udp ? PRELOAD_WINDOW / 8 : PRELOAD_WINDOW);
+    long keys = keyChooser.size();
+
+    List<Long> remaining = new ArrayList<Long>();
+    for (long first = 0; first < keys; first += batch) {
+      remaining.add(first);
+    }
+    for (int attempt = 1; !remaining.isEmpty(); attempt++) {
+      List<CompletableFuture<Response>> futures = new ArrayList<CompletableFuture<Response>>();
+      for (long first : remaining) {
+        int count = (int) Math.min(batch, keys - first);
+        ByteString[] batchKeys = new ByteString[count];
+        ByteString[] batchValues = new ByteString[count];
+        for (int i = 0; i < count; i++) {
+          batchKeys[i] = key(first + i);
+          batchValues[i] = value;
+        }
+        window.acquire();
+        Connection client = clients.get((int) (first / batch % clients.size()));
+        futures.add(client.sendBatch(Protocol.OP_MPUT, batchKeys, batchValues)
+                .whenComplete((response, error) -> window.release()));
+      }
+      List<Long> failed = new ArrayList<Long>();
+      Throwable cause = null;
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          futures.get(i).get();
+        } catch (ExecutionException e) {
+          failed.add(remaining.get(i));
+          cause = e.getCause();
+        }
+      }
+      if (!failed.isEmpty() && attempt == PRELOAD_ATTEMPTS) {
+        throw new IOException("Preloading the keys failed: " + cause, cause);
+      }
+      remaining = failed;
+    }
+    System.err.println("Preloaded " + keys + " keys");
+  }
+
+  /**
+   * Function to print the request rate every second until the run ends
+   */
+  private void reportProgress() {
+    long last = 0;
+    for (int second = 1; ; second++) {
+      long wakeUp = startTime + TimeUnit.SECONDS.toNanos(second);
+      while (System.nanoTime() - wakeUp < 0) {
+        LockSupport.parkNanos(wakeUp - System.nanoTime());
+      }
+      long now = completed.sum();
+      System.err.println(String.format(Locale.ROOT, "[%4ds] %10d req/s%s", second, now - last,
+              wakeUp - measureStart <= 0 ? " (warmup)" : ""));
+      last = now;
+      if (wakeUp - endTime >= 0) return;
+    }
+  }
+
+  /**
+   * Function to print a short human-readable summary to stderr
+   * @param total The merged results of all threads
+   */
+  private void printSummary(Stats total) {
+    LatencyHistogram all = new LatencyHistogram();
+    all.add(total.readLatency);
+    all.add(total.writeLatency);
+    System.err.println(String.format(Locale.ROOT,
+            "%d requests, %.0f req/s, %d misses, %d errors, %d timeouts; latency p50 %.1f us, "
+                    + "p99 %.1f us, p99.9 %.1f us, max %.1f us",
+            total.reads + total.writes, (total.reads + total.writes) / (durationNanos / 1e9),
+            total.misses, total.errors, total.timeouts, micros(all.getValueAtPercentile(50)),
+            micros(all.getValueAtPercentile(99)), micros(all.getValueAtPercentile(99.9)),
+            micros(all.getMax())));
+  }
+
+  /**
+   * Function to format the settings and results as JSON
+   *
+   * @param total The merged results of all threads
+   * @return The JSON document
+   */
+  private String toJson(Stats total) {
+    LatencyHistogram allLatency = new LatencyHistogram();
+    allLatency.add(total.readLatency);
+    allLatency.add(total.writeLatency);
+    LatencyHistogram allService = new LatencyHistogram();
+    allService.add(total.readService);
+    allService.add(total.writeService);
+    long requests = total.reads + total.writes;
+
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"settings\": {");
+    json.append("\"host\": \"").append(host.replace("\\", "\\\\").replace("\"", "\\\"")).append("\", ");
+    json.append("\"port\": ").append(port).append(", ");
+    json.append("\"transport\": \"").append(transport).append("\", ");
+    json.append("\"mode\": \"").append(openLoop ? "open" : "closed").append("\", ");
+    json.append("\"connections\": ").append(connections).append(", ");
+    json.append("\"targetRate\": ").append(rate).append(", ");
+    json.append("\"durationSeconds\": ").append(durationNanos / 1_000_000_000L).append(", ");
+    json.append("\"warmupSeconds\": ").append(warmupNanos / 1_000_000_000L).append(", ");
+    json.append("\"keys\": ").append(keyChooser.size()).append(", ");
+    json.append("\"distribution\": \"").append(keyChooser.zipfian ? "zipfian" : "uniform").append("\", ");
+    if (keyChooser.zipfian) {
+      json.append("\"zipfExponent\": ").append(keyChooser.theta).append(", ");
+    }
+    json.append("\"readPercent\": ").append(readPercent).append(", ");
+    json.append("\"valueSize\": ").append(value.length()).append(", ");
+    json.append("\"lean\": ").append(lean).append("},\n");
+    json.append("  \"requests\": ").append(requests).append(",\n");
+    json.append("  \"throughput\": ")
+            .append(String.format(Locale.ROOT, "%.1f", requests / (durationNanos / 1e9))).append(",\n");
+    json.append("  \"reads\": ").append(total.reads).append(",\n");
+    json.append("  \"writes\": ").append(total.writes).append(",\n");
+    json.append("  \"misses\": ").append(total.misses).append(",\n");
+    json.append("  \"errors\": ").append(total.errors).append(",\n");
+    json.append("  \"timeouts\": ").append(total.timeouts).append(",\n");
+    json.append("  \"latencyMicros\": {\n");
+    json.append("    \"all\": ").append(histogramJson(allLatency)).append(",\n");
+    json.append("    \"read\": ").append(histogramJson(total.readLatency)).append(",\n");
+    json.append("    \"write\": ").append(histogramJson(total.writeLatency)).append("\n");
+    json.append("  },\n");
+    json.append("  \"serviceTimeMicros\": {\n");
+    json.append("    \"all\": ").append(histogramJson(allService)).append(",\n");
+    json.append("    \"read\": ").append(histogramJson(total.readService)).append(",\n");
+    json.append("    \"write\": ").append(histogramJson(total.writeService)).append("\n");
+    json.append("  }\n");
+    json.append("}");
+    return json.toString();
+  }
+
+  /**
+   * Function to format the summary of a histogram as a JSON object, in microseconds
+   *
+   * @param histogram The histogram
+   * @return The JSON object
+   */
+  private static String histogramJson(LatencyHistogram histogram) {
+    StringBuilder json = new StringBuilder();
+    json.append("{\"count\": ").append(histogram.getTotalCount());
+    json.append(String.format(Locale.ROOT, ", \"mean\": %.1f, \"min\": %.1f",
+            histogram.getMean() / 1000, micros(histogram.getMin())));
+    for (double percentile : PERCENTILES) {
+      String name = percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile);
+      json.append(String.format(Locale.ROOT, ", \"p%s\": %.1f", name,
+              micros(histogram.getValueAtPercentile(percentile))));
+    }
+    json.append(String.format(Locale.ROOT, ", \"max\": %.1f}", micros(histogram.getMax())));
+    return json.toString();
+  }
+
+  private static double micros(long nanos) {
+    return nanos / 1000.0;
+  }
+
+  private static ByteString key(long index) {
+    return ByteString.of("key:" + index);
+  }
+
+  /**
+   * One connection to the server, over either transport.
+   */
+  private interface Connection extends Closeable {
+    CompletableFuture<Response> send(byte opcode, ByteString key, ByteString value);
+
+    CompletableFuture<Response> sendBatch(byte opcode, ByteString[] keys, ByteString[] values);
+  }
+
+  /**
+   * Counters and histograms of one thread. Responses may complete on the client reader and
+   * timeout threads, so they are updated while holding the Stats lock.
+   */
+  private static final class Stats {
+    long reads;
+    long writes;
+    long misses;
+    long errors;
+    long timeouts;
+    final LatencyHistogram readLatency = new LatencyHistogram();
+    final LatencyHistogram writeLatency = new LatencyHistogram();
+    final LatencyHistogram readService = new LatencyHistogram();
+    final LatencyHistogram writeService = new LatencyHistogram();
+
+    void add(Stats other) {
+      reads += other.reads;
+      writes += other.writes;
+      misses += other.misses;
+      errors += other.errors;
+      timeouts += other.timeouts;
+      readLatency.add(other.readLatency);
+      writeLatency.add(other.writeLatency);
+      readService.add(other.readService);
+      writeService.add(other.writeService);
+    }
+  }
+
+  /**
+   * Sends the requests of one connection.
+   */
+  private final class Worker implements Runnable {
+    private final Connection connection;
+    private final SplittableRandom random;
+    private final Stats stats = new Stats();
+
+    // Open loop: limits the requests in flight so a stalled server can't exhaust memory
+    private final Semaphore inFlight = new Semaphore(maxInFlight);
+
+    Worker(Connection connection, SplittableRandom random) {
+      this.connection = connection;
+      this.random = random;
+    }
+
+    @Override
+    public void run() {
+      long next = startTime;
+      while (true) {
+        long now = System.nanoTime();
+        if (now - endTime >= 0) break;
+        if (interval > 0 && next - now > 0) {
+          LockSupport.parkNanos(next - now);
+          continue;
+        }
+        long intended = interval > 0 ? next : now;
+        next += interval;
+        boolean read = random.nextInt(100) < readPercent;
+        ByteString key = key(keyChooser.next(random));
+        if (openLoop) {
+          // Waiting for a permit delays the request past its scheduled time, which counts
+          inFlight.acquireUninterruptibly();
+          long sent = System.nanoTime();
+          send(read, key).whenComplete((response, error) -> {
+            inFlight.release();
+            complete(read, intended, sent, response, error);
+          });
+        } else {
+          long sent = System.nanoTime();
+          Response response = null;
+          Throwable error = null;
+          try {
+            response = send(read, key).get();
+          } catch (ExecutionException e) {
+            error = e.getCause();
+          } catch (InterruptedException e) {
+            return;
+          }
+          complete(read, intended, sent, response, error);
+          // Don't burst to catch up after a stall; the correction accounts for the skipped sends
+          if (interval > 0 && next - System.nanoTime() < 0) {
+            next = System.nanoTime();
+          }
+        }
+      }
+      // Let the last open-loop requests finish (or time out)
+      inFlight.acquireUninterruptibly(maxInFlight);
+    }
+
+    /**
+     * Function to send one GET or PUT
+     *
+     * @param read True for a GET, false for a PUT
+     * @param key  The key
+     * @return A future completed with the response
+     */
+    private CompletableFuture<Response> send(boolean read, ByteString key) {
+      if (read) {
+        byte opcode = lean ? (byte) (Protocol.OP_GET | Protocol.FLAG_LEAN) : Protocol.OP_GET;
+        return connection.send(opcode, key, ByteString.EMPTY);
+      }
+      return connection.send(Protocol.OP_PUT, key, value);
+    }
+
+    /**
+     * Function to record the outcome of a request
+     *
+     * @param read     True for a GET, false for a PUT
+     * @param intended When the request was scheduled to be sent
+     * @param sent     When the request was actually sent
+     * @param response The response, or null if the request failed
+     * @param error    Why the request failed, or null
+     */
+    private void complete(boolean read, long intended, long sent, Response response, Throwable error) {
+      long done = System.nanoTime();
+      completed.increment();
+      // Requests scheduled during the warmup are not measured
+      if (intended - measureStart < 0) return;
+      if (error instanceof CompletionException && error.getCause() != null) {
+        error = error.getCause();
+      }
+      synchronized (stats) {
+        if (error != null) {
+          if (error instanceof TimeoutException) {
+            stats.timeouts++;
+          } else {
+            stats.errors++;
+          }
+          return;
+        }
+        if (read) {
+          // A GET of a missing key answers with an error status
+          if (!response.isOk()) stats.misses++;
+          stats.reads++;
+        } else if (response.isOk()) {
+          stats.writes++;
+        } else {
+          stats.errors++;
+          return;
+        }
+        LatencyHistogram latency = read ? stats.readLatency : stats.writeLatency;
+        if (openLoop) {
+          latency.record(done - intended);
+        } else {
+          latency.recordWithExpectedInterval(done - sent, interval);
+        }
+        (read ? stats.readService : stats.writeService).record(done - sent);
+      }
+    }
+  }
+
+  /**
+   * Draws key indexes uniformly or from a Zipfian distribution, in which the probability of
+   * index i is proportional to 1 / (i + 1)^theta. The Zipfian draw uses the constant-time method
+   * of Gray et al., "Quickly Generating Billion-Record Synthetic Databases" (as in YCSB), after a
+   * one-off O(n) computation of the normalization constant. Thread-safe; every thread passes its
+   * own random generator.
+   */
+  private static final class KeyChooser {
+    private final long n;
+    private final boolean zipfian;
+    private final double theta;
+    private final double zetan;
+    private final double alpha;
+    private final double eta;
+    private final double halfPowTheta;
+
+    KeyChooser(long n, String distribution, double theta) {
+      if (!distribution.equals("uniform") && !distribution.equals("zipfian")) {
+        throw new IllegalArgumentException("Unknown distribution: " + distribution + " (expected uniform or zipfian)");
+      }
+      this.n = n;
+      this.zipfian = distribution.equals("zipfian");
+      this.theta = theta;
+      if (!zipfian) {
+        zetan = alpha = eta = halfPowTheta = 0;
+        return;
+      }
+      if (!(theta > 0 && theta < 1)) {
+        throw new IllegalArgumentException("Option --zipf-exponent must be between 0 and 1");
+      }
+      zetan = zeta(n, theta);
+      alpha = 1 / (1 - theta);
+      eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+      halfPowTheta = Math.pow(0.5, theta);
+    }
+
+    long size() {
+      return n;
+    }
+
+    long next(SplittableRandom random) {
+      if (!zipfian) return random.nextLong(n);
+      double u = random.nextDouble();
+      double uz = u * zetan;
+      if (uz < 1) return 0;
+      if (uz < 1 + halfPowTheta) return Math.min(1, n - 1);
+      return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    private static double zeta(long n, double theta) {
+      double sum = 0;
+      for (long i = 1; i <= n; i++) {
+        sum += 1 / Math.pow(i, theta);
+      }
+      return sum;
+    }
+  }
+}
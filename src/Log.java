@@ -0,0 +1,355 @@
+/**
+ * Log
+ *
+ * Asynchronous server logger. Request threads never format or print anything: a log call only
+ * claims a slot in a bounded ring buffer and stores references to the message parts. A single
+ * background thread drains the ring, builds the lines and writes them through buffered streams,
+ * flushing only when the ring runs empty. If the ring is full the message is dropped and counted
+ * rather than blocking the request.
+ *
+ * Lines look like the original println logs: "[timestamp ,IP: ip ,Port: port]  message". The
+ * formatted timestamp is cached by the drain thread and only rebuilt when the millisecond changes.
+ *
+ * Levels and sampling are configured with --log-level (OFF, ERROR, WARN, INFO, DEBUG; default
+ * INFO) and --log-sample=N (log 1 in N requests; default 1). Handlers check sampled() once per
+ * request so no work is done for requests that aren't logged.
+ */
+
+import java.io.*;
+import java.sql.Timestamp;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class Log {
+
+  // Levels, from most to least severe
+  public static final int OFF = 0;
+  public static final int ERROR = 1;
+  public static final int WARN = 2;
+  public static final int INFO = 3;
+  public static final int DEBUG = 4;
+
+  private static final String[] LEVEL_NAMES = {"OFF", "ERROR", "WARN", "INFO", "DEBUG"};
+
+  // Default number of slots in the ring buffer. Must be a power of two
+  private static final int DEFAULT_CAPACITY = 1 << 16;
+
+  // How long the drain thread sleeps when the ring is empty
+  private static final long IDLE_PARK_NANOS = 1_000_000;
+
+  // Most verbose level that is logged
+  private static volatile int level = INFO;
+
+  // Requests are logged with probability 1 / sampleRate
+  private static volatile int sampleRate = 1;
+
+  // Ring buffer slots and the mask to turn a sequence into an index
+  private static Entry[] ring;
+  private static int mask;
+
+  // Next sequence producers claim, and next sequence the drain thread reads
+  private static final AtomicLong tail = new AtomicLong();
+  private static long head;
+
+  // Messages dropped because the ring was full
+  private static final AtomicLong dropped = new AtomicLong();
+
+  // Buffered streams written only by the drain thread
+  private static PrintStream out;
+  private static PrintStream err;
+
+  // Formatted timestamp cached by the drain thread, and the millisecond it was built for
+  private static long cachedMillis = -1;
+  private static String cachedTimestamp;
+
+  static {
+    init(DEFAULT_CAPACITY);
+  }
+
+  private Log() {
+  }
+
+  /**
+   * One message waiting in the ring. The sequence tells producers and the drain thread whose
+   * turn it is to use the slot.
+   */
+  private static final class Entry {
+    volatile long sequence;
+    int level;
+    long millis;
+    Object ip;
+    int port;
+    Object a, b, c, d, e;
+  }
+
+  /**
+   * Function to apply the --log-level and --log-sample server options
+   *
+   * @param config The server configuration
+   * @throws IllegalArgumentException If an option has an invalid value
+   */
+  public static void configure(ServerConfig config) {
+    String name = config.getString("log-level", "INFO").toUpperCase();
+    int newLevel = -1;
+    for (int i = 0; i < LEVEL_NAMES.length; i++) {
+      if (LEVEL_NAMES[i].equals(name)) newLevel = i;
+    }
+    if (newLevel == -1) {
+      throw new IllegalArgumentException("Unknown log level: " + name);
+    }
+    int newSampleRate = config.getInt("log-sample", 1);
+    if (newSampleRate < 1) {
+      throw new IllegalArgumentException("Option --log-sample must be at least 1");
+    }
+    level = newLevel;
+    sampleRate = newSampleRate;
+  }
+
+  /**
+   * Function to check whether messages of a level are logged at all
+   *
+   * @param messageLevel The level to check
+   * @return True if the level is enabled
+   */
+  public static boolean isEnabled(int messageLevel) {
+    return messageLevel <= level;
+  }
+
+  /**
+   * Function to decide whether the current request should be logged at a level. Call it once
+   * per request and skip every log call, and the string work behind it, when it returns false.
+   *
+   * @param messageLevel The level of the request's messages
+   * @return True if the level is enabled and the request was picked by sampling
+   */
+  public static boolean sampled(int messageLevel) {
+    if (messageLevel > level) return false;
+    int rate = sampleRate;
+    return rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0;
+  }
+
+  /**
+   * Function to log a message without client information
+   *
+   * @param messageLevel The message level
+   * @param message      The message
+   */
+  public static void log(int messageLevel, Object message) {
+    log(messageLevel, null, 0, message, null, null, null, null);
+  }
+
+  /**
+   * Function to log an INFO message about a client, made of the given parts
+   */
+  public static void info(Object ip, int port, Object a) {
+    log(INFO, ip, port, a, null, null, null, null);
+  }
+
+  /**
+   * Function to log an INFO message about a client, made of the given parts
+   */
+  public static void info(Object ip, int port, Object a, Object b) {
+    log(INFO, ip, port, a, b, null, null, null);
+  }
+
+  /**
+   * Function to log an INFO message about a client, made of the given parts
+   */
+  public static void info(Object ip, int port, Object a, Object b, Object c) {
+    log(INFO, ip, port, a, b, c, null, null);
+  }
+
+  /**
+   * Function to log an INFO message about a client, made of the given parts
+   */
+  public static void info(Object ip, int port, Object a, Object b, Object c, Object d) {
+    log(INFO, ip, port, a, b, c, d, null);
+  }
+
+  /**
+   * Function to log an INFO message about a client, made of the given parts
+   */
+  public static void info(Object ip, int port, Object a, Object b, Object c, Object d, Object e) {
+    log(INFO, ip, port, a, b, c, d, e);
+  }
+
+  /**
+   * Function to log a WARN message about a client, made of the given parts
+   */
+  public static void warn(Object ip, int port, Object a, Object b, Object c) {
+    log(WARN, ip, port, a, b, c, null, null);
+  }
+
+  /**
+   * Function to log an ERROR message about a client
+   */
+  public static void error(Object ip, int port, Object a) {
+    log(ERROR, ip, port, a, null, null, null, null);
+  }
+
+  /**
+   * Function to log an ERROR message about a client, made of the given parts
+   */
+  public static void error(Object ip, int port, Object a, Object b) {
+    log(ERROR, ip, port, a, b, null, null, null);
+  }
+
+  /**
+   * Function to log an ERROR message about a client, made of the given parts
+   */
+  public static void error(Object ip, int port, Object a, Object b, Object c) {
+    log(ERROR, ip, port, a, b, c, null, null);
+  }
+
+  /**
+   * Function to queue a message made of up to five parts, concatenated by the drain thread. Any
+   * part may be null. Parts are converted with toString on the drain thread, so they must not be
+   * mutated after the call.
+   *
+   * @param messageLevel The message level
+   * @param ip           The client IP address (String or InetAddress), or null
+   * @param port         The client port, ignored when ip is null
+   */
+  public static void log(int messageLevel, Object ip, int port, Object a, Object b, Object c,
+                         Object d, Object e) {
+    if (messageLevel > level) return;
+
+    // Claim a slot (bounded multi-producer queue; a slot is free when its sequence equals the
+    // sequence being claimed)
+    Entry entry;
+    long seq = tail.get();
+    while (true) {
+      entry = ring[(int) seq & mask];
+      long diff = entry.sequence - seq;
+      if (diff == 0) {
+        if (tail.compareAndSet(seq, seq + 1)) break;
+        seq = tail.get();
+      } else if (diff < 0) {
+        // The drain thread is a full lap behind. Drop rather than block the request
+        dropped.incrementAndGet();
+        return;
+      } else {
+        seq = tail.get();
+      }
+    }
+
+    entry.level = messageLevel;
+    entry.millis = System.currentTimeMillis();
+    entry.ip = ip;
+    entry.port = port;
+    entry.a = a;
+    entry.b = b;
+    entry.c = c;
+    entry.d = d;
+    entry.e = e;
+    // Publish the slot to the drain thread
+    entry.sequence = seq + 1;
+  }
+
+  /**
+   * Function to create the ring buffer, the output streams and the drain thread
+   *
+   * @param capacity The number of slots, a power of two
+   */
+  private static void init(int capacity) {
+    ring = new Entry[capacity];
+    mask = capacity - 1;
+    for (int i = 0; i < capacity; i++) {
+      ring[i] = new Entry();
+      ring[i].sequence = i;
+    }
+    out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    err = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 1 << 14), false);
+
+    Thread drainer = new Thread(Log::drain, "log-drainer");
+    drainer.setDaemon(true);
+    drainer.start();
+    // Write out whatever is still queued when the server exits
+    Runtime.getRuntime().addShutdownHook(new Thread(Log::drainAvailable, "log-flusher"));
+  }
+
+  /**
+   * Function run by the drain thread: writes queued messages and sleeps while there are none
+   */
+  private static void drain() {
+    StringBuilder line = new StringBuilder(256);
+    while (true) {
+      if (drainAvailable(line) == 0) {
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+    }
+  }
+
+  /**
+   * Function to write every message queued so far and flush the streams
+   */
+  private static synchronized void drainAvailable() {
+    drainAvailable(new StringBuilder(256));
+  }
+
+  /**
+   * Function to write every message queued so far and flush the streams
+   *
+   * @param line Reusable builder for formatting lines
+   * @return The number of messages written
+   */
+  private static synchronized int drainAvailable(StringBuilder line) {
+    int written = 0;
+    while (true) {
+      Entry entry = ring[(int) head & mask];
+      if (entry.sequence != head + 1) break;
+
+      line.setLength(0);
+      line.append('[').append(timestamp(entry.millis));
+      if (entry.ip != null) {
+        line.append(" ,IP: ").append(entry.ip).append(" ,Port: ").append(entry.port);
+      }
+      line.append("]  ");
+      append(line, entry.a);
+      append(line, entry.b);
+      append(line, entry.c);
+      append(line, entry.d);
+      append(line, entry.e);
+      (entry.level <= WARN ? err : out).println(line);
+
+      // Drop references so logged strings can be collected, then hand the slot back
+      entry.ip = entry.a = entry.b = entry.c = entry.d = entry.e = null;
+      entry.sequence = head + ring.length;
+      head++;
+      written++;
+    }
+
+    long lost = dropped.getAndSet(0);
+    if (lost > 0) {
+      err.println("[" + timestamp(System.currentTimeMillis()) + "]  " + lost +
+              " log messages dropped, log buffer full");
+    }
+    if (written > 0 || lost > 0) {
+      out.flush();
+      err.flush();
+    }
+    return written;
+  }
+
+  /**
+   * Function to append a message part, skipping unused ones
+   */
+  private static void append(StringBuilder line, Object part) {
+    if (part != null) line.append(part);
+  }
+
+  /**
+   * Function to get the formatted timestamp of a millisecond, reusing the last one built
+   *
+   * @param millis The time in milliseconds
+   * @return The formatted timestamp
+   */
+  private static String timestamp(long millis) {
+    if (millis != cachedMillis) {
+      cachedMillis = millis;
+      cachedTimestamp = new Timestamp(millis).toString();
+    }
+    return cachedTimestamp;
+  }
+}
@@ -0,0 +1,305 @@
+/**
+ * Metrics
+ *
+ * Counters and latency histograms of one server: how many times each command ran and how long it
+ * took, GET hits and misses, errors, resent writes, bytes received and sent, and open
+ * connections. Everything is recorded without locks (LongAdder counters and LatencyRecorder
+ * histograms), so recording costs tens of nanoseconds per request. The CommandProcessor records
+ * the commands, the serving engines record bytes and connections.
+ *
+ * The metrics are read with the STATS command, as "name:value" lines, or over HTTP in the
+ * Prometheus text format (see MetricsServer).
+ */
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+public class Metrics {
+
+  // Command names, indexed by opcode; null where the opcode has no metrics
+  private static final String[] COMMANDS =
+          {null, "get", "put", "delete", null, "mget", "mput", "mdelete", "putex", "stats", "put_chunk", "get_chunk",
+           "scan", "range", "incr", "cas", "append"};
+
+  // Upper bounds of the Prometheus histogram buckets, in nanoseconds
+  private static final long[] BUCKETS = {
+    1_000L, 2_500L, 5_000L, 10_000L, 25_000L, 50_000L, 100_000L, 250_000L, 500_000L,
+    1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L, 100_000_000L,
+    250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+  };
+
+  // Execution time of each command, indexed by opcode
+  private final LatencyRecorder[] latency = new LatencyRecorder[COMMANDS.length];
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder duplicates = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder connections = new LongAdder();
+  private final LongAdder activeConnections = new LongAdder();
+
+  // Number of keys in the store
+  private final IntSupplier keys;
+
+  // Other parts of the server reporting their own metrics, such as replication
+  private final CopyOnWriteArrayList<Source> sources = new CopyOnWriteArrayList<Source>();
+
+  private final long startNanos = System.nanoTime();
+
+  /**
+   * Creates the metrics of a server.
+   *
+   * @param keys Returns the number of keys in the store
+   */
+  public Metrics(IntSupplier keys) {
+    this.keys = keys;
+    for (int i = 0; i < COMMANDS.length; i++) {
+      if (COMMANDS[i] != null) latency[i] = new LatencyRecorder();
+    }
+  }
+
+  /**
+   * Function to record that a command was executed
+   *
+   * @param opcode The command, one of the Protocol.OP_* constants without flags
+   * @param nanos  How long it took to execute, in nanoseconds
+   */
+  public void recordCommand(byte opcode, long nanos) {
+    if (opcode > 0 && opcode < latency.length && latency[opcode] != null) {
+      latency[opcode].record(nanos);
+    }
+  }
+
+  /**
+   * Function to record the outcome of reading keys
+   *
+   * @param found    The number of keys found
+   * @param notFound The number of keys not found
+   */
+  public void recordLookups(int found, int notFound) {
+    if (found > 0) hits.add(found);
+    if (notFound > 0) misses.add(notFound);
+  }
+
+  /**
+   * Function to record a command that failed (invalid, rejected or not persisted)
+   */
+  public void recordError() {
+    errors.increment();
+  }
+
+  /**
+   * Function to add metrics reported by another part of the server
+   * @param source Appends its metrics to both formats
+   */
+  public void addSource(Source source) {
+    sources.add(source);
+  }
+
+  /**
+   * Function to record a resent request that was answered without executing it again
+   */
+  public void recordDuplicate() {
+    duplicates.increment();
+  }
+
+  /**
+   * Function to record bytes received from clients
+   * @param bytes The number of bytes
+   */
+  public void recordBytesIn(long bytes) {
+    bytesIn.add(bytes);
+  }
+
+  /**
+   * Function to record bytes sent to clients
+   * @param bytes The number of bytes
+   */
+  public void recordBytesOut(long bytes) {
+    bytesOut.add(bytes);
+  }
+
+  /**
+   * Function to record a client connecting
+   */
+  public void connectionOpened() {
+    connections.increment();
+    activeConnections.increment();
+  }
+
+  /**
+   * Function to record a client connection closing
+   */
+  public void connectionClosed() {
+    activeConnections.decrement();
+  }
+
+  /**
+   * Function to wrap a connection's input stream so the bytes read from it are counted
+   *
+   * @param in The stream
+   * @return The counting stream
+   */
+  public InputStream countBytesIn(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) bytesIn.increment();
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) bytesIn.add(read);
+        return read;
+      }
+    };
+  }
+
+  /**
+   * Function to wrap a connection's output stream so the bytes written to it are counted
+   *
+   * @param out The stream
+   * @return The counting stream
+   */
+  public OutputStream countBytesOut(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        bytesOut.increment();
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytesOut.add(len);
+      }
+    };
+  }
+
+  /**
+   * Function to format the metrics for the STATS command, one "name:value" line each. Command
+   * latencies are in microseconds.
+   *
+   * @return The metrics text
+   */
+  public String toText() {
+    StringBuilder text = new StringBuilder();
+    long found = hits.sum();
+    long notFound = misses.sum();
+    text.append("uptime_seconds:").append(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos)).append('\n');
+    text.append("keys:").append(keys.getAsInt()).append('\n');
+    text.append("connections_active:").append(activeConnections.sum()).append('\n');
+    text.append("connections_total:").append(connections.sum()).append('\n');
+    text.append("bytes_in:").append(bytesIn.sum()).append('\n');
+    text.append("bytes_out:").append(bytesOut.sum()).append('\n');
+    text.append("get_hits:").append(found).append('\n');
+    text.append("get_misses:").append(notFound).append('\n');
+    text.append("get_hit_ratio:")
+            .append(String.format(Locale.ROOT, "%.4f", found + notFound == 0 ? 0.0 : (double) found / (found + notFound)))
+            .append('\n');
+    text.append("errors:").append(errors.sum()).append('\n');
+    text.append("duplicate_requests:").append(duplicates.sum()).append('\n');
+    for (int i = 0; i < COMMANDS.length; i++) {
+      if (latency[i] == null) continue;
+      LatencyHistogram histogram = latency[i].snapshot();
+      long count = histogram.getTotalCount();
+      text.append("cmd_").append(COMMANDS[i]).append(":count=").append(count);
+      text.append(String.format(Locale.ROOT, ",mean_us=%.1f,p50_us=%.1f,p99_us=%.1f,p999_us=%.1f,max_us=%.1f",
+              count == 0 ? 0.0 : latency[i].getSum() / 1000.0 / count,
+              histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+              histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0));
+      text.append('\n');
+    }
+    for (Source source : sources) {
+      source.appendText(text);
+    }
+    return text.toString();
+  }
+
+  /**
+   * Function to format the metrics in the Prometheus text exposition format
+   * @return The metrics text
+   */
+  public String toPrometheus() {
+    StringBuilder text = new StringBuilder();
+    gauge(text, "kvstore_uptime_seconds", "Seconds since the server started.",
+            TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos));
+    gauge(text, "kvstore_keys", "Keys in the store.", keys.getAsInt());
+    gauge(text, "kvstore_connections_active", "Open client connections.", activeConnections.sum());
+    counter(text, "kvstore_connections_total", "Client connections accepted.", connections.sum());
+    counter(text, "kvstore_received_bytes_total", "Bytes received from clients.", bytesIn.sum());
+    counter(text, "kvstore_sent_bytes_total", "Bytes sent to clients.", bytesOut.sum());
+    counter(text, "kvstore_get_hits_total", "Keys read that were found.", hits.sum());
+    counter(text, "kvstore_get_misses_total", "Keys read that were not found.", misses.sum());
+    counter(text, "kvstore_errors_total", "Commands that failed.", errors.sum());
+    counter(text, "kvstore_duplicate_requests_total", "Resent writes answered without executing them again.",
+            duplicates.sum());
+
+    text.append("# HELP kvstore_command_duration_seconds Time to execute a command.\n");
+    text.append("# TYPE kvstore_command_duration_seconds histogram\n");
+    for (int i = 0; i < COMMANDS.length; i++) {
+      if (latency[i] == null) continue;
+      LatencyHistogram histogram = latency[i].snapshot();
+      String label = "command=\"" + COMMANDS[i] + "\"";
+      for (long bucket : BUCKETS) {
+        text.append("kvstore_command_duration_seconds_bucket{").append(label).append(",le=\"")
+                .append(seconds(bucket)).append("\"} ").append(histogram.getCountAtOrBelow(bucket)).append('\n');
+      }
+      text.append("kvstore_command_duration_seconds_bucket{").append(label).append(",le=\"+Inf\"} ")
+              .append(histogram.getTotalCount()).append('\n');
+      text.append("kvstore_command_duration_seconds_sum{").append(label).append("} ")
+              .append(seconds(latency[i].getSum())).append('\n');
+      text.append("kvstore_command_duration_seconds_count{").append(label).append("} ")
+              .append(histogram.getTotalCount()).append('\n');
+    }
+    for (Source source : sources) {
+      source.appendPrometheus(text);
+    }
+    return text.toString();
+  }
+
+  static void gauge(StringBuilder text, String name, String help, long value) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(" gauge\n");
+    text.append(name).append(' ').append(value).append('\n');
+  }
+
+  static void counter(StringBuilder text, String name, String help, long value) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(" counter\n");
+    text.append(name).append(' ').append(value).append('\n');
+  }
+
+  static String seconds(long nanos) {
+    return BigDecimal.valueOf(nanos).movePointLeft(9).stripTrailingZeros().toPlainString();
+  }
+
+  /**
+   * Metrics of another part of the server, appended after the server's own
+   */
+  public interface Source {
+
+    /**
+     * Function to append the metrics as "name:value" lines
+     * @param text The STATS text
+     */
+    void appendText(StringBuilder text);
+
+    /**
+     * Function to append the metrics in the Prometheus text exposition format
+     * @param text The scrape text
+     */
+    void appendPrometheus(StringBuilder text);
+  }
+}
@@ -0,0 +1,77 @@
+/**
+ * Metrics Server
+ *
+ * Serves a server's Metrics over HTTP in the Prometheus text format at /metrics on a side port
+ * (--metrics-port), so monitoring doesn't share the data port or its protocol. It runs on the
+ * JDK's built-in HTTP server with a single daemon thread, since scrapes are rare.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+public class MetricsServer {
+
+  // Content type of the Prometheus text exposition format
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private MetricsServer() {
+  }
+
+  /**
+   * Function to start serving the metrics if the --metrics-port option is set
+   *
+   * @param config  The server configuration
+   * @param metrics The metrics to serve
+   * @return The port the metrics are served on, or 0 if they are not served
+   * @throws IOException If the port cannot be bound
+   */
+  public static int startIfConfigured(ServerConfig config, Metrics metrics) throws IOException {
+    int port = config.getInt("metrics-port", 0);
+    if (port <= 0) return 0;
+
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext("/metrics", exchange -> {
+      try {
+        respond(exchange, metrics);
+      } finally {
+        exchange.close();
+      }
+    });
+    server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "metrics-http");
+      thread.setDaemon(true);
+      return thread;
+    }));
+    server.start();
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Function to answer one scrape
+   *
+   * @param exchange The HTTP request and response
+   * @param metrics  The metrics to serve
+   */
+  private static void respond(HttpExchange exchange, Metrics metrics) throws IOException {
+    if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+      exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+      exchange.sendResponseHeaders(405, -1);
+      return;
+    }
+    byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+    if (exchange.getRequestMethod().equals("HEAD")) {
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
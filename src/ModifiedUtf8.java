@@ -0,0 +1,125 @@
+/**
+ * Modified UTF-8
+ *
+ * Encodes and decodes strings in the format used by DataOutputStream.writeUTF and
+ * DataInputStream.readUTF: a 2-byte big-endian length followed by modified UTF-8 bytes.
+ * Works directly on ByteBuffers so the selector server can frame messages without wrapping
+ * every read in a stream.
+ */
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+public class ModifiedUtf8 {
+
+  // Largest encoded string writeUTF can produce (the length prefix is an unsigned short)
+  public static final int MAX_ENCODED_LENGTH = 65535;
+
+  private ModifiedUtf8() {
+  }
+
+  /**
+   * Function to get the number of bytes a string takes in modified UTF-8, without the prefix
+   *
+   * @param str The string to measure
+   * @return The encoded length in bytes
+   */
+  public static int encodedLength(String str) {
+    int len = 0;
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F) {
+        len += 1;
+      } else if (c <= 0x07FF) {
+        // Also covers '\u0000', which modified UTF-8 writes as two bytes
+        len += 2;
+      } else {
+        len += 3;
+      }
+    }
+    return len;
+  }
+
+  /**
+   * Function to write a string with its 2-byte length prefix, like writeUTF
+   *
+   * @param str The string to write
+   * @param dst The buffer to write into. Must have room for 2 + encodedLength(str) bytes
+   * @throws UTFDataFormatException If the encoded string is longer than 65535 bytes
+   */
+  public static void encode(String str, ByteBuffer dst) throws UTFDataFormatException {
+    int len = encodedLength(str);
+    if (len > MAX_ENCODED_LENGTH) {
+      throw new UTFDataFormatException("Encoded string too long: " + len + " bytes");
+    }
+    dst.putShort((short) len);
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F) {
+        dst.put((byte) c);
+      } else if (c <= 0x07FF) {
+        dst.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+        dst.put((byte) (0x80 | (c & 0x3F)));
+      } else {
+        dst.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+        dst.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        dst.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+  }
+
+  /**
+   * Function to check whether a complete length-prefixed string is available in the buffer
+   *
+   * @param src The buffer in read mode
+   * @return The total frame length (prefix included) if complete, otherwise -1
+   */
+  public static int completeFrameLength(ByteBuffer src) {
+    if (src.remaining() < 2) return -1;
+    int len = src.getShort(src.position()) & 0xFFFF;
+    return src.remaining() >= 2 + len ? 2 + len : -1;
+  }
+
+  /**
+   * Function to read a length-prefixed string, like readUTF. The caller must first check that
+   * the whole frame is available with completeFrameLength.
+   *
+   * @param src     The buffer in read mode, positioned at the length prefix
+   * @param scratch Reusable char buffer of at least 65535 chars
+   * @return The decoded string
+   * @throws UTFDataFormatException If the bytes are not valid modified UTF-8
+   */
+  public static String decode(ByteBuffer src, char[] scratch) throws UTFDataFormatException {
+    int len = src.getShort() & 0xFFFF;
+    int end = src.position() + len;
+    int count = 0;
+    while (src.position() < end) {
+      int b = src.get() & 0xFF;
+      if (b < 0x80) {
+        scratch[count++] = (char) b;
+      } else if ((b & 0xE0) == 0xC0) {
+        if (src.position() >= end) throw malformed(src, end);
+        int b2 = src.get() & 0xFF;
+        if ((b2 & 0xC0) != 0x80) throw malformed(src, end);
+        scratch[count++] = (char) (((b & 0x1F) << 6) | (b2 & 0x3F));
+      } else if ((b & 0xF0) == 0xE0) {
+        if (src.position() + 1 >= end) throw malformed(src, end);
+        int b2 = src.get() & 0xFF;
+        int b3 = src.get() & 0xFF;
+        if ((b2 & 0xC0) != 0x80 || (b3 & 0xC0) != 0x80) throw malformed(src, end);
+        scratch[count++] = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+      } else {
+        throw malformed(src, end);
+      }
+    }
+    return new String(scratch, 0, count);
+  }
+
+  /**
+   * Function to skip the rest of a malformed frame and build the error to throw
+   */
+  private static UTFDataFormatException malformed(ByteBuffer src, int end) {
+    src.position(end);
+    return new UTFDataFormatException("Malformed modified UTF-8 input");
+  }
+}
@@ -0,0 +1,377 @@
+/**
+ * Off-Heap Key-Value Store
+ *
+ * KeyValueStore keeping every key and value as bytes outside the Java heap, so the heap
+ * stays small and garbage collection stays fast however many entries are stored. Entries live in
+ * chunks handed out by a SlabAllocator, laid out as "keyLen(4) | valLen(4) | key | value".
+ *
+ * The store is split into segments, each with its own lock and its own open-addressing index,
+ * also kept in direct memory. An index slot holds the chunk reference and the key's hash, so most
+ * probes never touch the entry itself, and deletes shift later entries back instead of leaving
+ * tombstones. Byte strings are only created when a caller asks for a value.
+ *
+ * Direct memory is limited by -XX:MaxDirectMemorySize, which defaults to the maximum heap size,
+ * so raise it when running with a small heap.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+public class OffHeapKeyValueStore implements KeyValueStore {
+
+  // Number of segments. Must be a power of two
+  private static final int SEGMENTS = 256;
+
+  // Default number of keys the store is sized for before its indexes first have to grow
+  private static final int DEFAULT_INITIAL_CAPACITY = 1 << 16;
+
+  // Index slot: chunk reference (8), key hash (4), unused (4)
+  private static final int SLOT_SIZE = 16;
+
+  // Indexes grow once they are this full
+  private static final float LOAD_FACTOR = 0.75f;
+
+  // Entry header: key and value lengths
+  private static final int ENTRY_HEADER = 8;
+
+  private final SlabAllocator allocator = new SlabAllocator();
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  /**
+   * Creates an empty store sized for the default number of keys.
+   */
+  public OffHeapKeyValueStore() {
+    this(DEFAULT_INITIAL_CAPACITY);
+  }
+
+  /**
+   * Creates an empty store.
+   *
+   * @param initialCapacity The number of keys to size the indexes for
+   */
+  public OffHeapKeyValueStore(int initialCapacity) {
+    int perSegment = Integer.highestOneBit(Math.max(16, (int) (initialCapacity / LOAD_FACTOR) / SEGMENTS) * 2 - 1);
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(perSegment);
+    }
+  }
+
+  @Override
+  public ByteString get(ByteString key) {
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    segment.lock.readLock().lock();
+    try {
+      int slot = segment.find(hash, key);
+      return slot < 0 ? null : readValue(segment.ref(slot));
+    } finally {
+      segment.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Function to copy the value of a key straight from its chunk into a buffer
+   */
+  @Override
+  public int readValue(ByteString key, ByteBuffer dst) {
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    segment.lock.readLock().lock();
+    try {
+      int slot = segment.find(hash, key);
+      if (slot < 0) return -1;
+      long ref = segment.ref(slot);
+      ByteBuffer page = allocator.page(ref);
+      int offset = SlabAllocator.offset(ref);
+      int length = page.getInt(offset + 4);
+      if (length <= dst.remaining()) {
+        dst.put(dst.position(), page, offset + ENTRY_HEADER + page.getInt(offset), length);
+        dst.position(dst.position() + length);
+      }
+      return length;
+    } finally {
+      segment.lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public ByteString put(ByteString key, ByteString value) {
+    return compute(key, (k, old) -> value, true);
+  }
+
+  @Override
+  public ByteString putIfAbsent(ByteString key, ByteString value) {
+    ByteString[] existing = new ByteString[1];
+    compute(key, (k, old) -> {
+      existing[0] = old;
+      return old != null ? old : value;
+    }, false);
+    return existing[0];
+  }
+
+  @Override
+  public ByteString remove(ByteString key) {
+    return compute(key, (k, old) -> null, true);
+  }
+
+  @Override
+  public ByteString compute(ByteString key, BiFunction<ByteString, ByteString, ByteString> function) {
+    return compute(key, function, false);
+  }
+
+  @Override
+  public void forEach(BiConsumer<ByteString, ByteString> action) {
+    for (Segment segment : segments) {
+      // Copy the segment out first so the action runs without holding its lock
+      ByteString[] keys;
+      ByteString[] values;
+      segment.lock.readLock().lock();
+      try {
+        keys = new ByteString[segment.count];
+        values = new ByteString[segment.count];
+        int n = 0;
+        for (int slot = 0; slot < segment.capacity; slot++) {
+          long ref = segment.ref(slot);
+          if (ref != 0) {
+            keys[n] = readKey(ref);
+            values[n] = readValue(ref);
+            n++;
+          }
+        }
+      } finally {
+        segment.lock.readLock().unlock();
+      }
+      for (int i = 0; i < keys.length; i++) {
+        action.accept(keys[i], values[i]);
+      }
+    }
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.count;
+    }
+    return size;
+  }
+
+  /**
+   * Function to get the amount of direct memory holding entries
+   * @return The size in bytes of the allocated slab pages
+   */
+  public long reservedBytes() {
+    return allocator.reservedBytes();
+  }
+
+  /**
+   * Function to atomically replace the value of a key
+   *
+   * @param function       Computes the new value from the old one, null to remove the key
+   * @param returnPrevious Whether to return the previous value instead of the new one
+   */
+  private ByteString compute(ByteString key, BiFunction<ByteString, ByteString, ByteString> function, boolean returnPrevious) {
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    segment.lock.writeLock().lock();
+    try {
+      int slot = segment.find(hash, key);
+      long oldRef = slot < 0 ? 0 : segment.ref(slot);
+      ByteString old = oldRef == 0 ? null : readValue(oldRef);
+      ByteString updated = function.apply(key, old);
+
+      if (updated == null) {
+        if (oldRef != 0) {
+          segment.delete(slot);
+          free(oldRef);
+        }
+      } else if (updated != old) {
+        long ref = writeEntry(key, updated);
+        if (oldRef != 0) {
+          segment.setRef(slot, ref);
+          free(oldRef);
+        } else {
+          segment.insert(-slot - 1, hash, ref);
+        }
+      }
+      return returnPrevious ? old : updated;
+    } finally {
+      segment.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Function to copy an entry into a newly allocated chunk
+   *
+   * @return The chunk reference
+   */
+  private long writeEntry(ByteString key, ByteString value) {
+    long ref = allocator.allocate(ENTRY_HEADER + key.length() + value.length());
+    ByteBuffer page = allocator.page(ref);
+    int offset = SlabAllocator.offset(ref);
+    page.putInt(offset, key.length());
+    page.putInt(offset + 4, value.length());
+    key.writeTo(page, offset + ENTRY_HEADER);
+    value.writeTo(page, offset + ENTRY_HEADER + key.length());
+    return ref;
+  }
+
+  /**
+   * Function to give an entry's chunk back to the allocator
+   */
+  private void free(long ref) {
+    ByteBuffer page = allocator.page(ref);
+    int offset = SlabAllocator.offset(ref);
+    allocator.free(ref, ENTRY_HEADER + page.getInt(offset) + page.getInt(offset + 4));
+  }
+
+  /**
+   * Function to copy the key of an entry out of its chunk
+   */
+  private ByteString readKey(long ref) {
+    ByteBuffer page = allocator.page(ref);
+    int offset = SlabAllocator.offset(ref);
+    return ByteString.copyOf(page, offset + ENTRY_HEADER, page.getInt(offset));
+  }
+
+  /**
+   * Function to copy the value of an entry out of its chunk
+   */
+  private ByteString readValue(long ref) {
+    ByteBuffer page = allocator.page(ref);
+    int offset = SlabAllocator.offset(ref);
+    return ByteString.copyOf(page, offset + ENTRY_HEADER + page.getInt(offset), page.getInt(offset + 4));
+  }
+
+  /**
+   * Function to check whether an entry has the given key
+   */
+  private boolean keyEquals(long ref, ByteString key) {
+    ByteBuffer page = allocator.page(ref);
+    int offset = SlabAllocator.offset(ref);
+    return page.getInt(offset) == key.length() && key.contentEquals(page, offset + ENTRY_HEADER);
+  }
+
+  /**
+   * Function to spread a key's hash code so both the segment (upper bits) and the index slot
+   * (lower bits) depend on all of it
+   */
+  private static int hash(ByteString key) {
+    int h = key.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private Segment segmentFor(int hash) {
+    return segments[hash >>> (32 - Integer.numberOfTrailingZeros(SEGMENTS))];
+  }
+
+  /**
+   * Part of the store with its own lock and open-addressing index (linear probing).
+   */
+  private final class Segment {
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Slots, SLOT_SIZE bytes each. A slot with reference 0 is empty
+    ByteBuffer index;
+    int capacity;
+    int mask;
+
+    // Entries in this segment. Written under the write lock, read without a lock by size
+    volatile int count;
+
+    Segment(int capacity) {
+      allocateIndex(capacity);
+    }
+
+    /**
+     * Function to find a key
+     *
+     * @return The slot holding the key, or -(insertion slot) - 1 if it is not in the index
+     */
+    int find(int hash, ByteString key) {
+      int slot = hash & mask;
+      while (true) {
+        long ref = ref(slot);
+        if (ref == 0) return -slot - 1;
+        if (hash(slot) == hash && keyEquals(ref, key)) return slot;
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    /**
+     * Function to add an entry at the empty slot returned by find
+     */
+    void insert(int slot, int hash, long ref) {
+      index.putInt(slot * SLOT_SIZE + 8, hash);
+      setRef(slot, ref);
+      count++;
+      if (count > capacity * LOAD_FACTOR) {
+        resize(capacity * 2);
+      }
+    }
+
+    /**
+     * Function to empty a slot, moving later entries of the same probe run back so that lookups
+     * never stop early at the hole
+     */
+    void delete(int slot) {
+      int hole = slot;
+      int next = slot;
+      while (true) {
+        next = (next + 1) & mask;
+        long ref = ref(next);
+        if (ref == 0) break;
+        int home = hash(next) & mask;
+        // Move the entry if the hole lies between its home slot and where it is now
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          index.putInt(hole * SLOT_SIZE + 8, hash(next));
+          setRef(hole, ref);
+          hole = next;
+        }
+      }
+      setRef(hole, 0);
+      count--;
+    }
+
+    long ref(int slot) {
+      return index.getLong(slot * SLOT_SIZE);
+    }
+
+    void setRef(int slot, long ref) {
+      index.putLong(slot * SLOT_SIZE, ref);
+    }
+
+    int hash(int slot) {
+      return index.getInt(slot * SLOT_SIZE + 8);
+    }
+
+    /**
+     * Function to move every entry into an index of a new size
+     */
+    private void resize(int newCapacity) {
+      ByteBuffer oldIndex = index;
+      int oldCapacity = capacity;
+      allocateIndex(newCapacity);
+      for (int slot = 0; slot < oldCapacity; slot++) {
+        long ref = oldIndex.getLong(slot * SLOT_SIZE);
+        if (ref == 0) continue;
+        int hash = oldIndex.getInt(slot * SLOT_SIZE + 8);
+        int target = hash & mask;
+        while (ref(target) != 0) {
+          target = (target + 1) & mask;
+        }
+        index.putInt(target * SLOT_SIZE + 8, hash);
+        setRef(target, ref);
+      }
+    }
+
+    private void allocateIndex(int newCapacity) {
+      // Direct buffers start zeroed, so every slot starts empty
+      index = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+      capacity = newCapacity;
+      mask = newCapacity - 1;
+    }
+  }
+}
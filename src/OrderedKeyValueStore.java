@@ -0,0 +1,120 @@
+/**
+ * Ordered Key-Value Store
+ *
+ * KeyValueStore decorator keeping every key in a sorted index next to the store's hash table, so
+ * keys can be scanned in order: all the keys with a prefix, or all the keys in a range. Point
+ * reads go straight to the hash table and never touch the index.
+ *
+ * The index is a ConcurrentSkipListSet of the keys, ordered byte by byte. A key is added or
+ * removed inside the store's atomic compute, so the index sees the changes to a key in the order
+ * they were applied; replacing the value of a key leaves the index alone. Scans walk the skip
+ * list without taking any lock and read each value from the store, so scans and writers never
+ * wait for each other. A scan may meet a key a moment before its value is stored, and skips it.
+ *
+ * The index shares the key objects of the heap store, so it costs one skip-list node per key,
+ * about 40 bytes. The keys of an off-heap store are kept on the heap for the index as well.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+
+public class OrderedKeyValueStore implements KeyValueStore {
+
+  // Store holding the data
+  private final KeyValueStore delegate;
+
+  // Every key of the store, in ascending byte order
+  private final ConcurrentSkipListSet<ByteString> index = new ConcurrentSkipListSet<ByteString>();
+
+  /**
+   * Creates an ordered store.
+   *
+   * @param delegate The empty store to hold the data
+   */
+  public OrderedKeyValueStore(KeyValueStore delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public ByteString get(ByteString key) {
+    return delegate.get(key);
+  }
+
+  @Override
+  public int readValue(ByteString key, ByteBuffer dst) {
+    return delegate.readValue(key, dst);
+  }
+
+  @Override
+  public ByteString put(ByteString key, ByteString value) {
+    ByteString[] previous = new ByteString[1];
+    compute(key, (k, old) -> {
+      previous[0] = old;
+      return value;
+    });
+    return previous[0];
+  }
+
+  @Override
+  public ByteString putIfAbsent(ByteString key, ByteString value) {
+    ByteString[] existing = new ByteString[1];
+    compute(key, (k, old) -> {
+      existing[0] = old;
+      return old != null ? old : value;
+    });
+    return existing[0];
+  }
+
+  @Override
+  public ByteString remove(ByteString key) {
+    ByteString[] removed = new ByteString[1];
+    compute(key, (k, old) -> {
+      removed[0] = old;
+      return null;
+    });
+    return removed[0];
+  }
+
+  @Override
+  public ByteString compute(ByteString key, BiFunction<ByteString, ByteString, ByteString> function) {
+    return delegate.compute(key, (k, old) -> {
+      ByteString updated = function.apply(k, old);
+      if (updated != null && old == null) {
+        index.add(k);
+      } else if (updated == null && old != null) {
+        index.remove(k);
+      }
+      return updated;
+    });
+  }
+
+  @Override
+  public ByteString[] getAll(ByteString[] keys) {
+    return delegate.getAll(keys);
+  }
+
+  @Override
+  public void forEach(BiConsumer<ByteString, ByteString> action) {
+    delegate.forEach(action);
+  }
+
+  @Override
+  public void scan(ByteString from, ByteString to, BiPredicate<ByteString, ByteString> visitor) {
+    if (to != null && from.compareTo(to) >= 0) return;
+    NavigableSet<ByteString> keys = to == null ? index.tailSet(from, true) : index.subSet(from, true, to, false);
+    for (ByteString key : keys) {
+      ByteString value = delegate.get(key);
+      // A key being added is indexed a moment before its value is stored
+      if (value != null && !visitor.test(key, value)) return;
+    }
+  }
+
+  @Override
+  public int size() {
+    return delegate.size();
+  }
+}
@@ -0,0 +1,478 @@
+/**
+ * Pipelined TCP Client
+ *
+ * Client library for the pipelined TCP protocol (protocol version 2). Any number of requests can
+ * be in flight on one connection: send returns immediately with a future, and a reader thread
+ * completes each future when the response carrying its request id arrives, in whatever order
+ * the server answers. Batch workloads are therefore limited by bandwidth rather than round trips.
+ *
+ * Keys and values are bytes (ByteString). Every method also takes strings, which it sends as
+ * UTF-8.
+ *
+ * The client is safe to use from several threads at once.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PipelinedTCPClient implements Closeable {
+
+  // Connection to the server and its streams
+  private final Socket socket;
+  private final DataInputStream dataIn;
+  private final DataOutputStream dataOut;
+
+  // Requests waiting for their response, keyed by request id
+  private final ConcurrentHashMap<Integer, CompletableFuture<Response>> pending =
+          new ConcurrentHashMap<Integer, CompletableFuture<Response>>();
+
+  // Id of the next request
+  private final AtomicInteger nextRequestId = new AtomicInteger();
+
+  // Thread reading responses and completing their futures
+  private final Thread reader;
+
+  private volatile boolean closed;
+
+  /**
+   * Connects to a server and switches the connection to the pipelined protocol.
+   *
+   * @param host      The server IP address or host name
+   * @param port      The server port
+   * @param timeoutMs Timeout for connecting and for the handshake, in milliseconds
+   * @throws IOException If the connection or the handshake fails
+   */
+  public PipelinedTCPClient(String host, int port, int timeoutMs) throws IOException {
+    socket = new Socket();
+    socket.connect(new InetSocketAddress(host, port), timeoutMs);
+    socket.setTcpNoDelay(true);
+    dataIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+    // The handshake is a plain text protocol exchange
+    socket.setSoTimeout(timeoutMs);
+    dataOut.writeUTF(Protocol.PIPELINE_HANDSHAKE);
+    dataOut.flush();
+    String reply = dataIn.readUTF();
+    if (!reply.startsWith("1:")) {
+      socket.close();
+      throw new ProtocolException("Server refused pipelined protocol: " + reply);
+    }
+    // Responses may legitimately take a while when many requests are queued
+    socket.setSoTimeout(0);
+
+    reader = new Thread(this::readResponses, "pipelined-client-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Function to send a request without waiting for its response
+   *
+   * @param opcode The command, one of the Protocol.OP_* constants
+   * @param key    The key, or ByteString.EMPTY
+   * @param value  The value, or ByteString.EMPTY
+   * @return A future completed with the response, or exceptionally if the connection fails
+   */
+  public CompletableFuture<Response> send(byte opcode, ByteString key, ByteString value) {
+    return submit(new Request(opcode, nextRequestId.getAndIncrement(), key, value));
+  }
+
+  /**
+   * Function to send a request without waiting for its response
+   *
+   * @param opcode The command, one of the Protocol.OP_* constants
+   * @param key    The key, or an empty string
+   * @param value  The value, or an empty string
+   * @return A future completed with the response, or exceptionally if the connection fails
+   */
+  public CompletableFuture<Response> send(byte opcode, String key, String value) {
+    return send(opcode, ByteString.of(key), ByteString.of(value));
+  }
+
+  /**
+   * Function to send a batch command without waiting for its response
+   *
+   * @param opcode Protocol.OP_MGET, OP_MPUT or OP_MDELETE
+   * @param keys   The keys the command works on
+   * @param values The values for an MPUT, one per key, or null for other commands
+   * @return A future completed with the batch response
+   */
+  public CompletableFuture<Response> sendBatch(byte opcode, ByteString[] keys, ByteString[] values) {
+    return submit(new Request(opcode, nextRequestId.getAndIncrement(), keys, values));
+  }
+
+  /**
+   * Function to send a batch command without waiting for its response
+   *
+   * @param opcode Protocol.OP_MGET, OP_MPUT or OP_MDELETE
+   * @param keys   The keys the command works on
+   * @param values The values for an MPUT, one per key, or null for other commands
+   * @return A future completed with the batch response
+   */
+  public CompletableFuture<Response> sendBatch(byte opcode, String[] keys, String[] values) {
+    return sendBatch(opcode, ByteString.of(keys), ByteString.of(values));
+  }
+
+  /**
+   * Function to send one chunk of a streamed value without waiting for its response. Most
+   * callers use putStream and getStream of KeyValueClient instead
+   *
+   * @param opcode     Protocol.OP_PUT_CHUNK or OP_GET_CHUNK
+   * @param key        The key
+   * @param streamId   The id of the transfer the chunk belongs to
+   * @param chunkIndex The index of the chunk in the value
+   * @param chunk      The chunk for a PUT_CHUNK, or ByteString.EMPTY
+   * @param last       True on the last chunk of a PUT_CHUNK
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> sendChunk(byte opcode, ByteString key, int streamId, int chunkIndex,
+                                               ByteString chunk, boolean last) {
+    return submit(new Request(opcode, nextRequestId.getAndIncrement(), key, chunk, streamId, chunkIndex, last));
+  }
+
+  /**
+   * Function to ask for one page of a SCAN or RANGE without waiting for its response. Most
+   * callers use scan and range of KeyValueClient instead, which follow the pages
+   *
+   * @param opcode Protocol.OP_SCAN or OP_RANGE
+   * @param key    The prefix of a SCAN, or the first key of a RANGE
+   * @param value  Where a SCAN page starts (empty for the first page), or the key a RANGE stops
+   *               before (empty for no end)
+   * @param limit  The most key-value pairs the page may hold
+   * @return A future completed with the page, or an error response
+   */
+  public CompletableFuture<Response> sendScan(byte opcode, ByteString key, ByteString value, int limit) {
+    return submit(new Request(opcode, nextRequestId.getAndIncrement(), limit, key, value));
+  }
+
+  /**
+   * Function to register a request as in flight and write it to the server
+   *
+   * @param request The request to send
+   * @return A future completed with the response
+   */
+  private CompletableFuture<Response> submit(Request request) {
+    CompletableFuture<Response> future = new CompletableFuture<Response>();
+    if (closed) {
+      future.completeExceptionally(new IOException("Client is closed"));
+      return future;
+    }
+    pending.put(request.requestId, future);
+    if (closed) {
+      // The reader failed after the check above and may already have failed the other requests
+      pending.remove(request.requestId);
+      future.completeExceptionally(new IOException("Client is closed"));
+      return future;
+    }
+    try {
+      byte[] frame = Protocol.encodeRequestFrame(request);
+      synchronized (dataOut) {
+        dataOut.write(frame);
+        dataOut.flush();
+      }
+    } catch (IOException e) {
+      pending.remove(request.requestId);
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Function to send a GET request
+   *
+   * @param key The key to read
+   * @return A future completed with the response; its value is the value read
+   */
+  public CompletableFuture<Response> get(ByteString key) {
+    return send(Protocol.OP_GET, key, ByteString.EMPTY);
+  }
+
+  /**
+   * Function to send a GET request
+   *
+   * @param key The key to read
+   * @return A future completed with the response; its value is the value read
+   */
+  public CompletableFuture<Response> get(String key) {
+    return get(ByteString.of(key));
+  }
+
+  /**
+   * Function to send a GET request asking for a lean response, which carries the value and no
+   * message
+   *
+   * @param key The key to read
+   * @return A future completed with the response; its value is the value read and its message
+   *         is empty
+   */
+  public CompletableFuture<Response> getLean(ByteString key) {
+    return send((byte) (Protocol.OP_GET | Protocol.FLAG_LEAN), key, ByteString.EMPTY);
+  }
+
+  /**
+   * Function to send a GET request asking for a lean response, which carries the value and no
+   * message
+   *
+   * @param key The key to read
+   * @return A future completed with the response; its value is the value read and its message
+   *         is empty
+   */
+  public CompletableFuture<Response> getLean(String key) {
+    return getLean(ByteString.of(key));
+  }
+
+  /**
+   * Function to send a PUT request
+   *
+   * @param key   The key to store
+   * @param value The value associated with the key
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> put(ByteString key, ByteString value) {
+    return send(Protocol.OP_PUT, key, value);
+  }
+
+  /**
+   * Function to send a PUT request
+   *
+   * @param key   The key to store
+   * @param value The value associated with the key
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> put(String key, String value) {
+    return put(ByteString.of(key), ByteString.of(value));
+  }
+
+  /**
+   * Function to send a PUTEX request, storing a value that expires
+   *
+   * @param key       The key to store
+   * @param value     The value associated with the key
+   * @param ttlMillis How long the key lives, in milliseconds
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> put(ByteString key, ByteString value, long ttlMillis) {
+    return submit(new Request(Protocol.OP_PUTEX, nextRequestId.getAndIncrement(), key, value, ttlMillis));
+  }
+
+  /**
+   * Function to send a PUTEX request, storing a value that expires
+   *
+   * @param key       The key to store
+   * @param value     The value associated with the key
+   * @param ttlMillis How long the key lives, in milliseconds
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> put(String key, String value, long ttlMillis) {
+    return put(ByteString.of(key), ByteString.of(value), ttlMillis);
+  }
+
+  /**
+   * Function to send a DELETE request
+   *
+   * @param key The key to remove
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> delete(ByteString key) {
+    return send(Protocol.OP_DELETE, key, ByteString.EMPTY);
+  }
+
+  /**
+   * Function to send a DELETE request
+   *
+   * @param key The key to remove
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> delete(String key) {
+    return delete(ByteString.of(key));
+  }
+
+  /**
+   * Function to send an INCR request, adding to a counter in one atomic step
+   *
+   * @param key   The key of the counter
+   * @param delta The amount to add, negative to decrement
+   * @return A future completed with the response; its value is the new counter, in decimal
+   */
+  public CompletableFuture<Response> incr(ByteString key, long delta) {
+    return submit(new Request(Protocol.OP_INCR, nextRequestId.getAndIncrement(), key, delta));
+  }
+
+  /**
+   * Function to send an INCR request, adding to a counter in one atomic step
+   *
+   * @param key   The key of the counter
+   * @param delta The amount to add, negative to decrement
+   * @return A future completed with the response; its value is the new counter, in decimal
+   */
+  public CompletableFuture<Response> incr(String key, long delta) {
+    return incr(ByteString.of(key), delta);
+  }
+
+  /**
+   * Function to send a CAS request, replacing a value only if the key still holds the expected one
+   *
+   * @param key      The key to update
+   * @param expected The value the key must hold, or null if it must not exist
+   * @param value    The new value
+   * @return A future completed with the response, whose status is Protocol.STATUS_MISMATCH,
+   *         with the value found, if nothing was replaced
+   */
+  public CompletableFuture<Response> cas(ByteString key, ByteString expected, ByteString value) {
+    return submit(new Request(Protocol.OP_CAS, nextRequestId.getAndIncrement(), key, expected, value));
+  }
+
+  /**
+   * Function to send a CAS request, replacing a value only if the key still holds the expected one
+   *
+   * @param key      The key to update
+   * @param expected The value the key must hold, or null if it must not exist
+   * @param value    The new value
+   * @return A future completed with the response, whose status is Protocol.STATUS_MISMATCH,
+   *         with the value found, if nothing was replaced
+   */
+  public CompletableFuture<Response> cas(String key, String expected, String value) {
+    return cas(ByteString.of(key), expected == null ? null : ByteString.of(expected), ByteString.of(value));
+  }
+
+  /**
+   * Function to send an APPEND request, adding to the end of a value in one atomic step
+   *
+   * @param key   The key to update
+   * @param value The bytes to append
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> append(ByteString key, ByteString value) {
+    return send(Protocol.OP_APPEND, key, value);
+  }
+
+  /**
+   * Function to send an APPEND request, adding to the end of a value in one atomic step
+   *
+   * @param key   The key to update
+   * @param value The bytes to append
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> append(String key, String value) {
+    return append(ByteString.of(key), ByteString.of(value));
+  }
+
+  /**
+   * Function to read many keys with one request
+   *
+   * @param keys The keys to read
+   * @return A future completed with the batch response; its values are the values read
+   */
+  public CompletableFuture<Response> mget(String[] keys) {
+    return sendBatch(Protocol.OP_MGET, keys, null);
+  }
+
+  /**
+   * Function to store many key-value pairs with one request
+   *
+   * @param keys   The keys to store
+   * @param values The value for each key
+   * @return A future completed with the batch response
+   */
+  public CompletableFuture<Response> mput(String[] keys, String[] values) {
+    return sendBatch(Protocol.OP_MPUT, keys, values);
+  }
+
+  /**
+   * Function to remove many keys with one request
+   *
+   * @param keys The keys to remove
+   * @return A future completed with the batch response
+   */
+  public CompletableFuture<Response> mdelete(String[] keys) {
+    return sendBatch(Protocol.OP_MDELETE, keys, null);
+  }
+
+  /**
+   * Function to send a STATS request
+   * @return A future completed with the response; its value is the server metrics text
+   */
+  public CompletableFuture<Response> stats() {
+    return send(Protocol.OP_STATS, ByteString.EMPTY, ByteString.EMPTY);
+  }
+
+  /**
+   * Function to check whether the connection can still send requests
+   * @return False once the client is closed or the connection has failed
+   */
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  /**
+   * Function to get the number of requests still waiting for a response
+   * @return The number of requests in flight
+   */
+  public int inFlight() {
+    return pending.size();
+  }
+
+  /**
+   * Sends QUIT and closes the connection. Requests still in flight fail.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    try {
+      synchronized (dataOut) {
+        dataOut.write(Protocol.encodeRequestFrame(new Request(Protocol.OP_QUIT, 0, ByteString.EMPTY, ByteString.EMPTY)));
+        dataOut.flush();
+      }
+    } finally {
+      socket.close();
+      failPending(new IOException("Client is closed"));
+    }
+  }
+
+  /**
+   * Function run by the reader thread to complete futures as responses arrive
+   */
+  private void readResponses() {
+    try {
+      while (true) {
+        int length = dataIn.readInt();
+        Protocol.checkFrameLength(length);
+        byte[] frame = new byte[length];
+        dataIn.readFully(frame);
+        Response response = Protocol.decodeResponse(ByteBuffer.wrap(frame));
+        CompletableFuture<Response> future = pending.remove(response.requestId);
+        if (future != null) {
+          future.complete(response);
+        }
+      }
+    } catch (IOException e) {
+      closed = true;
+      failPending(e);
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+        // Already failing every request
+      }
+    }
+  }
+
+  /**
+   * Function to fail every request still waiting for a response
+   *
+   * @param cause The reason the requests failed
+   */
+  private void failPending(IOException cause) {
+    for (Integer requestId : pending.keySet()) {
+      CompletableFuture<Response> future = pending.remove(requestId);
+      if (future != null) {
+        future.completeExceptionally(cause);
+      }
+    }
+  }
+}
@@ -0,0 +1,737 @@
+/**
+ * Protocol
+ *
+ * Compact binary framing that fits a whole request or response in one message, so a UDP command
+ * is a single datagram. All integers are big-endian. Keys and values are opaque bytes, copied
+ * as they are; only messages are text, in UTF-8.
+ *
+ * Request:  opcode (1) | request id (4) | key length (2) | key | value length (4) | value
+ * Response: status (1) | request id (4) | value length (4, -1 if no value) | value |
+ *           message length (2) | message
+ *
+ * Batch commands (MGET, MPUT, MDELETE) move many keys in one message. Their requests replace the
+ * single key and value with a count (2) followed by that many key length | key | value length |
+ * value entries. Their responses have status STATUS_BATCH and replace the value and message
+ * with a count (2) followed by that many status (1) | value length (4, -1 if none) | value.
+ *
+ * Setting FLAG_LEAN in the opcode of a single-key request asks for a lean response, which drops
+ * the message and uses status LEAN_OK or LEAN_ERROR:
+ *
+ * Lean response: status (1) | request id (4) | value length (4, -1 if no value) | value
+ *
+ * A lean GET response is little more than the value, and the server copies the value straight
+ * from the store into its output buffer without building any strings. A lean error response has
+ * no value if the key does not exist; if the request failed for another reason, its value is the
+ * error message.
+ *
+ * PUTEX stores a value that expires: its request is a PUT request followed by the time to live
+ * in milliseconds (8).
+ *
+ * STATS has an empty key and value; its response value is the server's metrics as "name:value"
+ * lines.
+ *
+ * Values of up to MAX_VALUE_SIZE bytes are moved in chunks of at most CHUNK_BYTES bytes, each in its
+ * own message, so no message needs to hold the whole value. Chunk requests are single-key
+ * requests followed by a stream id (4), chosen by the client for the transfer, a chunk index (4)
+ * and a flags byte (1), CHUNK_LAST on the last chunk of a PUT_CHUNK:
+ *
+ *   PUT_CHUNK: the value is chunk number index of the new value; the server assembles the chunks
+ *              of a stream, in any order, and stores the value once it has all of them
+ *   GET_CHUNK: the response value is chunk number index of the value, and the message is the
+ *              value's total length in bytes. The value read by the first chunk request of
+ *              a stream is kept for its other chunks, so they all come from the same value
+ *
+ * Chunk requests can't ask for lean responses.
+ *
+ * SCAN and RANGE read the keys of a store with an ordered index in ascending byte order, one
+ * bounded page per request. Their requests are single-key requests followed by the most pairs
+ * the page may hold (2):
+ *
+ *   SCAN:  the key is a prefix, and the value the key the page starts at, empty for the first
+ *          page; the page holds the keys starting with the prefix
+ *   RANGE: the key is the first key, and the value the key to stop before, empty for no end
+ *
+ * Their responses have status STATUS_PAGE and hold at most MAX_PAGE_BYTES of pairs, but at least
+ * one, so a scan of any size never builds a large message:
+ *
+ * Page response: status (1) | request id (4) | next length (4, -1 on the last page) | next |
+ *                count (2) | that many key length (2) | key | value length (4) | value
+ *
+ * where next is the key the following page starts at: the same request with the value replaced
+ * by next for a SCAN, or the key replaced by next for a RANGE. Scans can't ask for lean
+ * responses.
+ *
+ * INCR, CAS and APPEND change a value in one atomic step on the server, so concurrent clients
+ * never lose each other's updates. They are single-key requests:
+ *
+ *   INCR:   the value is empty and followed by the amount to add (8), negative to decrement.
+ *           The value of the key is a decimal integer, 0 if the key does not exist, and the
+ *           response value is the new one
+ *   CAS:    the value is the new value, followed by the value the key is expected to hold,
+ *           as expected length (4, -1 if the key must not exist) | expected. If the key holds
+ *           another value nothing is replaced and the response has status STATUS_MISMATCH,
+ *           with the value found (none if the key does not exist) so the client can retry
+ *   APPEND: the value is added to the end of the key's value, or stored if the key does not
+ *           exist
+ *
+ * Atomic updates can't ask for lean responses.
+ *
+ * Over UDP a client that gets no response resends the request with the same request id. The
+ * server remembers its recent responses to writes by client address and request id (see
+ * ReplyCache) and answers a resent write from there instead of executing it again.
+ *
+ * Over TCP the same messages are used by protocol version 2, which supports pipelining. A client
+ * switches a connection to version 2 by sending PIPELINE_HANDSHAKE as its first writeUTF string;
+ * the server acknowledges with a writeUTF "1:" message. From then on every message in either
+ * direction is a frame: length (4) | message. A client may send any number of requests without
+ * waiting, and the server writes each response as soon as it completes, possibly out of order,
+ * so the request id is what ties a response to its request.
+ */
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class Protocol {
+
+  // Opcodes
+  public static final byte OP_GET = 1;
+  public static final byte OP_PUT = 2;
+  public static final byte OP_DELETE = 3;
+  public static final byte OP_QUIT = 4;
+  public static final byte OP_MGET = 5;
+  public static final byte OP_MPUT = 6;
+  public static final byte OP_MDELETE = 7;
+  public static final byte OP_PUTEX = 8;
+  public static final byte OP_STATS = 9;
+  public static final byte OP_PUT_CHUNK = 10;
+  public static final byte OP_GET_CHUNK = 11;
+  public static final byte OP_SCAN = 12;
+  public static final byte OP_RANGE = 13;
+  public static final byte OP_INCR = 14;
+  public static final byte OP_CAS = 15;
+  public static final byte OP_APPEND = 16;
+
+  // Opcode bit asking for a lean response to a single-key request
+  public static final byte FLAG_LEAN = (byte) 0x80;
+
+  // Flag of the last chunk of a PUT_CHUNK stream
+  public static final byte CHUNK_LAST = 1;
+
+  // Bytes in each chunk of a streamed value, which fits a UDP datagram easily
+  public static final int CHUNK_BYTES = 8192;
+
+  // Response status codes, matching the "1" and "-1" prefixes of the text protocol
+  public static final byte STATUS_OK = 1;
+  public static final byte STATUS_ERROR = -1;
+
+  // Status of a response carrying one result per key of a batch command
+  public static final byte STATUS_BATCH = 2;
+
+  // Statuses of lean responses, which carry no message
+  public static final byte STATUS_LEAN_OK = 3;
+  public static final byte STATUS_LEAN_ERROR = 4;
+
+  // Status of a response carrying a page of a SCAN or RANGE
+  public static final byte STATUS_PAGE = 5;
+
+  // Status of a CAS that found another value than it expected, and replaced nothing
+  public static final byte STATUS_MISMATCH = 6;
+
+  // Bytes of pairs a page holds at most, unless its first pair alone is larger. Leaves room in a
+  // UDP datagram for the rest of the response
+  public static final int MAX_PAGE_BYTES = 32 * 1024;
+
+  // Size of a lean response without its value
+  public static final int LEAN_HEADER_SIZE = 1 + 4 + 4;
+
+  // Most keys a batch command can carry
+  public static final int MAX_BATCH_SIZE = 0xFFFF;
+
+  // Largest payload a single UDP datagram can carry
+  public static final int MAX_DATAGRAM_SIZE = 65507;
+
+  // Longest key that fits the 2-byte key length
+  public static final int MAX_KEY_BYTES = 0xFFFF;
+
+  // Command a TCP client sends to switch its connection to the pipelined protocol
+  public static final String PIPELINE_HANDSHAKE = "V2";
+
+  // Largest TCP frame either side accepts, so a corrupt length can't exhaust memory
+  public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+  // Largest value the server stores, whether it comes in one request or in chunks: a GET response
+  // carrying it and the longest message still fits one frame. The write-ahead log and replication
+  // accept every record holding such a value
+  public static final int MAX_VALUE_SIZE = MAX_FRAME_SIZE - (1 + 4 + 4 + 2 + 0xFFFF);
+
+  private Protocol() {
+  }
+
+  /**
+   * Function to write a request into a buffer
+   *
+   * @param request The request to encode
+   * @param dst     The buffer to write into
+   * @throws ProtocolException If the key is too long for the framing
+   * @throws java.nio.BufferOverflowException If the request does not fit the buffer
+   */
+  public static void encodeRequest(Request request, ByteBuffer dst) throws ProtocolException {
+    dst.put(request.opcode);
+    dst.putInt(request.requestId);
+    byte opcode = baseOpcode(request.opcode);
+    if (!isBatch(opcode)) {
+      encodeEntry(request.key, request.value, dst);
+      if (opcode == OP_PUTEX) dst.putLong(request.ttlMillis);
+      if (isChunk(opcode)) {
+        dst.putInt(request.streamId);
+        dst.putInt(request.chunkIndex);
+        dst.put(request.lastChunk ? CHUNK_LAST : 0);
+      }
+      if (isScan(opcode)) dst.putShort((short) Math.min(request.limit, MAX_BATCH_SIZE));
+      if (opcode == OP_INCR) dst.putLong(request.delta);
+      if (opcode == OP_CAS) encodeValue(request.expected, dst);
+      return;
+    }
+    if (request.keys.length > MAX_BATCH_SIZE) {
+      throw new ProtocolException("Batch size exceeds " + MAX_BATCH_SIZE + " keys");
+    }
+    dst.putShort((short) request.keys.length);
+    for (int i = 0; i < request.keys.length; i++) {
+      encodeEntry(request.keys[i], request.values == null ? ByteString.EMPTY : request.values[i], dst);
+    }
+  }
+
+  /**
+   * Function to write one key length | key | value length | value entry
+   */
+  private static void encodeEntry(ByteString key, ByteString value, ByteBuffer dst) throws ProtocolException {
+    if (key.length() > MAX_KEY_BYTES) {
+      throw new ProtocolException("Key length exceeds " + MAX_KEY_BYTES + " bytes");
+    }
+    dst.putShort((short) key.length());
+    key.writeTo(dst);
+    dst.putInt(value.length());
+    value.writeTo(dst);
+  }
+
+  /**
+   * Function to check whether an opcode is a batch command
+   *
+   * @param opcode The opcode to check
+   * @return True for MGET, MPUT and MDELETE
+   */
+  public static boolean isBatch(byte opcode) {
+    return opcode == OP_MGET || opcode == OP_MPUT || opcode == OP_MDELETE;
+  }
+
+  /**
+   * Function to check whether an opcode moves one chunk of a streamed value
+   *
+   * @param opcode The opcode to check
+   * @return True for PUT_CHUNK and GET_CHUNK
+   */
+  public static boolean isChunk(byte opcode) {
+    return opcode == OP_PUT_CHUNK || opcode == OP_GET_CHUNK;
+  }
+
+  /**
+   * Function to check whether an opcode reads a page of keys in order
+   *
+   * @param opcode The opcode to check
+   * @return True for SCAN and RANGE
+   */
+  public static boolean isScan(byte opcode) {
+    return opcode == OP_SCAN || opcode == OP_RANGE;
+  }
+
+  /**
+   * Function to check whether an opcode changes a value in one atomic read-modify-write step
+   *
+   * @param opcode The opcode to check
+   * @return True for INCR, CAS and APPEND
+   */
+  public static boolean isUpdate(byte opcode) {
+    return opcode == OP_INCR || opcode == OP_CAS || opcode == OP_APPEND;
+  }
+
+  /**
+   * Function to check whether a command changes the store, so executing it twice may give a
+   * different result than executing it once
+   *
+   * @param opcode The opcode as sent
+   * @return True for PUT, PUTEX, DELETE, MPUT, MDELETE, PUT_CHUNK, INCR, CAS and APPEND
+   */
+  public static boolean isWrite(byte opcode) {
+    byte base = baseOpcode(opcode);
+    return base == OP_PUT || base == OP_PUTEX || base == OP_DELETE || base == OP_MPUT || base == OP_MDELETE
+            || base == OP_PUT_CHUNK || isUpdate(base);
+  }
+
+  /**
+   * Function to get an opcode without its flags
+   *
+   * @param opcode The opcode as sent
+   * @return The command, one of the OP_* constants
+   */
+  public static byte baseOpcode(byte opcode) {
+    return (byte) (opcode & ~FLAG_LEAN);
+  }
+
+  /**
+   * Function to check whether a request asks for a lean response
+   *
+   * @param opcode The opcode as sent
+   * @return True if FLAG_LEAN is set
+   */
+  public static boolean isLean(byte opcode) {
+    return (opcode & FLAG_LEAN) != 0;
+  }
+
+  /**
+   * Function to read a request from a buffer holding exactly one request
+   *
+   * @param src The buffer in read mode
+   * @return The decoded request
+   * @throws ProtocolException If the request is truncated or has trailing bytes
+   */
+  public static Request decodeRequest(ByteBuffer src) throws ProtocolException {
+    if (src.remaining() < 1 + 4 + 2) {
+      throw new ProtocolException("Request too short");
+    }
+    byte opcode = src.get();
+    int requestId = src.getInt();
+    Request request;
+    if (isBatch(baseOpcode(opcode))) {
+      if (isLean(opcode)) {
+        throw new ProtocolException("Lean responses are only available for single-key commands");
+      }
+      int count = src.getShort() & 0xFFFF;
+      ByteString[] keys = new ByteString[count];
+      ByteString[] values = new ByteString[count];
+      for (int i = 0; i < count; i++) {
+        keys[i] = readKey(src);
+        values[i] = readValue(src);
+      }
+      request = new Request(opcode, requestId, keys, opcode == OP_MPUT ? values : null);
+    } else {
+      ByteString key = readKey(src);
+      ByteString value = readValue(src);
+      long ttlMillis = 0;
+      if (baseOpcode(opcode) == OP_PUTEX) {
+        if (src.remaining() < 8) {
+          throw new ProtocolException("Request too short");
+        }
+        ttlMillis = src.getLong();
+      }
+      if (isChunk(baseOpcode(opcode))) {
+        if (isLean(opcode)) {
+          throw new ProtocolException("Lean responses are only available for single-key commands");
+        }
+        if (src.remaining() < 4 + 4 + 1) {
+          throw new ProtocolException("Request too short");
+        }
+        int streamId = src.getInt();
+        int chunkIndex = src.getInt();
+        boolean last = (src.get() & CHUNK_LAST) != 0;
+        request = new Request(opcode, requestId, key, value, streamId, chunkIndex, last);
+      } else if (isScan(baseOpcode(opcode))) {
+        if (isLean(opcode)) {
+          throw new ProtocolException("Lean responses are only available for single-key commands");
+        }
+        if (src.remaining() < 2) {
+          throw new ProtocolException("Request too short");
+        }
+        request = new Request(opcode, requestId, src.getShort() & 0xFFFF, key, value);
+      } else if (isUpdate(baseOpcode(opcode))) {
+        if (isLean(opcode)) {
+          throw new ProtocolException("Lean responses are only available for single-key commands");
+        }
+        if (opcode == OP_INCR) {
+          if (src.remaining() < 8) {
+            throw new ProtocolException("Request too short");
+          }
+          request = new Request(opcode, requestId, key, src.getLong());
+        } else if (opcode == OP_CAS) {
+          if (src.remaining() < 4) {
+            throw new ProtocolException("Request too short");
+          }
+          int expectedLength = src.getInt();
+          request = new Request(opcode, requestId, key, expectedLength == -1 ? null : readBytes(src, expectedLength),
+                  value);
+        } else {
+          request = new Request(opcode, requestId, key, value);
+        }
+      } else {
+        request = new Request(opcode, requestId, key, value, ttlMillis);
+      }
+    }
+    if (src.hasRemaining()) {
+      throw new ProtocolException("Unexpected bytes after request");
+    }
+    return request;
+  }
+
+  /**
+   * Function to read a key with its 2-byte length
+   */
+  private static ByteString readKey(ByteBuffer src) throws ProtocolException {
+    if (src.remaining() < 2) {
+      throw new ProtocolException("Request too short");
+    }
+    return readBytes(src, src.getShort() & 0xFFFF);
+  }
+
+  /**
+   * Function to read a value with its 4-byte length
+   */
+  private static ByteString readValue(ByteBuffer src) throws ProtocolException {
+    if (src.remaining() < 4) {
+      throw new ProtocolException("Request too short");
+    }
+    return readBytes(src, src.getInt());
+  }
+
+  /**
+   * Function to write a response into a buffer
+   *
+   * @param response The response to encode
+   * @param dst      The buffer to write into
+   * @throws java.nio.BufferOverflowException If the response does not fit the buffer
+   */
+  public static void encodeResponse(Response response, ByteBuffer dst) {
+    dst.put(response.status);
+    dst.putInt(response.requestId);
+    if (response.isBatch()) {
+      dst.putShort((short) response.statuses.length);
+      for (int i = 0; i < response.statuses.length; i++) {
+        dst.put(response.statuses[i]);
+        encodeValue(response.values == null ? null : response.values[i], dst);
+      }
+      return;
+    }
+    if (response.isPage()) {
+      encodeValue(response.value, dst);
+      dst.putShort((short) response.keys.length);
+      for (int i = 0; i < response.keys.length; i++) {
+        // Keys in the store came in requests, so they fit the 2-byte length
+        dst.putShort((short) response.keys[i].length());
+        response.keys[i].writeTo(dst);
+        encodeValue(response.values[i], dst);
+      }
+      return;
+    }
+    encodeValue(response.value, dst);
+    byte[] message = response.message.getBytes(StandardCharsets.UTF_8);
+    // Messages are informational, so cut rather than fail if one is ever too long
+    int messageLength = Math.min(message.length, 0xFFFF);
+    dst.putShort((short) messageLength);
+    dst.put(message, 0, messageLength);
+  }
+
+  /**
+   * Function to write a response in the lean form, without its message
+   *
+   * @param response The single-key response to encode
+   * @param dst      The buffer to write into
+   * @throws java.nio.BufferOverflowException If the response does not fit the buffer
+   */
+  public static void encodeLeanResponse(Response response, ByteBuffer dst) {
+    dst.put(response.isOk() ? STATUS_LEAN_OK : STATUS_LEAN_ERROR);
+    dst.putInt(response.requestId);
+    encodeValue(leanValue(response), dst);
+  }
+
+  /**
+   * Function to get the value a lean response carries: the error message of a failed request,
+   * which is empty when the key does not exist, or else the value
+   */
+  private static ByteString leanValue(Response response) {
+    if (response.isOk() || response.message.isEmpty()) {
+      return response.value;
+    }
+    return ByteString.of(response.message);
+  }
+
+  /**
+   * Function to write the header of a lean response at a given index, once its value has been
+   * written after it
+   *
+   * @param dst         The buffer to write into
+   * @param index       Where the response starts
+   * @param ok          Whether the request succeeded
+   * @param requestId   The id of the request being answered
+   * @param valueLength The length of the value, -1 for no value
+   */
+  public static void putLeanHeader(ByteBuffer dst, int index, boolean ok, int requestId, int valueLength) {
+    dst.put(index, ok ? STATUS_LEAN_OK : STATUS_LEAN_ERROR);
+    dst.putInt(index + 1, requestId);
+    dst.putInt(index + 5, valueLength);
+  }
+
+  /**
+   * Function to write a value with its 4-byte length, -1 for no value
+   */
+  private static void encodeValue(ByteString value, ByteBuffer dst) {
+    if (value == null) {
+      dst.putInt(-1);
+    } else {
+      dst.putInt(value.length());
+      value.writeTo(dst);
+    }
+  }
+
+  /**
+   * Function to read a response from a buffer holding exactly one response
+   *
+   * @param src The buffer in read mode
+   * @return The decoded response
+   * @throws ProtocolException If the response is truncated or has trailing bytes
+   */
+  public static Response decodeResponse(ByteBuffer src) throws ProtocolException {
+    if (src.remaining() < 1 + 4 + 4) {
+      throw new ProtocolException("Response too short");
+    }
+    byte status = src.get();
+    int requestId = src.getInt();
+    if (status == STATUS_BATCH) {
+      return decodeBatchResponse(requestId, src);
+    }
+    if (status == STATUS_PAGE) {
+      return decodePageResponse(requestId, src);
+    }
+    if (status == STATUS_LEAN_OK || status == STATUS_LEAN_ERROR) {
+      int valueLength = src.getInt();
+      ByteString value = valueLength == -1 ? null : readBytes(src, valueLength);
+      if (src.hasRemaining()) {
+        throw new ProtocolException("Unexpected bytes after response");
+      }
+      if (status == STATUS_LEAN_ERROR) {
+        // The value of an error is its message, if any
+        return new Response(STATUS_ERROR, requestId, null, value == null ? "" : value.toString());
+      }
+      return new Response(STATUS_OK, requestId, value, "");
+    }
+    int valueLength = src.getInt();
+    ByteString value = valueLength == -1 ? null : readBytes(src, valueLength);
+    if (src.remaining() < 2) {
+      throw new ProtocolException("Response too short");
+    }
+    String message = readString(src, src.getShort() & 0xFFFF);
+    if (src.hasRemaining()) {
+      throw new ProtocolException("Unexpected bytes after response");
+    }
+    return new Response(status, requestId, value, message);
+  }
+
+  /**
+   * Function to read the per-key results of a batch response
+   */
+  private static Response decodeBatchResponse(int requestId, ByteBuffer src) throws ProtocolException {
+    if (src.remaining() < 2) {
+      throw new ProtocolException("Response too short");
+    }
+    int count = src.getShort() & 0xFFFF;
+    byte[] statuses = new byte[count];
+    ByteString[] values = new ByteString[count];
+    for (int i = 0; i < count; i++) {
+      if (src.remaining() < 1 + 4) {
+        throw new ProtocolException("Response too short");
+      }
+      statuses[i] = src.get();
+      int valueLength = src.getInt();
+      values[i] = valueLength == -1 ? null : readBytes(src, valueLength);
+    }
+    if (src.hasRemaining()) {
+      throw new ProtocolException("Unexpected bytes after response");
+    }
+    return new Response(requestId, statuses, values);
+  }
+
+  /**
+   * Function to read the pairs of a page response
+   */
+  private static Response decodePageResponse(int requestId, ByteBuffer src) throws ProtocolException {
+    int nextLength = src.getInt();
+    ByteString next = nextLength == -1 ? null : readBytes(src, nextLength);
+    if (src.remaining() < 2) {
+      throw new ProtocolException("Response too short");
+    }
+    int count = src.getShort() & 0xFFFF;
+    ByteString[] keys = new ByteString[count];
+    ByteString[] values = new ByteString[count];
+    for (int i = 0; i < count; i++) {
+      keys[i] = readKey(src);
+      values[i] = readValue(src);
+    }
+    if (src.hasRemaining()) {
+      throw new ProtocolException("Unexpected bytes after response");
+    }
+    return new Response(requestId, keys, values, next);
+  }
+
+  /**
+   * Function to get the encoded size of a request
+   *
+   * @param request The request to measure
+   * @return The size in bytes, without a TCP frame length
+   */
+  public static int requestLength(Request request) {
+    byte opcode = baseOpcode(request.opcode);
+    if (!isBatch(opcode)) {
+      int extraLength = opcode == OP_PUTEX || opcode == OP_INCR ? 8 : isChunk(opcode) ? 4 + 4 + 1 : isScan(opcode) ? 2 : 0;
+      if (opcode == OP_CAS) extraLength = 4 + (request.expected == null ? 0 : request.expected.length());
+      return 1 + 4 + 2 + request.key.length() + 4 + request.value.length() + extraLength;
+    }
+    int length = 1 + 4 + 2;
+    for (int i = 0; i < request.keys.length; i++) {
+      length += 2 + request.keys[i].length() + 4;
+      if (request.values != null) length += request.values[i].length();
+    }
+    return length;
+  }
+
+  /**
+   * Function to get the size of a response in the lean form
+   *
+   * @param response The single-key response to measure
+   * @return The size in bytes, without a TCP frame length
+   */
+  public static int leanResponseLength(Response response) {
+    ByteString value = leanValue(response);
+    return LEAN_HEADER_SIZE + (value == null ? 0 : value.length());
+  }
+
+  /**
+   * Function to get the encoded size of a response
+   *
+   * @param response The response to measure
+   * @return The size in bytes, without a TCP frame length
+   */
+  public static int responseLength(Response response) {
+    if (response.isBatch()) {
+      int length = 1 + 4 + 2;
+      for (int i = 0; i < response.statuses.length; i++) {
+        length += 1 + 4;
+        if (response.values != null && response.values[i] != null) length += response.values[i].length();
+      }
+      return length;
+    }
+    int valueLength = response.value == null ? 0 : response.value.length();
+    if (response.isPage()) {
+      int length = 1 + 4 + 4 + valueLength + 2;
+      for (int i = 0; i < response.keys.length; i++) {
+        length += 2 + response.keys[i].length() + 4 + response.values[i].length();
+      }
+      return length;
+    }
+    return 1 + 4 + 4 + valueLength + 2 + Math.min(utf8Length(response.message), 0xFFFF);
+  }
+
+  /**
+   * Function to encode a request as a TCP frame, length prefix included
+   *
+   * @param request The request to encode
+   * @return The frame bytes
+   * @throws ProtocolException If the key is too long for the framing
+   */
+  public static byte[] encodeRequestFrame(Request request) throws ProtocolException {
+    int length = requestLength(request);
+    ByteBuffer frame = ByteBuffer.allocate(4 + length);
+    frame.putInt(length);
+    encodeRequest(request, frame);
+    return frame.array();
+  }
+
+  /**
+   * Function to encode a response as a TCP frame, length prefix included
+   *
+   * @param response The response to encode
+   * @return The frame bytes
+   */
+  public static byte[] encodeResponseFrame(Response response) {
+    int length = responseLength(response);
+    ByteBuffer frame = ByteBuffer.allocate(4 + length);
+    frame.putInt(length);
+    encodeResponse(response, frame);
+    return frame.array();
+  }
+
+  /**
+   * Function to check a TCP frame length read from the wire
+   *
+   * @param length The frame length
+   * @throws ProtocolException If the length is negative or larger than MAX_FRAME_SIZE
+   */
+  public static void checkFrameLength(int length) throws ProtocolException {
+    if (length < 0 || length > MAX_FRAME_SIZE) {
+      throw new ProtocolException("Invalid frame length " + length);
+    }
+  }
+
+  /**
+   * Function to get the number of bytes a string takes in UTF-8
+   *
+   * @param str The string to measure
+   * @return The encoded length in bytes
+   */
+  public static int utf8Length(String str) {
+    int len = 0;
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      if (c < 0x80) {
+        len += 1;
+      } else if (c < 0x800) {
+        len += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < str.length()
+              && Character.isLowSurrogate(str.charAt(i + 1))) {
+        // A surrogate pair is a single 4-byte code point
+        len += 4;
+        i++;
+      } else {
+        // Lone surrogates are replaced by '?' when encoding
+        len += Character.isSurrogate(c) ? 1 : 3;
+      }
+    }
+    return len;
+  }
+
+  /**
+   * Function to read a key or value of a known length
+   *
+   * @param src    The buffer to read from
+   * @param length The length in bytes
+   * @return The bytes
+   * @throws ProtocolException If the length is negative or runs past the end of the buffer
+   */
+  private static ByteString readBytes(ByteBuffer src, int length) throws ProtocolException {
+    if (length < 0 || length > src.remaining()) {
+      throw new ProtocolException("Invalid field length " + length);
+    }
+    return ByteString.read(src, length);
+  }
+
+  /**
+   * Function to read a UTF-8 message of a known length
+   *
+   * @param src    The buffer to read from
+   * @param length The length in bytes
+   * @return The decoded message
+   * @throws ProtocolException If the length is negative or runs past the end of the buffer
+   */
+  private static String readString(ByteBuffer src, int length) throws ProtocolException {
+    if (length < 0 || length > src.remaining()) {
+      throw new ProtocolException("Invalid field length " + length);
+    }
+    String str;
+    if (src.hasArray()) {
+      str = new String(src.array(), src.arrayOffset() + src.position(), length, StandardCharsets.UTF_8);
+      src.position(src.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      src.get(bytes);
+      str = new String(bytes, StandardCharsets.UTF_8);
+    }
+    return str;
+  }
+}
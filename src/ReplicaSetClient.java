@@ -0,0 +1,271 @@
+/**
+ * Replica Set Client
+ *
+ * Client library for a primary server and its read replicas (see ReplicationPrimary). Writes
+ * always go to the primary. With read-from-replica on, GET and MGET requests are spread over the
+ * replicas in turn, which scales reads with the number of replicas; a read that fails on a
+ * replica, because it is down or too slow, is sent again to the primary.
+ *
+ * Replication is asynchronous, so a read from a replica may miss the latest writes, even the
+ * client's own. Clients that need to read their writes should leave read-from-replica off, or
+ * read those keys with readFromPrimary.
+ *
+ * A connection that fails is opened again by the next request to its server. The client is safe
+ * to use from several threads at once.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class ReplicaSetClient implements Closeable {
+
+  // Server every write goes to, as "host:port"
+  private final String primary;
+
+  // Servers reads may go to, as "host:port"
+  private final List<String> replicas;
+
+  // True to send reads to the replicas
+  private final boolean readFromReplica;
+
+  // Picks the replica of the next read
+  private final AtomicInteger nextReplica = new AtomicInteger();
+
+  // Pipelined connection to each server, opened on first use
+  private final ConcurrentHashMap<String, PipelinedTCPClient> connections =
+          new ConcurrentHashMap<String, PipelinedTCPClient>();
+
+  // How long a request waits for its response, and for a connection, in milliseconds
+  private final int timeoutMs;
+
+  private volatile boolean closed;
+
+  /**
+   * Creates a client for a primary and its replicas. Connections are opened when first needed.
+   *
+   * @param primary         The primary, as "host:port"
+   * @param replicas        The read replicas, as "host:port"
+   * @param readFromReplica True to send reads to the replicas, false to send everything to the
+   *                        primary
+   * @param timeoutMs       How long a request waits for its response, in milliseconds
+   * @throws IllegalArgumentException If a server is not "host:port"
+   */
+  public ReplicaSetClient(String primary, Collection<String> replicas, boolean readFromReplica, int timeoutMs) {
+    HashRing.parseNode(primary);
+    for (String replica : replicas) {
+      HashRing.parseNode(replica);
+    }
+    this.primary = primary;
+    this.replicas = new ArrayList<String>(replicas);
+    this.readFromReplica = readFromReplica && !replicas.isEmpty();
+    this.timeoutMs = timeoutMs;
+  }
+
+  /**
+   * Function to send a single-key request: a GET to a replica if reading from replicas, anything
+   * else to the primary
+   *
+   * @param opcode The command, one of the Protocol.OP_* constants, possibly with FLAG_LEAN
+   * @param key    The key
+   * @param value  The value, or ByteString.EMPTY
+   * @return A future completed with the response, or exceptionally if no server can be reached
+   *         or answers in time
+   */
+  public CompletableFuture<Response> send(byte opcode, ByteString key, ByteString value) {
+    Function<PipelinedTCPClient, CompletableFuture<Response>> call = client -> client.send(opcode, key, value);
+    return Protocol.baseOpcode(opcode) == Protocol.OP_GET ? read(call) : route(primary, call);
+  }
+
+  /**
+   * Function to send a single-key request: a GET to a replica if reading from replicas, anything
+   * else to the primary
+   *
+   * @param opcode The command, one of the Protocol.OP_* constants, possibly with FLAG_LEAN
+   * @param key    The key, sent as UTF-8
+   * @param value  The value, sent as UTF-8, or an empty string
+   * @return A future completed with the response, or exceptionally if no server can be reached
+   *         or answers in time
+   */
+  public CompletableFuture<Response> send(byte opcode, String key, String value) {
+    return send(opcode, ByteString.of(key), ByteString.of(value));
+  }
+
+  /**
+   * Function to send a batch command: an MGET to a replica if reading from replicas, anything
+   * else to the primary
+   *
+   * @param opcode Protocol.OP_MGET, OP_MPUT or OP_MDELETE
+   * @param keys   The keys the command works on
+   * @param values The values for an MPUT, one per key, or null for other commands
+   * @return A future completed with the batch response
+   */
+  public CompletableFuture<Response> sendBatch(byte opcode, ByteString[] keys, ByteString[] values) {
+    Function<PipelinedTCPClient, CompletableFuture<Response>> call = client -> client.sendBatch(opcode, keys, values);
+    return opcode == Protocol.OP_MGET ? read(call) : route(primary, call);
+  }
+
+  /**
+   * Function to send a batch command: an MGET to a replica if reading from replicas, anything
+   * else to the primary
+   *
+   * @param opcode Protocol.OP_MGET, OP_MPUT or OP_MDELETE
+   * @param keys   The keys the command works on, sent as UTF-8
+   * @param values The values for an MPUT, sent as UTF-8, or null for other commands
+   * @return A future completed with the batch response
+   */
+  public CompletableFuture<Response> sendBatch(byte opcode, String[] keys, String[] values) {
+    return sendBatch(opcode, ByteString.of(keys), ByteString.of(values));
+  }
+
+  /**
+   * Function to send a GET request
+   *
+   * @param key The key to read
+   * @return A future completed with the response; its value is the value read
+   */
+  public CompletableFuture<Response> get(String key) {
+    return send(Protocol.OP_GET, key, "");
+  }
+
+  /**
+   * Function to send a GET request to the primary, which sees every write already acknowledged
+   *
+   * @param key The key to read
+   * @return A future completed with the response; its value is the value read
+   */
+  public CompletableFuture<Response> readFromPrimary(String key) {
+    return route(primary, client -> client.get(key));
+  }
+
+  /**
+   * Function to send a PUT request
+   *
+   * @param key   The key to store
+   * @param value The value associated with the key
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> put(String key, String value) {
+    return send(Protocol.OP_PUT, key, value);
+  }
+
+  /**
+   * Function to send a DELETE request
+   *
+   * @param key The key to remove
+   * @return A future completed with the response
+   */
+  public CompletableFuture<Response> delete(String key) {
+    return send(Protocol.OP_DELETE, key, "");
+  }
+
+  /**
+   * Function to read many keys
+   *
+   * @param keys The keys to read
+   * @return A future completed with the batch response; its values are the values read
+   */
+  public CompletableFuture<Response> mget(String[] keys) {
+    return sendBatch(Protocol.OP_MGET, keys, null);
+  }
+
+  /**
+   * Function to store many key-value pairs
+   *
+   * @param keys   The keys to store
+   * @param values The value for each key
+   * @return A future completed with the batch response
+   */
+  public CompletableFuture<Response> mput(String[] keys, String[] values) {
+    return sendBatch(Protocol.OP_MPUT, keys, values);
+  }
+
+  /**
+   * Function to remove many keys
+   *
+   * @param keys The keys to remove
+   * @return A future completed with the batch response
+   */
+  public CompletableFuture<Response> mdelete(String[] keys) {
+    return sendBatch(Protocol.OP_MDELETE, keys, null);
+  }
+
+  /**
+   * Function to read the metrics of the primary, which include each replica's lag
+   * @return A future completed with the STATS response
+   */
+  public CompletableFuture<Response> stats() {
+    return route(primary, PipelinedTCPClient::stats);
+  }
+
+  /**
+   * Closes the connections to every server. Requests still in flight fail.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    for (PipelinedTCPClient client : connections.values()) {
+      client.close();
+    }
+    connections.clear();
+  }
+
+  /**
+   * Function to send a read to the next replica, or to the primary if reads don't go to the
+   * replicas or the replica fails
+   */
+  private CompletableFuture<Response> read(Function<PipelinedTCPClient, CompletableFuture<Response>> call) {
+    if (!readFromReplica) {
+      return route(primary, call);
+    }
+    String replica = replicas.get(Math.floorMod(nextReplica.getAndIncrement(), replicas.size()));
+    return route(replica, call).exceptionallyCompose(error -> route(primary, call));
+  }
+
+  /**
+   * Function to send a request to a server, opening its connection if needed
+   *
+   * @param server The server, as "host:port"
+   * @param call   Sends the request on the server's connection
+   * @return A future completed with the response, or exceptionally if the server can't be
+   *         reached or doesn't answer within the timeout
+   */
+  private CompletableFuture<Response> route(String server, Function<PipelinedTCPClient, CompletableFuture<Response>> call) {
+    try {
+      return call.apply(connection(server)).orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Function to get the connection to a server, opening it if it isn't open
+   *
+   * @param server The server, as "host:port"
+   * @return The open connection
+   * @throws IOException If the client is closed or the server can't be reached
+   */
+  private PipelinedTCPClient connection(String server) throws IOException {
+    PipelinedTCPClient client = connections.get(server);
+    if (client != null && client.isOpen()) return client;
+    if (closed) throw new IOException("Client is closed");
+    // Only one thread connects to a server; the others wait for its connection
+    synchronized (connections) {
+      client = connections.get(server);
+      if (client == null || !client.isOpen()) {
+        String[] hostPort = HashRing.parseNode(server);
+        try {
+          client = new PipelinedTCPClient(hostPort[0], Integer.parseInt(hostPort[1]), timeoutMs);
+        } catch (IOException e) {
+          throw new IOException("Cannot connect to " + server + ": " + e.getMessage(), e);
+        }
+        connections.put(server, client);
+      }
+      return client;
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/**
+ * Replicated Key-Value Store
+ *
+ * KeyValueStore decorator for a primary server that records every change in a ReplicationLog,
+ * for followers to stream. Like DurableKeyValueStore, the change is appended inside the store's
+ * atomic compute, so changes to the same key reach the log in the same order they were applied.
+ * Writes don't wait for followers: replication is asynchronous.
+ *
+ * A follower catching up from scratch copies the live store while writes go on. It starts from
+ * the sequence number returned by copyPoint, which no change can straddle: every change up to it
+ * is already in the store, and every later one is in the log, so streaming the log afterwards
+ * makes every key end with its latest value.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+
+public class ReplicatedKeyValueStore implements KeyValueStore {
+
+  // Store holding the data
+  private final KeyValueStore delegate;
+
+  // Log every change is recorded in
+  private final ReplicationLog log;
+
+  // Held shared by every change from its log append until it is applied, and exclusively while
+  // taking a copy point
+  private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+
+  /**
+   * Creates a replicated store.
+   *
+   * @param delegate The store holding the data
+   * @param log      The log changes are recorded in
+   */
+  public ReplicatedKeyValueStore(KeyValueStore delegate, ReplicationLog log) {
+    this.delegate = delegate;
+    this.log = log;
+  }
+
+  /**
+   * Function to get the log the changes are recorded in
+   * @return The log
+   */
+  public ReplicationLog getLog() {
+    return log;
+  }
+
+  /**
+   * Function to get the sequence number a copy of the store started now starts from
+   * @return The sequence number of the newest change applied to the store
+   */
+  public long copyPoint() {
+    gate.writeLock().lock();
+    try {
+      return log.lastSequence();
+    } finally {
+      gate.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public ByteString get(ByteString key) {
+    return delegate.get(key);
+  }
+
+  @Override
+  public int readValue(ByteString key, ByteBuffer dst) {
+    return delegate.readValue(key, dst);
+  }
+
+  @Override
+  public ByteString put(ByteString key, ByteString value) {
+    ByteString[] previous = new ByteString[1];
+    apply(key, (k, old) -> {
+      previous[0] = old;
+      log.append(ReplicationLog.OP_PUT, k, value);
+      return value;
+    });
+    return previous[0];
+  }
+
+  @Override
+  public ByteString putIfAbsent(ByteString key, ByteString value) {
+    ByteString[] existing = new ByteString[1];
+    apply(key, (k, old) -> {
+      if (old != null) {
+        existing[0] = old;
+        return old;
+      }
+      log.append(ReplicationLog.OP_PUT, k, value);
+      return value;
+    });
+    return existing[0];
+  }
+
+  @Override
+  public ByteString remove(ByteString key) {
+    ByteString[] removed = new ByteString[1];
+    apply(key, (k, old) -> {
+      removed[0] = old;
+      if (old != null) {
+        log.append(ReplicationLog.OP_DELETE, k, null);
+      }
+      return null;
+    });
+    return removed[0];
+  }
+
+  @Override
+  public ByteString compute(ByteString key, BiFunction<ByteString, ByteString, ByteString> function) {
+    return apply(key, (k, old) -> {
+      ByteString updated = function.apply(k, old);
+      if (updated != null && !updated.equals(old)) {
+        log.append(ReplicationLog.OP_PUT, k, updated);
+      } else if (updated == null && old != null) {
+        log.append(ReplicationLog.OP_DELETE, k, null);
+      }
+      return updated;
+    });
+  }
+
+  @Override
+  public ByteString[] getAll(ByteString[] keys) {
+    return delegate.getAll(keys);
+  }
+
+  @Override
+  public void forEach(BiConsumer<ByteString, ByteString> action) {
+    delegate.forEach(action);
+  }
+
+  @Override
+  public void scan(ByteString from, ByteString to, BiPredicate<ByteString, ByteString> visitor) {
+    delegate.scan(from, to, visitor);
+  }
+
+  @Override
+  public int size() {
+    return delegate.size();
+  }
+
+  /**
+   * Function to run an atomic update of the underlying store, which may append a log entry,
+   * inside the copy gate
+   */
+  private ByteString apply(ByteString key, BiFunction<ByteString, ByteString, ByteString> function) {
+    gate.readLock().lock();
+    try {
+      return delegate.compute(key, function);
+    } finally {
+      gate.readLock().unlock();
+    }
+  }
+}
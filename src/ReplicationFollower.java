@@ -0,0 +1,216 @@
+/**
+ * Replication Follower
+ *
+ * Keeps the store of a read replica up to date with its primary (see ReplicationPrimary). A
+ * background thread holds a persistent TCP connection to the primary's replication port and
+ * applies the changes it streams, in order, straight to the local store. The replica's clients
+ * only read; writes are rejected by its CommandProcessor.
+ *
+ * When the connection fails the follower connects again, and the primary resumes after the last
+ * change applied if it still has the changes since then, or sends a copy of its store otherwise.
+ * While a copy is loading, reads see only part of the data. The follower reports its state and
+ * how far it lags behind the primary in its metrics.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ReplicationFollower implements Metrics.Source {
+
+  // Time between attempts to reach the primary, in milliseconds
+  private static final int RETRY_MS = 1000;
+
+  // Time without any message from the primary after which the connection is considered dead
+  private static final int READ_TIMEOUT_MS = 5 * ReplicationPrimary.HEARTBEAT_MS;
+
+  // Host and port of the primary's replication channel, for log messages as "host:port"
+  private final String host;
+  private final int port;
+  private final String primary;
+
+  // Store the changes are applied to
+  private final KeyValueStore store;
+
+  // Run id of the primary the applied changes come from, and the last change applied
+  private volatile long runId;
+  private volatile long applied;
+
+  // Sequence number of the newest change on the primary, as last heard from it
+  private volatile long primarySequence;
+
+  // System.nanoTime() of the last message from the primary
+  private volatile long lastContact = System.nanoTime();
+
+  // "connecting", "copying" or "streaming"
+  private volatile String state = "connecting";
+
+  // Copies of the primary's store loaded
+  private final LongAdder copies = new LongAdder();
+
+  /**
+   * Creates a follower of a primary.
+   *
+   * @param primary The primary's replication channel, as "host:port"
+   * @param store   The store to apply the changes to
+   * @throws IllegalArgumentException If primary is not "host:port"
+   */
+  public ReplicationFollower(String primary, KeyValueStore store) {
+    String[] hostPort = HashRing.parseNode(primary);
+    this.host = hostPort[0];
+    this.port = Integer.parseInt(hostPort[1]);
+    this.primary = primary;
+    this.store = store;
+  }
+
+  /**
+   * Function to start following the primary on a background thread
+   */
+  public void start() {
+    Thread thread = new Thread(this::run, "replication-follower");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Function run by the follower thread: follows the primary, connecting again whenever the
+   * connection fails
+   */
+  private void run() {
+    while (true) {
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress(host, port), READ_TIMEOUT_MS);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(READ_TIMEOUT_MS);
+        Log.log(Log.INFO, "Following primary " + primary);
+        follow(socket);
+      } catch (IOException | RuntimeException e) {
+        Log.log(Log.WARN, "Lost primary " + primary + ": " + e.getMessage() + ". Retrying");
+      }
+      state = "connecting";
+      try {
+        Thread.sleep(RETRY_MS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Function to apply the messages of one connection to the primary until it fails
+   *
+   * @param socket The connection
+   */
+  private void follow(Socket socket) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    out.writeInt(ReplicationProtocol.MAGIC);
+    out.writeLong(runId);
+    out.writeLong(applied);
+    out.flush();
+    state = "streaming";
+
+    long copyRunId = 0;
+    long copyPoint = 0;
+    while (true) {
+      byte type = in.readByte();
+      lastContact = System.nanoTime();
+      if (type == ReplicationProtocol.COPY_BEGIN) {
+        copyRunId = in.readLong();
+        copyPoint = in.readLong();
+        // Until the copy is complete the store matches no primary state
+        runId = 0;
+        applied = 0;
+        state = "copying";
+        clear();
+      } else if (type == ReplicationProtocol.COPY_ENTRIES) {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          ByteString key = ReplicationProtocol.readBytes(in);
+          store.put(key, ReplicationProtocol.readBytes(in));
+        }
+      } else if (type == ReplicationProtocol.COPY_END) {
+        long count = in.readLong();
+        runId = copyRunId;
+        applied = copyPoint;
+        primarySequence = Math.max(primarySequence, copyPoint);
+        state = "streaming";
+        copies.increment();
+        Log.log(Log.INFO, "Loaded a copy of " + count + " keys from primary " + primary);
+        acknowledge(out);
+      } else if (type == ReplicationProtocol.CHANGES) {
+        long first = in.readLong();
+        int count = in.readInt();
+        if (first != applied + 1) {
+          throw new ProtocolException("Expected change " + (applied + 1) + " but got " + first);
+        }
+        for (int i = 0; i < count; i++) {
+          byte op = in.readByte();
+          ByteString key = ReplicationProtocol.readBytes(in);
+          ByteString value = ReplicationProtocol.readBytes(in);
+          if (op == ReplicationLog.OP_PUT) {
+            store.put(key, value);
+          } else {
+            store.remove(key);
+          }
+        }
+        applied = first + count - 1;
+        primarySequence = Math.max(primarySequence, applied);
+        acknowledge(out);
+      } else if (type == ReplicationProtocol.HEARTBEAT) {
+        primarySequence = in.readLong();
+        acknowledge(out);
+      } else {
+        throw new ProtocolException("Unknown replication message: " + type);
+      }
+    }
+  }
+
+  /**
+   * Function to tell the primary how far the changes have been applied
+   */
+  private void acknowledge(DataOutputStream out) throws IOException {
+    out.writeLong(applied);
+    out.flush();
+  }
+
+  /**
+   * Function to remove every key before loading a copy
+   */
+  private void clear() {
+    List<ByteString> keys = new ArrayList<ByteString>();
+    store.forEach((key, value) -> keys.add(key));
+    for (ByteString key : keys) {
+      store.remove(key);
+    }
+  }
+
+  @Override
+  public void appendText(StringBuilder text) {
+    text.append("replication_role:replica\n");
+    text.append("replication_primary:").append(primary).append('\n');
+    text.append("replication_state:").append(state).append('\n');
+    text.append("replication_applied:").append(applied).append('\n');
+    text.append("replication_lag_changes:").append(Math.max(0, primarySequence - applied)).append('\n');
+    text.append(String.format(Locale.ROOT, "replication_last_contact_ms:%.1f",
+            (System.nanoTime() - lastContact) / 1e6)).append('\n');
+    text.append("replication_copies:").append(copies.sum()).append('\n');
+  }
+
+  @Override
+  public void appendPrometheus(StringBuilder text) {
+    Metrics.gauge(text, "kvstore_replication_streaming", "1 while changes are streamed from the primary.",
+            state.equals("streaming") ? 1 : 0);
+    Metrics.gauge(text, "kvstore_replication_applied", "Sequence number of the last change applied.", applied);
+    Metrics.gauge(text, "kvstore_replication_lag_changes", "Changes on the primary not applied yet.",
+            Math.max(0, primarySequence - applied));
+    text.append("# HELP kvstore_replication_last_contact_seconds Time since the last message from the primary.\n");
+    text.append("# TYPE kvstore_replication_last_contact_seconds gauge\n");
+    text.append("kvstore_replication_last_contact_seconds ")
+            .append(Metrics.seconds(System.nanoTime() - lastContact)).append('\n');
+    Metrics.counter(text, "kvstore_replication_copies_total", "Copies of the primary's store loaded.", copies.sum());
+  }
+}
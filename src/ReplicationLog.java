@@ -0,0 +1,175 @@
+/**
+ * Replication Log
+ *
+ * The most recent changes of a primary server, in the order they were applied, for its
+ * followers to stream. Every change gets the next sequence number, starting at 1. The log is a
+ * fixed ring of entries: once it is full, each new change overwrites the oldest one, and a
+ * follower that still needed the overwritten changes has to catch up from a full copy of the
+ * store instead (see ReplicationPrimary).
+ *
+ * Entries hold the key and value strings the store holds, so the log costs little beyond its
+ * arrays. Appending takes a lock for the few stores into the arrays; readers wait on it for new
+ * entries.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ReplicationLog {
+
+  // Operations of the entries, the same as the write-ahead log's
+  public static final byte OP_PUT = WriteAheadLog.OP_PUT;
+  public static final byte OP_DELETE = WriteAheadLog.OP_DELETE;
+
+  private final int capacity;
+
+  // Entry with sequence number s is at index s % capacity
+  private final byte[] ops;
+  private final ByteString[] keys;
+  private final ByteString[] values;
+
+  // System.nanoTime() when each entry was appended, to measure how far followers lag behind
+  private final long[] appendedAt;
+
+  // Sequence number of the next entry
+  private long next = 1;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  // Signalled when entries are appended
+  private final Condition appended = lock.newCondition();
+
+  /**
+   * Creates an empty log.
+   * @param capacity The number of most recent changes kept
+   */
+  public ReplicationLog(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Replication backlog must be positive");
+    }
+    this.capacity = capacity;
+    this.ops = new byte[capacity];
+    this.keys = new ByteString[capacity];
+    this.values = new ByteString[capacity];
+    this.appendedAt = new long[capacity];
+  }
+
+  /**
+   * Function to append a change
+   *
+   * @param op    OP_PUT or OP_DELETE
+   * @param key   The key changed
+   * @param value The new value, or null for a delete
+   * @return The sequence number of the change
+   */
+  public long append(byte op, ByteString key, ByteString value) {
+    lock.lock();
+    try {
+      int index = (int) (next % capacity);
+      ops[index] = op;
+      keys[index] = key;
+      values[index] = value;
+      appendedAt[index] = System.nanoTime();
+      appended.signalAll();
+      return next++;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Function to get the sequence number of the newest change
+   * @return The sequence number, or 0 if nothing was appended yet
+   */
+  public long lastSequence() {
+    lock.lock();
+    try {
+      return next - 1;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Function to get when a change was appended
+   *
+   * @param sequence The sequence number of the change
+   * @return Its System.nanoTime() when appended, or -1 if it is no longer (or not yet) in the log
+   */
+  public long appendedAt(long sequence) {
+    lock.lock();
+    try {
+      if (!contains(sequence)) return -1;
+      return appendedAt[(int) (sequence % capacity)];
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Function to copy the changes from a sequence number on into a batch, waiting for one to be
+   * appended if there is none yet
+   *
+   * @param from      The sequence number of the first change to copy
+   * @param batch     Receives the changes; its previous contents are replaced
+   * @param timeoutMs How long to wait for a change, in milliseconds
+   * @return False if the change at from has already been overwritten, so the changes can't be
+   *         streamed any more. True otherwise, even if the batch is empty after the timeout
+   * @throws InterruptedException If the thread is interrupted while waiting
+   */
+  public boolean read(long from, Batch batch, long timeoutMs) throws InterruptedException {
+    batch.count = 0;
+    batch.first = from;
+    lock.lock();
+    try {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+      while (from >= next) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) return true;
+        appended.awaitNanos(remaining);
+      }
+      if (!contains(from)) return false;
+      int count = (int) Math.min(next - from, batch.ops.length);
+      for (int i = 0; i < count; i++) {
+        int index = (int) ((from + i) % capacity);
+        batch.ops[i] = ops[index];
+        batch.keys[i] = keys[index];
+        batch.values[i] = values[index];
+      }
+      batch.count = count;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Function to check whether a change is still in the log. Called with the lock held
+   */
+  private boolean contains(long sequence) {
+    return sequence < next && sequence >= Math.max(1, next - capacity);
+  }
+
+  /**
+   * Consecutive changes copied out of the log, reused from read to read
+   */
+  public static final class Batch {
+    // Sequence number of the first change
+    long first;
+    int count;
+    final byte[] ops;
+    final ByteString[] keys;
+    final ByteString[] values;
+
+    /**
+     * Creates an empty batch.
+     * @param size The most changes a read copies
+     */
+    public Batch(int size) {
+      ops = new byte[size];
+      keys = new ByteString[size];
+      values = new ByteString[size];
+    }
+  }
+}
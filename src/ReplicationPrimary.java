@@ -0,0 +1,317 @@
+/**
+ * Replication Primary
+ *
+ * Streams the changes of a primary server to its followers (see ReplicationFollower) over
+ * persistent TCP connections on the --replication-port, in the format described in
+ * ReplicationProtocol. Each follower is served by its own sender thread, which reads the changes
+ * from the ReplicationLog in batches and writes each batch with a single flush, so a busy primary
+ * sends few large packets instead of one per write.
+ *
+ * A follower that connects for the first time, or was away so long that the changes it missed
+ * have been overwritten in the log, first receives a copy of the whole store and then the
+ * changes made since the copy started. The same happens when a follower falls that far behind
+ * while connected.
+ *
+ * The followers acknowledge how far they have applied the changes, and the primary reports
+ * each follower's lag, in changes and in time, in its metrics.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ReplicationPrimary implements Metrics.Source {
+
+  // Most changes sent in one message
+  private static final int BATCH_SIZE = 1024;
+
+  // Keys sent in one message of a copy
+  private static final int COPY_BATCH_SIZE = 1024;
+
+  // Time without changes after which a heartbeat is sent, in milliseconds
+  static final int HEARTBEAT_MS = 1000;
+
+  // Buffer of each follower's stream
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final ReplicatedKeyValueStore store;
+  private final ReplicationLog log;
+
+  // Identifies this run of the primary, since sequence numbers restart with it
+  private final long runId = new Random().nextLong() | 1;
+
+  // Followers currently connected
+  private final Set<Follower> followers = ConcurrentHashMap.newKeySet();
+
+  // Copies of the store sent to followers
+  private final LongAdder copies = new LongAdder();
+
+  /**
+   * Creates the primary side of replication.
+   * @param store The primary's store, recording its changes in a log
+   */
+  public ReplicationPrimary(ReplicatedKeyValueStore store) {
+    this.store = store;
+    this.log = store.getLog();
+  }
+
+  /**
+   * Function to start accepting followers on a port
+   *
+   * @param port The port followers connect to
+   * @return The bound port
+   * @throws IOException If the port cannot be bound
+   */
+  public int start(int port) throws IOException {
+    ServerSocket serverSocket = new ServerSocket(port);
+    Thread acceptor = new Thread(() -> {
+      while (true) {
+        try {
+          Socket socket = serverSocket.accept();
+          Thread sender = new Thread(() -> serve(socket), "replication-sender-" + socket.getRemoteSocketAddress());
+          sender.setDaemon(true);
+          sender.start();
+        } catch (IOException e) {
+          Log.log(Log.ERROR, "Unknown IO Error. Follower Connection Not Successful");
+        }
+      }
+    }, "replication-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Function run by a follower's sender thread: brings the follower up to date, then streams the
+   * changes until the connection fails
+   *
+   * @param socket The follower's connection
+   */
+  private void serve(Socket socket) {
+    InetAddress ip = socket.getInetAddress();
+    int port = socket.getPort();
+    Follower follower = new Follower(ip.getHostAddress() + ":" + port);
+    try {
+      socket.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+      if (in.readInt() != ReplicationProtocol.MAGIC) {
+        throw new ProtocolException("Not a replication follower");
+      }
+      long followerRunId = in.readLong();
+      long applied = in.readLong();
+      followers.add(follower);
+      readAcknowledgements(socket, in, follower);
+
+      long next;
+      if (canResume(followerRunId, applied)) {
+        Log.info(ip, port, "Follower connected, resuming after change ", applied);
+        follower.acked = applied;
+        next = applied + 1;
+      } else {
+        Log.info(ip, port, "Follower connected, sending a copy of the store");
+        next = copy(out, follower) + 1;
+      }
+
+      ReplicationLog.Batch batch = new ReplicationLog.Batch(BATCH_SIZE);
+      while (true) {
+        if (!log.read(next, batch, HEARTBEAT_MS)) {
+          Log.log(Log.WARN, ip, port, "Follower fell behind the replication backlog, sending a copy of the store",
+                  null, null, null, null);
+          next = copy(out, follower) + 1;
+          continue;
+        }
+        if (batch.count == 0) {
+          out.writeByte(ReplicationProtocol.HEARTBEAT);
+          out.writeLong(log.lastSequence());
+        } else {
+          out.writeByte(ReplicationProtocol.CHANGES);
+          out.writeLong(batch.first);
+          out.writeInt(batch.count);
+          for (int i = 0; i < batch.count; i++) {
+            out.writeByte(batch.ops[i]);
+            ReplicationProtocol.writeBytes(out, batch.keys[i]);
+            ReplicationProtocol.writeBytes(out, batch.values[i]);
+          }
+          next += batch.count;
+        }
+        out.flush();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException | UncheckedIOException e) {
+      Log.log(Log.WARN, ip, port, "Follower disconnected", null, null, null, null);
+    } finally {
+      followers.remove(follower);
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // The follower is gone either way
+      }
+    }
+  }
+
+  /**
+   * Function to check whether a follower can be brought up to date from the log alone
+   *
+   * @param followerRunId The run id of the primary the follower last followed
+   * @param applied       The sequence number of the last change it applied
+   * @return True if every change after it is still in the log
+   */
+  private boolean canResume(long followerRunId, long applied) {
+    if (followerRunId != runId || applied < 0) return false;
+    long last = log.lastSequence();
+    return applied == last || (applied < last && log.appendedAt(applied + 1) >= 0);
+  }
+
+  /**
+   * Function to send a copy of the store, taken while writes go on
+   *
+   * @param out      The follower's stream
+   * @param follower The follower
+   * @return The sequence number the copy starts from; the follower needs the changes after it
+   */
+  private long copy(DataOutputStream out, Follower follower) throws IOException {
+    long start = System.nanoTime();
+    long point = store.copyPoint();
+    out.writeByte(ReplicationProtocol.COPY_BEGIN);
+    out.writeLong(runId);
+    out.writeLong(point);
+
+    ByteString[] keys = new ByteString[COPY_BATCH_SIZE];
+    ByteString[] values = new ByteString[COPY_BATCH_SIZE];
+    int[] pending = new int[1];
+    long[] total = new long[1];
+    store.forEach((key, value) -> {
+      keys[pending[0]] = key;
+      values[pending[0]] = value;
+      if (++pending[0] == COPY_BATCH_SIZE) {
+        writeCopyEntries(out, keys, values, pending[0]);
+        total[0] += pending[0];
+        pending[0] = 0;
+      }
+    });
+    writeCopyEntries(out, keys, values, pending[0]);
+    total[0] += pending[0];
+
+    out.writeByte(ReplicationProtocol.COPY_END);
+    out.writeLong(total[0]);
+    out.flush();
+    copies.increment();
+    Log.log(Log.INFO, "Sent a copy of " + total[0] + " keys to follower " + follower.name + " in " +
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    return point;
+  }
+
+  /**
+   * Function to write one message of a copy
+   */
+  private static void writeCopyEntries(DataOutputStream out, ByteString[] keys, ByteString[] values, int count) {
+    if (count == 0) return;
+    try {
+      out.writeByte(ReplicationProtocol.COPY_ENTRIES);
+      out.writeInt(count);
+      for (int i = 0; i < count; i++) {
+        ReplicationProtocol.writeBytes(out, keys[i]);
+        ReplicationProtocol.writeBytes(out, values[i]);
+      }
+    } catch (IOException e) {
+      // Thrown out of the store's forEach, which can't throw IOException
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Function to start the thread reading a follower's acknowledgements. When the connection
+   * fails it closes the socket, so the sender stops too.
+   */
+  private void readAcknowledgements(Socket socket, DataInputStream in, Follower follower) {
+    Thread reader = new Thread(() -> {
+      try {
+        while (true) {
+          follower.acked = in.readLong();
+        }
+      } catch (IOException e) {
+        try {
+          socket.close();
+        } catch (IOException ignored) {
+          // Closing anyway
+        }
+      }
+    }, "replication-acks-" + follower.name);
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Function to measure how long a follower has been missing the oldest change it hasn't
+   * acknowledged
+   *
+   * @param follower The follower
+   * @param last     The sequence number of the newest change
+   * @return The lag in nanoseconds, 0 if it is up to date, or -1 if the change is no longer in
+   *         the log
+   */
+  private long lagNanos(Follower follower, long last) {
+    if (follower.acked >= last) return 0;
+    long appendedAt = log.appendedAt(follower.acked + 1);
+    return appendedAt < 0 ? -1 : System.nanoTime() - appendedAt;
+  }
+
+  @Override
+  public void appendText(StringBuilder text) {
+    long last = log.lastSequence();
+    text.append("replication_role:primary\n");
+    text.append("replication_sequence:").append(last).append('\n');
+    text.append("replication_followers:").append(followers.size()).append('\n');
+    text.append("replication_copies:").append(copies.sum()).append('\n');
+    for (Follower follower : followers) {
+      long lag = lagNanos(follower, last);
+      text.append("follower_").append(follower.name).append(":acked=").append(follower.acked)
+              .append(",lag_changes=").append(Math.max(0, last - follower.acked))
+              .append(String.format(Locale.ROOT, ",lag_ms=%.1f", lag < 0 ? -1.0 : lag / 1e6)).append('\n');
+    }
+  }
+
+  @Override
+  public void appendPrometheus(StringBuilder text) {
+    long last = log.lastSequence();
+    Metrics.gauge(text, "kvstore_replication_sequence", "Sequence number of the newest change.", last);
+    Metrics.gauge(text, "kvstore_replication_followers", "Followers connected.", followers.size());
+    Metrics.counter(text, "kvstore_replication_copies_total", "Copies of the store sent to followers.", copies.sum());
+    text.append("# HELP kvstore_replication_lag_changes Changes a follower has not acknowledged yet.\n");
+    text.append("# TYPE kvstore_replication_lag_changes gauge\n");
+    for (Follower follower : followers) {
+      text.append("kvstore_replication_lag_changes{follower=\"").append(follower.name).append("\"} ")
+              .append(Math.max(0, last - follower.acked)).append('\n');
+    }
+    text.append("# HELP kvstore_replication_lag_seconds Age of the oldest change a follower has not acknowledged.\n");
+    text.append("# TYPE kvstore_replication_lag_seconds gauge\n");
+    for (Follower follower : followers) {
+      long lag = lagNanos(follower, last);
+      if (lag < 0) continue;
+      text.append("kvstore_replication_lag_seconds{follower=\"").append(follower.name).append("\"} ")
+              .append(Metrics.seconds(lag)).append('\n');
+    }
+  }
+
+  /**
+   * A connected follower
+   */
+  private static final class Follower {
+    // IP address and port of the follower's connection
+    final String name;
+
+    // Sequence number of the last change the follower has applied
+    volatile long acked;
+
+    Follower(String name) {
+      this.name = name;
+    }
+  }
+}
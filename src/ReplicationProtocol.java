@@ -0,0 +1,80 @@
+/**
+ * Replication Protocol
+ *
+ * Messages exchanged between a primary server and a follower over the replication channel, a
+ * persistent TCP connection to the primary's --replication-port. All integers are big-endian and
+ * keys and values are length (4) | bytes, with length -1 for a missing value.
+ *
+ * Sequence numbers restart at 1 whenever the primary starts, so the primary also has a random
+ * run id that the follower remembers along with the sequence number it has applied.
+ *
+ * The follower opens the connection with: MAGIC (4) | run id (8) | last applied sequence number
+ * (8), both 0 if it has nothing. If the run id is the primary's and the changes after that
+ * sequence number are still in its ReplicationLog, the primary streams them. Otherwise it first
+ * sends a copy of its store. Each message starts with its type (1):
+ *
+ *   COPY_BEGIN: run id (8) | sequence (8)    the follower drops its data; the copy that follows
+ *                                            starts from that sequence number
+ *   COPY_ENTRIES: count (4) | (key | value)*  part of the copy
+ *   COPY_END: count (8)                      the copy is complete, and holds count keys
+ *   CHANGES: first sequence (8) | count (4) | (op (1) | key | value)*
+ *                                            consecutive changes, applied in order
+ *   HEARTBEAT: last sequence (8)             sent when there are no changes for a while
+ *
+ * The follower answers every CHANGES, COPY_END and HEARTBEAT message with the sequence number it
+ * has applied (8), which tells the primary how far behind it is.
+ */
+
+import java.io.*;
+import java.net.ProtocolException;
+
+public class ReplicationProtocol {
+
+  // "KVR1"
+  public static final int MAGIC = 0x4B565231;
+
+  // Message types
+  public static final byte COPY_BEGIN = 1;
+  public static final byte COPY_ENTRIES = 2;
+  public static final byte COPY_END = 3;
+  public static final byte CHANGES = 4;
+  public static final byte HEARTBEAT = 5;
+
+  private ReplicationProtocol() {
+  }
+
+  /**
+   * Function to write a key or value
+   *
+   * @param out   The stream to write to
+   * @param bytes The key or value, or null
+   */
+  public static void writeBytes(DataOutputStream out, ByteString bytes) throws IOException {
+    if (bytes == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(bytes.length());
+    bytes.writeTo(out);
+  }
+
+  /**
+   * Function to read a key or value
+   *
+   * @param in The stream to read from
+   * @return The key or value, or null
+   * @throws ProtocolException If the length is invalid
+   */
+  public static ByteString readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length == -1) {
+      return null;
+    }
+    if (length < 0 || length > Protocol.MAX_VALUE_SIZE) {
+      throw new ProtocolException("Invalid length: " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return ByteString.wrap(bytes);
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * Reply Cache
+ *
+ * Recent responses of the UDP server to writes, keyed by client address and request id, so a
+ * write the client resends because the request or the response was lost is answered again
+ * instead of being executed twice. Without it a resent DELETE would report a missing key, and a
+ * resent PUT could overwrite a newer value. Reads are simply executed again.
+ *
+ * The cache holds a bounded number of responses and forgets the oldest first, which only needs
+ * to cover the few seconds a client keeps resending. It is split into stripes, each a
+ * LinkedHashMap guarded by its own lock, so workers rarely wait for each other.
+ */
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ReplyCache {
+
+  // Returned by begin for a request that another worker is still executing
+  public static final byte[] IN_PROGRESS = new byte[0];
+
+  // Number of stripes. Must be a power of two
+  private static final int STRIPES = 16;
+
+  // Most bytes of responses the cache holds, so large batch responses can't use up the heap
+  private static final long MAX_BYTES = 64L * 1024 * 1024;
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  /**
+   * Creates a cache.
+   * @param maxEntries The number of responses to remember
+   */
+  public ReplyCache(int maxEntries) {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe(Math.max(1, maxEntries / STRIPES), MAX_BYTES / STRIPES);
+    }
+  }
+
+  /**
+   * Function to start handling a write. If the request is new it is marked as in progress, and
+   * the caller must execute it and then call complete.
+   *
+   * @param client    The client's address
+   * @param requestId The request id
+   * @return null for a new request, the response already sent for a resent one, or IN_PROGRESS
+   *         if the request is still being executed
+   */
+  public byte[] begin(InetSocketAddress client, int requestId) {
+    Key key = new Key(client, requestId);
+    Stripe stripe = stripes[key.hashCode() & (STRIPES - 1)];
+    synchronized (stripe) {
+      byte[] reply = stripe.replies.get(key);
+      if (reply == null) stripe.add(key, IN_PROGRESS);
+      return reply;
+    }
+  }
+
+  /**
+   * Function to remember the response to a write started with begin
+   *
+   * @param client    The client's address
+   * @param requestId The request id
+   * @param response  The encoded response datagram, from its position to its limit
+   */
+  public void complete(InetSocketAddress client, int requestId, ByteBuffer response) {
+    byte[] reply = new byte[response.remaining()];
+    response.duplicate().get(reply);
+    Key key = new Key(client, requestId);
+    Stripe stripe = stripes[key.hashCode() & (STRIPES - 1)];
+    synchronized (stripe) {
+      stripe.add(key, reply);
+    }
+  }
+
+  /**
+   * Client address and request id of a request
+   */
+  private static final class Key {
+    private final InetSocketAddress client;
+    private final int requestId;
+
+    Key(InetSocketAddress client, int requestId) {
+      this.client = client;
+      this.requestId = requestId;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) return false;
+      Key key = (Key) other;
+      return requestId == key.requestId && client.equals(key.client);
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = client.hashCode() * 31 + requestId;
+      return hash ^ (hash >>> 16);
+    }
+  }
+
+  /**
+   * One stripe: responses in the order they were added, oldest first
+   */
+  private static final class Stripe {
+    // Responses in insertion order, so the oldest is the first
+    final LinkedHashMap<Key, byte[]> replies = new LinkedHashMap<Key, byte[]>();
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private long bytes;
+
+    Stripe(int maxEntries, long maxBytes) {
+      this.maxEntries = maxEntries;
+      this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Function to add or replace a response, then forget the oldest ones over the limits
+     */
+    void add(Key key, byte[] reply) {
+      byte[] previous = replies.put(key, reply);
+      if (previous != null) bytes -= previous.length;
+      bytes += reply.length;
+      Iterator<Map.Entry<Key, byte[]>> oldest = replies.entrySet().iterator();
+      while ((replies.size() > maxEntries || bytes > maxBytes) && oldest.hasNext()) {
+        bytes -= oldest.next().getValue().length;
+        oldest.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,220 @@
+/**
+ * Request
+ *
+ * A single client request in the binary protocol: an opcode, the id the client uses to match the
+ * response, and the key and value the command works on. Batch commands (MGET, MPUT, MDELETE)
+ * carry a list of keys, and MPUT a matching list of values, instead of a single key and value.
+ * Keys and values are opaque bytes.
+ * PUTEX also carries the time to live of the value, PUT_CHUNK and GET_CHUNK the position of
+ * their chunk in a streamed value, SCAN and RANGE the most pairs their page may hold, INCR the
+ * amount to add and CAS the value it expects to replace.
+ */
+
+public class Request {
+
+  // Command to execute, one of the Protocol.OP_* constants
+  public final byte opcode;
+
+  // Id chosen by the client and echoed in the response
+  public final int requestId;
+
+  // Key the command works on (empty for commands without a key)
+  public final ByteString key;
+
+  // Value for commands that carry one (empty otherwise)
+  public final ByteString value;
+
+  // Keys of a batch command, or null for single-key commands
+  public final ByteString[] keys;
+
+  // Values of an MPUT, one per key, or null for other commands
+  public final ByteString[] values;
+
+  // Time to live of a PUTEX value in milliseconds (0 for other commands)
+  public final long ttlMillis;
+
+  // Stream a PUT_CHUNK or GET_CHUNK belongs to, the index of its chunk in the value, and whether
+  // it is the last chunk of a PUT_CHUNK stream (0 and false for other commands)
+  public final int streamId;
+  public final int chunkIndex;
+  public final boolean lastChunk;
+
+  // Most key-value pairs a SCAN or RANGE page may hold (0 for other commands)
+  public final int limit;
+
+  // Amount an INCR adds to its counter, negative to decrement (0 for other commands)
+  public final long delta;
+
+  // Value a CAS expects the key to hold, or null if it expects the key to be absent (null for
+  // other commands)
+  public final ByteString expected;
+
+  /**
+   * Creates a single-key request.
+   *
+   * @param opcode    The command, one of the Protocol.OP_* constants
+   * @param requestId The id echoed in the response
+   * @param key       The key, or ByteString.EMPTY
+   * @param value     The value, or ByteString.EMPTY
+   */
+  public Request(byte opcode, int requestId, ByteString key, ByteString value) {
+    this(opcode, requestId, key, value, 0);
+  }
+
+  /**
+   * Creates a single-key request with a time to live.
+   *
+   * @param opcode    The command, one of the Protocol.OP_* constants
+   * @param requestId The id echoed in the response
+   * @param key       The key, or ByteString.EMPTY
+   * @param value     The value, or ByteString.EMPTY
+   * @param ttlMillis The time to live of the value in milliseconds
+   */
+  public Request(byte opcode, int requestId, ByteString key, ByteString value, long ttlMillis) {
+    this.opcode = opcode;
+    this.requestId = requestId;
+    this.key = key;
+    this.value = value;
+    this.keys = null;
+    this.values = null;
+    this.ttlMillis = ttlMillis;
+    this.streamId = 0;
+    this.chunkIndex = 0;
+    this.lastChunk = false;
+    this.limit = 0;
+    this.delta = 0;
+    this.expected = null;
+  }
+
+  /**
+   * Creates an INCR request.
+   *
+   * @param opcode    Protocol.OP_INCR
+   * @param requestId The id echoed in the response
+   * @param key       The key of the counter
+   * @param delta     The amount to add, negative to decrement
+   */
+  public Request(byte opcode, int requestId, ByteString key, long delta) {
+    this.opcode = opcode;
+    this.requestId = requestId;
+    this.key = key;
+    this.value = ByteString.EMPTY;
+    this.keys = null;
+    this.values = null;
+    this.ttlMillis = 0;
+    this.streamId = 0;
+    this.chunkIndex = 0;
+    this.lastChunk = false;
+    this.limit = 0;
+    this.delta = delta;
+    this.expected = null;
+  }
+
+  /**
+   * Creates a CAS request, replacing the value of a key only if it still holds the expected one.
+   *
+   * @param opcode    Protocol.OP_CAS
+   * @param requestId The id echoed in the response
+   * @param key       The key to update
+   * @param expected  The value the key must hold, or null if it must not exist
+   * @param value     The new value
+   */
+  public Request(byte opcode, int requestId, ByteString key, ByteString expected, ByteString value) {
+    this.opcode = opcode;
+    this.requestId = requestId;
+    this.key = key;
+    this.value = value;
+    this.keys = null;
+    this.values = null;
+    this.ttlMillis = 0;
+    this.streamId = 0;
+    this.chunkIndex = 0;
+    this.lastChunk = false;
+    this.limit = 0;
+    this.delta = 0;
+    this.expected = expected;
+  }
+
+  /**
+   * Creates a request for one page of a SCAN or RANGE.
+   *
+   * @param opcode    Protocol.OP_SCAN or OP_RANGE
+   * @param requestId The id echoed in the response
+   * @param limit     The most key-value pairs the page may hold, at least 1
+   * @param key       The prefix of a SCAN, or the first key of a RANGE
+   * @param value     Where a SCAN page starts (empty for the first page), or the key a RANGE
+   *                  stops before (empty for no end)
+   */
+  public Request(byte opcode, int requestId, int limit, ByteString key, ByteString value) {
+    this.opcode = opcode;
+    this.requestId = requestId;
+    this.key = key;
+    this.value = value;
+    this.keys = null;
+    this.values = null;
+    this.ttlMillis = 0;
+    this.streamId = 0;
+    this.chunkIndex = 0;
+    this.lastChunk = false;
+    this.limit = limit;
+    this.delta = 0;
+    this.expected = null;
+  }
+
+  /**
+   * Creates a request moving one chunk of a streamed value.
+   *
+   * @param opcode     Protocol.OP_PUT_CHUNK or OP_GET_CHUNK
+   * @param requestId  The id echoed in the response
+   * @param key        The key
+   * @param chunk      The chunk for a PUT_CHUNK, or ByteString.EMPTY
+   * @param streamId   The id of the transfer the chunk belongs to
+   * @param chunkIndex The index of the chunk in the value, from 0
+   * @param lastChunk  True on the last chunk of a PUT_CHUNK
+   */
+  public Request(byte opcode, int requestId, ByteString key, ByteString chunk, int streamId, int chunkIndex,
+                 boolean lastChunk) {
+    this.opcode = opcode;
+    this.requestId = requestId;
+    this.key = key;
+    this.value = chunk;
+    this.keys = null;
+    this.values = null;
+    this.ttlMillis = 0;
+    this.streamId = streamId;
+    this.chunkIndex = chunkIndex;
+    this.lastChunk = lastChunk;
+    this.limit = 0;
+    this.delta = 0;
+    this.expected = null;
+  }
+
+  /**
+   * Creates a batch request.
+   *
+   * @param opcode    The batch command, Protocol.OP_MGET, OP_MPUT or OP_MDELETE
+   * @param requestId The id echoed in the response
+   * @param keys      The keys the command works on
+   * @param values    The values for an MPUT, one per key, or null for other commands
+   * @throws IllegalArgumentException If an MPUT doesn't have one value per key
+   */
+  public Request(byte opcode, int requestId, ByteString[] keys, ByteString[] values) {
+    if (values != null && values.length != keys.length) {
+      throw new IllegalArgumentException("Batch has " + keys.length + " keys but " +
+              values.length + " values");
+    }
+    this.opcode = opcode;
+    this.requestId = requestId;
+    this.key = ByteString.EMPTY;
+    this.value = ByteString.EMPTY;
+    this.keys = keys;
+    this.values = values;
+    this.ttlMillis = 0;
+    this.streamId = 0;
+    this.chunkIndex = 0;
+    this.lastChunk = false;
+    this.limit = 0;
+    this.delta = 0;
+    this.expected = null;
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Response
+ *
+ * The server's answer to a Request in the binary protocol: a status, the id of the request it
+ * answers, the value read (GET, and the counter after an INCR) and a human readable message. The answer to a batch
+ * command instead carries one status and one value per key, in the order of the request's keys,
+ * and the answer to a SCAN or RANGE a page of keys with their values, in key order.
+ */
+
+public class Response {
+
+  // Protocol.STATUS_OK, Protocol.STATUS_ERROR, Protocol.STATUS_MISMATCH, Protocol.STATUS_BATCH or
+  // Protocol.STATUS_PAGE
+  public final byte status;
+
+  // Id of the request this response answers
+  public final int requestId;
+
+  // Value read by a GET, the counter after an INCR, the value a CAS found instead of the one it
+  // expected, or the key the next page of a SCAN or RANGE starts at; null if the response
+  // carries no value, or for the last page
+  public final ByteString value;
+
+  // Message describing the outcome
+  public final String message;
+
+  // Per-key statuses of a batch command, or null for single-key commands
+  public final byte[] statuses;
+
+  // Per-key values of a batch command (null entries where there is none), the values of a page,
+  // or null
+  public final ByteString[] values;
+
+  // Keys of a SCAN or RANGE page, or null for other commands
+  public final ByteString[] keys;
+
+  /**
+   * Creates a response to a single-key command.
+   *
+   * @param status    Protocol.STATUS_OK, Protocol.STATUS_ERROR or Protocol.STATUS_MISMATCH
+   * @param requestId The id of the request being answered
+   * @param value     The value read, or null
+   * @param message   The message describing the outcome
+   */
+  public Response(byte status, int requestId, ByteString value, String message) {
+    this.status = status;
+    this.requestId = requestId;
+    this.value = value;
+    this.message = message;
+    this.statuses = null;
+    this.values = null;
+    this.keys = null;
+  }
+
+  /**
+   * Creates a response to a batch command.
+   *
+   * @param requestId The id of the request being answered
+   * @param statuses  Protocol.STATUS_OK or Protocol.STATUS_ERROR for each key
+   * @param values    The value read for each key (MGET), with null where there is none
+   */
+  public Response(int requestId, byte[] statuses, ByteString[] values) {
+    this.status = Protocol.STATUS_BATCH;
+    this.requestId = requestId;
+    this.value = null;
+    this.message = "";
+    this.statuses = statuses;
+    this.values = values;
+    this.keys = null;
+  }
+
+  /**
+   * Creates a response holding one page of a SCAN or RANGE.
+   *
+   * @param requestId The id of the request being answered
+   * @param keys      The keys of the page, in ascending order
+   * @param values    The value of each key
+   * @param next      The key the next page starts at, or null if this is the last page
+   */
+  public Response(int requestId, ByteString[] keys, ByteString[] values, ByteString next) {
+    this.status = Protocol.STATUS_PAGE;
+    this.requestId = requestId;
+    this.value = next;
+    this.message = "";
+    this.statuses = null;
+    this.values = values;
+    this.keys = keys;
+  }
+
+  /**
+   * Function to check whether the request succeeded. A batch response is successful as a
+   * whole; the outcome for each key is in statuses.
+   *
+   * @return True unless the status is Protocol.STATUS_ERROR or Protocol.STATUS_MISMATCH
+   */
+  public boolean isOk() {
+    return status != Protocol.STATUS_ERROR && status != Protocol.STATUS_MISMATCH;
+  }
+
+  /**
+   * Function to check whether this answers a CAS that found another value than it expected
+   * @return True if nothing was replaced; the value is the one found, or null if the key is absent
+   */
+  public boolean isMismatch() {
+    return status == Protocol.STATUS_MISMATCH;
+  }
+
+  /**
+   * Function to check whether this answers a batch command
+   * @return True if the response carries per-key results
+   */
+  public boolean isBatch() {
+    return status == Protocol.STATUS_BATCH;
+  }
+
+  /**
+   * Function to check whether this answers a SCAN or RANGE
+   * @return True if the response carries a page of keys and values
+   */
+  public boolean isPage() {
+    return status == Protocol.STATUS_PAGE;
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Routing Proxy
+ *
+ * Front end of a cluster for clients that don't route keys themselves. It speaks the same TCP
+ * protocols as TCPServer, text and pipelined, so TCPClient, PipelinedTCPClient and the load
+ * generator work with it unchanged, and forwards every request to the node owning its key
+ * through a ClusterClient. Each client connection is served by its own RoutingProxyHandler.
+ *
+ * To try a cluster on one machine, start a few servers and a proxy in front of them:
+ *
+ *   java TCPServer 5001
+ *   java TCPServer 5002
+ *   java TCPServer 5003
+ *   java RoutingProxy 5000 --nodes=localhost:5001,localhost:5002,localhost:5003
+ */
+
+import java.io.*;
+import java.net.*;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class RoutingProxy {
+  // Default number of clients served at the same time
+  private static final int DEFAULT_THREADS = 256;
+
+  // Default time a forwarded request waits for its node, in milliseconds
+  private static final int DEFAULT_TIMEOUT_MS = 1000;
+
+  /**
+   * Main entry point of the proxy program.
+   * Accepts the command-line arguments.
+   * Throws IOException if an I/O error occurs.
+   * CMD LINE ARGUMENTS:
+   *  String PROXY_PORT
+   *  --nodes=LIST      Comma-separated host:port of every node of the cluster
+   *  --virtual-nodes=N (optional) Points per node on the hash ring. Default 160
+   *  --threads=N       (optional) Clients served at the same time. Default 256
+   *  --timeout-ms=N    (optional) A forwarded request without a response after N ms fails.
+   *                    Default 1000
+   *  --log-level=L     (optional) OFF, ERROR, WARN, INFO or DEBUG. Default INFO
+   *  --log-sample=N    (optional) Log 1 in N requests. Default 1
+   */
+  public static void main(String[] args) throws IOException {
+    ServerConfig config = null;
+    List<String> nodes = new ArrayList<String>();
+    ClusterClient cluster = null;
+    try {
+      config = new ServerConfig(args);
+      Log.configure(config);
+      String list = config.getString("nodes", null);
+      if (list == null) {
+        throw new IllegalArgumentException("--nodes is required");
+      }
+      for (String node : list.split(",")) {
+        if (!node.trim().isEmpty()) nodes.add(node.trim());
+      }
+      cluster = new ClusterClient(nodes, config.getInt("virtual-nodes", HashRing.DEFAULT_VIRTUAL_NODES),
+              config.getInt("timeout-ms", DEFAULT_TIMEOUT_MS));
+    } catch (IllegalArgumentException e) {
+      System.err.println("Provide Correct Arguments (Port --nodes=host:port,host:port,... [--virtual-nodes=N] " +
+              "[--threads=N] [--timeout-ms=N] [--log-level=LEVEL] [--log-sample=N]): " + e.getMessage());
+      System.exit(-1);
+    }
+
+    int port = config.getPort();
+    int threads = config.getInt("threads", DEFAULT_THREADS);
+    ServerSocket serverSocket = null;
+    try {
+      serverSocket = new ServerSocket(port);
+    } catch (BindException e) {
+      System.err.println(getCurrentTimeStamp() + "Cannot bind to the port");
+      System.exit(-1);
+    }
+
+    // Clients beyond the pool size wait in the queue until a handler thread frees up
+    ExecutorService clientPool = Executors.newFixedThreadPool(threads);
+    System.out.println("Proxy Started. Listening for Clients on port " + port + " and routing to " +
+            nodes.size() + " nodes...");
+
+    while (true) {
+      Socket clientSocket;
+      try {
+        clientSocket = serverSocket.accept();
+      } catch (IOException e) {
+        Log.log(Log.ERROR, "Unknown IO Error. Connection Not Successful");
+        continue;
+      }
+      clientPool.execute(new RoutingProxyHandler(clientSocket, cluster));
+    }
+  }
+
+  /**
+   * Function to get the current timestamp
+   * @return The current timestamp string
+   */
+  static String getCurrentTimeStamp() {
+    Timestamp timestamp = new Timestamp(System.currentTimeMillis());
+    return "[" + timestamp.toString() + "]  ";
+  }
+}
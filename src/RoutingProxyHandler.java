@@ -0,0 +1,251 @@
+/**
+ * Routing Proxy Handler
+ *
+ * Serves a single client connection of the RoutingProxy on a dedicated thread, like
+ * TCPClientHandler does for a server. Text commands are forwarded one at a time. Once the client
+ * switches to the pipelined protocol, every request is forwarded as soon as it is read, and its
+ * response is written back as soon as the node answers, so requests to different nodes don't
+ * wait for each other.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RoutingProxyHandler implements Runnable {
+  // Command constants
+  private static final String get = "GET";
+  private static final String delete = "DELETE";
+  private static final String put = "PUT";
+  private static final String quit = "QUIT";
+  private static final String stats = "STATS";
+
+  // Routes the requests to the nodes of the cluster
+  private final ClusterClient cluster;
+
+  // Pipelined requests that have been read but not answered yet
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  // Client socket and its input and output streams
+  private final Socket clientSocket;
+  private DataInputStream dataIn;
+  private DataOutputStream dataOut;
+
+  // Client IP address and port, used in log messages
+  private final InetAddress clientSocketIP;
+  private final int clientSocketPort;
+
+  /**
+   * Creates a handler for an accepted client connection.
+   *
+   * @param clientSocket The accepted client socket
+   * @param cluster      Routes the requests to the nodes of the cluster
+   */
+  public RoutingProxyHandler(Socket clientSocket, ClusterClient cluster) {
+    this.clientSocket = clientSocket;
+    this.cluster = cluster;
+    this.clientSocketIP = clientSocket.getInetAddress();
+    this.clientSocketPort = clientSocket.getPort();
+  }
+
+  /**
+   * Reads commands from the client until it sends QUIT or disconnects.
+   */
+  @Override
+  public void run() {
+    Log.info(clientSocketIP, clientSocketPort, "Client Connection Successful!");
+    try {
+      dataIn = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+      dataOut = new DataOutputStream(clientSocket.getOutputStream());
+
+      while (true) {
+        String clientMessage = dataIn.readUTF();
+        if (get.equals(clientMessage)) {
+          dataOut.writeUTF(forwardText(cluster.get(dataIn.readUTF())));
+        } else if (delete.equals(clientMessage)) {
+          dataOut.writeUTF(forwardText(cluster.delete(dataIn.readUTF())));
+        } else if (put.equals(clientMessage)) {
+          String key = dataIn.readUTF();
+          String val = dataIn.readUTF();
+          dataOut.writeUTF(forwardText(cluster.put(key, val)));
+        } else if (stats.equals(clientMessage)) {
+          dataOut.writeUTF("1:" + cluster.stats().join());
+        } else if (quit.equals(clientMessage)) {
+          break;
+        } else if (Protocol.PIPELINE_HANDSHAKE.equals(clientMessage)) {
+          dataOut.writeUTF("1:Switched to pipelined protocol");
+          servePipelined();
+          break;
+        } else {
+          Log.error(clientSocketIP, clientSocketPort, "Invalid Command: ", clientMessage);
+          dataOut.writeUTF("-1:Invalid Command");
+        }
+      }
+    } catch (ProtocolException e) {
+      Log.error(clientSocketIP, clientSocketPort, "Malformed Frame: ", e.getMessage(), ". Closing Connection");
+    } catch (EOFException e) {
+      Log.error(clientSocketIP, clientSocketPort, "Client disconnected without QUIT");
+    } catch (IOException e) {
+      Log.error(clientSocketIP, clientSocketPort, "Unknown IO Error. Closing Connection");
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Function to wait for a forwarded text command and format its response
+   *
+   * @param future The forwarded request
+   * @return The text protocol message, "-1:" followed by the reason if the node failed
+   */
+  private String forwardText(CompletableFuture<Response> future) {
+    try {
+      return CommandProcessor.toText(future.join());
+    } catch (CompletionException e) {
+      Log.error(clientSocketIP, clientSocketPort, "[Err] Node Unavailable: ", describe(e));
+      return "-1:[Err] Node unavailable: " + describe(e);
+    }
+  }
+
+  /**
+   * Function to read request frames until the client sends QUIT, forwarding each request as
+   * soon as it is read. Returns once every request read has been answered.
+   */
+  private void servePipelined() throws IOException {
+    // Responses completed by different nodes share one stream, so writes are serialized on it
+    dataOut = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+    try {
+      while (true) {
+        int length = dataIn.readInt();
+        Protocol.checkFrameLength(length);
+        byte[] frame = new byte[length];
+        dataIn.readFully(frame);
+        Request request = Protocol.decodeRequest(ByteBuffer.wrap(frame));
+        if (request.opcode == Protocol.OP_QUIT) {
+          break;
+        }
+
+        inFlight.incrementAndGet();
+        forward(request).whenComplete((response, error) -> {
+          if (error != null) {
+            Log.error(clientSocketIP, clientSocketPort, "[Err] Node Unavailable: ", describe(error));
+            response = new Response(Protocol.STATUS_ERROR, request.requestId, null,
+                    "[Err] Node unavailable: " + describe(error));
+          }
+          writeResponse(request, response);
+        });
+      }
+    } finally {
+      awaitInFlight();
+    }
+  }
+
+  /**
+   * Function to forward a pipelined request to the nodes owning its keys
+   *
+   * @param request The request read from the client
+   * @return A future completed with the response of the node, or the merged response of the
+   *         nodes of a batch command
+   */
+  private CompletableFuture<Response> forward(Request request) {
+    byte opcode = Protocol.baseOpcode(request.opcode);
+    if (Protocol.isBatch(opcode)) {
+      return cluster.sendBatch(opcode, request.keys, request.values);
+    } else if (opcode == Protocol.OP_PUTEX) {
+      return cluster.put(request.key, request.value, request.ttlMillis);
+    } else if (opcode == Protocol.OP_STATS) {
+      return cluster.stats().thenApply(text -> new Response(Protocol.STATUS_OK, request.requestId, ByteString.of(text),
+              "Cluster statistics"));
+    } else if (Protocol.isChunk(opcode)) {
+      return cluster.sendChunk(opcode, request.key, request.streamId, request.chunkIndex, request.value,
+              request.lastChunk);
+    } else if (Protocol.isScan(opcode)) {
+      return cluster.scan(opcode, request.key, request.value, request.limit);
+    } else if (opcode == Protocol.OP_INCR) {
+      return cluster.incr(request.key, request.delta);
+    } else if (opcode == Protocol.OP_CAS) {
+      return cluster.cas(request.key, request.expected, request.value);
+    }
+    return cluster.send(request.opcode, request.key, request.value);
+  }
+
+  /**
+   * Function to write the response to a pipelined request, under the client's request id and in
+   * the form the client asked for
+   *
+   * @param request  The request read from the client
+   * @param response The response of the node
+   */
+  private void writeResponse(Request request, Response response) {
+    byte[] frame;
+    if (Protocol.isLean(request.opcode) && !response.isBatch()) {
+      response = new Response(response.status, request.requestId, response.value, "");
+      int length = Protocol.leanResponseLength(response);
+      ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+      buffer.putInt(length);
+      Protocol.encodeLeanResponse(response, buffer);
+      frame = buffer.array();
+    } else if (response.isBatch()) {
+      frame = Protocol.encodeResponseFrame(new Response(request.requestId, response.statuses, response.values));
+    } else if (response.isPage()) {
+      frame = Protocol.encodeResponseFrame(new Response(request.requestId, response.keys, response.values,
+              response.value));
+    } else {
+      frame = Protocol.encodeResponseFrame(new Response(response.status, request.requestId, response.value,
+              response.message));
+    }
+    try {
+      synchronized (dataOut) {
+        dataOut.write(frame);
+        dataOut.flush();
+      }
+    } catch (IOException e) {
+      // The reader thread notices the broken connection and closes it
+      Log.error(clientSocketIP, clientSocketPort, "Unknown IO Error. Response Not Sent");
+    } finally {
+      synchronized (inFlight) {
+        if (inFlight.decrementAndGet() == 0) inFlight.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Function to wait until every pipelined request read so far has been answered
+   */
+  private void awaitInFlight() {
+    synchronized (inFlight) {
+      while (inFlight.get() > 0) {
+        try {
+          inFlight.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes the streams and the client socket.
+   */
+  private void close() {
+    Log.info(clientSocketIP, clientSocketPort, "Connection Closed");
+    try {
+      // Closing the socket also closes both streams
+      clientSocket.close();
+    } catch (IOException e) {
+      Log.error(clientSocketIP, clientSocketPort, "Unknown IO Error while closing connection");
+    }
+  }
+
+  /**
+   * Function to describe why a forwarded request failed
+   */
+  private static String describe(Throwable error) {
+    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * RTT Estimator
+ *
+ * Retransmission timeout of a UDP client, computed from measured round-trip times the way TCP
+ * does it (RFC 6298): a smoothed RTT plus four times its mean deviation, so the timeout follows
+ * the server and network instead of being a fixed guess. Each resend of a request waits twice as
+ * long as the one before, so an overloaded server isn't flooded with resends.
+ *
+ * Only requests answered on their first send are measured (Karn's algorithm): the response to
+ * a resent request can't be matched to one of its sends.
+ *
+ * Safe to use from several threads at once.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+public class RttEstimator {
+
+  // Timeout before the first measurement
+  private static final long INITIAL_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+  // Bounds of the timeout. The lower bound absorbs scheduling and garbage collection pauses
+  private static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+  private static final long MAX_RTO_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  // Smoothed round-trip time and its mean deviation, 0 until the first measurement
+  private long smoothedRtt;
+  private long rttVariation;
+
+  private volatile long rto = INITIAL_RTO_NANOS;
+
+  /**
+   * Function to update the estimate with a measured round trip
+   * @param rttNanos The time from sending a request to receiving its response, in nanoseconds
+   */
+  public synchronized void sample(long rttNanos) {
+    if (smoothedRtt == 0) {
+      smoothedRtt = rttNanos;
+      rttVariation = rttNanos / 2;
+    } else {
+      rttVariation += (Math.abs(smoothedRtt - rttNanos) - rttVariation) / 4;
+      smoothedRtt += (rttNanos - smoothedRtt) / 8;
+    }
+    rto = clamp(smoothedRtt + 4 * rttVariation);
+  }
+
+  /**
+   * Function to get the current retransmission timeout
+   * @return The timeout in nanoseconds
+   */
+  public long getRtoNanos() {
+    return rto;
+  }
+
+  /**
+   * Function to get the timeout of one send of a request, doubling with each resend
+   *
+   * @param attempt How many times the request was sent before, 0 for the first send
+   * @return The timeout in nanoseconds
+   */
+  public long getRtoNanos(int attempt) {
+    return clamp(rto << Math.min(attempt, 20));
+  }
+
+  private static long clamp(long rto) {
+    return Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, rto));
+  }
+}
@@ -0,0 +1,149 @@
+/**
+ * Server Config
+ *
+ * Parses the command-line arguments shared by the TCP and UDP servers and the load generator.
+ * The first argument is always the port to listen on (or to connect to). Every following argument
+ * is an optional setting of the form --name=value (for example --threads=64).
+ */
+
+import java.util.HashMap;
+
+public class ServerConfig {
+
+  // Port the server listens on
+  private final int port;
+
+  // Optional settings keyed by name (without the leading dashes)
+  private final HashMap<String, String> options = new HashMap<String, String>();
+
+  /**
+   * Creates a config from the server's command-line arguments.
+   *
+   * @param args The command-line arguments (port followed by --name=value options)
+   * @throws IllegalArgumentException If the port is missing or an option is malformed
+   */
+  public ServerConfig(String[] args) {
+    if (args.length < 1) {
+      throw new IllegalArgumentException("Port is required");
+    }
+    try {
+      port = Integer.parseInt(args[0]);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid port: " + args[0]);
+    }
+    for (int i = 1; i < args.length; i++) {
+      String arg = args[i];
+      int eq = arg.indexOf('=');
+      if (!arg.startsWith("--") || eq < 3) {
+        throw new IllegalArgumentException("Invalid option: " + arg + " (expected --name=value)");
+      }
+      options.put(arg.substring(2, eq), arg.substring(eq + 1));
+    }
+  }
+
+  /**
+   * Function to get the port the server listens on
+   * @return The server port
+   */
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * Function to get a string option
+   *
+   * @param name         The option name
+   * @param defaultValue The value to return if the option is not set
+   * @return The option value
+   */
+  public String getString(String name, String defaultValue) {
+    String value = options.get(name);
+    return value == null ? defaultValue : value;
+  }
+
+  /**
+   * Function to get an integer option
+   *
+   * @param name         The option name
+   * @param defaultValue The value to return if the option is not set
+   * @return The option value
+   * @throws IllegalArgumentException If the option is not a number
+   */
+  public int getInt(String name, int defaultValue) {
+    String value = options.get(name);
+    if (value == null) return defaultValue;
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Option --" + name + " must be a number: " + value);
+    }
+  }
+
+  /**
+   * Function to get a long integer option
+   *
+   * @param name         The option name
+   * @param defaultValue The value to return if the option is not set
+   * @return The option value
+   * @throws IllegalArgumentException If the option is not a number
+   */
+  public long getLong(String name, long defaultValue) {
+    String value = options.get(name);
+    if (value == null) return defaultValue;
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Option --" + name + " must be a number: " + value);
+    }
+  }
+
+  /**
+   * Function to get a decimal option
+   *
+   * @param name         The option name
+   * @param defaultValue The value to return if the option is not set
+   * @return The option value
+   * @throws IllegalArgumentException If the option is not a number
+   */
+  public double getDouble(String name, double defaultValue) {
+    String value = options.get(name);
+    if (value == null) return defaultValue;
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Option --" + name + " must be a number: " + value);
+    }
+  }
+
+  /**
+   * Function to get a size option in bytes, optionally with a k, m or g suffix (for example 512m)
+   *
+   * @param name         The option name
+   * @param defaultValue The value to return if the option is not set
+   * @return The option value in bytes
+   * @throws IllegalArgumentException If the option is not a size
+   */
+  public long getBytes(String name, long defaultValue) {
+    String value = options.get(name);
+    if (value == null) return defaultValue;
+    String digits = value.toLowerCase();
+    int shift = 0;
+    if (digits.endsWith("k")) {
+      shift = 10;
+    } else if (digits.endsWith("m")) {
+      shift = 20;
+    } else if (digits.endsWith("g")) {
+      shift = 30;
+    }
+    if (shift > 0) digits = digits.substring(0, digits.length() - 1);
+    try {
+      long bytes = Long.parseLong(digits);
+      if (bytes < 0 || bytes > Long.MAX_VALUE >> shift) {
+        throw new NumberFormatException();
+      }
+      return bytes << shift;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Option --" + name + " must be a size such as 512m: " + value);
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/**
+ * Slab Allocator
+ *
+ * Hands out chunks of off-heap memory for the off-heap store. Memory is taken from the OS in
+ * 1 MB direct ByteBuffer pages, and every page is cut into chunks of a single size class. Size
+ * classes grow by 25% from 32 bytes up to a whole page, so an entry wastes at most a quarter of
+ * its chunk. Freed chunks go onto a free list per size class, threaded through the free chunks
+ * themselves, so allocating and freeing take no heap memory at all. Entries larger than a page get
+ * a direct buffer of their own.
+ *
+ * A chunk is named by a reference: the page number in the upper 32 bits and the offset within the
+ * page in the lower 32 bits. Reference 0 is never handed out, so it can mean "no chunk".
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SlabAllocator {
+
+  // Size of a page of chunks
+  public static final int PAGE_SIZE = 1 << 20;
+
+  // Smallest chunk, and how much each size class grows over the previous one
+  private static final int MIN_CHUNK_SIZE = 32;
+  private static final double GROWTH_FACTOR = 1.25;
+
+  // Chunk size of each class, ascending, the last one a whole page
+  private final int[] chunkSizes;
+  private final SizeClass[] classes;
+
+  // Pages by number. Replaced by a bigger copy when full, so readers never need a lock
+  private volatile ByteBuffer[] pages = new ByteBuffer[64];
+
+  // Number of page slots in use (slot 0 is never used), and slots of released large pages
+  private int pageCount = 1;
+  private final ArrayDeque<Integer> freePageNumbers = new ArrayDeque<Integer>();
+
+  // Bytes of direct memory held in pages
+  private final AtomicLong reservedBytes = new AtomicLong();
+
+  /**
+   * Chunks of one size: a free list and the page new chunks are carved from.
+   */
+  private static final class SizeClass {
+    final int chunkSize;
+
+    // First free chunk, or 0. Each free chunk holds the reference of the next in its first 8 bytes
+    long freeHead;
+
+    // Page new chunks are cut from (0 before the first one) and the offset of the next chunk
+    int page;
+    int nextOffset = PAGE_SIZE;
+
+    SizeClass(int chunkSize) {
+      this.chunkSize = chunkSize;
+    }
+  }
+
+  /**
+   * Creates an allocator. No memory is reserved until the first allocation.
+   */
+  public SlabAllocator() {
+    int count = 0;
+    int[] sizes = new int[64];
+    for (double size = MIN_CHUNK_SIZE; size < PAGE_SIZE; size *= GROWTH_FACTOR) {
+      // Keep chunks 8-byte aligned
+      sizes[count++] = ((int) size + 7) & ~7;
+    }
+    sizes[count++] = PAGE_SIZE;
+    chunkSizes = new int[count];
+    classes = new SizeClass[count];
+    for (int i = 0; i < count; i++) {
+      chunkSizes[i] = sizes[i];
+      classes[i] = new SizeClass(sizes[i]);
+    }
+  }
+
+  /**
+   * Function to allocate a chunk
+   *
+   * @param size The number of bytes needed
+   * @return The reference of a chunk of at least that size
+   */
+  public long allocate(int size) {
+    if (size > PAGE_SIZE) {
+      return reference(addPage(size), 0);
+    }
+    SizeClass sizeClass = classes[classOf(size)];
+    synchronized (sizeClass) {
+      long ref = sizeClass.freeHead;
+      if (ref != 0) {
+        sizeClass.freeHead = page(ref).getLong(offset(ref));
+        return ref;
+      }
+      if (sizeClass.nextOffset + sizeClass.chunkSize > PAGE_SIZE) {
+        sizeClass.page = addPage(PAGE_SIZE);
+        sizeClass.nextOffset = 0;
+      }
+      ref = reference(sizeClass.page, sizeClass.nextOffset);
+      sizeClass.nextOffset += sizeClass.chunkSize;
+      return ref;
+    }
+  }
+
+  /**
+   * Function to give a chunk back
+   *
+   * @param ref  The reference returned by allocate
+   * @param size The size that was asked for when it was allocated
+   */
+  public void free(long ref, int size) {
+    if (size > PAGE_SIZE) {
+      releasePage((int) (ref >>> 32));
+      return;
+    }
+    SizeClass sizeClass = classes[classOf(size)];
+    synchronized (sizeClass) {
+      page(ref).putLong(offset(ref), sizeClass.freeHead);
+      sizeClass.freeHead = ref;
+    }
+  }
+
+  /**
+   * Function to get the page a chunk lives in. Read and write it with absolute methods only,
+   * since other threads use the same page at the same time
+   */
+  public ByteBuffer page(long ref) {
+    return pages[(int) (ref >>> 32)];
+  }
+
+  /**
+   * Function to get the offset of a chunk within its page
+   */
+  public static int offset(long ref) {
+    return (int) ref;
+  }
+
+  /**
+   * Function to get the amount of direct memory held by the allocator
+   * @return The size in bytes of every page allocated and not released
+   */
+  public long reservedBytes() {
+    return reservedBytes.get();
+  }
+
+  /**
+   * Function to find the smallest size class that fits a size
+   */
+  private int classOf(int size) {
+    int low = 0;
+    int high = chunkSizes.length - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (chunkSizes[mid] < size) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Function to allocate a new page and give it a number
+   */
+  private synchronized int addPage(int size) {
+    ByteBuffer page = ByteBuffer.allocateDirect(size);
+    reservedBytes.addAndGet(size);
+    Integer reused = freePageNumbers.poll();
+    int number = reused != null ? reused : pageCount++;
+    ByteBuffer[] current = pages;
+    if (number >= current.length) {
+      ByteBuffer[] bigger = new ByteBuffer[current.length * 2];
+      System.arraycopy(current, 0, bigger, 0, current.length);
+      current = bigger;
+    }
+    current[number] = page;
+    // Publish the page (and the bigger array, if any) to readers
+    pages = current;
+    return number;
+  }
+
+  /**
+   * Function to drop a page holding a single large entry. Its memory is returned to the OS once
+   * the buffer is garbage collected
+   */
+  private synchronized void releasePage(int number) {
+    ByteBuffer[] current = pages;
+    reservedBytes.addAndGet(-current[number].capacity());
+    current[number] = null;
+    pages = current;
+    freePageNumbers.push(number);
+  }
+
+  /**
+   * Function to build a chunk reference
+   */
+  private static long reference(int page, int offset) {
+    return ((long) page << 32) | offset;
+  }
+}
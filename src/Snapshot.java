@@ -0,0 +1,251 @@
+/**
+ * Snapshot
+ *
+ * Compact binary image of a key-value store, so a restart only has to replay the write-ahead log
+ * written since the snapshot instead of the whole history. Layout, big-endian:
+ *
+ *   magic(4) | version(4) | segment(8)
+ *   (keyLen(4) | key | valLen(4) | value)*
+ *   -1(4) | count(8) | crc(4)
+ *
+ * where segment is the first write-ahead log segment the snapshot does not cover and crc is a
+ * CRC32C of everything before it.
+ *
+ * A snapshot is taken while requests keep being served, by iterating over the live store. It may
+ * or may not include changes made during the iteration, but every such change is in the log
+ * segment started just before, and replaying that segment in order makes every key end with its
+ * latest value. Snapshots are loaded through memory-mapped windows, so the file is read straight
+ * from the page cache without copying it through a read buffer.
+ */
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+public class Snapshot {
+
+  // "KVS1"
+  private static final int MAGIC = 0x4B565331;
+  private static final int VERSION = 1;
+
+  // Header size: magic, version and segment id
+  private static final int HEADER_SIZE = 4 + 4 + 8;
+
+  // Trailer size: end marker, entry count and checksum
+  private static final int TRAILER_SIZE = 4 + 8 + 4;
+
+  // Buffer size used when writing
+  private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+  // Largest part of the file mapped at once. Mappings are limited to 2 GB
+  private static final int MAP_WINDOW = 1 << 30;
+
+  private Snapshot() {
+  }
+
+  /**
+   * Function to write a snapshot of a store. The snapshot is written to a temporary file,
+   * fsynced and then renamed, so a crash never leaves a partial snapshot behind.
+   *
+   * @param dir     The data directory
+   * @param segment The first log segment the snapshot does not cover
+   * @param store   The store to copy
+   * @return The number of entries written
+   * @throws IOException If the snapshot cannot be written
+   */
+  public static long write(DataDirectory dir, long segment, KeyValueStore store) throws IOException {
+    Path temp = dir.snapshotTemp(segment);
+    CRC32C crc = new CRC32C();
+    long[] count = new long[1];
+    try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+              new CheckedOutputStream(file, crc), WRITE_BUFFER_SIZE));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(segment);
+      try {
+        store.forEach((key, value) -> {
+          try {
+            writeBytes(out, key);
+            writeBytes(out, value);
+            count[0]++;
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      out.writeInt(-1);
+      out.writeLong(count[0]);
+      out.flush();
+      // The checksum covers everything written so far, so it goes straight to the file
+      out.writeInt((int) crc.getValue());
+      out.flush();
+      file.getChannel().force(true);
+    } catch (IOException e) {
+      Files.deleteIfExists(temp);
+      throw e;
+    }
+    Files.move(temp, dir.snapshot(segment), StandardCopyOption.ATOMIC_MOVE);
+    dir.sync();
+    return count[0];
+  }
+
+  /**
+   * Function to load the newest snapshot in a directory into a store
+   *
+   * @param dir   The data directory
+   * @param store The store to load into
+   * @return The first log segment not covered by the snapshot, or 0 if there is no snapshot
+   * @throws IOException If the snapshot cannot be read or is corrupt
+   */
+  public static long loadLatest(DataDirectory dir, KeyValueStore store) throws IOException {
+    List<Long> snapshots = dir.snapshots();
+    if (snapshots.isEmpty()) {
+      return 0;
+    }
+    Path file = dir.snapshot(snapshots.get(snapshots.size() - 1));
+    long start = System.nanoTime();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedReader in = new MappedReader(channel);
+      if (in.size < HEADER_SIZE + TRAILER_SIZE) {
+        throw corrupt(file);
+      }
+      in.ensure(HEADER_SIZE);
+      if (in.window.getInt() != MAGIC || in.window.getInt() != VERSION) {
+        throw corrupt(file);
+      }
+      long segment = in.window.getLong();
+
+      long count = 0;
+      while (true) {
+        in.ensure(4);
+        int keyLength = in.window.getInt();
+        if (keyLength == -1) break;
+        if (keyLength < 0) throw corrupt(file);
+        in.ensure(keyLength + 4);
+        ByteString key = in.readBytes(keyLength);
+        int valLength = in.window.getInt();
+        if (valLength < 0) throw corrupt(file);
+        in.ensure(valLength);
+        store.put(key, in.readBytes(valLength));
+        count++;
+      }
+
+      // Check the trailer against what was read
+      in.ensure(8 + 4);
+      if (in.window.getLong() != count) {
+        throw corrupt(file);
+      }
+      int expected = in.checksum();
+      if (in.window.getInt() != expected || in.position() != in.size) {
+        throw corrupt(file);
+      }
+
+      Log.log(Log.INFO, "Loaded " + count + " keys from snapshot " + file + " in " +
+              (System.nanoTime() - start) / 1_000_000 + " ms");
+      return segment;
+    } catch (IndexOutOfBoundsException e) {
+      // A length pointed past the end of the file
+      throw corrupt(file);
+    }
+  }
+
+  /**
+   * Reads a snapshot through a window mapped over part of the file, moving the window along as
+   * the reading goes, and keeps the checksum of everything read.
+   */
+  private static class MappedReader {
+    private final FileChannel channel;
+    private final long size;
+    private final CRC32C crc = new CRC32C();
+
+    // Mapped part of the file and where it starts in the file
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    // Position in the window up to which bytes have been added to the checksum
+    private int checked;
+
+    MappedReader(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.size = channel.size();
+      window = map(0);
+    }
+
+    /**
+     * Function to make sure the next bytes are mapped, moving the window up to them if needed
+     *
+     * @param needed The number of bytes about to be read
+     * @throws IndexOutOfBoundsException If the file ends first
+     */
+    void ensure(int needed) throws IOException {
+      if (window.remaining() >= needed) return;
+      long position = position();
+      if (size - position < needed) {
+        throw new IndexOutOfBoundsException();
+      }
+      updateChecksum();
+      window = map(position);
+    }
+
+    /**
+     * Function to get the checksum of everything read so far
+     */
+    int checksum() {
+      updateChecksum();
+      return (int) crc.getValue();
+    }
+
+    /**
+     * Function to get the position in the file the next read comes from
+     */
+    long position() {
+      return windowStart + window.position();
+    }
+
+    /**
+     * Function to read a key or value of the given length. The bytes must be mapped already
+     */
+    ByteString readBytes(int length) {
+      return ByteString.read(window, length);
+    }
+
+    /**
+     * Function to add the bytes read since the last update to the checksum
+     */
+    private void updateChecksum() {
+      crc.update(window.slice(checked, window.position() - checked));
+      checked = window.position();
+    }
+
+    /**
+     * Function to map the part of the file starting at a position, up to the window size
+     */
+    private MappedByteBuffer map(long position) throws IOException {
+      windowStart = position;
+      checked = 0;
+      return channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+    }
+  }
+
+  /**
+   * Function to write a length-prefixed key or value
+   */
+  private static void writeBytes(DataOutputStream out, ByteString bytes) throws IOException {
+    out.writeInt(bytes.length());
+    bytes.writeTo(out);
+  }
+
+  /**
+   * Function to build the error for a snapshot that cannot be trusted
+   */
+  private static IOException corrupt(Path file) {
+    return new IOException("Snapshot " + file + " is corrupt");
+  }
+}
@@ -0,0 +1,169 @@
+/**
+ * Store Factory
+ *
+ * Builds the KeyValueStore a server runs on from its command-line options, so the TCP and UDP
+ * servers are configured the same way. --store picks the storage engine: "heap" keeps entries as
+ * Java objects, "offheap" keeps them as bytes in direct memory. With --max-entries or
+ * --max-memory the heap store becomes a bounded cache that evicts entries and supports TTLs.
+ * With --index=ordered the keys are also kept in a sorted index, for SCAN and RANGE.
+ * Without --data-dir the store only lives in memory. With --data-dir=DIR every change is
+ * recorded in a write-ahead log in DIR and snapshots of the store are written there
+ * periodically; both are loaded on startup. On top of it all, HotKeyStore finds the --hot-keys
+ * keys read most often and caches their values.
+ */
+
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class StoreFactory {
+
+  // Default fsync interval of the INTERVAL sync policy, in milliseconds
+  private static final int DEFAULT_SYNC_INTERVAL_MS = 100;
+
+  // Default time between snapshots, in seconds
+  private static final int DEFAULT_SNAPSHOT_INTERVAL_S = 300;
+
+  // Default number of hottest keys tracked and cached
+  private static final int DEFAULT_HOT_KEYS = 16;
+
+  private StoreFactory() {
+  }
+
+  /**
+   * Function to create the store described by the server options:
+   *  --store=S               (optional) heap or offheap. Default heap
+   *  --max-entries=N         (optional) Evict entries beyond N. Default: no limit
+   *  --max-memory=SIZE       (optional) Evict entries beyond an estimated SIZE bytes (k, m or g
+   *                          suffix allowed). Default: no limit
+   *  --eviction=P            (optional) lru, lfu or tinylfu. Default tinylfu
+   *  --index=I               (optional) hash, or ordered to also keep the keys sorted for SCAN
+   *                          and RANGE. Default hash
+   *  --data-dir=DIR          (optional) Directory for the write-ahead log and snapshots.
+   *                          Default: no persistence, memory only
+   *  --wal-sync=P            (optional) always, interval or os. Default always
+   *  --wal-sync-interval=MS  (optional) fsync interval of the interval policy. Default 100
+   *  --snapshot-interval=S   (optional) Seconds between snapshots, 0 for none. Default 300
+   *  --hot-keys=K            (optional) Hottest keys to report in STATS and cache, 0 for none.
+   *                          A bounded cache only reports them. Default 16
+   *
+   * @param config The server configuration
+   * @return The store, already loaded from the data directory if there is one
+   * @throws IllegalArgumentException If an option has an invalid value
+   * @throws IOException              If the snapshot or log cannot be opened or read
+   */
+  public static KeyValueStore create(ServerConfig config) throws IOException {
+    int hotKeys = config.getInt("hot-keys", DEFAULT_HOT_KEYS);
+    if (hotKeys < 0) {
+      throw new IllegalArgumentException("Option --hot-keys must not be negative");
+    }
+    KeyValueStore store = createStorage(config);
+    if (hotKeys == 0) {
+      return store;
+    }
+    // Outermost, so every write reaches the read cache, including those a replica applies
+    return new HotKeyStore(store, hotKeys, !isCache(config));
+  }
+
+  /**
+   * Function to check whether the options make the store a bounded cache, which evicts entries
+   * and expires them on its own
+   *
+   * @param config The server configuration
+   * @return True with --max-entries or --max-memory
+   * @throws IllegalArgumentException If either option has an invalid value
+   */
+  public static boolean isCache(ServerConfig config) {
+    long maxEntries = config.getLong("max-entries", Long.MAX_VALUE);
+    long maxMemory = config.getBytes("max-memory", Long.MAX_VALUE);
+    if (maxEntries < 1 || maxMemory < 1) {
+      throw new IllegalArgumentException("Options --max-entries and --max-memory must be positive");
+    }
+    return maxEntries != Long.MAX_VALUE || maxMemory != Long.MAX_VALUE;
+  }
+
+  /**
+   * Function to check whether the options make every write wait for the write-ahead log
+   *
+   * @param config The server configuration
+   * @return True with --data-dir
+   */
+  public static boolean isDurable(ServerConfig config) {
+    return config.getString("data-dir", null) != null;
+  }
+
+  /**
+   * Function to create the store holding the data, without hot-key tracking
+   */
+  private static KeyValueStore createStorage(ServerConfig config) throws IOException {
+    String engine = config.getString("store", "heap");
+    String dataDir = config.getString("data-dir", null);
+    String index = config.getString("index", "hash");
+    if (!index.equals("hash") && !index.equals("ordered")) {
+      throw new IllegalArgumentException("Unknown index: " + index + " (expected hash or ordered)");
+    }
+
+    KeyValueStore store;
+    if (isCache(config)) {
+      // A cache drops entries on its own, which the log, snapshots and index could not follow
+      if (!engine.equals("heap") || dataDir != null || !index.equals("hash")) {
+        throw new IllegalArgumentException("Options --max-entries and --max-memory need --store=heap, no --data-dir " +
+                "and no --index=ordered");
+      }
+      return new CacheKeyValueStore(config.getLong("max-entries", Long.MAX_VALUE),
+              config.getBytes("max-memory", Long.MAX_VALUE), config.getString("eviction", "tinylfu"));
+    } else if (engine.equals("heap")) {
+      store = new ConcurrentKeyValueStore();
+    } else if (engine.equals("offheap")) {
+      store = new OffHeapKeyValueStore();
+    } else {
+      throw new IllegalArgumentException("Unknown store: " + engine + " (expected heap or offheap)");
+    }
+    if (index.equals("ordered")) {
+      // Below the log, so loading the snapshot and replaying the log fill the index too
+      store = new OrderedKeyValueStore(store);
+    }
+    if (dataDir == null) {
+      return store;
+    }
+
+    WriteAheadLog.SyncPolicy policy = WriteAheadLog.parsePolicy(config.getString("wal-sync", "always"));
+    int syncIntervalMs = config.getInt("wal-sync-interval", DEFAULT_SYNC_INTERVAL_MS);
+    if (syncIntervalMs < 1) {
+      throw new IllegalArgumentException("Option --wal-sync-interval must be at least 1");
+    }
+    int snapshotIntervalS = config.getInt("snapshot-interval", DEFAULT_SNAPSHOT_INTERVAL_S);
+    if (snapshotIntervalS < 0) {
+      throw new IllegalArgumentException("Option --snapshot-interval must not be negative");
+    }
+    DurableKeyValueStore durable = DurableKeyValueStore.open(store, new DataDirectory(Paths.get(dataDir)),
+            policy, syncIntervalMs);
+
+    if (snapshotIntervalS > 0) {
+      ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "snapshot-writer");
+        thread.setDaemon(true);
+        return thread;
+      });
+      snapshots.scheduleWithFixedDelay(() -> {
+        try {
+          durable.snapshot();
+        } catch (IOException | UncheckedIOException e) {
+          Log.log(Log.ERROR, "Snapshot failed: " + e.getMessage());
+        }
+      }, snapshotIntervalS, snapshotIntervalS, TimeUnit.SECONDS);
+    }
+
+    // Write out and sync whatever is still buffered when the server is stopped
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        durable.close();
+      } catch (IOException e) {
+        System.err.println("Could not close the write-ahead log: " + e.getMessage());
+      }
+    }, "wal-closer"));
+    return durable;
+  }
+}
@@ -3,6 +3,11 @@
  *
  * This program implements a simple TCP client that allows users to interact with a TCP server.
  * It sends GET, PUT, and DELETE requests to the server and displays the responses.
+ * PUTFILE and GETFILE move a value of up to Protocol.MAX_VALUE_SIZE bytes between a file and the
+ * server in chunks, over a second, pipelined connection opened when first needed. SCAN and RANGE
+ * list keys in order, page by page, over the same connection, from a server started with
+ * --index=ordered. INCR, DECR, CAS and APPEND update a value in one atomic step on the server,
+ * also over that connection.
  *
  * Author: Gaurang Jotwani
  * Course: NEU Summer 23 CS 6650
@@ -13,6 +18,7 @@ import java.io.*;
 import java.net.*;
 import java.sql.Timestamp;
 import java.util.Scanner;
+import java.util.function.BiConsumer;
 import sun.misc.Signal;
 import sun.misc.SignalHandler;
 
@@ -30,6 +36,21 @@ public class TCPClient {
   private static String delete = new String("DELETE");
   private static String put = new String("PUT");
   private static String quit = new String("QUIT");
+  private static String stats = new String("STATS");
+  private static String putfile = new String("PUTFILE");
+  private static String getfile = new String("GETFILE");
+  private static String scan = new String("SCAN");
+  private static String range = new String("RANGE");
+  private static String incr = new String("INCR");
+  private static String decr = new String("DECR");
+  private static String cas = new String("CAS");
+  private static String append = new String("APPEND");
+
+  // Server address, and the client moving PUTFILE and GETFILE values, reading SCAN and RANGE
+  // pages and sending atomic updates, opened when first needed
+  private static String serverIp;
+  private static int serverPort;
+  private static KeyValueClient streamClient;
 
 
   /**
@@ -49,6 +70,8 @@ public class TCPClient {
     // Extract the server IP and port from command line arguments
     String ip = args[0];
     int port = Integer.parseInt(args[1]);
+    serverIp = ip;
+    serverPort = port;
 
     // Create a new socket and attempt to connect to the server
     socket = new Socket();
@@ -86,7 +109,7 @@ public class TCPClient {
     // Start reading user input and sending requests to the server
     Scanner input = new Scanner(System.in);
     System.out.print("Please Input Command in either of the following forms:\n\tGET " +
-            "<key>\n\tPUT <key> <val>\n\tDELETE <key>\n\tQUIT\n");
+            "<key>\n\tPUT <key> <val>\n\tDELETE <key>\n\tPUTFILE <key> <file>\n\tGETFILE <key> <file>\n\tSCAN <prefix>\n\tRANGE <from> <to>\n\tINCR <key> [<n>]\n\tDECR <key> [<n>]\n\tCAS <key> <expected> <val>\n\tAPPEND <key> <val>\n\tSTATS\n\tQUIT\n");
 
     while(true){
       System.out.print("Enter Command: ");
@@ -97,7 +120,7 @@ public class TCPClient {
       if (splited.length >= 2 && splited[1].length() > 1024) {
         System.err.println(getCurrentTimeStamp() + "Key length is too big.");
         System.out.print("Please Input Command in either of the following forms:\n\tGET " +
-                "<key>\n\tPUT <key> <val>\n\tDELETE <key>\n\tQUIT\n");
+                "<key>\n\tPUT <key> <val>\n\tDELETE <key>\n\tPUTFILE <key> <file>\n\tGETFILE <key> <file>\n\tSCAN <prefix>\n\tRANGE <from> <to>\n\tINCR <key> [<n>]\n\tDECR <key> [<n>]\n\tCAS <key> <expected> <val>\n\tAPPEND <key> <val>\n\tSTATS\n\tQUIT\n");
         continue;
       }
 
@@ -105,19 +128,33 @@ public class TCPClient {
         handleGetRequest(cmd, splited[1]);
       } else if (cmd.equals(put) && splited.length == 3) {
         if (splited[2].length() > 1024) {
-          System.err.println(getCurrentTimeStamp() + "Val length is too big.");
+          System.err.println(getCurrentTimeStamp() + "Val length is too big. Use PUTFILE for large values.");
           System.out.print("Please Input Command in either of the following forms:\n\tGET " +
-                  "<key>\n\tPUT <key> <val>\n\tDELETE <key>\n\tQUIT\n");
+                  "<key>\n\tPUT <key> <val>\n\tDELETE <key>\n\tPUTFILE <key> <file>\n\tGETFILE <key> <file>\n\tSCAN <prefix>\n\tRANGE <from> <to>\n\tINCR <key> [<n>]\n\tDECR <key> [<n>]\n\tCAS <key> <expected> <val>\n\tAPPEND <key> <val>\n\tSTATS\n\tQUIT\n");
           continue;
         }
         handlePutRequest(cmd, splited[1], splited[2]);
       } else if (cmd.equals(delete) && splited.length == 2) {
         handleDelRequest(cmd, splited[1]);
+      } else if ((cmd.equals(putfile) || cmd.equals(getfile)) && splited.length == 3) {
+        handleFileRequest(cmd, splited[1], splited[2]);
+      } else if ((cmd.equals(scan) && splited.length <= 2) || (cmd.equals(range) && splited.length == 3)) {
+        handleScanRequest(cmd, splited.length > 1 ? splited[1] : "", splited.length > 2 ? splited[2] : null);
+      } else if ((cmd.equals(incr) || cmd.equals(decr)) && (splited.length == 2
+              || (splited.length == 3 && splited[2].matches("-?[0-9]{1,18}")))) {
+        long delta = splited.length == 3 ? Long.parseLong(splited[2]) : 1;
+        handleUpdateRequest(cmd, splited[1], Long.toString(cmd.equals(incr) ? delta : -delta), null);
+      } else if (cmd.equals(cas) && splited.length == 4) {
+        handleUpdateRequest(cmd, splited[1], splited[2], splited[3]);
+      } else if (cmd.equals(append) && splited.length == 3) {
+        handleUpdateRequest(cmd, splited[1], splited[2], null);
+      } else if (cmd.equals(stats) && splited.length == 1) {
+        handleStatsRequest(cmd);
       } else if (cmd.equals(quit) && splited.length == 1) break; // Exit the loop and end the program
         else {
         System.err.println(getCurrentTimeStamp() + "Wrong format of command.");
         System.out.print("Please Input Command in either of the following forms:\n\tGET " +
-                "<key>\n\tPUT <key> <val>\n\tDELETE <key>\n\tQUIT\n");
+                "<key>\n\tPUT <key> <val>\n\tDELETE <key>\n\tPUTFILE <key> <file>\n\tGETFILE <key> <file>\n\tSCAN <prefix>\n\tRANGE <from> <to>\n\tINCR <key> [<n>]\n\tDECR <key> [<n>]\n\tCAS <key> <expected> <val>\n\tAPPEND <key> <val>\n\tSTATS\n\tQUIT\n");
       }
     }
     // Perform cleanup actions before exiting
@@ -129,6 +166,7 @@ public class TCPClient {
    */
   private static void cleanUp() {
     try {
+      if (streamClient != null) streamClient.close();
       dataOut.writeUTF("QUIT");
       dataIn.close();
       dataOut.close();
@@ -191,6 +229,122 @@ public class TCPClient {
     }
   }
 
+  /**
+   * Function to handle PUTFILE and GETFILE requests, moving a value between a file and the
+   * server in chunks
+   *
+   * @param cmd  The command (PUTFILE or GETFILE)
+   * @param key  The key to store or read
+   * @param file The file holding the value, or receiving it
+   */
+  private static void handleFileRequest(String cmd, String key, String file) {
+    try {
+      if (cmd.equals(putfile)) {
+        try (InputStream value = new BufferedInputStream(new FileInputStream(file))) {
+          streamClient().putStream(key, value);
+          System.out.println(getCurrentTimeStamp() + "Value of \"" + key + "\" saved from " + file);
+        }
+      } else {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+          if (streamClient().getStream(key, out)) {
+            System.out.println(getCurrentTimeStamp() + "Value of \"" + key + "\" written to " + file);
+          } else {
+            System.err.println(getCurrentTimeStamp() + "Message from server: [Err] The key \"" + key + "\" could not be read");
+          }
+        }
+      }
+    } catch (SocketTimeoutException e) {
+      System.err.println(getCurrentTimeStamp() + "Server taking too long to respond. Try again!");
+    } catch (IOException e) {
+      System.err.println(getCurrentTimeStamp() + cmd + " Command Not Successful: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Function to handle SCAN and RANGE requests, printing every key found with its value
+   *
+   * @param cmd  The command (SCAN or RANGE)
+   * @param from The prefix of a SCAN, or the first key of a RANGE
+   * @param to   The key a RANGE stops before, or null for a SCAN
+   */
+  private static void handleScanRequest(String cmd, String from, String to) {
+    try {
+      int[] count = new int[1];
+      BiConsumer<String, String> print = (key, value) -> {
+        System.out.println(getCurrentTimeStamp() + key + " = " + value);
+        count[0]++;
+      };
+      if (cmd.equals(scan)) {
+        streamClient().scan(from, print);
+      } else {
+        streamClient().range(from, to, print);
+      }
+      System.out.println(getCurrentTimeStamp() + "Message from server: " + count[0] + " keys found");
+    } catch (SocketTimeoutException e) {
+      System.err.println(getCurrentTimeStamp() + "Server taking too long to respond. Try again!");
+    } catch (IOException e) {
+      System.err.println(getCurrentTimeStamp() + cmd + " Command Not Successful: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Function to handle INCR, DECR, CAS and APPEND requests
+   *
+   * @param cmd   The command (INCR, DECR, CAS or APPEND)
+   * @param key   The key to update
+   * @param arg   The amount to add for INCR and DECR, negative for DECR, the expected value for
+   *              CAS, or the value to append for APPEND
+   * @param val   The new value for CAS, or null
+   */
+  private static void handleUpdateRequest(String cmd, String key, String arg, String val) {
+    try {
+      if (cmd.equals(cas)) {
+        if (streamClient().compareAndSet(key, arg, val)) {
+          System.out.println(getCurrentTimeStamp() + "Message from server: " + key + " with value \"" + val + "\" saved successfully");
+        } else {
+          System.err.println(getCurrentTimeStamp() + "Message from server: [Err] The value of \"" + key + "\" has changed, so it was not replaced");
+        }
+      } else if (cmd.equals(append)) {
+        streamClient().append(key, arg);
+        System.out.println(getCurrentTimeStamp() + "Message from server: \"" + arg + "\" appended to " + key);
+      } else {
+        System.out.println(getCurrentTimeStamp() + "Value of counter \"" + key + "\": " + streamClient().incr(key, Long.parseLong(arg)));
+      }
+    } catch (SocketTimeoutException e) {
+      System.err.println(getCurrentTimeStamp() + "Server taking too long to respond. Try again!");
+    } catch (IOException e) {
+      System.err.println(getCurrentTimeStamp() + cmd + " Command Not Successful: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Function to get the client for the commands sent over the pipelined connection, opening it
+   * when first needed
+   */
+  private static KeyValueClient streamClient() throws IOException {
+    if (streamClient == null) {
+      streamClient = new KeyValueClient(serverIp, serverPort, 1, 1000, 5000, 0);
+    }
+    return streamClient;
+  }
+
+  /**
+   * Function to handle STATS requests
+   *
+   * @param cmd The command (STATS)
+   */
+  private static void handleStatsRequest(String cmd) {
+    try {
+      dataOut.writeUTF(cmd);  // Send message to server
+      String serverMessage = dataIn.readUTF();  // Receive message from server
+      System.out.println(getCurrentTimeStamp() + "Server statistics:\n" + serverMessage.substring(2));
+    } catch (SocketTimeoutException e) {
+      System.err.println(getCurrentTimeStamp() + "Server taking too long to respond. Try again!");
+    } catch (IOException e) {
+      System.err.println(getCurrentTimeStamp() + "Unknown IO Error. STATS Command Not Successful");
+    }
+  }
+
   /**
    * Function to handle DELETE requests
    *
@@ -0,0 +1,302 @@
+/**
+ * TCP Client Handler
+ *
+ * Serves a single TCP client connection on a dedicated thread. Each accepted socket gets its own
+ * handler with its own streams, so many clients can be served concurrently against the shared
+ * key-value store.
+ *
+ * Once a client switches to the pipelined protocol, this thread only reads request frames. Each
+ * request is executed on the shared request pool and its response is written as soon as it
+ * completes, so one slow request doesn't hold up the ones behind it. A request that fails is
+ * answered with an error. At most MAX_IN_FLIGHT requests of a connection wait for the pool at
+ * once; beyond that the thread stops reading, so one client can't fill the pool's queue.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TCPClientHandler implements Runnable {
+  // Command constants
+  private static final String get = "GET";
+  private static final String delete = "DELETE";
+  private static final String put = "PUT";
+  private static final String quit = "QUIT";
+  private static final String stats = "STATS";
+
+  // Buffer each request pool thread builds lean responses in, and the largest one it keeps
+  private static final int LEAN_BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_LEAN_BUFFER = 1024 * 1024;
+  private static final ThreadLocal<ByteBuffer> LEAN_BUFFER =
+          ThreadLocal.withInitial(() -> ByteBuffer.allocate(LEAN_BUFFER_SIZE));
+
+  // Executes commands against the shared key-value store
+  private final CommandProcessor processor;
+
+  // Metrics the connection and its bytes are counted in
+  private final Metrics metrics;
+
+  // Runs pipelined requests so their responses can complete out of order
+  private final ExecutorService requestPool;
+
+  // Most pipelined requests of one connection executing or queued at once
+  private static final int MAX_IN_FLIGHT = 1024;
+
+  // Pipelined requests that have been read but not answered yet
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  // Client socket and its input and output streams
+  private final Socket clientSocket;
+  private DataInputStream dataIn;
+  private DataOutputStream dataOut;
+
+  // Client IP address and port, used in log messages
+  private final InetAddress clientSocketIP;
+  private final int clientSocketPort;
+
+  /**
+   * Creates a handler for an accepted client connection.
+   *
+   * @param clientSocket The accepted client socket
+   * @param processor    Executes commands against the shared key-value store
+   * @param requestPool  Runs the requests of pipelined connections
+   */
+  public TCPClientHandler(Socket clientSocket, CommandProcessor processor, ExecutorService requestPool) {
+    this.clientSocket = clientSocket;
+    this.processor = processor;
+    this.metrics = processor.getMetrics();
+    this.requestPool = requestPool;
+    this.clientSocketIP = clientSocket.getInetAddress();
+    this.clientSocketPort = clientSocket.getPort();
+  }
+
+  /**
+   * Reads commands from the client until it sends QUIT or disconnects.
+   */
+  @Override
+  public void run() {
+    Log.info(clientSocketIP, clientSocketPort, "Client Connection Successful!");
+    metrics.connectionOpened();
+    try {
+      // Create input and output streams for communication with the client
+      dataIn = new DataInputStream(new BufferedInputStream(metrics.countBytesIn(clientSocket.getInputStream())));
+      dataOut = new DataOutputStream(metrics.countBytesOut(clientSocket.getOutputStream()));
+
+      while (true) {
+        // Receive message from the client
+        String clientMessage = dataIn.readUTF();
+        if (get.equals(clientMessage)) {
+          handleGetRequest();
+        } else if (delete.equals(clientMessage)) {
+          handleDelRequest();
+        } else if (put.equals(clientMessage)) {
+          handlePutRequest();
+        } else if (stats.equals(clientMessage)) {
+          dataOut.writeUTF(processor.stats(clientSocketIP, clientSocketPort));
+        } else if (quit.equals(clientMessage)) {
+          break;
+        } else if (Protocol.PIPELINE_HANDSHAKE.equals(clientMessage)) {
+          dataOut.writeUTF("1:Switched to pipelined protocol");
+          servePipelined();
+          break;
+        } else {
+          dataOut.writeUTF(processor.invalidCommand(clientMessage, clientSocketIP, clientSocketPort));
+        }
+      }
+    } catch (ProtocolException e) {
+      Log.error(clientSocketIP, clientSocketPort, "Malformed Frame: ", e.getMessage(), ". Closing Connection");
+    } catch (EOFException e) {
+      Log.error(clientSocketIP, clientSocketPort, "Client disconnected without QUIT");
+    } catch (IOException e) {
+      Log.error(clientSocketIP, clientSocketPort, "Unknown IO Error. Closing Connection");
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Function to read request frames until the client sends QUIT, handing each request to the
+   * request pool. Returns once every request read has been answered.
+   */
+  private void servePipelined() throws IOException {
+    // Responses from several pool threads share one stream, so writes are serialized on it
+    dataOut = new DataOutputStream(new BufferedOutputStream(metrics.countBytesOut(clientSocket.getOutputStream())));
+    try {
+      while (true) {
+        int length = dataIn.readInt();
+        Protocol.checkFrameLength(length);
+        byte[] frame = new byte[length];
+        dataIn.readFully(frame);
+        Request request = Protocol.decodeRequest(ByteBuffer.wrap(frame));
+        if (request.opcode == Protocol.OP_QUIT) {
+          break;
+        }
+
+        // Stop reading while the connection has as many requests waiting as it may
+        awaitInFlight(MAX_IN_FLIGHT - 1);
+        inFlight.incrementAndGet();
+        try {
+          requestPool.execute(() -> serve(request));
+        } catch (RejectedExecutionException e) {
+          answered();
+          throw new IOException("Request pool shut down", e);
+        }
+      }
+    } finally {
+      awaitInFlight(0);
+    }
+  }
+
+  /**
+   * Function run on the request pool: executes a request and writes its response, or an error
+   * if the request fails
+   *
+   * @param request The request to serve
+   */
+  private void serve(Request request) {
+    try {
+      try {
+        if (Protocol.isLean(request.opcode)) {
+          writeLeanResponse(request);
+        } else {
+          writeResponse(processor.execute(request, clientSocketIP, clientSocketPort));
+        }
+      } catch (RuntimeException e) {
+        Response error = processor.failed(request, e, clientSocketIP, clientSocketPort);
+        if (Protocol.isLean(request.opcode)) {
+          ByteBuffer buffer = ByteBuffer.allocate(4 + Protocol.responseLength(error));
+          buffer.position(4);
+          Protocol.encodeLeanResponse(error, buffer);
+          buffer.putInt(0, buffer.position() - 4);
+          writeFrame(buffer.array(), buffer.position());
+        } else {
+          writeResponse(error);
+        }
+      }
+    } finally {
+      answered();
+    }
+  }
+
+  /**
+   * Function to write a pipelined response as soon as its request completes
+   *
+   * @param response The response to write
+   */
+  private void writeResponse(Response response) {
+    byte[] frame = Protocol.encodeResponseFrame(response);
+    writeFrame(frame, frame.length);
+  }
+
+  /**
+   * Function to execute a request asking for a lean response and write it as soon as it
+   * completes. The response is built in a buffer the request pool thread reuses
+   *
+   * @param request The request to execute
+   */
+  private void writeLeanResponse(Request request) {
+    ByteBuffer buffer = LEAN_BUFFER.get();
+    buffer.clear().position(4);
+    int length = processor.executeLean(request, clientSocketIP, clientSocketPort, buffer);
+    while (length < 0) {
+      // A value too big for the buffer; only reads get here, so trying again is safe
+      buffer = ByteBuffer.allocate(4 - length);
+      if (buffer.capacity() <= MAX_LEAN_BUFFER) LEAN_BUFFER.set(buffer);
+      buffer.position(4);
+      length = processor.executeLean(request, clientSocketIP, clientSocketPort, buffer);
+    }
+    buffer.putInt(0, length);
+    writeFrame(buffer.array(), 4 + length);
+  }
+
+  /**
+   * Function to write one response frame to the shared stream
+   *
+   * @param frame  The frame bytes, length prefix included
+   * @param length The number of bytes of the frame
+   */
+  private void writeFrame(byte[] frame, int length) {
+    try {
+      synchronized (dataOut) {
+        dataOut.write(frame, 0, length);
+        dataOut.flush();
+      }
+    } catch (IOException e) {
+      // The reader thread notices the broken connection and closes it
+      Log.error(clientSocketIP, clientSocketPort, "Unknown IO Error. Response Not Sent");
+    }
+  }
+
+  /**
+   * Function to count a pipelined request as answered, waking the reader thread if it waits
+   */
+  private void answered() {
+    synchronized (inFlight) {
+      int left = inFlight.decrementAndGet();
+      if (left == 0 || left == MAX_IN_FLIGHT - 1) inFlight.notifyAll();
+    }
+  }
+
+  /**
+   * Function to wait until few enough pipelined requests read so far are unanswered
+   *
+   * @param most The number of unanswered requests to wait for, 0 to wait for every answer
+   */
+  private void awaitInFlight(int most) {
+    synchronized (inFlight) {
+      while (inFlight.get() > most) {
+        try {
+          inFlight.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes the streams and the client socket.
+   */
+  private void close() {
+    Log.info(clientSocketIP, clientSocketPort, "Connection Closed");
+    metrics.connectionClosed();
+    try {
+      // Closing the socket also closes both streams
+      clientSocket.close();
+    } catch (IOException e) {
+      Log.error(clientSocketIP, clientSocketPort, "Unknown IO Error while closing connection");
+    }
+  }
+
+  /**
+   * Function to handle PUT requests
+   */
+  private void handlePutRequest() throws IOException {
+    // Receive the key and value from the client
+    String key = dataIn.readUTF();
+    String val = dataIn.readUTF();
+    dataOut.writeUTF(processor.put(key, val, clientSocketIP, clientSocketPort));
+  }
+
+  /**
+   * Function to handle DELETE requests
+   */
+  private void handleDelRequest() throws IOException {
+    // Receive the key from the client
+    String key = dataIn.readUTF();
+    dataOut.writeUTF(processor.delete(key, clientSocketIP, clientSocketPort));
+  }
+
+  /**
+   * Function to handle GET requests
+   */
+  private void handleGetRequest() throws IOException {
+    // Receive the key from the client
+    String key = dataIn.readUTF();
+    dataOut.writeUTF(processor.get(key, clientSocketIP, clientSocketPort));
+  }
+}
@@ -0,0 +1,600 @@
+/**
+ * TCP Selector Server
+ *
+ * Non-blocking TCP serving engine built on a ServerSocketChannel and one or more Selector event
+ * loops. Connections are spread round-robin across the event loops and no thread ever blocks on
+ * a single socket, so tens of thousands of mostly idle clients cost only their socket and a few
+ * bytes of state.
+ *
+ * It speaks the same wire format as the threaded engine: every command, key, value and response
+ * is a writeUTF string (2-byte length prefix plus modified UTF-8). The strings are framed
+ * directly out of pooled direct ByteBuffers, so the existing TCPClient works unchanged. Clients
+ * that switch to the pipelined protocol send length-prefixed request frames instead; each one
+ * is answered as soon as it has been read, without waiting for the client to read earlier
+ * responses.
+ *
+ * Writes to a durable store wait for the write-ahead log, so they are run on a separate write
+ * pool instead of the loop. The connection reads no further requests until the write's response
+ * is queued, which keeps its requests in order while the loop goes on serving everyone else.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+public class TCPSelectorServer {
+  // Command constants
+  private static final String get = "GET";
+  private static final String delete = "DELETE";
+  private static final String put = "PUT";
+  private static final String quit = "QUIT";
+  private static final String stats = "STATS";
+
+  // Pooled buffers hold at least one complete writeUTF frame (2-byte prefix + 65535 bytes)
+  private static final int BUFFER_SIZE = 2 + ModifiedUtf8.MAX_ENCODED_LENGTH;
+
+  // Idle buffers each event loop keeps around for reuse
+  private static final int MAX_POOLED_BUFFERS = 64;
+
+  // Once this many response buffers are waiting on a slow client, stop reading from it
+  private static final int MAX_PENDING_WRITES = 16;
+
+  // Port to listen on
+  private final int port;
+
+  // Executes commands against the shared key-value store
+  private final CommandProcessor processor;
+
+  // Metrics the connections and their bytes are counted in
+  private final Metrics metrics;
+
+  // Event loops the accepted connections are spread across
+  private final EventLoop[] eventLoops;
+
+  // Runs writes that may block, or null to run every request on the event loops
+  private final ExecutorService writePool;
+
+  /**
+   * Creates a selector server. Nothing is bound until start is called.
+   *
+   * @param port       The port to listen on
+   * @param eventLoops The number of event-loop threads
+   * @param processor  Executes commands against the shared key-value store
+   * @param writePool  Runs writes off the event loops, for stores whose writes wait on the disk.
+   *                   Null to run them on the loops
+   */
+  public TCPSelectorServer(int port, int eventLoops, CommandProcessor processor, ExecutorService writePool) {
+    this.port = port;
+    this.processor = processor;
+    this.metrics = processor.getMetrics();
+    this.eventLoops = new EventLoop[eventLoops];
+    this.writePool = writePool;
+  }
+
+  /**
+   * Work left for the event loop once a write has finished on the write pool
+   */
+  private interface Completion {
+    void run() throws IOException;
+  }
+
+  /**
+   * Binds the server socket, starts the event loops and accepts clients forever on the
+   * calling thread.
+   *
+   * @throws IOException If the server socket cannot be opened or bound
+   */
+  public void start() throws IOException {
+    ServerSocketChannel serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(port));
+
+    for (int i = 0; i < eventLoops.length; i++) {
+      eventLoops[i] = new EventLoop();
+      Thread thread = new Thread(eventLoops[i], "event-loop-" + i);
+      thread.start();
+    }
+
+    // Accepting is cheap, so a blocking accept on this thread is enough
+    int next = 0;
+    while (true) {
+      SocketChannel channel;
+      try {
+        channel = serverChannel.accept();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      } catch (IOException e) {
+        Log.log(Log.ERROR, "Unknown IO Error. Connection Not Successful");
+        continue;
+      }
+      eventLoops[next].register(channel);
+      next = (next + 1) % eventLoops.length;
+    }
+  }
+
+  /**
+   * A single selector thread serving every connection registered with it.
+   */
+  private class EventLoop implements Runnable {
+    private final Selector selector;
+
+    // Channels accepted by the acceptor thread, waiting to be registered with the selector
+    private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+
+    // Connections whose write has finished on the write pool, waiting for their response
+    private final ConcurrentLinkedQueue<Connection> completed = new ConcurrentLinkedQueue<Connection>();
+
+    // Buffers are only touched by this loop's thread, so the pool needs no locking
+    private final BufferPool pool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+    // Scratch space for decoding strings, reused for every frame
+    private final char[] scratch = new char[ModifiedUtf8.MAX_ENCODED_LENGTH];
+
+    EventLoop() throws IOException {
+      selector = Selector.open();
+    }
+
+    /**
+     * Function to hand a newly accepted channel to this loop. Safe to call from any thread.
+     *
+     * @param channel The accepted channel, already in non-blocking mode
+     */
+    void register(SocketChannel channel) {
+      pending.add(channel);
+      selector.wakeup();
+    }
+
+    /**
+     * Function to hand a connection back to this loop once its write has finished. Safe to call
+     * from any thread.
+     *
+     * @param connection The connection with a completion to run
+     */
+    void complete(Connection connection) {
+      completed.add(connection);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          selector.select();
+        } catch (IOException e) {
+          Log.log(Log.ERROR, "Unknown IO Error in event loop");
+          continue;
+        }
+        registerPending();
+
+        Connection done;
+        while ((done = completed.poll()) != null) {
+          serve(done, null);
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          serve((Connection) key.attachment(), key);
+        }
+      }
+    }
+
+    /**
+     * Function to handle a connection's ready operations, or its finished write
+     *
+     * @param connection The connection
+     * @param key        Its selected key, or null to run the completion of its write
+     */
+    private void serve(Connection connection, SelectionKey key) {
+      try {
+        if (key == null) {
+          connection.onCompleted();
+          return;
+        }
+        if (key.isReadable()) {
+          connection.onReadable();
+        }
+        if (key.isValid() && key.isWritable()) {
+          connection.onWritable();
+        }
+      } catch (UTFDataFormatException | ProtocolException e) {
+        Log.error(connection.ip, connection.port, "Malformed message. Closing Connection");
+        connection.close();
+      } catch (IOException e) {
+        Log.error(connection.ip, connection.port, "Unknown IO Error. Closing Connection");
+        connection.close();
+      } catch (RuntimeException e) {
+        // A failed request must not take down the loop and every other connection on it. The
+        // connection's input may be half consumed, so it can't go on either
+        Log.error(connection.ip, connection.port, "Request failed: " + e + ". Closing Connection");
+        connection.close();
+      }
+    }
+
+    /**
+     * Function to register the channels queued by the acceptor thread
+     */
+    private void registerPending() {
+      SocketChannel channel;
+      while ((channel = pending.poll()) != null) {
+        try {
+          Connection connection = new Connection(this, channel);
+          connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+          Log.info(connection.ip, connection.port, "Client Connection Successful!");
+          metrics.connectionOpened();
+        } catch (IOException e) {
+          Log.log(Log.ERROR, "Unknown IO Error. Connection Not Successful");
+          try {
+            channel.close();
+          } catch (IOException ignored) {
+            // Nothing left to clean up
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Per-connection protocol state. A command and its arguments may arrive split across any
+   * number of reads, so the connection remembers which string it expects next.
+   */
+  private class Connection {
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    // Client IP address and port, used in log messages
+    private final InetAddress ip;
+    private final int port;
+
+    // Partially received input. Only held while a frame is incomplete, otherwise back in the pool
+    private ByteBuffer in;
+
+    // Responses not yet written to the socket, each buffer in write mode
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+
+    // Command being assembled (null while waiting for a command) and the PUT key, once read
+    private String command;
+    private String pendingKey;
+
+    // Set once the client has switched to the pipelined protocol
+    private boolean pipelined;
+
+    // Set while a write runs on the write pool. No further input is handled until it is done
+    private boolean waiting;
+
+    // Queues the finished write's response, handed over by the write pool through the loop
+    private Completion completion;
+
+    private boolean closed;
+
+    Connection(EventLoop loop, SocketChannel channel) throws IOException {
+      this.loop = loop;
+      this.channel = channel;
+      InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+      this.ip = remote.getAddress();
+      this.port = remote.getPort();
+    }
+
+    /**
+     * Function to read what is available, handle every complete string and flush the responses
+     */
+    void onReadable() throws IOException {
+      if (in == null) {
+        in = loop.pool.acquire();
+      }
+      int read = channel.read(in);
+      if (read == -1) {
+        Log.error(ip, port, "Client disconnected without QUIT");
+        close();
+        return;
+      }
+      metrics.recordBytesIn(read);
+      handleInput();
+    }
+
+    /**
+     * Function to queue the response of the finished write and go on with the input received
+     * while it ran
+     */
+    void onCompleted() throws IOException {
+      if (closed) return;
+      waiting = false;
+      completion.run();
+      completion = null;
+      if (closed) return;
+      handleInput();
+    }
+
+    /**
+     * Function to handle every complete string or frame received, unless a write is running,
+     * and flush the responses
+     */
+    private void handleInput() throws IOException {
+      if (in != null) {
+        in.flip();
+        while (!closed && !waiting) {
+          if (pipelined) {
+            if (!readRequestFrame()) break;
+          } else {
+            if (ModifiedUtf8.completeFrameLength(in) == -1) break;
+            onString(ModifiedUtf8.decode(in, loop.scratch));
+          }
+        }
+        if (closed) return;
+        in.compact();
+        // Nothing buffered, so give the buffer back while the connection is idle
+        if (in.position() == 0) {
+          loop.pool.release(in);
+          in = null;
+        }
+      }
+      flush();
+    }
+
+    /**
+     * Function to handle the next pipelined request frame if it has been fully received
+     *
+     * @return True if a frame was handled, false if more input is needed
+     */
+    private boolean readRequestFrame() throws IOException {
+      if (in.remaining() < 4) return false;
+      int length = in.getInt(in.position());
+      Protocol.checkFrameLength(length);
+      if (in.remaining() < 4 + length) {
+        if (4 + length > in.capacity()) {
+          growInput(4 + length);
+        }
+        return false;
+      }
+      ByteBuffer frame = in.slice(in.position() + 4, length);
+      in.position(in.position() + 4 + length);
+      Request request = Protocol.decodeRequest(frame);
+      if (request.opcode == Protocol.OP_QUIT) {
+        close();
+      } else if (writePool != null && Protocol.isWrite(request.opcode)) {
+        boolean lean = Protocol.isLean(request.opcode);
+        runOffLoop(() -> {
+          Response response = processor.execute(request, ip, port);
+          return () -> respond(response, lean);
+        });
+      } else if (Protocol.isLean(request.opcode)) {
+        respondLean(request);
+      } else {
+        respond(processor.execute(request, ip, port));
+      }
+      return true;
+    }
+
+    /**
+     * Function to run a write on the write pool. Input is held back until the completion it
+     * returns has run on the loop.
+     *
+     * @param write Runs the write and returns what queues its response
+     */
+    private void runOffLoop(Supplier<Completion> write) {
+      waiting = true;
+      writePool.execute(() -> {
+        try {
+          completion = write.get();
+        } catch (RuntimeException e) {
+          completion = () -> {
+            Log.error(ip, port, "Request failed: " + e + ". Closing Connection");
+            close();
+          };
+        }
+        // The queue hands the completion over to the loop thread safely
+        loop.complete(this);
+      });
+    }
+
+    /**
+     * Function to move the partial input into a buffer big enough for a frame larger than the
+     * pooled buffers. The buffer is dropped instead of pooled once the frame has been handled.
+     *
+     * @param size The size needed
+     */
+    private void growInput(int size) {
+      ByteBuffer bigger = ByteBuffer.allocate(size);
+      bigger.put(in);
+      bigger.flip();
+      loop.pool.release(in);
+      in = bigger;
+    }
+
+    /**
+     * Function to continue writing responses once the socket has room again
+     */
+    void onWritable() throws IOException {
+      flush();
+    }
+
+    /**
+     * Function to advance the protocol state machine by one received string
+     *
+     * @param str The received string
+     */
+    private void onString(String str) throws IOException {
+      if (command == null) {
+        if (get.equals(str) || delete.equals(str) || put.equals(str)) {
+          command = str;
+        } else if (stats.equals(str)) {
+          respond(processor.stats(ip, port));
+        } else if (quit.equals(str)) {
+          close();
+        } else if (Protocol.PIPELINE_HANDSHAKE.equals(str)) {
+          respond("1:Switched to pipelined protocol");
+          pipelined = true;
+        } else {
+          respond(processor.invalidCommand(str, ip, port));
+        }
+        return;
+      }
+
+      if (put.equals(command) && pendingKey == null) {
+        // The value of the PUT comes next
+        pendingKey = str;
+        return;
+      }
+
+      if (get.equals(command)) {
+        respond(processor.get(str, ip, port));
+      } else if (delete.equals(command)) {
+        respondToWrite(() -> processor.delete(str, ip, port));
+      } else {
+        String key = pendingKey;
+        respondToWrite(() -> processor.put(key, str, ip, port));
+      }
+      command = null;
+      pendingKey = null;
+    }
+
+    /**
+     * Function to run a text protocol write and queue its response, on the write pool if there
+     * is one
+     *
+     * @param write Runs the write and returns its response
+     */
+    private void respondToWrite(Supplier<String> write) throws IOException {
+      if (writePool == null) {
+        respond(write.get());
+        return;
+      }
+      runOffLoop(() -> {
+        String message = write.get();
+        return () -> respond(message);
+      });
+    }
+
+    /**
+     * Function to queue a text protocol response
+     *
+     * @param message The response to send
+     */
+    private void respond(String message) throws IOException {
+      ModifiedUtf8.encode(message, reserve(2 + ModifiedUtf8.encodedLength(message)));
+    }
+
+    /**
+     * Function to queue a pipelined response frame
+     *
+     * @param response The response to send
+     */
+    private void respond(Response response) {
+      int length = Protocol.responseLength(response);
+      ByteBuffer tail = reserve(4 + length);
+      tail.putInt(length);
+      Protocol.encodeResponse(response, tail);
+    }
+
+    /**
+     * Function to queue the response frame of a request executed elsewhere
+     *
+     * @param response The response to send
+     * @param lean     True if the request asked for a lean response
+     */
+    private void respond(Response response, boolean lean) {
+      if (!lean) {
+        respond(response);
+        return;
+      }
+      int length = Protocol.leanResponseLength(response);
+      ByteBuffer tail = reserve(4 + length);
+      tail.putInt(length);
+      Protocol.encodeLeanResponse(response, tail);
+    }
+
+    /**
+     * Function to execute a request asking for a lean response, letting the processor write the
+     * response straight into the output buffer after its frame length
+     *
+     * @param request The request to execute
+     */
+    private void respondLean(Request request) {
+      int needed = Protocol.LEAN_HEADER_SIZE;
+      while (true) {
+        ByteBuffer tail = reserve(4 + needed);
+        int start = tail.position();
+        tail.position(start + 4);
+        int length = processor.executeLean(request, ip, port, tail);
+        if (length >= 0) {
+          tail.putInt(start, length);
+          return;
+        }
+        // A value too big for the room left; only reads get here, so trying again is safe
+        tail.position(start);
+        needed = -length;
+      }
+    }
+
+    /**
+     * Function to find an output buffer with room for a response, appending to the last pending
+     * buffer when it has room
+     *
+     * @param needed The number of bytes the response takes
+     * @return A buffer in write mode with at least that much room
+     */
+    private ByteBuffer reserve(int needed) {
+      ByteBuffer tail = out.peekLast();
+      if (tail == null || tail.remaining() < needed) {
+        // Responses larger than a pooled buffer get a buffer of their own
+        tail = needed > BUFFER_SIZE ? ByteBuffer.allocate(needed) : loop.pool.acquire();
+        out.add(tail);
+      }
+      return tail;
+    }
+
+    /**
+     * Function to write queued responses until done or the socket buffer is full
+     */
+    private void flush() throws IOException {
+      ByteBuffer head;
+      while ((head = out.peek()) != null) {
+        head.flip();
+        metrics.recordBytesOut(channel.write(head));
+        if (head.hasRemaining()) {
+          head.compact();
+          break;
+        }
+        loop.pool.release(out.poll());
+      }
+
+      // Wait for OP_WRITE while output is pending, and stop reading from a client that
+      // isn't draining its responses or is waiting for a write
+      int ops = 0;
+      if (out.size() < MAX_PENDING_WRITES && !waiting) ops |= SelectionKey.OP_READ;
+      if (!out.isEmpty()) ops |= SelectionKey.OP_WRITE;
+      if (key.interestOps() != ops) key.interestOps(ops);
+    }
+
+    /**
+     * Function to close the channel and return its buffers to the pool
+     */
+    void close() {
+      if (closed) return;
+      closed = true;
+      Log.info(ip, port, "Connection Closed");
+      metrics.connectionClosed();
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        Log.error(ip, port, "Unknown IO Error while closing connection");
+      }
+      if (in != null) {
+        loop.pool.release(in);
+        in = null;
+      }
+      ByteBuffer buffer;
+      while ((buffer = out.poll()) != null) {
+        loop.pool.release(buffer);
+      }
+    }
+  }
+}
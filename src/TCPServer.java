@@ -3,6 +3,13 @@
  *
  * This program implements a simple TCP server that allows clients to perform CRUD operations on a key-value store.
  * It listens for client connections on a specified port and handles GET, PUT, and DELETE requests.
+ * Two serving engines are available. The threaded engine serves each client connection with its
+ * own TCPClientHandler on a bounded thread pool. The nio engine serves every connection from a
+ * few Selector event loops (TCPSelectorServer), which suits large numbers of mostly idle clients.
+ *
+ * To scale reads, a server can stream its changes to read replicas on --replication-port
+ * (ReplicationPrimary), and a server started with --replicate-from follows such a primary
+ * (ReplicationFollower) and serves only reads.
  *
  * Author: Gaurang Jotwani
  * Course: NEU Summer 23 CS 6650
@@ -12,206 +19,213 @@
 import java.io.*;
 import java.net.*;
 import java.sql.Timestamp;
-import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class TCPServer {
-  // Command constants
-  private static String get = new String("GET");
-  private static String delete = new String("DELETE");
-  private static String put = new String("PUT");
-  private static String quit = new String("QUIT");
+  // Default number of clients the threaded engine serves at the same time
+  private static final int DEFAULT_THREADS = 256;
+
+  // Default number of recent changes a primary keeps for followers that reconnect
+  private static final int DEFAULT_REPLICATION_BACKLOG = 1_000_000;
+
+  // Threads the nio engine runs durable writes on. They mostly wait for a group commit, so more
+  // of them than CPUs lets more writes share each fsync
+  private static final int DURABLE_WRITE_THREADS = 64;
 
-  // Key-value store to store data
-  private static HashMap<String, String> keyValStore = new HashMap<String, String>();
+  // Key-value store shared by all client connections
+  private static KeyValueStore keyValStore;
 
-  // Input and output streams
-  private static DataInputStream dataIn;
-  private static DataOutputStream dataOut;
+  // Executes commands against the key-value store for every engine
+  private static CommandProcessor processor;
 
-  // Server socket and client socket
+  // Server socket
   private static ServerSocket serverSocket;
-  private static Socket clientSocket;
+
+  // Thread pool running one TCPClientHandler per connected client
+  private static ExecutorService clientPool;
+
+  // Thread pool running the requests of pipelined connections, one thread per CPU
+  private static ExecutorService requestPool;
 
   /**
-   * Main entry point of the client program.
+   * Main entry point of the server program.
    * Accepts the command-line arguments.
    * Throws IOException if an I/O error occurs.
    * CMD LINE ARGUMENTS:
    *  String SERVER_PORT
+   *  --engine=E        (optional) Serving engine, threaded or nio. Default threaded
+   *  --threads=N       (optional) Threaded engine: clients served at the same time; more are
+   *                    refused. Default 256
+   *  --event-loops=N   (optional) Nio engine: number of selector threads. Default: CPU count
+   *  --log-level=L     (optional) OFF, ERROR, WARN, INFO or DEBUG. Default INFO
+   *  --log-sample=N    (optional) Log 1 in N requests. Default 1
+   *  --store=S         (optional) Storage engine, heap or offheap. Default heap
+   *  --max-entries=N   (optional) Run as a cache holding at most N entries. Default: no limit
+   *  --max-memory=SIZE (optional) Run as a cache using at most about SIZE bytes. Default: no limit
+   *  --eviction=P      (optional) Cache eviction policy, lru, lfu or tinylfu. Default tinylfu
+   *  --index=I         (optional) hash, or ordered to keep the keys sorted for SCAN and RANGE. Default hash
+   *  --data-dir=DIR    (optional) Write-ahead log and snapshots, see StoreFactory. Default: memory only
+   *  --hot-keys=K      (optional) Hottest keys to report in STATS and cache, 0 for none. Default 16
+   *  --metrics-port=N  (optional) Serve Prometheus metrics over HTTP on port N. Default: not served
+   *  --replication-port=N    (optional) Stream changes to read replicas on port N. Default: not served
+   *  --replication-backlog=N (optional) Recent changes kept for replicas. Default 1000000
+   *  --replicate-from=H:P    (optional) Run as a read replica of the primary's replication port H:P
    */
   public static void main(String[] args) throws IOException {
-    // Check if the correct number of arguments is provided
-    if (args.length != 1) {
-      System.err.println("Provide Correct number of Arguments (Port)");
+    // Check if the correct arguments are provided
+    ServerConfig config = null;
+    int replicationPort = 0;
+    ReplicationFollower follower = null;
+    KeyValueStore store = null;
+    int threads = 0;
+    int eventLoops = 0;
+    try {
+      config = new ServerConfig(args);
+      threads = config.getInt("threads", DEFAULT_THREADS);
+      if (threads < 1) {
+        throw new IllegalArgumentException("Option --threads must be at least 1");
+      }
+      eventLoops = config.getInt("event-loops", Runtime.getRuntime().availableProcessors());
+      if (eventLoops < 1) {
+        throw new IllegalArgumentException("Option --event-loops must be at least 1");
+      }
+      Log.configure(config);
+      store = StoreFactory.create(config);
+      keyValStore = store;
+      replicationPort = config.getInt("replication-port", 0);
+      if (replicationPort > 0) {
+        // A cache evicts entries without a change the replicas could apply
+        if (StoreFactory.isCache(config)) {
+          throw new IllegalArgumentException("Option --replication-port needs a store without --max-entries and --max-memory");
+        }
+        int backlog = config.getInt("replication-backlog", DEFAULT_REPLICATION_BACKLOG);
+        keyValStore = new ReplicatedKeyValueStore(keyValStore, new ReplicationLog(backlog));
+      }
+      String replicateFrom = config.getString("replicate-from", null);
+      if (replicateFrom != null) {
+        follower = new ReplicationFollower(replicateFrom, keyValStore);
+      }
+    } catch (IllegalArgumentException e) {
+      System.err.println("Provide Correct Arguments (Port [--engine=threaded|nio] [--threads=N] " +
+              "[--event-loops=N] [--log-level=LEVEL] [--log-sample=N] [--store=heap|offheap] " +
+              "[--max-entries=N] [--max-memory=SIZE] [--eviction=lru|lfu|tinylfu] [--index=hash|ordered] " +
+              "[--data-dir=DIR] [--wal-sync=always|interval|os] [--wal-sync-interval=MS] [--snapshot-interval=S] " +
+              "[--hot-keys=K] [--metrics-port=N] [--replication-port=N] [--replication-backlog=N] " +
+              "[--replicate-from=HOST:PORT]): " + e.getMessage());
+      System.exit(-1);
+    } catch (IOException e) {
+      System.err.println(getCurrentTimeStamp() + "Cannot load the data directory: " + e.getMessage());
       System.exit(-1);
     }
-    // Get the port from command line arguments
-    int port = Integer.parseInt(args[0]);
-
-    // Create a new socket and attempt to accept clients
+    processor = new CommandProcessor(keyValStore, follower != null);
+    if (store instanceof HotKeyStore) {
+      processor.getMetrics().addSource((HotKeyStore) store);
+    }
+    if (replicationPort > 0) {
+      ReplicationPrimary primary = new ReplicationPrimary((ReplicatedKeyValueStore) keyValStore);
+      try {
+        System.out.println("Streaming changes to replicas on port " + primary.start(replicationPort));
+      } catch (IOException e) {
+        System.err.println(getCurrentTimeStamp() + "Cannot bind to the replication port");
+        System.exit(-1);
+      }
+      processor.getMetrics().addSource(primary);
+    }
+    if (follower != null) {
+      follower.start();
+      processor.getMetrics().addSource(follower);
+      System.out.println("Running as a read replica of " + config.getString("replicate-from", null));
+    }
     try {
-      serverSocket = new ServerSocket(port);
-    } catch (BindException e) {
-      System.err.println(getCurrentTimeStamp() + "Cannot bind to the port");
+      int metricsPort = MetricsServer.startIfConfigured(config, processor.getMetrics());
+      if (metricsPort > 0) {
+        System.out.println("Serving metrics on http://localhost:" + metricsPort + "/metrics");
+      }
+    } catch (IOException e) {
+      System.err.println(getCurrentTimeStamp() + "Cannot bind to the metrics port");
       System.exit(-1);
     }
-
-    while (true) {
-      System.out.println("Server Started. Listening for Clients on port " + args[0] + "...");
+    // Get the port from command line arguments
+    int port = config.getPort();
+    String engine = config.getString("engine", "threaded");
+
+    if (engine.equals("nio")) {
+      System.out.println("Server Started. Listening for Clients on port " + port + " with " +
+              eventLoops + " event loops...");
+      // Durable writes wait for the disk, which must not hold up an event loop
+      ExecutorService writePool = StoreFactory.isDurable(config) ?
+              Executors.newFixedThreadPool(DURABLE_WRITE_THREADS) : null;
       try {
-        // Accept a client connection
-        clientSocket = serverSocket.accept();
-      }  catch (IOException e) {
-        System.err.println(getCurrentTimeStamp() + "Unknown IO Error. Connection Not Successful");
-      }
-
-      // Get the client's IP address and port
-      String clientSocketIP = clientSocket.getInetAddress().toString();
-      int clientSocketPort = clientSocket.getPort();
-      System.out.println(getLogHeader(clientSocketIP, clientSocketPort) + "Client Connection" +
-              " Successful!");
-
-      // Create input and output streams for communication with the client
-      dataIn = new DataInputStream(clientSocket.getInputStream());
-      dataOut = new DataOutputStream(clientSocket.getOutputStream());
-
-      while (true) {
-        // Receive message from the client
-        String clientMessage = dataIn.readUTF();  // Receive message from client
-        if (get.equals(clientMessage)) {
-          handleGetRequest(clientSocketIP, clientSocketPort);
-        } else if (delete.equals(clientMessage)) {
-          handleDelRequest(clientSocketIP, clientSocketPort);
-        } else if (put.equals(clientMessage)) {
-          handlePutRequest(clientSocketIP, clientSocketPort);
-        } else if (quit.equals(clientMessage)) {
-          break;
-        } else {
-          System.err.println(getLogHeader(clientSocketIP, clientSocketPort) + "Invalid Command: " + clientMessage);
-          dataOut.writeUTF("-1:Invalid Command");
-        }
+        new TCPSelectorServer(port, eventLoops, processor, writePool).start();
+      } catch (BindException e) {
+        System.err.println(getCurrentTimeStamp() + "Cannot bind to the port");
+        System.exit(-1);
       }
-
-      System.out.println(getLogHeader(clientSocketIP, clientSocketPort) + "Connection Closed");
-      // Close the input and output streams and the client socket
-      dataIn.close();
-      dataOut.close();
-      clientSocket.close();
-      // Close streams and socket
+    } else if (engine.equals("threaded")) {
+      runThreaded(port, threads);
+    } else {
+      System.err.println("Unknown engine: " + engine + " (expected threaded or nio)");
+      System.exit(-1);
     }
   }
 
   /**
-   * Function to handle PUT requests
+   * Function to serve clients with one handler thread per connection
    *
-   * @param clientSocketIP   The IP address of the client
-   * @param clientSocketPort The port number of the client
+   * @param port    The port to listen on
+   * @param threads The maximum number of clients served at the same time
    */
-  private static void handlePutRequest(String clientSocketIP, int clientSocketPort) {
+  private static void runThreaded(int port, int threads) throws IOException {
+    // Create a new socket and attempt to accept clients
     try {
-      // Receive the key and value from the client
-      String key = dataIn.readUTF();  // Receive message from client
-      String val = dataIn.readUTF();  // Receive message from client
-      System.out.println(getLogHeader(clientSocketIP, clientSocketPort) + "Received PUT " +
-              "Request to PUT key \"" + key + "\" with value \"" + val + "\"");
-
-      // Store the key-value pair in the key-value store
-      keyValStore.put(key, val);
-      String serverMessage = key + " with value \"" + val + "\" saved successfully";
-      System.out.println(getLogHeader(clientSocketIP, clientSocketPort) + serverMessage);
-
-      // Send success message to the client starting with "1"
-      dataOut.writeUTF("1:" + serverMessage);  // Send message to client
-    } catch (IOException e) {
-      System.err.println(getLogHeader(clientSocketIP, clientSocketPort) + "Unknown IO Error. PUT" +
-              "Not Successful");
+      serverSocket = new ServerSocket(port);
+    } catch (BindException e) {
+      System.err.println(getCurrentTimeStamp() + "Cannot bind to the port");
+      System.exit(-1);
     }
-  }
 
-  /**
-   * Function to handle DELETE requests
-   *
-   * @param clientSocketIP   The IP address of the client
-   * @param clientSocketPort The port number of the client
-   */
-  private static void handleDelRequest(String clientSocketIP, int clientSocketPort){
-    try {
+    // Connections are handed straight to a free handler thread. With none free the client is
+    // turned away at once, rather than left connected in a queue that nobody serves
+    clientPool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new SynchronousQueue<Runnable>());
+    requestPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    System.out.println("Server Started. Listening for Clients on port " + port + " with " +
+            threads + " handler threads...");
 
-      // Receive the key from the client
-      String key = dataIn.readUTF();
-      System.out.println(getLogHeader(clientSocketIP, clientSocketPort) + "Received DELETE" +
-              " Request to Remove key \"" + key +"\"");
-      String serverMessage;
-      if (keyValStore.containsKey(key)) {
-        // Remove the key from the key-value store if it exists
-        keyValStore.remove(key);
-        serverMessage = "Successfully removed key \"" + key +"\" ";
-        System.out.println(getLogHeader(clientSocketIP, clientSocketPort) + serverMessage);
-        serverMessage = "1:" + serverMessage;
-      } else {
-        // Key not found. Send error message to client
-        serverMessage = "[Err] The key \"" + key +"\" does not exists in the store";
-        System.err.println(getLogHeader(clientSocketIP, clientSocketPort) + serverMessage);
-        serverMessage = "-1:" + serverMessage;
+    while (true) {
+      Socket clientSocket;
+      try {
+        // Accept a client connection
+        clientSocket = serverSocket.accept();
+      } catch (IOException e) {
+        Log.log(Log.ERROR, "Unknown IO Error. Connection Not Successful");
+        continue;
       }
-      // Send the response to the client
-      dataOut.writeUTF(serverMessage);
-    } catch (IOException e) {
-      System.err.println(getLogHeader(clientSocketIP, clientSocketPort) + "Unknown IO Error. " +
-              "DELETE Not Successful");
-    }
-  }
-
-  /**
-   * Function to handle GET requests
-   *
-   * @param clientSocketIP   The IP address of the client
-   * @param clientSocketPort The port number of the client
-   */
-  private static void handleGetRequest(String clientSocketIP, int clientSocketPort) {
-    try {
-      // Receive the key from the client
-      String key = dataIn.readUTF();  // Receive message from client
-      System.out.println(getLogHeader(clientSocketIP, clientSocketPort) + "Received GET " +
-              "Request to read key \"" + key +"\"");
-      String serverMessage;
-      if (keyValStore.containsKey(key)) {
-        // Get the value associated with the key from the key-value store
-        String val = keyValStore.get(key);
-        serverMessage = "Successfully read key \"" + key +"\" with val \"" + val + "\"";
-        System.out.println(getLogHeader(clientSocketIP, clientSocketPort) + serverMessage);
-        serverMessage = "1:" + val + ":" + serverMessage;
-      } else {
-        // Key not found. Send error message
-        serverMessage = "[Err] The key \"" + key +"\" does not exists in the store";
-        System.err.println(getLogHeader(clientSocketIP, clientSocketPort) + serverMessage);
-        serverMessage = "-1:" + serverMessage;
+      // Hand the connection to its own handler so the next client can be accepted right away
+      try {
+        clientPool.execute(new TCPClientHandler(clientSocket, processor, requestPool));
+      } catch (RejectedExecutionException e) {
+        Log.log(Log.WARN, "All " + threads + " handler threads are busy. Closing the connection from " +
+                clientSocket.getRemoteSocketAddress());
+        try {
+          clientSocket.close();
+        } catch (IOException ignored) {
+          // The connection is dropped either way
+        }
       }
-      // Send the response to the client
-      dataOut.writeUTF(serverMessage);
-    } catch (IOException e) {
-      System.err.println(getLogHeader(clientSocketIP, clientSocketPort) + "Unknown IO Error. " +
-              "GET Not Successful");
     }
   }
 
-  /**
-   * Function to generate the log header with timestamp, IP address, and port number
-   *
-   * @param ip   The IP address of the client
-   * @param port The port number of the client
-   * @return The log header string
-   */
-  private static String getLogHeader(String ip, int port) {
-    Timestamp timestamp = new Timestamp(System.currentTimeMillis());
-    return "[" + timestamp.toString() + " ,IP: " + ip + " ,Port: " + port +"]  ";
-  }
-
   /**
    * Function to get the current timestamp
    * @return The current timestamp string
    */
-  private static String getCurrentTimeStamp() {
+  static String getCurrentTimeStamp() {
     Timestamp timestamp = new Timestamp(System.currentTimeMillis());
     return "[" + timestamp.toString() + "]  ";
   }
@@ -0,0 +1,104 @@
+/**
+ * Timer Wheel
+ *
+ * Hashed timing wheel tracking when cache entries expire. Time is cut into ticks and each tick
+ * maps to one of a fixed ring of buckets, so scheduling and cancelling are constant-time list
+ * operations. Advancing the wheel only visits the buckets of the ticks that have passed; entries
+ * due in a later turn of the wheel stay where they are and are checked again when their bucket
+ * comes round.
+ *
+ * Not thread-safe: only used while holding the cache's eviction lock.
+ */
+
+import java.util.function.Consumer;
+
+public class TimerWheel {
+
+  // Number of buckets. Must be a power of two
+  private static final int BUCKETS = 1024;
+
+  private final long tickNanos;
+
+  // Time the ticks are counted from, so tick numbers are never negative
+  private final long origin;
+
+  // First node of each bucket's list
+  private final CacheNode[] buckets = new CacheNode[BUCKETS];
+
+  // Every tick before this one has been processed
+  private long currentTick;
+
+  /**
+   * Creates a wheel.
+   *
+   * @param tickNanos The length of a tick, which is how late an entry may be expired
+   * @param now       The current System.nanoTime()
+   */
+  public TimerWheel(long tickNanos, long now) {
+    this.tickNanos = tickNanos;
+    this.origin = now;
+  }
+
+  /**
+   * Function to schedule a node for its expiry time. Nodes without an expiry are ignored
+   */
+  public void schedule(CacheNode node) {
+    if (node.expiresAt == CacheNode.NEVER) return;
+    long tick = Math.max(currentTick, (node.expiresAt - origin) / tickNanos);
+    int bucket = (int) (tick & (BUCKETS - 1));
+    node.timerBucket = bucket;
+    node.timerPrev = null;
+    node.timerNext = buckets[bucket];
+    if (buckets[bucket] != null) buckets[bucket].timerPrev = node;
+    buckets[bucket] = node;
+  }
+
+  /**
+   * Function to cancel a node's expiry, if it is scheduled
+   */
+  public void cancel(CacheNode node) {
+    if (node.timerBucket < 0) return;
+    if (node.timerPrev != null) {
+      node.timerPrev.timerNext = node.timerNext;
+    } else {
+      buckets[node.timerBucket] = node.timerNext;
+    }
+    if (node.timerNext != null) node.timerNext.timerPrev = node.timerPrev;
+    node.timerPrev = null;
+    node.timerNext = null;
+    node.timerBucket = -1;
+  }
+
+  /**
+   * Function to move a node whose expiry changed
+   */
+  public void reschedule(CacheNode node) {
+    cancel(node);
+    schedule(node);
+  }
+
+  /**
+   * Function to process the ticks that have fully passed, handing every expired node to a
+   * callback. The nodes are cancelled before the callback runs
+   *
+   * @param now    The current System.nanoTime()
+   * @param expire Receives each expired node
+   */
+  public void advance(long now, Consumer<CacheNode> expire) {
+    long nowTick = (now - origin) / tickNanos;
+    // After a long pause, one pass over every bucket is enough
+    long tick = Math.max(currentTick, nowTick - BUCKETS);
+    for (; tick < nowTick; tick++) {
+      CacheNode node = buckets[(int) (tick & (BUCKETS - 1))];
+      while (node != null) {
+        CacheNode next = node.timerNext;
+        if (node.isExpired(now)) {
+          cancel(node);
+          expire.accept(node);
+        }
+        node = next;
+      }
+    }
+    currentTick = Math.max(currentTick, nowTick);
+  }
+}
@@ -2,7 +2,17 @@
  * UDP Client
  *
  * This program implements a simple UDP client that allows users to interact with a UDP server.
- * It sends GET, PUT, and DELETE requests to the server and displays the responses.
+ * It sends GET, PUT, PUTEX and DELETE requests to the server and displays the responses.
+ * Each request is a single datagram tagged with a request id, and only the response carrying the
+ * same id is accepted, so late replies to earlier timed-out requests are ignored.
+ * A lost request or response is recovered by resending the request with the same id, after a
+ * timeout adapted to the measured round-trip times (see RttEstimator) and doubled with each
+ * resend. The server answers a resent write without executing it again.
+ * PUTFILE and GETFILE move a value of up to Protocol.MAX_VALUE_SIZE bytes between a file and the
+ * server in chunks, one datagram each, so values are not limited by the datagram size. SCAN and
+ * RANGE list keys in order, one page per datagram, from a server started with --index=ordered.
+ * INCR, DECR, CAS and APPEND update a value in one atomic step on the server; like every write, a
+ * resent one is not executed twice.
  *
  * Author: Gaurang Jotwani
  * Course: NEU Summer 23 CS 6650
@@ -14,8 +24,13 @@ import sun.misc.SignalHandler;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class UDPClient {
 
@@ -24,19 +39,41 @@ public class UDPClient {
 
   private static int port;
 
+  // How long a request is resent before giving up
+  private static final long REQUEST_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  // Retransmission timeout from the measured round trips
+  private static final RttEstimator rtt = new RttEstimator();
+
+  // Id of the next request. Starts at a random value so a restarted client doesn't reuse ids
+  private static int nextRequestId = new Random().nextInt();
+
   // Command constants
   private static String get = new String("GET");
   private static String delete = new String("DELETE");
   private static String put = new String("PUT");
+  private static String putex = new String("PUTEX");
   private static String quit = new String("QUIT");
+  private static String stats = new String("STATS");
+  private static String mget = new String("MGET");
+  private static String mput = new String("MPUT");
+  private static String mdelete = new String("MDELETE");
+  private static String putfile = new String("PUTFILE");
+  private static String getfile = new String("GETFILE");
+  private static String scan = new String("SCAN");
+  private static String range = new String("RANGE");
+  private static String incr = new String("INCR");
+  private static String decr = new String("DECR");
+  private static String cas = new String("CAS");
+  private static String append = new String("APPEND");
 
   // Input and output Packets
   private static DatagramPacket sendPacket;
   private static DatagramPacket receivePacket;
 
-  // Initializing arrays to send and receive data. Assume no message is longer than 1024 bytes
-  private static byte[] sendData;
-  private static byte[] receiveData = new byte[1024];
+  // Initializing arrays to send and receive data. A datagram never exceeds the UDP payload limit
+  private static byte[] sendData = new byte[Protocol.MAX_DATAGRAM_SIZE];
+  private static byte[] receiveData = new byte[Protocol.MAX_DATAGRAM_SIZE];
 
   // Client socket
   private static DatagramSocket clientSocket;
@@ -55,9 +92,8 @@ public class UDPClient {
       System.err.println("Provide Correct number of Arguments (IP and Port of server)");
       System.exit(-1);
     }
-    // Create a new socket and set timeout to 1 second
+    // Create a new socket. Receive timeouts are set for each request
     clientSocket = new DatagramSocket();
-    clientSocket.setSoTimeout(1000);
 
     // Extract the server IP and port from command line arguments
     IPAddress = InetAddress.getByName(args[0]);
@@ -76,7 +112,10 @@ public class UDPClient {
     // Start reading user input and sending requests to the server
     Scanner input = new Scanner(System.in);
     System.out.print("Please Input Command in either of the following forms:\n\tGET " +
-            "<key>\n\tPUT <key> <val>\n\tDELETE <key>\n\tQUIT\n");
+            "<key>\n\tPUT <key> <val>\n\tPUTEX <key> <val> <seconds>\n\tDELETE <key>\n\tMGET <key> ...\n\tMPUT <key> <val> ...\n\t" +
+                "PUTFILE <key> <file>\n\tGETFILE <key> <file>\n\tSCAN <prefix>\n\tRANGE <from> <to>\n\t" +
+                "INCR <key> [<n>]\n\tDECR <key> [<n>]\n\tCAS <key> <expected> <val>\n\tAPPEND <key> <val>\n\t" +
+                "MDELETE <key> ...\n\tSTATS\n\tQUIT\n");
 
     while(true) {
       System.out.print("Enter Command: ");
@@ -87,23 +126,59 @@ public class UDPClient {
       if (splited.length >= 2 && splited[1].length() > 1024) {
         System.err.println(getCurrentTimeStamp() + "Key length is too big.");
         System.out.print("Please Input Command in either of the following forms:\n\tGET " +
-                "<key>\n\tPUT <key> <val>\n\tDELETE <key>\n\tQUIT\n");
+                "<key>\n\tPUT <key> <val>\n\tPUTEX <key> <val> <seconds>\n\tDELETE <key>\n\tMGET <key> ...\n\tMPUT <key> <val> ...\n\t" +
+                "PUTFILE <key> <file>\n\tGETFILE <key> <file>\n\tSCAN <prefix>\n\tRANGE <from> <to>\n\t" +
+                "INCR <key> [<n>]\n\tDECR <key> [<n>]\n\tCAS <key> <expected> <val>\n\tAPPEND <key> <val>\n\t" +
+                "MDELETE <key> ...\n\tSTATS\n\tQUIT\n");
         continue;
       }
 
 
       if (cmd.equals(put) && splited.length == 3) {
         if (splited[2].length() > 1024) {
-          System.err.println(getCurrentTimeStamp() + "Val length is too big.");
+          System.err.println(getCurrentTimeStamp() + "Val length is too big. Use PUTFILE for large values.");
           System.out.print("Please Input Command in either of the following forms:\n\tGET " +
-                  "<key>\n\tPUT <key> <val>\n\tDELETE <key>\n\tQUIT\n");
+                  "<key>\n\tPUT <key> <val>\n\tPUTEX <key> <val> <seconds>\n\tDELETE <key>\n\tMGET <key> ...\n\tMPUT <key> <val> ...\n\t" +
+                "PUTFILE <key> <file>\n\tGETFILE <key> <file>\n\tSCAN <prefix>\n\tRANGE <from> <to>\n\t" +
+                "INCR <key> [<n>]\n\tDECR <key> [<n>]\n\tCAS <key> <expected> <val>\n\tAPPEND <key> <val>\n\t" +
+                "MDELETE <key> ...\n\tSTATS\n\tQUIT\n");
           continue;
         }
-        handlePutRequest(cmd, splited[1], splited[2]);
+        handlePutRequest(cmd, splited[1], splited[2], 0);
+      } else if (cmd.equals(putex) && splited.length == 4 && splited[3].matches("[0-9]{1,9}")) {
+        handlePutRequest(cmd, splited[1], splited[2], Long.parseLong(splited[3]) * 1000);
       } else if (cmd.equals(get) && splited.length == 2) {
         handleGetRequest(cmd, splited[1]);
       } else if (cmd.equals(delete) && splited.length == 2) {
         handleDelRequest(cmd, splited[1]);
+      } else if ((cmd.equals(mget) || cmd.equals(mdelete)) && splited.length >= 2) {
+        String[] keys = Arrays.copyOfRange(splited, 1, splited.length);
+        handleBatchRequest(cmd.equals(mget) ? Protocol.OP_MGET : Protocol.OP_MDELETE, keys, null);
+      } else if (cmd.equals(mput) && splited.length >= 3 && splited.length % 2 == 1) {
+        String[] keys = new String[splited.length / 2];
+        String[] values = new String[splited.length / 2];
+        for (int i = 0; i < keys.length; i++) {
+          keys[i] = splited[1 + 2 * i];
+          values[i] = splited[2 + 2 * i];
+        }
+        handleBatchRequest(Protocol.OP_MPUT, keys, values);
+      } else if ((cmd.equals(putfile) || cmd.equals(getfile)) && splited.length == 3) {
+        handleFileRequest(cmd, splited[1], splited[2]);
+      } else if ((cmd.equals(scan) && splited.length <= 2) || (cmd.equals(range) && splited.length == 3)) {
+        handleScanRequest(cmd, splited.length > 1 ? splited[1] : "", splited.length > 2 ? splited[2] : "");
+      } else if ((cmd.equals(incr) || cmd.equals(decr)) && (splited.length == 2
+              || (splited.length == 3 && splited[2].matches("-?[0-9]{1,18}")))) {
+        long delta = splited.length == 3 ? Long.parseLong(splited[2]) : 1;
+        handleUpdateRequest(cmd, new Request(Protocol.OP_INCR, nextRequestId++, ByteString.of(splited[1]),
+                cmd.equals(incr) ? delta : -delta));
+      } else if (cmd.equals(cas) && splited.length == 4) {
+        handleUpdateRequest(cmd, new Request(Protocol.OP_CAS, nextRequestId++, ByteString.of(splited[1]),
+                ByteString.of(splited[2]), ByteString.of(splited[3])));
+      } else if (cmd.equals(append) && splited.length == 3) {
+        handleUpdateRequest(cmd, new Request(Protocol.OP_APPEND, nextRequestId++, ByteString.of(splited[1]),
+                ByteString.of(splited[2])));
+      } else if (cmd.equals(stats) && splited.length == 1) {
+        handleStatsRequest();
       } else if (cmd.equals(quit) && splited.length == 1) {
         cleanUp();
         break;
@@ -111,7 +186,10 @@ public class UDPClient {
       else {
         System.err.println(getCurrentTimeStamp() + "Wrong format of command.");
         System.out.print("Please Input Command in either of the following forms:\n\tGET " +
-                "<key>\n\tPUT <key> <val>\n\tDELETE <key>\n\tQUIT\n");
+                "<key>\n\tPUT <key> <val>\n\tPUTEX <key> <val> <seconds>\n\tDELETE <key>\n\tMGET <key> ...\n\tMPUT <key> <val> ...\n\t" +
+                "PUTFILE <key> <file>\n\tGETFILE <key> <file>\n\tSCAN <prefix>\n\tRANGE <from> <to>\n\t" +
+                "INCR <key> [<n>]\n\tDECR <key> [<n>]\n\tCAS <key> <expected> <val>\n\tAPPEND <key> <val>\n\t" +
+                "MDELETE <key> ...\n\tSTATS\n\tQUIT\n");
       }
     }
   }
@@ -122,8 +200,7 @@ public class UDPClient {
    */
   private static void cleanUp() {
     try {
-      String cmd = "QUIT";
-      sendDataPacket(cmd);
+      sendRequest(new Request(Protocol.OP_QUIT, nextRequestId++, ByteString.EMPTY, ByteString.EMPTY));
       clientSocket.close();
     } catch (SocketTimeoutException e) {
       System.err.println(getCurrentTimeStamp() + "Server taking too long to respond. Try again!");
@@ -133,36 +210,33 @@ public class UDPClient {
   }
 
   /**
-   * Function to handle PUT requests
+   * Function to handle PUT and PUTEX requests
    *
-   * @param cmd The command (PUT)
+   * @param cmd The command (PUT or PUTEX)
    * @param key     The key to store in the server
    * @param val   The value associated with the key
+   * @param ttlMillis How long the key lives in milliseconds, 0 for a plain PUT
    */
-  private static void handlePutRequest(String cmd, String key, String val) {
+  private static void handlePutRequest(String cmd, String key, String val, long ttlMillis) {
     try {
-      // Send cmd to server
-      sendDataPacket(cmd);
-      // Send key to server
-      sendDataPacket(key);
-      // Send val to server
-      sendDataPacket(val);
-
-      // Receive message from server
-      String serverMessage = receiveDataPacket();
-
-      if (serverMessage.charAt(0) == '1') {
-        // if first char is 1, it is success
-        System.out.println(getCurrentTimeStamp() + "Message from server: " + serverMessage.substring(2));
+      // Send cmd, key and val to server in one datagram
+      Request request = ttlMillis > 0
+              ? new Request(Protocol.OP_PUTEX, nextRequestId++, ByteString.of(key), ByteString.of(val), ttlMillis)
+              : new Request(Protocol.OP_PUT, nextRequestId++, ByteString.of(key), ByteString.of(val));
+      // Resent until the response arrives
+      Response response = sendAndReceive(request);
+
+      if (response.isOk()) {
+        System.out.println(getCurrentTimeStamp() + "Message from server: " + response.message);
       } else {
-        System.err.println(getCurrentTimeStamp() + "Message from server: " + serverMessage.substring(3));
+        System.err.println(getCurrentTimeStamp() + "Message from server: " + response.message);
       }
     } catch (SocketTimeoutException e) {
       System.err.println(getCurrentTimeStamp() + "Server taking too long to respond. Try again!");
+    } catch (ProtocolException e) {
+      System.err.println(getCurrentTimeStamp() + "Malformed response from server");
     } catch (IOException e) {
       System.err.println(getCurrentTimeStamp() + "Unknown IO Error. PUT Command Not Successful");
-    } catch (IllegalArgumentException e) {
-      System.err.println(getCurrentTimeStamp() + "Packet Size too big");
     }
   }
 
@@ -174,28 +248,62 @@ public class UDPClient {
    */
   private static void handleGetRequest(String cmd, String key) {
     try {
-      // Send cmd to server
-      sendDataPacket(cmd);
-      // Send key to server
-      sendDataPacket(key);
-
-      // Receive message from server
-      String serverMessage = receiveDataPacket();
-
-      // if first char is 1, it is success
-      if (serverMessage.charAt(0) == '1') {
-        String[] parts = serverMessage.split(":");
-        System.out.println(getCurrentTimeStamp() + "Value Read: " + parts[1]);
-        System.out.println(getCurrentTimeStamp() + "Message from server: " + parts[2]);
+      // Send cmd and key to server in one datagram
+      Request request = new Request(Protocol.OP_GET, nextRequestId++, ByteString.of(key), ByteString.EMPTY);
+      // Resent until the response arrives
+      Response response = sendAndReceive(request);
+
+      if (response.isOk()) {
+        System.out.println(getCurrentTimeStamp() + "Value Read: " + response.value);
+        System.out.println(getCurrentTimeStamp() + "Message from server: " + response.message);
       } else {
-        System.err.println(getCurrentTimeStamp() + "Message from server: " + serverMessage.substring(3));
+        System.err.println(getCurrentTimeStamp() + "Message from server: " + response.message);
       }
     } catch (SocketTimeoutException e) {
       System.err.println(getCurrentTimeStamp() + "Server taking too long to respond. Try again!");
+    } catch (ProtocolException e) {
+      System.err.println(getCurrentTimeStamp() + "Malformed response from server");
     } catch (IOException e) {
       System.err.println(getCurrentTimeStamp() + "Unknown IO Error. PUT Command Not Successful");
-    } catch (IllegalArgumentException e) {
-      System.err.println(getCurrentTimeStamp() + "Packet Size too big");
+    }
+  }
+
+  /**
+   * Function to handle PUTFILE and GETFILE requests, moving a value between a file and the
+   * server in chunks. Each chunk is sent and resent like any request before the next one
+   *
+   * @param cmd  The command (PUTFILE or GETFILE)
+   * @param key  The key to store or read
+   * @param file The file holding the value, or receiving it
+   */
+  private static void handleFileRequest(String cmd, String key, String file) {
+    ChunkedTransfer.Sender sender = (opcode, chunkKey, streamId, chunkIndex, chunk, last) -> {
+      try {
+        return CompletableFuture.completedFuture(sendAndReceive(
+                new Request(opcode, nextRequestId++, chunkKey, chunk, streamId, chunkIndex, last)));
+      } catch (IOException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    };
+    try {
+      if (cmd.equals(putfile)) {
+        try (InputStream value = new BufferedInputStream(new FileInputStream(file))) {
+          Response response = ChunkedTransfer.upload(sender, ByteString.of(key), value);
+          System.out.println(getCurrentTimeStamp() + "Message from server: " + response.message);
+        }
+      } else {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+          if (ChunkedTransfer.download(sender, ByteString.of(key), out)) {
+            System.out.println(getCurrentTimeStamp() + "Value of \"" + key + "\" written to " + file);
+          } else {
+            System.err.println(getCurrentTimeStamp() + "Message from server: [Err] The key \"" + key + "\" could not be read");
+          }
+        }
+      }
+    } catch (SocketTimeoutException e) {
+      System.err.println(getCurrentTimeStamp() + "Server taking too long to respond. Try again!");
+    } catch (IOException e) {
+      System.err.println(getCurrentTimeStamp() + cmd + " Command Not Successful: " + e.getMessage());
     }
   }
 
@@ -207,25 +315,159 @@ public class UDPClient {
    */
   private static void handleDelRequest(String cmd, String key) {
     try {
-      // Send cmd to server
-      sendDataPacket(cmd);
-      // Send key to server
-      sendDataPacket(key);
-      // Receive message from server
-      String serverMessage = receiveDataPacket();
-
-      if (serverMessage.charAt(0) == '1') {
-        // if first char is 1, it is success
-        System.out.println(getCurrentTimeStamp() + "Message from server: " + serverMessage.substring(2));
+      // Send cmd and key to server in one datagram
+      Request request = new Request(Protocol.OP_DELETE, nextRequestId++, ByteString.of(key), ByteString.EMPTY);
+      // Resent until the response arrives
+      Response response = sendAndReceive(request);
+
+      if (response.isOk()) {
+        System.out.println(getCurrentTimeStamp() + "Message from server: " + response.message);
       } else {
-        System.err.println(getCurrentTimeStamp() + "Message from server: " + serverMessage.substring(3));
+        System.err.println(getCurrentTimeStamp() + "Message from server: " + response.message);
       }
     } catch (SocketTimeoutException e) {
       System.err.println(getCurrentTimeStamp() + "Server taking too long to respond. Try again!");
+    } catch (ProtocolException e) {
+      System.err.println(getCurrentTimeStamp() + "Malformed response from server");
     } catch (IOException e) {
       System.err.println(getCurrentTimeStamp() + "Unknown IO Error. PUT Command Not Successful");
-    } catch (IllegalArgumentException e) {
-      System.err.println(getCurrentTimeStamp() + "Packet Size too big");
+    }
+  }
+
+  /**
+   * Function to handle STATS requests
+   */
+  private static void handleStatsRequest() {
+    try {
+      Request request = new Request(Protocol.OP_STATS, nextRequestId++, ByteString.EMPTY, ByteString.EMPTY);
+      // Resent until the response arrives
+      Response response = sendAndReceive(request);
+      if (response.isOk()) {
+        System.out.println(getCurrentTimeStamp() + "Server statistics:\n" + response.value);
+      } else {
+        System.err.println(getCurrentTimeStamp() + "Message from server: " + response.message);
+      }
+    } catch (SocketTimeoutException e) {
+      System.err.println(getCurrentTimeStamp() + "Server taking too long to respond. Try again!");
+    } catch (ProtocolException e) {
+      System.err.println(getCurrentTimeStamp() + "Malformed response from server");
+    } catch (IOException e) {
+      System.err.println(getCurrentTimeStamp() + "Unknown IO Error. STATS Command Not Successful");
+    }
+  }
+
+  /**
+   * Function to handle MGET, MPUT and MDELETE requests
+   *
+   * @param opcode The batch command
+   * @param keys   The keys the command works on
+   * @param values The values for an MPUT, one per key, or null for other commands
+   */
+  private static void handleBatchRequest(byte opcode, String[] keys, String[] values) {
+    try {
+      // Send all keys (and values) to server in one datagram
+      Request request = new Request(opcode, nextRequestId++, ByteString.of(keys), ByteString.of(values));
+      if (Protocol.requestLength(request) > sendData.length) {
+        System.err.println(getCurrentTimeStamp() + "Batch too big for a single datagram");
+        return;
+      }
+      // Resent until the response arrives
+      Response response = sendAndReceive(request);
+      if (!response.isBatch()) {
+        System.err.println(getCurrentTimeStamp() + "Message from server: " + response.message);
+        return;
+      }
+      for (int i = 0; i < keys.length; i++) {
+        boolean ok = response.statuses[i] == Protocol.STATUS_OK;
+        String result;
+        if (opcode == Protocol.OP_MGET) {
+          result = ok ? "Value Read: " + response.values[i] : "[Err] Key does not exist";
+        } else if (opcode == Protocol.OP_MPUT) {
+          result = ok ? "Saved" : "[Err] Not saved";
+        } else {
+          result = ok ? "Removed" : "[Err] Key does not exist";
+        }
+        System.out.println(getCurrentTimeStamp() + "Key \"" + keys[i] + "\": " + result);
+      }
+    } catch (SocketTimeoutException e) {
+      System.err.println(getCurrentTimeStamp() + "Server taking too long to respond. Try again!");
+    } catch (ProtocolException e) {
+      System.err.println(getCurrentTimeStamp() + "Malformed response from server");
+    } catch (IOException e) {
+      System.err.println(getCurrentTimeStamp() + "Unknown IO Error. Batch Command Not Successful");
+    }
+  }
+
+  /**
+   * Function to handle INCR, DECR, CAS and APPEND requests
+   *
+   * @param cmd     The command (INCR, DECR, CAS or APPEND)
+   * @param request The request to send
+   */
+  private static void handleUpdateRequest(String cmd, Request request) {
+    try {
+      // Resent until the response arrives; the server answers a resent update without repeating it
+      Response response = sendAndReceive(request);
+      if (response.isOk()) {
+        if (response.value != null) {
+          System.out.println(getCurrentTimeStamp() + "Value Read: " + response.value);
+        }
+        System.out.println(getCurrentTimeStamp() + "Message from server: " + response.message);
+      } else {
+        System.err.println(getCurrentTimeStamp() + "Message from server: " + response.message);
+        if (response.isMismatch()) {
+          System.err.println(getCurrentTimeStamp() + "Current value: " + (response.value == null ? "(none)" : response.value));
+        }
+      }
+    } catch (SocketTimeoutException e) {
+      System.err.println(getCurrentTimeStamp() + "Server taking too long to respond. Try again!");
+    } catch (ProtocolException e) {
+      System.err.println(getCurrentTimeStamp() + "Malformed response from server");
+    } catch (IOException e) {
+      System.err.println(getCurrentTimeStamp() + "Unknown IO Error. " + cmd + " Command Not Successful");
+    }
+  }
+
+  /**
+   * Function to handle SCAN and RANGE requests, asking for one page after another and printing
+   * every key found with its value
+   *
+   * @param cmd  The command (SCAN or RANGE)
+   * @param from The prefix of a SCAN, or the first key of a RANGE
+   * @param to   The key a RANGE stops before, or empty for a SCAN or for no end
+   */
+  private static void handleScanRequest(String cmd, String from, String to) {
+    boolean prefix = cmd.equals(scan);
+    ByteString key = ByteString.of(from);
+    ByteString value = ByteString.of(to);
+    int count = 0;
+    try {
+      while (true) {
+        // Resent until the response arrives; a page always fits in one datagram
+        Response response = sendAndReceive(new Request(prefix ? Protocol.OP_SCAN : Protocol.OP_RANGE, nextRequestId++,
+                KeyValueClient.PAGE_SIZE, key, value));
+        if (!response.isPage()) {
+          System.err.println(getCurrentTimeStamp() + "Message from server: " + response.message);
+          return;
+        }
+        for (int i = 0; i < response.keys.length; i++) {
+          System.out.println(getCurrentTimeStamp() + response.keys[i] + " = " + response.values[i]);
+        }
+        count += response.keys.length;
+        if (response.value == null) break;
+        if (prefix) {
+          value = response.value;
+        } else {
+          key = response.value;
+        }
+      }
+      System.out.println(getCurrentTimeStamp() + "Message from server: " + count + " keys found");
+    } catch (SocketTimeoutException e) {
+      System.err.println(getCurrentTimeStamp() + "Server taking too long to respond. Try again!");
+    } catch (ProtocolException e) {
+      System.err.println(getCurrentTimeStamp() + "Malformed response from server");
+    } catch (IOException e) {
+      System.err.println(getCurrentTimeStamp() + "Unknown IO Error. " + cmd + " Command Not Successful");
     }
   }
 
@@ -239,28 +481,62 @@ public class UDPClient {
   }
 
   /**
-   * Function to get the current timestamp
-   * @param data The data to send
+   * Function to send a request to the server in a single datagram
+   * @param request The request to send
    */
-  private static void sendDataPacket(String data) throws IOException {
-    sendData = data.getBytes();
-    sendPacket = new DatagramPacket(sendData, sendData.length, IPAddress, port);
+  private static void sendRequest(Request request) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(sendData);
+    Protocol.encodeRequest(request, buffer);
+    sendPacket = new DatagramPacket(sendData, buffer.position(), IPAddress, port);
     clientSocket.send(sendPacket);
   }
 
   /**
-   * Function to get the current timestamp
-   * @return The server message
+   * Function to send a request and wait for its response, resending the request whenever the
+   * retransmission timeout passes without a response
+   *
+   * @param request The request to send
+   * @return The server response
+   * @throws SocketTimeoutException If no response arrives within REQUEST_TIMEOUT_NANOS
+   */
+  private static Response sendAndReceive(Request request) throws IOException {
+    long deadline = System.nanoTime() + REQUEST_TIMEOUT_NANOS;
+    for (int sends = 0; ; sends++) {
+      sendRequest(request);
+      long sentAt = System.nanoTime();
+      long timeout = Math.min(rtt.getRtoNanos(sends), deadline - sentAt);
+      try {
+        Response response = receiveResponse(request.requestId, sentAt + timeout);
+        // A response to a resent request may answer any of its sends, so it isn't measured
+        if (sends == 0) rtt.sample(System.nanoTime() - sentAt);
+        return response;
+      } catch (SocketTimeoutException e) {
+        if (System.nanoTime() - deadline >= 0) throw e;
+      }
+    }
+  }
+
+  /**
+   * Function to wait for the response to a request. Responses with another request id are
+   * late replies to earlier requests and are skipped.
+   *
+   * @param requestId The id of the request being answered
+   * @param until     The System.nanoTime() to wait until
+   * @return The server response
+   * @throws SocketTimeoutException If the response doesn't arrive in time
    */
-  private static String receiveDataPacket() throws IOException {
-    receivePacket = new DatagramPacket(receiveData, receiveData.length);
-    clientSocket.receive(receivePacket);  // Receive packet from server
-    int packetLength = receivePacket.getLength();
-    // Checking if size is too more than 1024 bytes. Throw error if it is
-    if (packetLength > 1024) {
-      throw new IllegalArgumentException("Packet length exceeds 1024 bytes");
+  private static Response receiveResponse(int requestId, long until) throws IOException {
+    while (true) {
+      long remaining = until - System.nanoTime();
+      if (remaining <= 0) throw new SocketTimeoutException("No response to request " + requestId);
+      clientSocket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+      receivePacket = new DatagramPacket(receiveData, receiveData.length);
+      clientSocket.receive(receivePacket);  // Receive packet from server
+      Response response = Protocol.decodeResponse(ByteBuffer.wrap(receivePacket.getData(), 0,
+              receivePacket.getLength()));
+      if (response.requestId == requestId) {
+        return response;
+      }
     }
-    String serverMessage = new String(receivePacket.getData(),0,receivePacket.getLength());
-    return serverMessage;
   }
 }
\ No newline at end of file
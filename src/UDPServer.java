@@ -4,6 +4,12 @@
  * This program implements a simple UDP server that allows clients to perform CRUD operations on a
  * key-value store.
  * It listens for client connections on a specified port and handles GET, PUT, and DELETE requests.
+ * Every request and response is a single datagram in the binary format described in Protocol,
+ * so requests from different clients can be interleaved freely.
+ *
+ * Requests are served by several UDPWorker threads. Where the OS supports SO_REUSEPORT, each
+ * worker gets its own socket bound to the same port and the kernel spreads clients across them;
+ * otherwise the workers share a single socket.
  *
  * Author: Gaurang Jotwani
  * Course: NEU Summer 23 CS 6650
@@ -12,206 +18,129 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
 import java.sql.Timestamp;
-import java.util.HashMap;
 
 public class UDPServer {
 
-  // Initializing arrays to send and receive data. Assume no message is longer than 1024 bytes
-  private static byte[] receiveData = new byte[1024];
-  private static byte[] sendData;
-
-  // Command constants
-  private static String get = new String("GET");
-  private static String delete = new String("DELETE");
-  private static String put = new String("PUT");
-  private static String quit = new String("QUIT");
-
-  // Server socket
-  private static DatagramSocket serverSocket;
+  // Number of write responses remembered to answer resent writes
+  private static final int DEFAULT_DEDUP_ENTRIES = 65536;
 
-  // Input and output Packets
-  private static DatagramPacket sendPacket;
-  private static DatagramPacket receivePacket;
+  // Key-value store shared by all workers
+  private static KeyValueStore keyValStore;
 
-  // Initializing client port and client IP address
-  private static InetAddress IPAddress;
-  private static int port;
-
-  // Key-value store to store data
-  private static HashMap<String, String> keyValStore = new HashMap<String, String>();
+  // Executes commands against the key-value store for every worker
+  private static CommandProcessor processor;
 
 
   /**
-   * Main entry point of the client program.
+   * Main entry point of the server program.
    * Accepts the command-line arguments.
    * Throws IOException if an I/O error occurs.
    * CMD LINE ARGUMENTS:
    *  String SERVER_PORT
+   *  --workers=N       (optional) Number of worker threads. Default: number of CPUs
+   *  --log-level=L     (optional) OFF, ERROR, WARN, INFO or DEBUG. Default INFO
+   *  --log-sample=N    (optional) Log 1 in N requests. Default 1
+   *  --store=S         (optional) Storage engine, heap or offheap. Default heap
+   *  --max-entries=N   (optional) Run as a cache holding at most N entries. Default: no limit
+   *  --max-memory=SIZE (optional) Run as a cache using at most about SIZE bytes. Default: no limit
+   *  --eviction=P      (optional) Cache eviction policy, lru, lfu or tinylfu. Default tinylfu
+   *  --index=I         (optional) hash, or ordered to keep the keys sorted for SCAN and RANGE. Default hash
+   *  --data-dir=DIR    (optional) Write-ahead log and snapshots, see StoreFactory. Default: memory only
+   *  --hot-keys=K      (optional) Hottest keys to report in STATS and cache, 0 for none. Default 16
+   *  --metrics-port=N  (optional) Serve Prometheus metrics over HTTP on port N. Default: not served
+   *  --dedup-entries=N (optional) Remember the responses to the last N writes, so resent writes
+   *                    aren't executed twice. 0 turns it off. Default 65536
    */
   public static void main(String[] args) throws IOException {
-    // Check if the correct number of arguments is provided
-    if (args.length >= 2) {
-      System.err.println("Provide Correct number of Arguments (IP and Port of server)");
-      System.exit(-1);
-    }
-
-    // Get the port from command line arguments and Create a new socket
-    serverSocket = new DatagramSocket(Integer.parseInt(args[0]));
-
-
-    System.out.println("Server Started. Listening for Clients on port " + args[0] + "...");
-
-    while (true) {
-      // Get cmd from the recieve packet
-      String cmd = receiveDataPacket();
-
-      // Get the client's IP address and port
-      IPAddress = receivePacket.getAddress();
-      port = receivePacket.getPort();
-
-      if (put.equals(cmd)) {
-        handlePutRequest();
-      } else if (delete.equals(cmd)) {
-        handleDelRequest();
-      } else if (get.equals(cmd)) {
-        handleGetRequest();
-      } else if (quit.equals(cmd)) {
-        System.out.println(getLogHeader(IPAddress.toString(), port) + "Connection Closed");
-        System.out.println("Server Started. Listening for Clients on port " + args[0] + "...");
-      } else {
-        System.err.println(getLogHeader(IPAddress.toString(), port) + "Invalid Command: " + cmd);
-        String serverMessage = "-1: Invalid Command";
-        sendDataPacket(serverMessage);
-      }
-    }
-  }
-
-  /**
-   * Function to handle PUT requests
-   */
-  private static void handlePutRequest() {
+    // Check if the correct arguments are provided
+    ServerConfig config = null;
     try {
-      // Receive the key and value from the client
-      String key = receiveDataPacket();
-      String val = receiveDataPacket();
-      System.out.println(getLogHeader(IPAddress.toString(), port) + "Received PUT " +
-              "Request to PUT key \"" + key + "\" with value \"" + val + "\"");
-      // Store the key-value pair in the key-value store
-      keyValStore.put(key, val);
-      String serverMessage = key + " with value \"" + val + "\" saved successfully";
-      System.out.println(getLogHeader(IPAddress.toString(), port) + serverMessage);
-      serverMessage = "1:" + serverMessage;
-      // Send success message to the client starting with "1"
-      sendDataPacket(serverMessage);
+      config = new ServerConfig(args);
+      Log.configure(config);
+      keyValStore = StoreFactory.create(config);
+    } catch (IllegalArgumentException e) {
+      System.err.println("Provide Correct Arguments (Port [--workers=N] [--log-level=LEVEL] " +
+              "[--log-sample=N] [--store=heap|offheap] [--max-entries=N] [--max-memory=SIZE] " +
+              "[--eviction=lru|lfu|tinylfu] [--index=hash|ordered] [--data-dir=DIR] [--wal-sync=always|interval|os] " +
+              "[--wal-sync-interval=MS] [--snapshot-interval=S] [--hot-keys=K] [--metrics-port=N] [--dedup-entries=N]): " +
+              e.getMessage());
+      System.exit(-1);
     } catch (IOException e) {
-      System.err.println(getLogHeader(IPAddress.toString(), port) + "Unknown IO Error. PUT" +
-              "Not Successful");
-    }  catch (IllegalArgumentException e) {
-      System.err.println(getLogHeader(IPAddress.toString(), port) + "Packet Size too big");
+      System.err.println(getCurrentTimeStamp() + "Cannot load the data directory: " + e.getMessage());
+      System.exit(-1);
+    }
+    processor = new CommandProcessor(keyValStore);
+    if (keyValStore instanceof HotKeyStore) {
+      processor.getMetrics().addSource((HotKeyStore) keyValStore);
     }
-  }
-
-  /**
-   * Function to handle DELETE requests
-   */
-  private static void handleDelRequest(){
     try {
-      // Receive the key from the client
-      String key = receiveDataPacket();
-      System.out.println(getLogHeader(IPAddress.toString(), port) + "Received DELETE" +
-              " Request to Remove key \"" + key +"\"");
-      String serverMessage;
-      if (keyValStore.containsKey(key)) {
-        // Remove the key from the key-value store if it exists
-        keyValStore.remove(key);
-        serverMessage = "Successfully removed key \"" + key +"\" ";
-        System.out.println(getLogHeader(IPAddress.toString(), port) + serverMessage);
-        // Append 1 to the message as it is successful
-        serverMessage = "1:" + serverMessage;
-      } else {
-        // Key not found. Send error message to client
-        serverMessage = "[Err] The key \"" + key +"\" does not exists in the store";
-        System.err.println(getLogHeader(IPAddress.toString(), port) + serverMessage);
-        serverMessage = "-1:" + serverMessage;
+      int metricsPort = MetricsServer.startIfConfigured(config, processor.getMetrics());
+      if (metricsPort > 0) {
+        System.out.println("Serving metrics on http://localhost:" + metricsPort + "/metrics");
       }
-      // Send the response to the client
-      sendDataPacket(serverMessage);
     } catch (IOException e) {
-      System.err.println(getLogHeader(IPAddress.toString(), port) + "Unknown IO Error. " +
-              "DELETE Not Successful");
-    }  catch (IllegalArgumentException e) {
-      System.err.println(getLogHeader(IPAddress.toString(), port) + "Packet Size too big");
+      System.err.println(getCurrentTimeStamp() + "Cannot bind to the metrics port");
+      System.exit(-1);
     }
-  }
+    int port = config.getPort();
+    int workers = config.getInt("workers", Runtime.getRuntime().availableProcessors());
+    int dedupEntries = config.getInt("dedup-entries", DEFAULT_DEDUP_ENTRIES);
+    ReplyCache replies = dedupEntries > 0 ? new ReplyCache(dedupEntries) : null;
 
-  /**
-   * Function to handle GET requestst
-   */
-  private static void handleGetRequest(){
+    DatagramChannel[] channels;
     try {
-      // Receive the key from the client
-      String key = receiveDataPacket();
-      System.out.println(getLogHeader(IPAddress.toString(), port) + "Received GET" +
-              " Request to read key \"" + key +"\"");
-      String serverMessage;
+      channels = openChannels(port, workers);
+    } catch (BindException e) {
+      System.err.println(getCurrentTimeStamp() + "Cannot bind to the port");
+      System.exit(-1);
+      return;
+    }
 
-      if (keyValStore.containsKey(key)) {
-        // Get the value associated with the key from the key-value store
-        String val = keyValStore.get(key);
-        serverMessage = "Successfully read key \"" + key +"\" with val \"" + val + "\"";
-        System.out.println(getLogHeader(IPAddress.toString(), port) + serverMessage);
-        serverMessage = "1:" + val + ":" + serverMessage;
-      } else {
-        // Key not found. Send error message (add -1 to message)
-        serverMessage = "[Err] The key \"" + key +"\" does not exists in the store";
-        System.err.println(getLogHeader(IPAddress.toString(), port) + serverMessage);
-        serverMessage = "-1:" + serverMessage;
-      }
-      sendDataPacket(serverMessage);
-    } catch (IOException e) {
-      System.err.println(getLogHeader(IPAddress.toString(), port) + "Unknown IO Error. " +
-              "GET Not Successful");
-    } catch (IllegalArgumentException e) {
-      System.err.println(getLogHeader(IPAddress.toString(), port) + "Packet Size too big");
+    for (int i = 0; i < workers; i++) {
+      // With a single shared socket every worker receives from the same channel
+      DatagramChannel channel = channels[Math.min(i, channels.length - 1)];
+      new Thread(new UDPWorker(channel, processor, replies), "udp-worker-" + i).start();
     }
+    System.out.println("Server Started. Listening for Clients on port " + port + " with " +
+            workers + " workers on " + channels.length + " sockets...");
   }
+
   /**
-   * Function to generate the log header with timestamp, IP address, and port number
+   * Function to open the sockets the workers receive from. Opens one socket per worker with
+   * SO_REUSEPORT when the OS supports it, otherwise a single socket for all of them.
    *
-   * @param ip   The IP address of the client
-   * @param port The port number of the client
-   * @return The log header string
+   * @param port    The port to bind to
+   * @param workers The number of workers
+   * @return The bound channels
    */
-  private static String getLogHeader(String ip, int port) {
-    Timestamp timestamp = new Timestamp(System.currentTimeMillis());
-    return "[" + timestamp.toString() + " ,IP: " + ip + " ,Port: " + port +"]  ";
-  }
+  private static DatagramChannel[] openChannels(int port, int workers) throws IOException {
+    DatagramChannel first = DatagramChannel.open();
+    boolean reusePort = workers > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    if (!reusePort) {
+      first.bind(new InetSocketAddress(port));
+      return new DatagramChannel[] {first};
+    }
 
-  /**
-   * Function to get the current timestamp
-   * @param data The data to send
-   */
-  private static void sendDataPacket(String data) throws IOException {
-    sendData = data.getBytes();
-    sendPacket = new DatagramPacket(sendData, sendData.length, IPAddress, port);
-    serverSocket.send(sendPacket);
+    DatagramChannel[] channels = new DatagramChannel[workers];
+    channels[0] = first;
+    for (int i = 1; i < workers; i++) {
+      channels[i] = DatagramChannel.open();
+    }
+    for (DatagramChannel channel : channels) {
+      channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      channel.bind(new InetSocketAddress(port));
+    }
+    return channels;
   }
 
   /**
    * Function to get the current timestamp
-   * @return The server message
+   * @return The current timestamp string
    */
-  private static String receiveDataPacket() throws IOException {
-    receivePacket = new DatagramPacket(receiveData, receiveData.length);
-    serverSocket.receive(receivePacket);  // Receive packet from server
-    // Check Packet Size.
-    int packetLength = receivePacket.getLength();
-    // Throw error if exceeds 1024 bytes
-    if (packetLength > 1024) {
-      throw new IllegalArgumentException("Packet length exceeds 1024 bytes");
-    }
-    String serverMessage = new String(receivePacket.getData(),0,receivePacket.getLength());
-    return serverMessage;
+  static String getCurrentTimeStamp() {
+    Timestamp timestamp = new Timestamp(System.currentTimeMillis());
+    return "[" + timestamp.toString() + "]  ";
   }
 }
\ No newline at end of file
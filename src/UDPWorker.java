@@ -0,0 +1,170 @@
+/**
+ * UDP Worker
+ *
+ * Serves UDP requests from one DatagramChannel on its own thread. Each worker owns its receive
+ * buffer, send buffer and reply path, and shares nothing with the other workers except the
+ * key-value store, so adding workers adds throughput. Commands are executed by the same
+ * CommandProcessor the TCP server uses.
+ *
+ * A write the client resent because a datagram was lost is answered from the ReplyCache, shared
+ * by all workers, instead of being executed again.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+public class UDPWorker implements Runnable {
+
+  // Channel this worker receives requests from and replies on
+  private final DatagramChannel channel;
+
+  // Executes commands against the key-value store shared by all workers
+  private final CommandProcessor processor;
+
+  // Metrics the datagram bytes are counted in
+  private final Metrics metrics;
+
+  // Recent responses to writes, or null if resent writes are executed again
+  private final ReplyCache replies;
+
+  // Buffers to send and receive data. A datagram never exceeds the UDP payload limit
+  private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(Protocol.MAX_DATAGRAM_SIZE);
+  private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(Protocol.MAX_DATAGRAM_SIZE);
+
+  // Address of the client whose request is being handled, and its IP and port for log messages
+  private InetSocketAddress clientAddress;
+  private InetAddress clientIP;
+  private int clientPort;
+
+  /**
+   * Creates a worker for a bound channel.
+   *
+   * @param channel     The bound channel to serve, in blocking mode
+   * @param processor   Executes commands against the shared key-value store
+   * @param replies     Recent responses to writes shared by all workers, or null
+   */
+  public UDPWorker(DatagramChannel channel, CommandProcessor processor, ReplyCache replies) {
+    this.channel = channel;
+    this.processor = processor;
+    this.metrics = processor.getMetrics();
+    this.replies = replies;
+  }
+
+  /**
+   * Receives and answers requests until the channel is closed.
+   */
+  @Override
+  public void run() {
+    while (channel.isOpen()) {
+      try {
+        // Every datagram carries a complete request
+        receiveBuffer.clear();
+        clientAddress = (InetSocketAddress) channel.receive(receiveBuffer);
+      } catch (IOException e) {
+        if (channel.isOpen()) {
+          Log.log(Log.ERROR, "Unknown IO Error. Receive Not Successful");
+        }
+        continue;
+      }
+      receiveBuffer.flip();
+      metrics.recordBytesIn(receiveBuffer.remaining());
+
+      // Get the client's IP address and port
+      clientIP = clientAddress.getAddress();
+      clientPort = clientAddress.getPort();
+
+      Request request;
+      try {
+        request = Protocol.decodeRequest(receiveBuffer);
+      } catch (ProtocolException e) {
+        // Without a valid request id the client can't match a reply, so just drop the packet
+        Log.error(clientIP, clientPort, "Malformed Packet: ", e.getMessage());
+        continue;
+      }
+
+      if (request.opcode == Protocol.OP_QUIT) {
+        Log.info(clientIP, clientPort, "Connection Closed");
+        continue;
+      }
+
+      boolean remember = replies != null && Protocol.isWrite(request.opcode);
+      if (remember) {
+        byte[] reply = replies.begin(clientAddress, request.requestId);
+        if (reply != null) {
+          // A resent write: answer it again, or drop it if the first copy is still executing
+          metrics.recordDuplicate();
+          if (reply != ReplyCache.IN_PROGRESS) send(ByteBuffer.wrap(reply));
+          continue;
+        }
+      }
+
+      try {
+        if (Protocol.isLean(request.opcode)) {
+          encodeLeanResponse(request);
+        } else {
+          encodeResponse(processor.execute(request, clientIP, clientPort));
+        }
+      } catch (RuntimeException e) {
+        // Answered with an error, and remembered like any other response, so the worker goes on
+        // and a resend of the request gets the same answer instead of being dropped as in progress
+        Response error = processor.failed(request, e, clientIP, clientPort);
+        if (Protocol.isLean(request.opcode)) {
+          sendBuffer.clear();
+          Protocol.encodeLeanResponse(error, sendBuffer);
+          sendBuffer.flip();
+        } else {
+          encodeResponse(error);
+        }
+      }
+      if (remember) {
+        replies.complete(clientAddress, request.requestId, sendBuffer);
+      }
+      send(sendBuffer);
+    }
+  }
+
+  /**
+   * Function to execute a request asking for a lean response, written by the processor straight
+   * into the send buffer
+   * @param request The request to execute
+   */
+  private void encodeLeanResponse(Request request) {
+    sendBuffer.clear();
+    if (processor.executeLean(request, clientIP, clientPort, sendBuffer) < 0) {
+      Log.error(clientIP, clientPort, "Packet Size too big");
+      Protocol.putLeanHeader(sendBuffer, 0, false, request.requestId, -1);
+      sendBuffer.position(Protocol.LEAN_HEADER_SIZE);
+    }
+    sendBuffer.flip();
+  }
+
+  /**
+   * Function to encode a response into the send buffer
+   * @param response The response to encode
+   */
+  private void encodeResponse(Response response) {
+    if (Protocol.responseLength(response) > sendBuffer.capacity()) {
+      // Tell the client instead of letting it time out
+      Log.error(clientIP, clientPort, "Packet Size too big");
+      response = new Response(Protocol.STATUS_ERROR, response.requestId, null,
+              "[Err] Response does not fit in a datagram");
+    }
+    sendBuffer.clear();
+    Protocol.encodeResponse(response, sendBuffer);
+    sendBuffer.flip();
+  }
+
+  /**
+   * Function to send a response datagram to the client of the current request
+   * @param datagram The encoded response, in read mode
+   */
+  private void send(ByteBuffer datagram) {
+    try {
+      metrics.recordBytesOut(channel.send(datagram, clientAddress));
+    } catch (IOException e) {
+      Log.error(clientIP, clientPort, "Unknown IO Error. Response Not Sent");
+    }
+  }
+}
@@ -0,0 +1,521 @@
+/**
+ * Write-Ahead Log
+ *
+ * Append-only log recording every PUT and DELETE before it is acknowledged, so the store can be
+ * rebuilt after a restart. The log is split into segment files in a DataDirectory; a new segment
+ * is started whenever a snapshot is taken, so the segments a snapshot covers can simply be
+ * deleted. Each record is "crc(4) | length(4) | op(1) | keyLen(4) | key |
+ * valLen(4) | value" with a CRC32C of everything after the length.
+ *
+ * Writers never touch the file themselves. They copy their record into a shared buffer and wait;
+ * a single flusher thread writes everything buffered so far with one write and, depending on the
+ * sync policy, one fsync (group commit). While it is busy the next batch builds up, so the cost of
+ * an fsync is shared by every writer that arrived during the previous one.
+ *
+ * Sync policies:
+ *  ALWAYS   - a write is acknowledged once its record has been fsynced
+ *  INTERVAL - acknowledged once written to the OS; the file is fsynced every N ms
+ *  OS       - acknowledged once written to the OS; the OS decides when to flush it to disk
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+public class WriteAheadLog implements Closeable {
+
+  /**
+   * When records are forced to disk.
+   */
+  public enum SyncPolicy {
+    ALWAYS, INTERVAL, OS
+  }
+
+  // Record types
+  public static final byte OP_PUT = 1;
+  public static final byte OP_DELETE = 2;
+
+  // Checksum and length in front of every record
+  private static final int HEADER_SIZE = 8;
+
+  // Largest record accepted on replay, a PUT of the longest key and largest value; anything bigger
+  // is treated as a corrupt tail
+  private static final int MAX_RECORD_SIZE = 1 + 4 + Protocol.MAX_KEY_BYTES + 4 + Protocol.MAX_VALUE_SIZE;
+
+  // Size of the read buffer used for replay and initial size of the append buffers
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  private final DataDirectory dir;
+  private final SyncPolicy policy;
+  private final long syncIntervalNanos;
+
+  // Guards the append buffer and the positions below
+  private final ReentrantLock lock = new ReentrantLock();
+
+  // Signalled when there is something for the flusher to do
+  private final Condition work = lock.newCondition();
+
+  // Signalled when the flusher has written or synced more of the log
+  private final Condition done = lock.newCondition();
+
+  // Records appended but not yet handed to the flusher, and the buffer the flusher writes from
+  private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+  private ByteBuffer writing = ByteBuffer.allocate(BUFFER_SIZE);
+
+  // Log positions (bytes since the log was opened) up to which records are appended, written
+  // and fsynced
+  private long appended;
+  private long written;
+  private long synced;
+
+  // Id of the segment new records go to, and the log position where it starts while the
+  // flusher has not switched to it yet (-1 when no switch is pending)
+  private long segment;
+  private long rotateAt = -1;
+
+  // Segment file the flusher writes to. Only used by the flusher after startup
+  private FileChannel channel;
+  private long channelSegment;
+
+  // Set if the flusher failed. Every later write fails with it
+  private IOException failure;
+
+  private boolean closed;
+
+  private final Thread flusher;
+
+  /**
+   * Opens the log in a data directory and replays it into a store, starting with a given
+   * segment. A torn or corrupt record at the end of the last segment (from a crash in the middle
+   * of a write) ends the replay and is cut off.
+   *
+   * @param dir            The data directory
+   * @param firstSegment   The first segment to replay. Older segments are already covered by a
+   *                       snapshot and are ignored
+   * @param policy         When appended records are forced to disk
+   * @param syncIntervalMs How often the INTERVAL policy fsyncs, in milliseconds
+   * @param store          The store to load the logged writes into
+   * @return The open log, appending after the last valid record
+   * @throws IOException If a segment cannot be opened or read, or one before the last is corrupt
+   */
+  public static WriteAheadLog open(DataDirectory dir, long firstSegment, SyncPolicy policy,
+                                   int syncIntervalMs, KeyValueStore store) throws IOException {
+    List<Long> segments = new ArrayList<Long>();
+    for (long id : dir.walSegments()) {
+      if (id >= firstSegment) segments.add(id);
+    }
+
+    long records = 0;
+    for (int i = 0; i < segments.size(); i++) {
+      Path file = dir.walSegment(segments.get(i));
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        long[] count = new long[1];
+        long end = replay(channel, store, count);
+        records += count[0];
+        if (end < channel.size()) {
+          if (i < segments.size() - 1) {
+            throw new IOException("Write-ahead log segment " + file + " is corrupt at offset " + end);
+          }
+          Log.log(Log.WARN, "Write-ahead log " + file + ": discarding " + (channel.size() - end) +
+                  " bytes after the last valid record");
+          channel.truncate(end);
+          channel.force(false);
+        }
+      }
+    }
+    if (records > 0) {
+      Log.log(Log.INFO, "Replayed " + records + " records from the write-ahead log");
+    }
+
+    // Keep appending to the last segment, or start the first one
+    long segment = segments.isEmpty() ? Math.max(firstSegment, 1) : segments.get(segments.size() - 1);
+    FileChannel channel = FileChannel.open(dir.walSegment(segment), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE);
+    channel.position(channel.size());
+    dir.sync();
+    return new WriteAheadLog(dir, channel, segment, policy, syncIntervalMs);
+  }
+
+  private WriteAheadLog(DataDirectory dir, FileChannel channel, long segment, SyncPolicy policy,
+                        int syncIntervalMs) {
+    this.dir = dir;
+    this.channel = channel;
+    this.segment = segment;
+    this.channelSegment = segment;
+    this.policy = policy;
+    this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMs);
+    flusher = new Thread(this::flushLoop, "wal-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Function to parse a sync policy option
+   *
+   * @param name always, interval or os
+   * @return The policy
+   * @throws IllegalArgumentException If the name is not a known policy
+   */
+  public static SyncPolicy parsePolicy(String name) {
+    try {
+      return SyncPolicy.valueOf(name.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown sync policy: " + name + " (expected always, interval or os)");
+    }
+  }
+
+  /**
+   * Function to append a record to the log. Returns as soon as the record is buffered; call
+   * await with the returned position before acknowledging the write.
+   *
+   * @param op    OP_PUT or OP_DELETE
+   * @param key   The key written
+   * @param value The new value, or null for a delete
+   * @return The log position just after the record
+   * @throws UncheckedIOException If the log has failed or is closed
+   */
+  public long append(byte op, ByteString key, ByteString value) {
+    // Build and checksum the record before taking the lock, so the lock only covers the copy
+    int length = 1 + 4 + key.length() + 4 + (value == null ? 0 : value.length());
+    ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+    record.position(HEADER_SIZE);
+    record.put(op);
+    record.putInt(key.length());
+    key.writeTo(record);
+    if (value == null) {
+      record.putInt(-1);
+    } else {
+      record.putInt(value.length());
+      value.writeTo(record);
+    }
+    CRC32C crc = new CRC32C();
+    crc.update(record.array(), HEADER_SIZE, length);
+    record.putInt(0, (int) crc.getValue());
+    record.putInt(4, length);
+    record.flip();
+
+    lock.lock();
+    try {
+      checkUsable();
+      if (pending.remaining() < record.remaining()) {
+        pending = grow(pending, record.remaining());
+      }
+      pending.put(record);
+      appended += HEADER_SIZE + length;
+      work.signal();
+      return appended;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Function to wait until a record is as durable as the sync policy promises: fsynced for
+   * ALWAYS, written to the OS otherwise
+   *
+   * @param position A position returned by append
+   * @throws UncheckedIOException If the log failed before reaching the position
+   */
+  public void await(long position) {
+    lock.lock();
+    try {
+      while ((policy == SyncPolicy.ALWAYS ? synced : written) < position) {
+        if (failure != null) {
+          throw new UncheckedIOException("Write-ahead log failed", failure);
+        }
+        done.awaitUninterruptibly();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Function to get the position after the last record appended
+   */
+  public long position() {
+    lock.lock();
+    try {
+      return appended;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Function to start a new segment. Every record appended before the call goes to the old
+   * segments and every record appended after it to the new one. The switch itself is done by
+   * the flusher, so writers never wait for it.
+   *
+   * @return The id of the new segment
+   * @throws UncheckedIOException If the log has failed or is closed
+   */
+  public long rotate() {
+    lock.lock();
+    try {
+      // Only one switch can be pending at a time
+      while (rotateAt >= 0) {
+        checkUsable();
+        done.awaitUninterruptibly();
+      }
+      checkUsable();
+      rotateAt = appended;
+      segment++;
+      work.signal();
+      return segment;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Function to wait until the flusher has closed every segment before the current one, so
+   * they are complete on disk and can be deleted
+   *
+   * @throws UncheckedIOException If the log failed before the switch
+   */
+  public void awaitRotation() {
+    lock.lock();
+    try {
+      while (rotateAt >= 0) {
+        checkUsable();
+        done.awaitUninterruptibly();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Function to write and fsync everything appended so far, then stop the flusher and close
+   * the file
+   */
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      if (closed) return;
+      closed = true;
+      work.signal();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    channel.close();
+  }
+
+  /**
+   * Function run by the flusher thread: hands each batch of appended records to the file
+   */
+  private void flushLoop() {
+    long nextSync = System.nanoTime() + syncIntervalNanos;
+    while (true) {
+      long start;
+      long target;
+      long switchAt;
+      long nextSegment;
+      boolean stopping;
+      lock.lock();
+      try {
+        while (pending.position() == 0 && rotateAt < 0 && !closed && !syncDue(nextSync)) {
+          if (policy == SyncPolicy.INTERVAL && synced < written) {
+            work.awaitNanos(nextSync - System.nanoTime());
+          } else {
+            work.awaitUninterruptibly();
+          }
+        }
+        // Swap buffers so writers can keep appending while this batch is written
+        ByteBuffer batch = pending;
+        pending = writing;
+        writing = batch;
+        start = written;
+        target = appended;
+        switchAt = rotateAt;
+        nextSegment = segment;
+        stopping = closed;
+      } catch (InterruptedException e) {
+        continue;
+      } finally {
+        lock.unlock();
+      }
+
+      boolean force = policy == SyncPolicy.ALWAYS || syncDue(nextSync) || stopping;
+      try {
+        writing.flip();
+        if (switchAt >= 0) {
+          // Finish the old segment with the records appended before the switch, then move on
+          writing.limit((int) (switchAt - start));
+          writeFully(writing);
+          channel.force(false);
+          channel.close();
+          channel = FileChannel.open(dir.walSegment(nextSegment), StandardOpenOption.CREATE_NEW,
+                  StandardOpenOption.WRITE);
+          channelSegment = nextSegment;
+          dir.sync();
+          writing.limit((int) (target - start));
+        }
+        writeFully(writing);
+        writing.clear();
+        if (force) {
+          channel.force(false);
+          nextSync = System.nanoTime() + syncIntervalNanos;
+        }
+      } catch (IOException e) {
+        Log.log(Log.ERROR, "Write-ahead log segment " + dir.walSegment(channelSegment) + " failed: " +
+                e.getMessage());
+        lock.lock();
+        try {
+          failure = e;
+          done.signalAll();
+        } finally {
+          lock.unlock();
+        }
+        return;
+      }
+
+      lock.lock();
+      try {
+        written = target;
+        if (force) synced = target;
+        if (switchAt >= 0) rotateAt = -1;
+        done.signalAll();
+        if (stopping && pending.position() == 0) return;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Function to write a whole buffer to the current segment
+   */
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Function to check whether the INTERVAL policy owes an fsync. Caller holds the lock or is
+   * the flusher
+   */
+  private boolean syncDue(long nextSync) {
+    return policy == SyncPolicy.INTERVAL && synced < written && System.nanoTime() - nextSync >= 0;
+  }
+
+  /**
+   * Function to fail fast once the log can no longer make writes durable. Caller holds the lock
+   */
+  private void checkUsable() {
+    if (failure != null) {
+      throw new UncheckedIOException("Write-ahead log failed", failure);
+    }
+    if (closed) {
+      throw new UncheckedIOException(new IOException("Write-ahead log is closed"));
+    }
+  }
+
+  /**
+   * Function to copy a buffer into a bigger one with room for at least the given extra bytes
+   */
+  private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+    int capacity = buffer.capacity();
+    while (capacity - buffer.position() < needed) {
+      capacity *= 2;
+    }
+    ByteBuffer bigger = ByteBuffer.allocate(capacity);
+    buffer.flip();
+    bigger.put(buffer);
+    return bigger;
+  }
+
+  /**
+   * Function to read every valid record from the start of the file and apply it to a store.
+   * The file is read sequentially in large chunks.
+   *
+   * @param channel The log segment
+   * @param store   The store to apply the records to
+   * @param records Receives the number of records applied in its first slot
+   * @return The position just after the last valid record
+   */
+  private static long replay(FileChannel channel, KeyValueStore store, long[] records) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    buffer.flip();
+    long position = 0;
+    CRC32C crc = new CRC32C();
+    channel.position(0);
+
+    while (true) {
+      if (!fill(channel, buffer, HEADER_SIZE)) break;
+      int checksum = buffer.getInt(buffer.position());
+      int length = buffer.getInt(buffer.position() + 4);
+      if (length < 1 + 4 + 4 || length > MAX_RECORD_SIZE) break;
+      if (HEADER_SIZE + length > buffer.capacity()) {
+        buffer = grow(buffer.compact(), HEADER_SIZE + length).flip();
+      }
+      if (!fill(channel, buffer, HEADER_SIZE + length)) break;
+
+      int start = buffer.position() + HEADER_SIZE;
+      crc.reset();
+      crc.update(buffer.array(), start, length);
+      if ((int) crc.getValue() != checksum) break;
+
+      ByteBuffer record = buffer.slice(start, length);
+      byte op = record.get();
+      ByteString key = readBytes(record, record.getInt());
+      int valLength = record.getInt();
+      if (op == OP_PUT && valLength >= 0) {
+        store.put(key, readBytes(record, valLength));
+      } else if (op == OP_DELETE) {
+        store.remove(key);
+      } else {
+        break;
+      }
+      buffer.position(start + length);
+      position += HEADER_SIZE + length;
+      records[0]++;
+    }
+    return position;
+  }
+
+  /**
+   * Function to make sure the buffer holds at least the given number of unread bytes, reading
+   * more of the file if needed
+   *
+   * @return False if the file ends first
+   */
+  private static boolean fill(FileChannel channel, ByteBuffer buffer, int needed) throws IOException {
+    if (buffer.remaining() >= needed) return true;
+    buffer.compact();
+    while (buffer.position() < needed) {
+      if (channel.read(buffer) == -1) {
+        buffer.flip();
+        return false;
+      }
+    }
+    buffer.flip();
+    return true;
+  }
+
+  /**
+   * Function to read a key or value of the given length, checking it fits in the record
+   */
+  private static ByteString readBytes(ByteBuffer record, int length) throws IOException {
+    if (length < 0 || length > record.remaining()) {
+      throw new IOException("Corrupt write-ahead log record");
+    }
+    return ByteString.read(record, length);
+  }
+}